@@ -389,7 +389,8 @@ public class ArActivity extends AppCompatActivity {
         // image analysis
         try (Image image = frame.acquireCameraImage()) {
             if (cvInferenceThread != null) {
-                cvInferenceThread.processFrame(image);
+                cvInferenceThread.processFrame(image, frame.getCamera().getPose(),
+                        frame.getCamera().getImageIntrinsics());
             }
         } catch (NotYetAvailableException e) {
         }
@@ -746,6 +747,7 @@ public class ArActivity extends AppCompatActivity {
         }
 
 //        cvInferenceThread = CvInferenceThread.createAndStart(this);
+//        cvInferenceThread.setKeyframeMode(true); // road mask: model on keyframes, warped by pose in between
 //        cvInferenceThread.setInferenceCallback(inferencedImage -> {
 //            if (overlayView != null) {
 //                segImg = inferencedImage;
@@ -13,9 +13,11 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.app.carnavar.utils.ImageUtils;
+import com.google.ar.core.CameraIntrinsics;
+import com.google.ar.core.Pose;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CvInferenceThread extends HandlerThread {
 
@@ -25,13 +27,25 @@ public class CvInferenceThread extends HandlerThread {
     private Handler handler;
     private Handler callbackHandler;
 
-    boolean isProcessingFrame = false;
-    private byte[][] yuvBytes = new byte[3][];
+    // camera thread copies frames into scheduler, inference thread takes the newest one
+    private final FrameScheduler frameScheduler = new FrameScheduler();
+    private final AtomicBoolean frameDrainPosted = new AtomicBoolean(false);
+    private final Runnable frameDrainTask = this::processNewestFrame;
     private int[] rgbBytes = null;
-    private int yRowStride;
 
-    private Runnable imageConverter = null;
-    private Runnable postInferenceCallback = null;
+    // convert, inference and postprocess of successive frames overlap on own threads
+    private volatile boolean pipelined = true;
+    private volatile CvPipeline pipeline = null; // null after stage failure: frames go to handler path
+    private YuvModelInputPreprocessor pipelinePreprocessor = null; // created by convert stage
+
+    // keyframe mode: model runs on keyframes only, masks of other frames are warped from last keyframe by pose
+    private volatile boolean keyframeMode = false;
+    private KeyframeMaskWarper maskWarper;
+    private int[] warpedMask = null; // inference thread or postprocess stage
+    private final float[] poseRotation = new float[4]; // caller thread only
+    private final float[] poseTranslation = new float[3];
+    private int intrinsicsImageWidth = 0;
+    private int intrinsicsImageHeight = 0;
 
     private TFLiteImageSemanticSegmenter imageSegmenter;
     private String[] classes;
@@ -42,6 +56,11 @@ public class CvInferenceThread extends HandlerThread {
 
     private InferenceCallback inferenceCallback;
 
+    // camera frame is rotated/resized/normalized straight from yuv planes into model input
+    private static final int FRAME_ROTATION_DEGREES = 90;
+    private volatile boolean fusedPreprocessing = true;
+    private YuvModelInputPreprocessor inputPreprocessor = null;
+
     public interface InferenceCallback {
         void inferenceCompleted(Bitmap inferencedImage);
     }
@@ -60,104 +79,257 @@ public class CvInferenceThread extends HandlerThread {
         this.context = context;
     }
 
+    public void setFusedPreprocessing(boolean fusedPreprocessing) {
+        this.fusedPreprocessing = fusedPreprocessing;
+    }
+
+    public boolean isFusedPreprocessing() {
+        return fusedPreprocessing;
+    }
+
+    public void setTargetFps(int targetFps) {
+        frameScheduler.setTargetFps(targetFps);
+    }
+
+    public void setLatencyBudgetMillis(long latencyBudgetMillis) {
+        frameScheduler.setLatencyBudgetMillis(latencyBudgetMillis);
+    }
+
+    public FrameScheduler getFrameScheduler() {
+        return frameScheduler;
+    }
+
+    // should be set before first frame; pipeline always uses fused preprocessing
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public CvPipeline getPipeline() {
+        return pipeline;
+    }
+
+    // needs frames with camera pose (see processFrame), without it mask of keyframe is reused as is
+    public void setKeyframeMode(boolean keyframeMode) {
+        this.keyframeMode = keyframeMode;
+    }
+
+    public boolean isKeyframeMode() {
+        return keyframeMode;
+    }
+
+    // keyframe interval and pose thresholds, keyframe and warped frames counters
+    public KeyframeMaskWarper getMaskWarper() {
+        return maskWarper;
+    }
+
+    // planes are copied on caller thread, image can be closed right after return (caller owns it)
     public void processFrame(Image image) {
+        processFrame(image, null, null);
+    }
+
+    // cameraPose - ARCore pose of physical camera (Camera.getPose()), intrinsics - of camera image
+    // (Camera.getImageIntrinsics()); both are used by keyframe mode and can be null
+    public void processFrame(Image image, Pose cameraPose, CameraIntrinsics intrinsics) {
         if (image == null || imageSegmenter == null) {
             return;
         }
 
-        if (rgbBytes == null) {
-            rgbBytes = new int[image.getWidth() * image.getHeight()];
+        if (intrinsics != null && (image.getWidth() != intrinsicsImageWidth
+                || image.getHeight() != intrinsicsImageHeight)) {
+            intrinsicsImageWidth = image.getWidth();
+            intrinsicsImageHeight = image.getHeight();
+            float[] focalLength = intrinsics.getFocalLength();
+            float[] principalPoint = intrinsics.getPrincipalPoint();
+            maskWarper.setIntrinsics(focalLength[0], focalLength[1], principalPoint[0], principalPoint[1],
+                    intrinsicsImageWidth, intrinsicsImageHeight);
         }
-
-        if (isProcessingFrame) {
-            image.close();
-            return;
+        if (cameraPose != null) {
+            cameraPose.getRotationQuaternion(poseRotation, 0);
+            cameraPose.getTranslation(poseTranslation, 0);
         }
 
-        isProcessingFrame = true;
         final Image.Plane[] planes = image.getPlanes();
-        fillBytes(planes, yuvBytes);
-        yRowStride = planes[0].getRowStride();
-        final int uvRowStride = planes[1].getRowStride();
-        final int uvPixelStride = planes[1].getPixelStride();
-
-        imageConverter = () -> ImageUtils.convertYUV420ToARGB8888(
-                yuvBytes[0],
-                yuvBytes[1],
-                yuvBytes[2],
-                image.getWidth(),
-                image.getHeight(),
-                yRowStride,
-                uvRowStride,
-                uvPixelStride,
-                rgbBytes
-        );
+        if (frameScheduler.offer(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                cameraPose != null ? poseRotation : null, poseTranslation, System.nanoTime())) {
+            if (pipelined && pipeline != null) {
+                pipeline.frameAvailable();
+            } else if (frameDrainPosted.compareAndSet(false, true)) {
+                handler.post(frameDrainTask);
+            }
+        }
+    }
 
-        postInferenceCallback = () -> {
-            image.close();
-            isProcessingFrame = false;
-        };
+    private void createPipeline() {
+        coloredMaskClasses = ImageUtils.getRandomColorsForClasses(imageSegmenter.getNumLabelClasses(), 200);
+        coloredMaskClasses[0] = Color.TRANSPARENT;
+        pipeline = new CvPipeline(frameScheduler,
+                imageSegmenter::createInputBuffer,
+                imageSegmenter::createOutputBuffer,
+                (frame, input) -> {
+                    if (!isKeyframe(frame.hasPose ? frame.rotation : null, frame.translation)) {
+                        return false; // mask is warped in postprocess
+                    }
+                    if (pipelinePreprocessor == null) {
+                        pipelinePreprocessor = new YuvModelInputPreprocessor(frame.width, frame.height,
+                                FRAME_ROTATION_DEGREES, imageSegmenter.getImageSizeX(),
+                                imageSegmenter.getImageSizeY(), imageSegmenter.getImageMean(),
+                                imageSegmenter.getImageStd());
+                    }
+                    pipelinePreprocessor.process(frame.yPlane, frame.uPlane, frame.vPlane,
+                            frame.yRowStride, frame.uvRowStride, frame.uvPixelStride, input);
+                    return true;
+                },
+                imageSegmenter::runInference,
+                (output, frame) -> {
+                    float[] rotation = frame.hasPose ? frame.rotation : null;
+                    int[] mask;
+                    if (output != null) {
+                        mask = imageSegmenter.decodeMask(output, coloredMaskClasses);
+                        if (keyframeMode) {
+                            maskWarper.setKeyframeMask(mask, rotation);
+                        }
+                    } else if ((mask = warpLastKeyframeMask(rotation)) == null) {
+                        return;
+                    }
+                    Bitmap segmented = imageSegmenter.createMaskBitmap(mask,
+                            pipelinePreprocessor.getRotatedWidth(), pipelinePreprocessor.getRotatedHeight());
+                    if (inferenceCallback != null) {
+                        inferenceCallback.inferenceCompleted(segmented);
+                    }
+                });
+        pipeline.setFailureListener(e -> {
+            Log.e(TAG, "Pipeline stage failed, frames are processed on inference thread", e);
+            handler.post(this::fallBackFromPipeline);
+        });
+        pipeline.start();
+    }
 
-        // process inference
-        if (rgbCameraFrameBitmap == null) {
-            rgbCameraFrameBitmap = Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
+    // stage threads are joined here, not on failed stage thread
+    private void fallBackFromPipeline() {
+        CvPipeline failed = pipeline;
+        if (failed == null || failed.getFailure() == null) {
+            return;
         }
-        rgbCameraFrameBitmap.setPixels(getRgbBytes(), 0, image.getWidth(), 0, 0,
-                image.getWidth(), image.getHeight());
-        if (transformMat == null) {
-            transformMat = new Matrix();
-            transformMat.postRotate(90);
+        pipeline = null;
+        failed.stop();
+        if (frameDrainPosted.compareAndSet(false, true)) {
+            processNewestFrame(); // frame may have been offered to stopped pipeline
+        }
+    }
+
+    private void processNewestFrame() {
+        frameDrainPosted.set(false);
+        FrameScheduler.Frame frame = frameScheduler.takeNewest(System.nanoTime());
+        if (frame == null) {
+            return;
         }
-        final Bitmap rotCamFrame = Bitmap.createBitmap(rgbCameraFrameBitmap, 0, 0, image.getWidth(), image.getHeight(),
-                transformMat, true);
 
         if (coloredMaskClasses == null) {
             coloredMaskClasses = ImageUtils.getRandomColorsForClasses(imageSegmenter.getNumLabelClasses(), 200);
             coloredMaskClasses[0] = Color.TRANSPARENT;
         }
 
-        handler.post(() -> {
-            long startTime = SystemClock.uptimeMillis();
-            segmentedFrameBitmap = imageSegmenter.predictSegmentation(rotCamFrame, coloredMaskClasses);
-            long endTime = SystemClock.uptimeMillis();
-            Log.i(TAG, "Segmentation inference time(ms): " + String.valueOf(endTime - startTime));
+        float[] rotation = frame.hasPose ? frame.rotation : null;
+        if (!isKeyframe(rotation, frame.translation)) {
+            int[] mask = warpLastKeyframeMask(rotation);
+            if (mask != null) {
+                boolean swap = FRAME_ROTATION_DEGREES % 180 != 0;
+                segmentedFrameBitmap = imageSegmenter.createMaskBitmap(mask,
+                        swap ? frame.height : frame.width, swap ? frame.width : frame.height);
+                if (inferenceCallback != null) {
+                    inferenceCallback.inferenceCompleted(segmentedFrameBitmap);
+                }
+                frameScheduler.frameCompleted(frame, System.nanoTime());
+            }
+            return;
+        }
+
+        long startTime = SystemClock.uptimeMillis();
+        if (fusedPreprocessing) {
+            segmentedFrameBitmap = predictSegmentationFused(frame);
+        } else {
+            segmentedFrameBitmap = imageSegmenter.predictSegmentation(convertFrame(frame), coloredMaskClasses);
             StringBuilder sbDetCl = new StringBuilder();
             for (Integer cl : imageSegmenter.getHitClassIdxArray()) {
                 sbDetCl.append(classes[cl] + " ");
             }
             Log.i(TAG, "Detected classes: " + sbDetCl);
+        }
+        long endTime = SystemClock.uptimeMillis();
+        Log.i(TAG, "Segmentation inference time(ms): " + String.valueOf(endTime - startTime));
+        if (keyframeMode) {
+            maskWarper.setKeyframeMask(imageSegmenter.getLastMask(), rotation);
+        }
 
-            if (inferenceCallback != null) {
-                inferenceCallback.inferenceCompleted(segmentedFrameBitmap);
-            }
-            readyForNextImage();
-        });
+        if (inferenceCallback != null) {
+            inferenceCallback.inferenceCompleted(segmentedFrameBitmap);
+        }
+        frameScheduler.frameCompleted(frame, System.nanoTime());
+    }
+
+    // called from thread which takes frames (inference thread or convert stage)
+    private boolean isKeyframe(float[] rotation, float[] translation) {
+        return !keyframeMode || maskWarper.isKeyframe(rotation, translation);
     }
 
-    protected void readyForNextImage() {
-        if (postInferenceCallback != null) {
-            postInferenceCallback.run();
+    // null until first keyframe is segmented
+    private int[] warpLastKeyframeMask(float[] rotation) {
+        if (warpedMask == null) {
+            warpedMask = new int[imageSegmenter.getImageSizeX() * imageSegmenter.getImageSizeY()];
         }
+        return maskWarper.warp(rotation, warpedMask, coloredMaskClasses[0]) ? warpedMask : null;
     }
 
-    protected int[] getRgbBytes() {
-        imageConverter.run();
-        return rgbBytes;
+    // frame is rotated/resized/normalized straight from yuv planes into model input: no argb frame and bitmaps
+    private Bitmap predictSegmentationFused(FrameScheduler.Frame frame) {
+        if (inputPreprocessor == null) {
+            inputPreprocessor = new YuvModelInputPreprocessor(frame.width, frame.height,
+                    FRAME_ROTATION_DEGREES, imageSegmenter.getImageSizeX(), imageSegmenter.getImageSizeY(),
+                    imageSegmenter.getImageMean(), imageSegmenter.getImageStd());
+        }
+        inputPreprocessor.process(frame.yPlane, frame.uPlane, frame.vPlane,
+                frame.yRowStride, frame.uvRowStride, frame.uvPixelStride, imageSegmenter.getInputBuffer());
+        return imageSegmenter.predictSegmentationFromInput(inputPreprocessor.getRotatedWidth(),
+                inputPreprocessor.getRotatedHeight(), coloredMaskClasses);
     }
 
-    private void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
+    private Bitmap convertFrame(FrameScheduler.Frame frame) {
+        if (rgbBytes == null) {
+            rgbBytes = new int[frame.width * frame.height];
         }
+        ImageUtils.convertYUV420ToARGB8888(
+                frame.yPlane.array(),
+                frame.uPlane.array(),
+                frame.vPlane.array(),
+                frame.width,
+                frame.height,
+                frame.yRowStride,
+                frame.uvRowStride,
+                frame.uvPixelStride,
+                rgbBytes
+        );
+        if (rgbCameraFrameBitmap == null) {
+            rgbCameraFrameBitmap = Bitmap.createBitmap(frame.width, frame.height, Bitmap.Config.ARGB_8888);
+        }
+        rgbCameraFrameBitmap.setPixels(rgbBytes, 0, frame.width, 0, 0, frame.width, frame.height);
+        if (transformMat == null) {
+            transformMat = new Matrix();
+            transformMat.postRotate(FRAME_ROTATION_DEGREES);
+        }
+        return Bitmap.createBitmap(rgbCameraFrameBitmap, 0, 0, frame.width, frame.height, transformMat, true);
     }
 
     private void shutdown() {
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
     }
 
     @Override
@@ -207,6 +379,9 @@ public class CvInferenceThread extends HandlerThread {
             cvInferenceThread.imageSegmenter = new MobileNetDeepLabV3Float(cvInferenceThread.context);
             cvInferenceThread.classes = cvInferenceThread.imageSegmenter.getClassLabels();
             cvInferenceThread.callbackHandler = new Handler(Looper.myLooper());
+            cvInferenceThread.maskWarper = new KeyframeMaskWarper(cvInferenceThread.imageSegmenter.getImageSizeX(),
+                    cvInferenceThread.imageSegmenter.getImageSizeY(), FRAME_ROTATION_DEGREES);
+            cvInferenceThread.createPipeline();
         } catch (IOException e) {
             e.printStackTrace();
             cvInferenceThread.close();
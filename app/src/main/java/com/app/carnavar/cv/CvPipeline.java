@@ -0,0 +1,315 @@
+package com.app.carnavar.cv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Three-stage segmentation pipeline: convert (camera frame -> model input), infer (model input -> model output)
+ * and postprocess (model output -> result), every stage runs on its own thread. While frame N is in inference
+ * frame N+1 is converted and frame N-1 is postprocessed, so throughput is limited by the slowest stage instead of
+ * the sum of stages.
+ * <p>
+ * Stages exchange preallocated input and output buffers through bounded queues, buffer pools are the only
+ * memory in flight. When inference is behind, convert stage waits for free input buffer and doesn't take frames
+ * from {@link FrameScheduler}: newer camera frames replace older ones there (backpressure ends in drop-oldest
+ * mailbox). Every stage is one thread and queues are FIFO, so results are delivered in frame order.
+ * <p>
+ * Converter can mark frame as not needing inference (keyframe mode): it passes inference stage and its result
+ * is made by postprocess from earlier frames, still in frame order.
+ */
+public class CvPipeline {
+
+    public static final int DEFAULT_DEPTH = 2;
+
+    public interface Converter {
+        // writes model input of frame into input (position 0); returns false if frame doesn't need inference
+        boolean convert(FrameScheduler.Frame frame, ByteBuffer input);
+    }
+
+    public interface Interpreter {
+        void run(ByteBuffer input, ByteBuffer output);
+    }
+
+    public interface Postprocessor {
+        // output is valid only inside call, null if frame wasn't inferred
+        void postprocess(ByteBuffer output, FrameInfo frame);
+    }
+
+    public interface BufferFactory {
+        ByteBuffer create();
+    }
+
+    public interface FailureListener {
+        // called once on thread of failed stage, all stages are stopping already
+        void onFailure(Throwable e);
+    }
+
+    /**
+     * Frame which buffer belongs to: copy of scheduler frame fields, scheduler slot can be reused meanwhile.
+     */
+    public static class FrameInfo {
+
+        public long sequence; // number of frame taken by pipeline
+        public long timeNanos;
+        public boolean inferred;
+        public boolean hasPose;
+        public final float[] rotation = new float[4];
+        public final float[] translation = new float[3];
+
+        private void set(FrameInfo info) {
+            sequence = info.sequence;
+            timeNanos = info.timeNanos;
+            inferred = info.inferred;
+            hasPose = info.hasPose;
+            System.arraycopy(info.rotation, 0, rotation, 0, 4);
+            System.arraycopy(info.translation, 0, translation, 0, 3);
+        }
+
+        private void set(FrameScheduler.Frame frame, long sequence, boolean inferred) {
+            this.sequence = sequence;
+            this.timeNanos = frame.timeNanos;
+            this.inferred = inferred;
+            hasPose = frame.hasPose;
+            System.arraycopy(frame.rotation, 0, rotation, 0, 4);
+            System.arraycopy(frame.translation, 0, translation, 0, 3);
+        }
+    }
+
+    /**
+     * Pooled buffer with frame it belongs to.
+     */
+    private static class Slot {
+
+        final ByteBuffer buffer;
+        final FrameInfo frame = new FrameInfo();
+
+        Slot(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final FrameScheduler frameScheduler;
+    private final Converter converter;
+    private final Interpreter interpreter;
+    private final Postprocessor postprocessor;
+
+    private final BlockingQueue<Slot> freeInputs;
+    private final BlockingQueue<Slot> convertedInputs;
+    private final BlockingQueue<Slot> freeOutputs;
+    private final BlockingQueue<Slot> inferredOutputs;
+
+    private final Thread convertThread;
+    private final Thread inferThread;
+    private final Thread postprocessThread;
+    private volatile boolean running = false;
+    private volatile Throwable failure = null;
+    private volatile FailureListener failureListener = null;
+
+    private long sequence = 0; // convert thread only
+
+    // every counter is written by one stage thread
+    private volatile long convertedFrames = 0;
+    private volatile long inferredFrames = 0;
+    private volatile long postprocessedFrames = 0;
+    private volatile long skippedInferences = 0; // frames marked by converter as not needing inference
+    private volatile long convertNanos = 0;
+    private volatile long inferNanos = 0;
+    private volatile long postprocessNanos = 0;
+
+    public CvPipeline(FrameScheduler frameScheduler, BufferFactory inputFactory, BufferFactory outputFactory,
+                      Converter converter, Interpreter interpreter, Postprocessor postprocessor) {
+        this(frameScheduler, inputFactory, outputFactory, converter, interpreter, postprocessor, DEFAULT_DEPTH);
+    }
+
+    // depth - count of input and of output buffers, 1 gives no overlap between stages
+    public CvPipeline(FrameScheduler frameScheduler, BufferFactory inputFactory, BufferFactory outputFactory,
+                      Converter converter, Interpreter interpreter, Postprocessor postprocessor, int depth) {
+        this.frameScheduler = frameScheduler;
+        this.converter = converter;
+        this.interpreter = interpreter;
+        this.postprocessor = postprocessor;
+
+        depth = Math.max(1, depth);
+        freeInputs = new ArrayBlockingQueue<>(depth);
+        convertedInputs = new ArrayBlockingQueue<>(depth);
+        freeOutputs = new ArrayBlockingQueue<>(depth);
+        inferredOutputs = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; ++i) {
+            freeInputs.add(new Slot(inputFactory.create()));
+            freeOutputs.add(new Slot(outputFactory.create()));
+        }
+
+        convertThread = new Thread(this::convertLoop, "CvPipelineConvert");
+        inferThread = new Thread(this::inferLoop, "CvPipelineInfer");
+        postprocessThread = new Thread(this::postprocessLoop, "CvPipelinePostprocess");
+    }
+
+    public void start() {
+        running = true;
+        convertThread.start();
+        inferThread.start();
+        postprocessThread.start();
+    }
+
+    // producer side: call after frame is offered to scheduler, wakes convert stage
+    public void frameAvailable() {
+        LockSupport.unpark(convertThread);
+    }
+
+    // stops stages, frames in flight are discarded
+    public void stop() {
+        running = false;
+        convertThread.interrupt();
+        inferThread.interrupt();
+        postprocessThread.interrupt();
+        try {
+            convertThread.join();
+            inferThread.join();
+            postprocessThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void convertLoop() {
+        try {
+            while (running) {
+                Slot input = freeInputs.take(); // waits for inference: backpressure
+                FrameScheduler.Frame frame;
+                while ((frame = frameScheduler.takeNewest(System.nanoTime())) == null) {
+                    LockSupport.park(this);
+                    if (!running) {
+                        return;
+                    }
+                }
+                long startTime = System.nanoTime();
+                input.buffer.rewind();
+                boolean infer = converter.convert(frame, input.buffer);
+                input.frame.set(frame, sequence++, infer);
+                //noinspection NonAtomicOperationOnVolatileField
+                convertNanos += System.nanoTime() - startTime;
+                //noinspection NonAtomicOperationOnVolatileField
+                ++convertedFrames;
+                convertedInputs.put(input);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void inferLoop() {
+        try {
+            while (running) {
+                Slot input = convertedInputs.take();
+                Slot output = freeOutputs.take(); // waits for postprocess
+                long startTime = System.nanoTime();
+                output.frame.set(input.frame);
+                if (input.frame.inferred) {
+                    output.buffer.rewind();
+                    interpreter.run(input.buffer, output.buffer);
+                    //noinspection NonAtomicOperationOnVolatileField
+                    inferNanos += System.nanoTime() - startTime;
+                    //noinspection NonAtomicOperationOnVolatileField
+                    ++inferredFrames;
+                } else {
+                    //noinspection NonAtomicOperationOnVolatileField
+                    ++skippedInferences;
+                }
+                freeInputs.put(input);
+                inferredOutputs.put(output);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void postprocessLoop() {
+        try {
+            while (running) {
+                Slot output = inferredOutputs.take();
+                long startTime = System.nanoTime();
+                output.buffer.rewind();
+                postprocessor.postprocess(output.frame.inferred ? output.buffer : null, output.frame);
+                long endTime = System.nanoTime();
+                //noinspection NonAtomicOperationOnVolatileField
+                postprocessNanos += endTime - startTime;
+                //noinspection NonAtomicOperationOnVolatileField
+                ++postprocessedFrames;
+                frameScheduler.frameCompleted(output.frame.timeNanos, endTime);
+                freeOutputs.put(output);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    // should be set before start
+    public void setFailureListener(FailureListener failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    // stage error stops whole pipeline, first error is kept for getFailure() and passed to failure listener
+    private synchronized void fail(Throwable e) {
+        if (failure != null) {
+            return;
+        }
+        failure = e;
+        running = false;
+        convertThread.interrupt();
+        inferThread.interrupt();
+        postprocessThread.interrupt();
+        FailureListener listener = failureListener;
+        if (listener != null) {
+            listener.onFailure(e);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public long getConvertedFrames() {
+        return convertedFrames;
+    }
+
+    public long getInferredFrames() {
+        return inferredFrames;
+    }
+
+    public long getPostprocessedFrames() {
+        return postprocessedFrames;
+    }
+
+    public long getSkippedInferences() {
+        return skippedInferences;
+    }
+
+    // mean time of stage per frame, millis
+    public double getMeanConvertMillis() {
+        return meanMillis(convertNanos, convertedFrames);
+    }
+
+    public double getMeanInferMillis() {
+        return meanMillis(inferNanos, inferredFrames);
+    }
+
+    public double getMeanPostprocessMillis() {
+        return meanMillis(postprocessNanos, postprocessedFrames);
+    }
+
+    private static double meanMillis(long nanos, long frames) {
+        return frames > 0 ? nanos / 1_000_000.0 / frames : 0;
+    }
+}
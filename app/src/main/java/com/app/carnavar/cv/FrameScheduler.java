@@ -0,0 +1,223 @@
+package com.app.carnavar.cv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands camera frames from camera (producer) thread to inference (consumer) thread, consumer always gets
+ * the newest frame. Frames are copied into three preallocated slots (triple buffering): producer fills its
+ * back slot and swaps it into single-slot mailbox by one atomic exchange, consumer swaps its front slot
+ * with the mailbox. Unread frame in mailbox is replaced by newer one (drop-oldest), nobody waits for a lock.
+ * <p>
+ * Producer accepts frames not faster than target FPS, consumer skips frames which waited in mailbox
+ * longer than latency budget. Counters and end-to-end latency percentiles can be read from any thread.
+ */
+public class FrameScheduler {
+
+    public static final int DEFAULT_TARGET_FPS = 15;
+    public static final long DEFAULT_LATENCY_BUDGET_MILLIS = 200;
+
+    private static final int SLOTS = 3;
+    private static final int FRESH = 1 << 8; // mailbox slot has frame which consumer hasn't taken
+    private static final int INDEX_MASK = FRESH - 1;
+    private static final int LATENCY_WINDOW = 128;
+
+    /**
+     * Copy of YUV_420_888 camera frame planes. Buffers are heap buffers: can be read both by absolute
+     * indexes and as arrays.
+     */
+    public static class Frame {
+
+        public int width;
+        public int height;
+        public int yRowStride;
+        public int uvRowStride;
+        public int uvPixelStride;
+        public ByteBuffer yPlane;
+        public ByteBuffer uPlane;
+        public ByteBuffer vPlane;
+        public long timeNanos; // acceptance time, end-to-end latency is counted from it
+        // camera pose of frame, see KeyframeMaskWarper
+        public boolean hasPose;
+        public final float[] rotation = new float[4]; // quaternion [x, y, z, w]
+        public final float[] translation = new float[3];
+
+        private void copy(int width, int height, ByteBuffer y, ByteBuffer u, ByteBuffer v,
+                          int yRowStride, int uvRowStride, int uvPixelStride, long timeNanos) {
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.timeNanos = timeNanos;
+            yPlane = copyPlane(y, yPlane);
+            uPlane = copyPlane(u, uPlane);
+            vPlane = copyPlane(v, vPlane);
+        }
+
+        private void copyPose(float[] rotation, float[] translation) {
+            hasPose = rotation != null;
+            if (hasPose) {
+                System.arraycopy(rotation, 0, this.rotation, 0, 4);
+                System.arraycopy(translation, 0, this.translation, 0, 3);
+            }
+        }
+
+        // source position isn't changed, destination is reallocated only when frame size grows
+        private static ByteBuffer copyPlane(ByteBuffer src, ByteBuffer dst) {
+            int position = src.position();
+            if (dst == null || dst.capacity() < src.remaining()) {
+                dst = ByteBuffer.allocate(src.remaining());
+            }
+            dst.clear();
+            dst.put(src);
+            dst.flip();
+            src.position(position);
+            return dst;
+        }
+    }
+
+    private final Frame[] slots = new Frame[SLOTS];
+    private final AtomicInteger mailbox = new AtomicInteger(0);
+    private int backSlot = 1; // producer only
+    private int frontSlot = 2; // consumer only
+
+    private volatile long minFrameIntervalNanos;
+    private volatile long latencyBudgetNanos;
+    private long nextFrameNanos = Long.MIN_VALUE; // producer only, deadline steps by interval: no drift by frame jitter
+
+    // written by producer only
+    private volatile long acceptedFrames = 0;
+    private volatile long droppedFrames = 0; // over target fps or replaced in mailbox by newer frame
+    // written by consumer only
+    private volatile long staleFrames = 0; // waited longer than latency budget
+    private volatile long processedFrames = 0;
+
+    private final long[] latencies = new long[LATENCY_WINDOW]; // last end-to-end latencies, ring
+    private final long[] sortedLatencies = new long[LATENCY_WINDOW];
+    private int latenciesHead = 0;
+    private int latenciesCount = 0;
+
+    public FrameScheduler() {
+        this(DEFAULT_TARGET_FPS, DEFAULT_LATENCY_BUDGET_MILLIS);
+    }
+
+    public FrameScheduler(int targetFps, long latencyBudgetMillis) {
+        for (int i = 0; i < SLOTS; ++i) {
+            slots[i] = new Frame();
+        }
+        setTargetFps(targetFps);
+        setLatencyBudgetMillis(latencyBudgetMillis);
+    }
+
+    // 0 - every frame is accepted
+    public void setTargetFps(int targetFps) {
+        minFrameIntervalNanos = targetFps > 0 ? 1_000_000_000L / targetFps : 0;
+    }
+
+    public void setLatencyBudgetMillis(long latencyBudgetMillis) {
+        latencyBudgetNanos = latencyBudgetMillis * 1_000_000L;
+    }
+
+    /**
+     * Producer side: copies frame planes (positions aren't changed) into mailbox if it's time for
+     * next frame by target FPS. Returns false if frame is dropped without copying.
+     */
+    public boolean offer(int width, int height, ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+                         int yRowStride, int uvRowStride, int uvPixelStride, long timeNanos) {
+        return offer(width, height, yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride, null, null,
+                timeNanos);
+    }
+
+    // frame with camera pose: rotation quaternion [x, y, z, w] and translation, null if unknown
+    public boolean offer(int width, int height, ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+                         int yRowStride, int uvRowStride, int uvPixelStride, float[] rotation, float[] translation,
+                         long timeNanos) {
+        if (nextFrameNanos != Long.MIN_VALUE && timeNanos < nextFrameNanos) {
+            //noinspection NonAtomicOperationOnVolatileField
+            ++droppedFrames;
+            return false;
+        }
+        // after pause deadline restarts from current frame, missed frames aren't caught up
+        nextFrameNanos = nextFrameNanos == Long.MIN_VALUE ? timeNanos + minFrameIntervalNanos
+                : Math.max(nextFrameNanos + minFrameIntervalNanos, timeNanos);
+        slots[backSlot].copy(width, height, yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride,
+                timeNanos);
+        slots[backSlot].copyPose(rotation, translation);
+        int previous = mailbox.getAndSet(backSlot | FRESH); // publishes copied frame
+        backSlot = previous & INDEX_MASK;
+        //noinspection NonAtomicOperationOnVolatileField
+        ++acceptedFrames;
+        if ((previous & FRESH) != 0) {
+            //noinspection NonAtomicOperationOnVolatileField
+            ++droppedFrames; // consumer was busy, older frame is replaced
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side: takes the newest frame, returns null if there is no new frame or it is older than
+     * latency budget. Frame stays valid until next call.
+     */
+    public Frame takeNewest(long nowNanos) {
+        if ((mailbox.get() & FRESH) == 0) {
+            return null;
+        }
+        frontSlot = mailbox.getAndSet(frontSlot) & INDEX_MASK;
+        Frame frame = slots[frontSlot];
+        if (nowNanos - frame.timeNanos > latencyBudgetNanos) {
+            //noinspection NonAtomicOperationOnVolatileField
+            ++staleFrames;
+            return null;
+        }
+        return frame;
+    }
+
+    // consumer side: result of frame is delivered
+    public void frameCompleted(Frame frame, long nowNanos) {
+        frameCompleted(frame.timeNanos, nowNanos);
+    }
+
+    // for consumers which deliver result after frame slot is reused (pipeline): by frame time
+    public void frameCompleted(long frameTimeNanos, long nowNanos) {
+        //noinspection NonAtomicOperationOnVolatileField
+        ++processedFrames;
+        synchronized (latencies) {
+            latencies[latenciesHead] = nowNanos - frameTimeNanos;
+            latenciesHead = (latenciesHead + 1) % LATENCY_WINDOW;
+            if (latenciesCount < LATENCY_WINDOW) {
+                ++latenciesCount;
+            }
+        }
+    }
+
+    public long getAcceptedFrames() {
+        return acceptedFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getStaleFrames() {
+        return staleFrames;
+    }
+
+    public long getProcessedFrames() {
+        return processedFrames;
+    }
+
+    // percentile (0..100) of end-to-end latency over last processed frames, millis; 0 if none
+    public double getLatencyPercentileMillis(double percentile) {
+        synchronized (latencies) {
+            if (latenciesCount == 0) {
+                return 0;
+            }
+            System.arraycopy(latencies, 0, sortedLatencies, 0, latenciesCount);
+            Arrays.sort(sortedLatencies, 0, latenciesCount);
+            int rank = (int) Math.ceil(percentile / 100.0 * latenciesCount) - 1;
+            return sortedLatencies[Math.max(0, Math.min(latenciesCount - 1, rank))] / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.app.carnavar.cv;
+
+/**
+ * Temporal reuse of segmentation masks: model runs only on keyframes, masks of frames between keyframes are
+ * made by warping the last keyframe mask by camera rotation since the keyframe.
+ * <p>
+ * Keyframe is chosen every N frames or when camera rotation or translation from last keyframe exceeds
+ * threshold. Warp is rotation homography H = K * R * K^-1 (plus rotation and resize of camera image into mask):
+ * road ahead is far relative to camera translation between keyframes, so its image motion is dominated by
+ * rotation, and translation only triggers new keyframe.
+ * <p>
+ * Poses are ARCore camera poses (camera to world, +X right and +Y up of camera image readout, -Z forward),
+ * rotation is quaternion [x, y, z, w], translation is [x, y, z] in meters. Intrinsics are intrinsics of camera
+ * image (not rotated). {@link #isKeyframe} is called from one thread, {@link #setKeyframeMask} and {@link #warp}
+ * from one (maybe other) thread, both in frame order.
+ */
+public class KeyframeMaskWarper {
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 6;
+    public static final float DEFAULT_MAX_ROTATION_DEGREES = 3f;
+    public static final float DEFAULT_MAX_TRANSLATION_METERS = 5f; // straight driving changes road mask a little
+
+    private final int maskWidth;
+    private final int maskHeight;
+    private final int rotationDegrees;
+
+    private volatile int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+    private volatile double maxRotationCos = Math.cos(Math.toRadians(DEFAULT_MAX_ROTATION_DEGREES) / 2);
+    private volatile float maxTranslationMeters = DEFAULT_MAX_TRANSLATION_METERS;
+
+    // keyframe selection, isKeyframe() thread only
+    private int framesSinceKeyframe = 0;
+    private boolean hasSelectedKeyframe = false;
+    private final float[] selectedRotation = new float[4];
+    private final float[] selectedTranslation = new float[3];
+
+    // keyframe mask and warp, setKeyframeMask()/warp() thread only
+    private final int[] keyframeMask;
+    private boolean hasKeyframeMask = false;
+    private boolean keyframeHasPose = false;
+    private final double[] keyframeRotationMatrix = new double[9];
+    private final double[] currentRotationMatrix = new double[9];
+    private final double[] homography = new double[9];
+    private final double[] tmp = new double[9];
+
+    // mask pixel -> camera image pixel (affine) and camera intrinsics
+    private final double[] maskToImage = new double[9];
+    private final double[] imageToMask = new double[9];
+    private final double[] intrinsics = new double[9];
+    private final double[] inverseIntrinsics = new double[9];
+    private volatile boolean hasIntrinsics = false;
+
+    private volatile long keyframes = 0;
+    private volatile long warpedFrames = 0;
+
+    // mask - model output size, rotationDegrees - clockwise rotation of camera image into model input
+    public KeyframeMaskWarper(int maskWidth, int maskHeight, int rotationDegrees) {
+        if (rotationDegrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation should be multiple of 90 degrees, is " + rotationDegrees);
+        }
+        this.maskWidth = maskWidth;
+        this.maskHeight = maskHeight;
+        this.rotationDegrees = ((rotationDegrees % 360) + 360) % 360;
+        keyframeMask = new int[maskWidth * maskHeight];
+    }
+
+    public void setKeyframeInterval(int frames) {
+        keyframeInterval = Math.max(1, frames);
+    }
+
+    public void setMaxRotationDegrees(float degrees) {
+        maxRotationCos = Math.cos(Math.toRadians(degrees) / 2);
+    }
+
+    public void setMaxTranslationMeters(float meters) {
+        maxTranslationMeters = meters;
+    }
+
+    /**
+     * Set intrinsics of camera image, pixels. Mask is warped only when they are set, otherwise last keyframe
+     * mask is reused as is.
+     */
+    public synchronized void setIntrinsics(float fx, float fy, float cx, float cy, int imageWidth, int imageHeight) {
+        set(intrinsics, fx, 0, cx, 0, fy, cy, 0, 0, 1);
+        set(inverseIntrinsics, 1 / fx, 0, -cx / fx, 0, 1 / fy, -cy / fy, 0, 0, 1);
+
+        // mask pixel centers -> rotated image pixel centers -> camera image pixels, as in model input resize
+        boolean swap = rotationDegrees % 180 != 0;
+        double sx = (double) (swap ? imageHeight : imageWidth) / maskWidth;
+        double sy = (double) (swap ? imageWidth : imageHeight) / maskHeight;
+        double[] scale = {sx, 0, 0.5 * sx - 0.5, 0, sy, 0.5 * sy - 0.5, 0, 0, 1};
+        double[] rotation = new double[9];
+        switch (rotationDegrees) {
+            case 90: // x = ry, y = h - 1 - rx
+                set(rotation, 0, 1, 0, -1, 0, imageHeight - 1, 0, 0, 1);
+                break;
+            case 180:
+                set(rotation, -1, 0, imageWidth - 1, 0, -1, imageHeight - 1, 0, 0, 1);
+                break;
+            case 270: // x = w - 1 - ry, y = rx
+                set(rotation, 0, -1, imageWidth - 1, 1, 0, 0, 0, 0, 1);
+                break;
+            default:
+                set(rotation, 1, 0, 0, 0, 1, 0, 0, 0, 1);
+        }
+        multiply(rotation, scale, maskToImage);
+        invertAffine(maskToImage, imageToMask);
+        hasIntrinsics = true;
+    }
+
+    /**
+     * Decide whether frame with given pose (null if unknown: by interval only) should be segmented by model.
+     */
+    public boolean isKeyframe(float[] rotation, float[] translation) {
+        boolean keyframe = !hasSelectedKeyframe || ++framesSinceKeyframe >= keyframeInterval;
+        if (!keyframe && rotation != null) {
+            double dot = Math.abs(rotation[0] * selectedRotation[0] + rotation[1] * selectedRotation[1]
+                    + rotation[2] * selectedRotation[2] + rotation[3] * selectedRotation[3]);
+            float dx = translation[0] - selectedTranslation[0];
+            float dy = translation[1] - selectedTranslation[1];
+            float dz = translation[2] - selectedTranslation[2];
+            keyframe = dot < maxRotationCos // cos of half angle between rotations
+                    || dx * dx + dy * dy + dz * dz > maxTranslationMeters * maxTranslationMeters;
+        }
+        if (keyframe) {
+            hasSelectedKeyframe = true;
+            framesSinceKeyframe = 0;
+            if (rotation != null) {
+                System.arraycopy(rotation, 0, selectedRotation, 0, 4);
+                System.arraycopy(translation, 0, selectedTranslation, 0, 3);
+            }
+        }
+        return keyframe;
+    }
+
+    // mask of keyframe (model output size), rotation - pose of keyframe or null
+    public void setKeyframeMask(int[] mask, float[] rotation) {
+        System.arraycopy(mask, 0, keyframeMask, 0, keyframeMask.length);
+        keyframeHasPose = rotation != null;
+        if (keyframeHasPose) {
+            quaternionToMatrix(rotation, keyframeRotationMatrix);
+        }
+        hasKeyframeMask = true;
+        //noinspection NonAtomicOperationOnVolatileField
+        ++keyframes;
+    }
+
+    public boolean hasKeyframeMask() {
+        return hasKeyframeMask;
+    }
+
+    /**
+     * Warp last keyframe mask into frame with given camera rotation (null if unknown: mask is copied),
+     * pixels which come from outside of keyframe are filled by fill value.
+     *
+     * @return false if there is no keyframe mask yet
+     */
+    public boolean warp(float[] rotation, int[] out, int fill) {
+        if (!hasKeyframeMask) {
+            return false;
+        }
+        //noinspection NonAtomicOperationOnVolatileField
+        ++warpedFrames;
+        if (rotation == null || !keyframeHasPose || !hasIntrinsics) {
+            System.arraycopy(keyframeMask, 0, out, 0, keyframeMask.length);
+            return true;
+        }
+
+        buildHomography(rotation);
+        final double[] h = homography;
+        final int[] src = keyframeMask;
+        final int w = maskWidth;
+        final int hgt = maskHeight;
+        for (int y = 0, p = 0; y < hgt; ++y) {
+            double x0 = h[1] * y + h[2];
+            double y0 = h[4] * y + h[5];
+            double z0 = h[7] * y + h[8];
+            for (int x = 0; x < w; ++x, ++p) {
+                double z = z0 + h[6] * x;
+                int value = fill;
+                if (z > 0) {
+                    // nearest keyframe pixel, masks aren't interpolated
+                    double u = (x0 + h[0] * x) / z + 0.5;
+                    double v = (y0 + h[3] * x) / z + 0.5;
+                    if (u >= 0 && u < w && v >= 0 && v < hgt) {
+                        value = src[(int) v * w + (int) u];
+                    }
+                }
+                out[p] = value;
+            }
+        }
+        return true;
+    }
+
+    // maps mask pixel of current frame into keyframe mask pixel:
+    // imageToMask * K * F * Rk^T * Rc * F * K^-1 * maskToImage, F flips camera y and z into image axes
+    private synchronized void buildHomography(float[] rotation) {
+        quaternionToMatrix(rotation, currentRotationMatrix);
+        final double[] rk = keyframeRotationMatrix;
+        final double[] rc = currentRotationMatrix;
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                double sum = 0;
+                for (int k = 0; k < 3; ++k) {
+                    sum += rk[k * 3 + i] * rc[k * 3 + j]; // Rk^T * Rc
+                }
+                double flip = (i == 0 ? 1 : -1) * (j == 0 ? 1 : -1);
+                homography[i * 3 + j] = flip * sum;
+            }
+        }
+        multiply(homography, inverseIntrinsics, tmp);
+        multiply(tmp, maskToImage, homography);
+        multiply(intrinsics, homography, tmp);
+        multiply(imageToMask, tmp, homography);
+    }
+
+    public long getKeyframes() {
+        return keyframes;
+    }
+
+    public long getWarpedFrames() {
+        return warpedFrames;
+    }
+
+    // rotation matrix (row major) of unit quaternion [x, y, z, w]
+    private static void quaternionToMatrix(float[] q, double[] m) {
+        double x = q[0], y = q[1], z = q[2], w = q[3];
+        set(m,
+                1 - 2 * (y * y + z * z), 2 * (x * y - z * w), 2 * (x * z + y * w),
+                2 * (x * y + z * w), 1 - 2 * (x * x + z * z), 2 * (y * z - x * w),
+                2 * (x * z - y * w), 2 * (y * z + x * w), 1 - 2 * (x * x + y * y));
+    }
+
+    private static void set(double[] m, double m0, double m1, double m2, double m3, double m4, double m5,
+                            double m6, double m7, double m8) {
+        m[0] = m0; m[1] = m1; m[2] = m2;
+        m[3] = m3; m[4] = m4; m[5] = m5;
+        m[6] = m6; m[7] = m7; m[8] = m8;
+    }
+
+    // out = a * b, out shouldn't be a or b
+    private static void multiply(double[] a, double[] b, double[] out) {
+        for (int i = 0; i < 3; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                out[i * 3 + j] = a[i * 3] * b[j] + a[i * 3 + 1] * b[3 + j] + a[i * 3 + 2] * b[6 + j];
+            }
+        }
+    }
+
+    private static void invertAffine(double[] m, double[] out) {
+        double det = m[0] * m[4] - m[1] * m[3];
+        double a = m[4] / det, b = -m[1] / det, c = -m[3] / det, d = m[0] / det;
+        set(out, a, b, -(a * m[2] + b * m[5]), c, d, -(c * m[2] + d * m[5]), 0, 0, 1);
+    }
+}
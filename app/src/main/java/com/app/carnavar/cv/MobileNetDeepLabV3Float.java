@@ -50,6 +50,16 @@ public class MobileNetDeepLabV3Float extends TFLiteImageSemanticSegmenter {
         inputImgData.putFloat((((pixelValue) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
     }
 
+    @Override
+    public float getImageMean() {
+        return IMAGE_MEAN;
+    }
+
+    @Override
+    public float getImageStd() {
+        return IMAGE_STD;
+    }
+
     @Override
     public int getNumLabelClasses() {
         return NUM_CLASSES;
@@ -0,0 +1,169 @@
+package com.app.carnavar.cv;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes float segmentation output [height][width][classes] into per-pixel class colors by argmax.
+ * Output is copied by one bulk read of {@link FloatBuffer} view into reusable array, then argmax runs
+ * over plain array. Rows are split into bands which are decoded in parallel on {@link ForkJoinPool}
+ * when pool is passed. All buffers and tasks are preallocated, one decode at a time.
+ */
+public class SegmentationMaskDecoder {
+
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final int width;
+    private final int height;
+    private final int numClasses;
+    private final float[] scores;
+
+    // classes found in image, in order of first appearance (row by row)
+    private final boolean[] hitClasses;
+    private final int[] hitClassesOrder;
+    private int hitClassesCount = 0;
+
+    private final BandTask[] bands;
+    private final RecursiveAction bandsTask = new RecursiveAction() {
+        @Override
+        protected void compute() {
+            invokeAll(bands);
+        }
+    };
+
+    private FloatBuffer output;
+    private int[] palette;
+    private int[] pixels;
+
+    public SegmentationMaskDecoder(int width, int height, int numClasses) {
+        this(width, height, numClasses, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SegmentationMaskDecoder(int width, int height, int numClasses, int maxBands) {
+        this.width = width;
+        this.height = height;
+        this.numClasses = numClasses;
+        scores = new float[width * height * numClasses];
+        hitClasses = new boolean[numClasses];
+        hitClassesOrder = new int[numClasses];
+
+        int bandsCount = Math.max(1, Math.min(maxBands, height / MIN_BAND_ROWS));
+        bands = new BandTask[bandsCount];
+        for (int i = 0; i < bandsCount; ++i) {
+            bands[i] = new BandTask(height * i / bandsCount, height * (i + 1) / bandsCount);
+        }
+    }
+
+    /**
+     * Decode class of every pixel.
+     *
+     * @param output  model output, position is ignored
+     * @param palette color (or any code) by class index
+     * @param pixels  result, palette[class] for every pixel, row by row
+     * @param pool    decodes row bands in parallel if not null
+     */
+    public void decode(FloatBuffer output, int[] palette, int[] pixels, ForkJoinPool pool) {
+        output.rewind();
+        output.get(scores);
+        this.palette = palette;
+        this.pixels = pixels;
+
+        if (pool == null || bands.length == 1) {
+            for (BandTask band : bands) {
+                band.decodeRows();
+            }
+        } else {
+            for (BandTask band : bands) {
+                band.reinitialize();
+            }
+            bandsTask.reinitialize();
+            pool.invoke(bandsTask);
+        }
+        mergeHitClasses();
+        this.palette = null;
+        this.pixels = null;
+    }
+
+    private void mergeHitClasses() {
+        for (int c = 0; c < numClasses; ++c) {
+            hitClasses[c] = false;
+        }
+        hitClassesCount = 0;
+        for (BandTask band : bands) {
+            for (int i = 0; i < band.hitCount; ++i) {
+                int cl = band.hitOrder[i];
+                if (!hitClasses[cl]) {
+                    hitClasses[cl] = true;
+                    hitClassesOrder[hitClassesCount++] = cl;
+                }
+            }
+        }
+    }
+
+    public boolean[] getHitClasses() {
+        return hitClasses;
+    }
+
+    public int getHitClassesCount() {
+        return hitClassesCount;
+    }
+
+    // index in order of first appearance
+    public int getHitClass(int index) {
+        return hitClassesOrder[index];
+    }
+
+    private class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int fromRow;
+        private final int toRow;
+        private final boolean[] hits = new boolean[numClasses];
+        private final int[] hitOrder = new int[numClasses];
+        private int hitCount = 0;
+
+        BandTask(int fromRow, int toRow) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            decodeRows();
+        }
+
+        void decodeRows() {
+            final float[] s = scores;
+            final int[] colors = palette;
+            final int[] out = pixels;
+            final int classes = numClasses;
+            for (int c = 0; c < classes; ++c) {
+                hits[c] = false;
+            }
+            hitCount = 0;
+
+            int from = fromRow * width;
+            int to = toRow * width;
+            int offset = from * classes;
+            for (int p = from; p < to; ++p, offset += classes) {
+                // first max wins, as in per-class loop
+                float max = s[offset];
+                int cl = 0;
+                for (int c = 1; c < classes; ++c) {
+                    float v = s[offset + c];
+                    if (v > max) {
+                        max = v;
+                        cl = c;
+                    }
+                }
+                if (!hits[cl]) {
+                    hits[cl] = true;
+                    hitOrder[hitCount++] = cl;
+                }
+                out[p] = colors[cl];
+            }
+        }
+    }
+}
@@ -14,11 +14,13 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public abstract class TFLiteImageSemanticSegmenter {
 
@@ -68,6 +70,15 @@ public abstract class TFLiteImageSemanticSegmenter {
     private boolean[] hitClsVector = new boolean[this.getNumLabelClasses()];
     private ArrayList<Integer> hitClsIdx = new ArrayList<>();
 
+    /**
+     * Float view of output masks and argmax decoder of it.
+     */
+    private FloatBuffer outputPredictedScores;
+    private final SegmentationMaskDecoder maskDecoder =
+            new SegmentationMaskDecoder(getImageSizeX(), getImageSizeY(), getNumLabelClasses());
+    private ForkJoinPool decodePool = null;
+    private final int[] classIndexCodes = new int[getNumLabelClasses()]; // class index in alpha channel
+
     /**
      * Holds a gpu delegate
      */
@@ -82,22 +93,12 @@ public abstract class TFLiteImageSemanticSegmenter {
         tfLiteOptions.setUseNNAPI(false);
         tfLiteInterpreter = new Interpreter(tfLiteModel, tfLiteOptions);
 
-        inputImgData =
-                ByteBuffer.allocateDirect(
-                        DIM_BATCH_SIZE
-                                * getImageSizeX()
-                                * getImageSizeY()
-                                * DIM_PIXEL_SIZE
-                                * getNumBytesPerChannel());
-        inputImgData.order(ByteOrder.nativeOrder());
-
-        outputImgPredictedMasks = ByteBuffer.allocateDirect(
-                DIM_BATCH_SIZE
-                        * getImageSizeX()
-                        * getImageSizeY()
-                        * getNumBytesPerChannel()
-                        * getNumLabelClasses());
-        outputImgPredictedMasks.order(ByteOrder.nativeOrder());
+        inputImgData = createInputBuffer();
+        outputImgPredictedMasks = createOutputBuffer();
+        outputPredictedScores = outputImgPredictedMasks.asFloatBuffer();
+        for (int c = 0; c < classIndexCodes.length; c++) {
+            classIndexCodes[c] = (c & 0xFF) << 24;
+        }
 
         Log.i(TAG, "Input tensor count: " + Integer.toString(tfLiteInterpreter.getInputTensorCount()));
         Log.i(TAG, "Output tensor count: " + Integer.toString(tfLiteInterpreter.getOutputTensorCount()));
@@ -119,39 +120,138 @@ public abstract class TFLiteImageSemanticSegmenter {
                 getImageSizeX(), getImageSizeY(), true);
         convertBitmapToByteBuffer(resizedToModelInputImg);
 
-        hitClsIdx.clear();
-        Arrays.fill(hitClsVector, false);
-        outputImgPredictedMasks.rewind();
-        tfLiteInterpreter.run(inputImgData, outputImgPredictedMasks);
+        return predictSegmentationFromInput(inputImage.getWidth(), inputImage.getHeight(), classColors);
+    }
 
-        Bitmap clMasksBitmap = Bitmap.createBitmap(getImageSizeX(), getImageSizeY(), Bitmap.Config.ARGB_8888);
-        for (int y = 0; y < getImageSizeY(); y++) {
-            for (int x = 0; x < getImageSizeX(); x++) {
-                float maxPredictionVal = -0xFF;
-                int cl = -1;
-                for (int c = 0; c < getNumLabelClasses(); c++) {
-                    float predictionVal = outputImgPredictedMasks.getFloat(
-                            (y * getImageSizeX() * getNumLabelClasses() +
-                                    x * getNumLabelClasses() + c) * getNumBytesPerChannel());
-
-                    if (c == 0 || predictionVal > maxPredictionVal) {
-                        maxPredictionVal = predictionVal;
-                        cl = c;
-                    }
-                }
-                if (!hitClsVector[cl]) {
-                    hitClsVector[cl] = true;
-                    hitClsIdx.add(cl);
-                }
-                intValuesTempBuff[y * getImageSizeX() + x] = classColors[cl];
-            }
+    /**
+     * Get model input buffer, frame can be written into it directly (see {@link YuvModelInputPreprocessor}),
+     * then segmented by {@link #predictSegmentationFromInput}.
+     */
+    public ByteBuffer getInputBuffer() {
+        inputImgData.rewind();
+        return inputImgData;
+    }
+
+    /**
+     * Segment frame which is already written into model input buffer.
+     *
+     * @return Predicted colored mask classes on bitmap image of given size
+     */
+    public Bitmap predictSegmentationFromInput(int outputWidth, int outputHeight, int[] classColors) {
+        if (tfLiteInterpreter == null) {
+            return null;
         }
 
-        clMasksBitmap.setPixels(intValuesTempBuff, 0, clMasksBitmap.getWidth(), 0, 0,
+        runInference(inputImgData, outputImgPredictedMasks);
+        return decodeSegmentation(outputPredictedScores, outputWidth, outputHeight, classColors);
+    }
+
+    /**
+     * Allocate buffer for model input, buffers of pipeline stages (see {@link CvPipeline}).
+     */
+    public ByteBuffer createInputBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(
+                DIM_BATCH_SIZE
+                        * getImageSizeX()
+                        * getImageSizeY()
+                        * DIM_PIXEL_SIZE
+                        * getNumBytesPerChannel());
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /**
+     * Allocate buffer for model output.
+     */
+    public ByteBuffer createOutputBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(
+                DIM_BATCH_SIZE
+                        * getImageSizeX()
+                        * getImageSizeY()
+                        * getNumBytesPerChannel()
+                        * getNumLabelClasses());
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /**
+     * Run model on given buffers (from {@link #createInputBuffer} and {@link #createOutputBuffer}).
+     * Interpreter isn't thread safe: should be called from one thread at a time.
+     */
+    public void runInference(ByteBuffer input, ByteBuffer output) {
+        if (tfLiteInterpreter == null) {
+            return;
+        }
+
+        input.rewind();
+        output.rewind();
+        tfLiteInterpreter.run(input, output);
+        output.rewind(); // interpreter copies output by relative put, leaves position at capacity
+    }
+
+    /**
+     * Decode model output into colored mask classes, fills hit classes.
+     *
+     * @return Predicted colored mask classes on bitmap image of given size
+     */
+    public Bitmap decodeSegmentation(ByteBuffer output, int outputWidth, int outputHeight, int[] classColors) {
+        output.rewind(); // float view starts at position, duplicate() would lose native order
+        return decodeSegmentation(output.asFloatBuffer(), outputWidth, outputHeight, classColors);
+    }
+
+    private Bitmap decodeSegmentation(FloatBuffer scores, int outputWidth, int outputHeight, int[] classColors) {
+        return createMaskBitmap(decodeMask(scores, classColors), outputWidth, outputHeight);
+    }
+
+    /**
+     * Decode model output into colored mask of model input size, fills hit classes.
+     *
+     * @return Mask pixels, buffer is reused by next decode
+     */
+    public int[] decodeMask(ByteBuffer output, int[] classColors) {
+        output.rewind();
+        return decodeMask(output.asFloatBuffer(), classColors);
+    }
+
+    private int[] decodeMask(FloatBuffer scores, int[] classColors) {
+        maskDecoder.decode(scores, classColors, intValuesTempBuff, decodePool);
+        hitClsIdx.clear();
+        for (int i = 0; i < maskDecoder.getHitClassesCount(); i++) {
+            hitClsIdx.add(maskDecoder.getHitClass(i));
+        }
+        System.arraycopy(maskDecoder.getHitClasses(), 0, hitClsVector, 0, hitClsVector.length);
+        return intValuesTempBuff;
+    }
+
+    /**
+     * Scale mask of model input size (decoded or warped one, see {@link KeyframeMaskWarper}) to output size.
+     */
+    public Bitmap createMaskBitmap(int[] mask, int outputWidth, int outputHeight) {
+        Bitmap clMasksBitmap = Bitmap.createBitmap(getImageSizeX(), getImageSizeY(), Bitmap.Config.ARGB_8888);
+        clMasksBitmap.setPixels(mask, 0, clMasksBitmap.getWidth(), 0, 0,
                 clMasksBitmap.getWidth(), clMasksBitmap.getHeight());
-        clMasksBitmap = Bitmap.createScaledBitmap(clMasksBitmap, inputImage.getWidth(), inputImage.getHeight(), false);
+        return Bitmap.createScaledBitmap(clMasksBitmap, outputWidth, outputHeight, false);
+    }
+
+    /**
+     * Decode output masks into intValuesTempBuff by argmax over classes.
+     */
+    private void decodeMasks(int[] palette) {
+        maskDecoder.decode(outputPredictedScores, palette, intValuesTempBuff, decodePool);
+    }
+
+    /**
+     * Set fork-join pool for parallel decoding of output masks by row bands, null decodes on calling thread.
+     */
+    public void setDecodePool(ForkJoinPool decodePool) {
+        this.decodePool = decodePool;
+    }
 
-        return clMasksBitmap;
+    /**
+     * Get colored mask of model input size decoded by last prediction, buffer is reused by next one.
+     */
+    public int[] getLastMask() {
+        return intValuesTempBuff;
     }
 
     public boolean[] getHitClassVector() {
@@ -180,23 +280,7 @@ public abstract class TFLiteImageSemanticSegmenter {
         tfLiteInterpreter.run(inputImgData, outputImgPredictedMasks);
 
         Bitmap clMasksBitmap = Bitmap.createBitmap(getImageSizeX(), getImageSizeY(), Bitmap.Config.ARGB_8888);
-        for (int y = 0; y < getImageSizeY(); y++) {
-            for (int x = 0; x < getImageSizeX(); x++) {
-                float maxPredictionVal = -0xFF;
-                int cl = -1;
-                for (int c = 0; c < getNumLabelClasses(); c++) {
-                    float predictionVal = outputImgPredictedMasks.getFloat(
-                            (y * getImageSizeX() * getNumLabelClasses() +
-                                    x * getNumLabelClasses() + c) * getNumBytesPerChannel());
-
-                    if (c == 0 || predictionVal > maxPredictionVal) {
-                        maxPredictionVal = predictionVal;
-                        cl = c;
-                    }
-                }
-                intValuesTempBuff[y * getImageSizeX() + x] = (cl & 0xFF) << 24;
-            }
-        }
+        decodeMasks(classIndexCodes);
 
         clMasksBitmap.setPixels(intValuesTempBuff, 0, clMasksBitmap.getWidth(), 0, 0,
                 clMasksBitmap.getWidth(), clMasksBitmap.getHeight());
@@ -341,6 +425,16 @@ public abstract class TFLiteImageSemanticSegmenter {
      */
     protected abstract void addPixelValue(int pixelValue);
 
+    /**
+     * Get the mean of pixel channel value, model input is (value - mean) / std.
+     */
+    public abstract float getImageMean();
+
+    /**
+     * Get the std of pixel channel value.
+     */
+    public abstract float getImageStd();
+
     /**
      * Get the total number of label classes.
      */
@@ -0,0 +1,281 @@
+package com.app.carnavar.cv;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Fused camera frame preprocessing: YUV_420_888 planes -> rotated, resized and normalized float RGB model input
+ * in one pass, without intermediate ARGB frame, bitmaps and their copies.
+ *
+ * <p>
+ * Every model input pixel is bilinearly sampled from the rotated frame (pixel centers are aligned), only the four
+ * source pixels it needs are converted from YUV. Source coordinates, weights and plane offsets are precomputed once
+ * per frame geometry. {@link #processReference} does the same step by step (whole ARGB frame, rotated copy, resize,
+ * normalization) as the bitmap path did, it gives the same values and is kept for checking on JVM.
+ * </p>
+ *
+ * Plain java, one frame at a time.
+ */
+public class YuvModelInputPreprocessor {
+
+    private static final int CHANNELS = 3;
+
+    // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
+    // are normalized to eight bits (same integer conversion as in ImageUtils)
+    private static final int MAX_CHANNEL_VALUE = 262143;
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int rotationDegrees; // clockwise: 0, 90, 180, 270
+    private final int dstWidth;
+    private final int dstHeight;
+    private final float mean;
+    private final float std;
+
+    // bilinear sampling of rotated frame: neighbour coordinates and weight of the second one
+    private final int[] colRx0, colRx1;
+    private final float[] colFx;
+    private final int[] rowRy0, rowRy1;
+    private final float[] rowFy;
+
+    // plane offsets of neighbours: offset = column part + row part, rebuilt when strides are changed
+    private final int[] colY0, colY1, colUv0, colUv1;
+    private final int[] rowY0, rowY1, rowUv0, rowUv1;
+    private int yRowStride = -1, uvRowStride = -1, uvPixelStride = -1;
+
+    private final float[] rowValues;
+
+    public YuvModelInputPreprocessor(int srcWidth, int srcHeight, int rotationDegrees,
+                                     int dstWidth, int dstHeight, float mean, float std) {
+        if (rotationDegrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation should be multiple of 90 degrees, is " + rotationDegrees);
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.rotationDegrees = ((rotationDegrees % 360) + 360) % 360;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.mean = mean;
+        this.std = std;
+
+        colRx0 = new int[dstWidth];
+        colRx1 = new int[dstWidth];
+        colFx = new float[dstWidth];
+        rowRy0 = new int[dstHeight];
+        rowRy1 = new int[dstHeight];
+        rowFy = new float[dstHeight];
+        buildSampling(getRotatedWidth(), dstWidth, colRx0, colRx1, colFx);
+        buildSampling(getRotatedHeight(), dstHeight, rowRy0, rowRy1, rowFy);
+
+        colY0 = new int[dstWidth];
+        colY1 = new int[dstWidth];
+        colUv0 = new int[dstWidth];
+        colUv1 = new int[dstWidth];
+        rowY0 = new int[dstHeight];
+        rowY1 = new int[dstHeight];
+        rowUv0 = new int[dstHeight];
+        rowUv1 = new int[dstHeight];
+        rowValues = new float[dstWidth * CHANNELS];
+    }
+
+    public int getRotatedWidth() {
+        return rotationDegrees % 180 == 0 ? srcWidth : srcHeight;
+    }
+
+    public int getRotatedHeight() {
+        return rotationDegrees % 180 == 0 ? srcHeight : srcWidth;
+    }
+
+    /**
+     * Writes model input (float r, g, b per pixel, row by row) into output from its current position.
+     * Planes are read by absolute indexes, their positions aren't changed.
+     */
+    public void process(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+                        int yRowStride, int uvRowStride, int uvPixelStride, ByteBuffer output) {
+        if (yRowStride != this.yRowStride || uvRowStride != this.uvRowStride
+                || uvPixelStride != this.uvPixelStride) {
+            buildOffsets(yRowStride, uvRowStride, uvPixelStride);
+        }
+
+        FloatBuffer out = output.asFloatBuffer();
+        for (int dy = 0; dy < dstHeight; ++dy) {
+            int ry0 = rowY0[dy], ry1 = rowY1[dy], ruv0 = rowUv0[dy], ruv1 = rowUv1[dy];
+            float fy = rowFy[dy];
+            int k = 0;
+            for (int dx = 0; dx < dstWidth; ++dx) {
+                int cy0 = colY0[dx], cy1 = colY1[dx], cuv0 = colUv0[dx], cuv1 = colUv1[dx];
+                int p00 = yuvToRgb(yPlane, uPlane, vPlane, cy0 + ry0, cuv0 + ruv0);
+                int p10 = yuvToRgb(yPlane, uPlane, vPlane, cy1 + ry0, cuv1 + ruv0);
+                int p01 = yuvToRgb(yPlane, uPlane, vPlane, cy0 + ry1, cuv0 + ruv1);
+                int p11 = yuvToRgb(yPlane, uPlane, vPlane, cy1 + ry1, cuv1 + ruv1);
+                float fx = colFx[dx];
+                rowValues[k++] = normalize(interpolate(p00 >> 16, p10 >> 16, p01 >> 16, p11 >> 16, fx, fy));
+                rowValues[k++] = normalize(interpolate(p00 >> 8, p10 >> 8, p01 >> 8, p11 >> 8, fx, fy));
+                rowValues[k++] = normalize(interpolate(p00, p10, p01, p11, fx, fy));
+            }
+            out.put(rowValues);
+        }
+        output.position(output.position() + dstWidth * dstHeight * CHANNELS * 4);
+    }
+
+    /**
+     * Reference of {@link #process}: YUV -> ARGB frame, rotated ARGB frame, resized ARGB image, normalized input,
+     * as separate steps with intermediate arrays (allocates them on every call).
+     */
+    public void processReference(byte[] yData, byte[] uData, byte[] vData,
+                                 int yRowStride, int uvRowStride, int uvPixelStride, ByteBuffer output) {
+        int[] argb = new int[srcWidth * srcHeight];
+        for (int j = 0; j < srcHeight; j++) {
+            int pY = yRowStride * j;
+            int pUV = uvRowStride * (j >> 1);
+            for (int i = 0; i < srcWidth; i++) {
+                int uvOffset = pUV + (i >> 1) * uvPixelStride;
+                argb[j * srcWidth + i] = yuvToRgb(0xff & yData[pY + i], 0xff & uData[uvOffset],
+                        0xff & vData[uvOffset]);
+            }
+        }
+
+        int rw = getRotatedWidth();
+        int rh = getRotatedHeight();
+        int[] rotated = new int[rw * rh];
+        for (int ry = 0; ry < rh; ry++) {
+            for (int rx = 0; rx < rw; rx++) {
+                rotated[ry * rw + rx] = argb[sourceY(rx, ry) * srcWidth + sourceX(rx, ry)];
+            }
+        }
+
+        int[] resized = new int[dstWidth * dstHeight];
+        for (int dy = 0; dy < dstHeight; dy++) {
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int p00 = rotated[rowRy0[dy] * rw + colRx0[dx]];
+                int p10 = rotated[rowRy0[dy] * rw + colRx1[dx]];
+                int p01 = rotated[rowRy1[dy] * rw + colRx0[dx]];
+                int p11 = rotated[rowRy1[dy] * rw + colRx1[dx]];
+                float fx = colFx[dx], fy = rowFy[dy];
+                resized[dy * dstWidth + dx] = 0xff000000
+                        | interpolate(p00 >> 16, p10 >> 16, p01 >> 16, p11 >> 16, fx, fy) << 16
+                        | interpolate(p00 >> 8, p10 >> 8, p01 >> 8, p11 >> 8, fx, fy) << 8
+                        | interpolate(p00, p10, p01, p11, fx, fy);
+            }
+        }
+
+        for (int pixel : resized) {
+            output.putFloat(normalize((pixel >> 16) & 0xFF));
+            output.putFloat(normalize((pixel >> 8) & 0xFF));
+            output.putFloat(normalize(pixel & 0xFF));
+        }
+    }
+
+    private float normalize(int value) {
+        return (value - mean) / std;
+    }
+
+    // channel is taken from low byte of arguments, result is rounded to byte
+    private static int interpolate(int c00, int c10, int c01, int c11, float fx, float fy) {
+        c00 &= 0xFF;
+        c10 &= 0xFF;
+        c01 &= 0xFF;
+        c11 &= 0xFF;
+        float top = c00 + (c10 - c00) * fx;
+        float bottom = c01 + (c11 - c01) * fx;
+        return (int) (top + (bottom - top) * fy + 0.5f);
+    }
+
+    // pixel centers of destination are mapped into source axis, clamped to edges
+    private static void buildSampling(int srcSize, int dstSize, int[] i0, int[] i1, float[] f) {
+        float scale = (float) srcSize / dstSize;
+        for (int d = 0; d < dstSize; ++d) {
+            float s = (d + 0.5f) * scale - 0.5f;
+            if (s < 0) {
+                s = 0;
+            }
+            int s0 = (int) s;
+            if (s0 >= srcSize - 1) {
+                s0 = srcSize - 1;
+                i0[d] = s0;
+                i1[d] = s0;
+                f[d] = 0;
+            } else {
+                i0[d] = s0;
+                i1[d] = s0 + 1;
+                f[d] = s - s0;
+            }
+        }
+    }
+
+    // source pixel of rotated frame pixel (rx, ry)
+    private int sourceX(int rx, int ry) {
+        switch (rotationDegrees) {
+            case 90:
+                return ry;
+            case 180:
+                return srcWidth - 1 - rx;
+            case 270:
+                return srcWidth - 1 - ry;
+            default:
+                return rx;
+        }
+    }
+
+    private int sourceY(int rx, int ry) {
+        switch (rotationDegrees) {
+            case 90:
+                return srcHeight - 1 - rx;
+            case 180:
+                return srcHeight - 1 - ry;
+            case 270:
+                return rx;
+            default:
+                return ry;
+        }
+    }
+
+    // source x and y of rotated pixel depend either on rx or on ry only, so plane offset is split into
+    // column part (by rx) and row part (by ry)
+    private void buildOffsets(int yRowStride, int uvRowStride, int uvPixelStride) {
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        for (int dx = 0; dx < dstWidth; ++dx) {
+            colY0[dx] = yOffset(colRx0[dx], 0) - yOffset(0, 0);
+            colY1[dx] = yOffset(colRx1[dx], 0) - yOffset(0, 0);
+            colUv0[dx] = uvOffset(colRx0[dx], 0) - uvOffset(0, 0);
+            colUv1[dx] = uvOffset(colRx1[dx], 0) - uvOffset(0, 0);
+        }
+        for (int dy = 0; dy < dstHeight; ++dy) {
+            rowY0[dy] = yOffset(0, rowRy0[dy]);
+            rowY1[dy] = yOffset(0, rowRy1[dy]);
+            rowUv0[dy] = uvOffset(0, rowRy0[dy]);
+            rowUv1[dy] = uvOffset(0, rowRy1[dy]);
+        }
+    }
+
+    private int yOffset(int rx, int ry) {
+        return sourceY(rx, ry) * yRowStride + sourceX(rx, ry);
+    }
+
+    private int uvOffset(int rx, int ry) {
+        return (sourceY(rx, ry) >> 1) * uvRowStride + (sourceX(rx, ry) >> 1) * uvPixelStride;
+    }
+
+    private static int yuvToRgb(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane, int yIndex, int uvIndex) {
+        return yuvToRgb(0xff & yPlane.get(yIndex), 0xff & uPlane.get(uvIndex), 0xff & vPlane.get(uvIndex));
+    }
+
+    private static int yuvToRgb(int y, int u, int v) {
+        y = (y - 16) < 0 ? 0 : (y - 16);
+        u -= 128;
+        v -= 128;
+
+        int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+
+        r = r > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (r < 0 ? 0 : r);
+        g = g > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (g < 0 ? 0 : g);
+        b = b > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (b < 0 ? 0 : b);
+
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+}
@@ -96,10 +96,10 @@ public class MagnetHeadingCalibrator {
     public boolean calib() {
         if (isReadyForCalib && computeCalib(hxArr, hyArr, hh, extGpsBearings, x1Res, x2Res)) {
             // compute new calibration params
-            double sx = 1.0f / x1Res.data[0][0]; // 1/A
-            double bx = x1Res.data[1][0] / x1Res.data[0][0]; // B/A
-            double sy = 1.0f / x2Res.data[0][0]; // 1/C
-            double by = x2Res.data[1][0] / x2Res.data[0][0]; // D/C
+            double sx = 1.0f / x1Res.get(0, 0); // 1/A
+            double bx = x1Res.get(1, 0) / x1Res.get(0, 0); // B/A
+            double sy = 1.0f / x2Res.get(0, 0); // 1/C
+            double by = x2Res.get(1, 0) / x2Res.get(0, 0); // D/C
 
             isReadyForCalib = false;
             currentSample = 0;
@@ -234,17 +234,17 @@ public class MagnetHeadingCalibrator {
         double kh1 = 1 / hh;
         double kh2 = -1 / hh;
         for (int i = 0; i < hxArr.length; i++) {
-            h1.data[i][0] = hxArr[i] * kh1;
-            h1.data[i][1] = -1 * kh1;
-            h2.data[i][0] = hyArr[i] * kh2;
-            h2.data[i][1] = -1 * kh2;
+            h1.set(i, 0, hxArr[i] * kh1);
+            h1.set(i, 1, -1 * kh1);
+            h2.set(i, 0, hyArr[i] * kh2);
+            h2.set(i, 1, -1 * kh2);
         }
 
         Matrix2 y1 = new Matrix2(extGpsBearings.length, 1);
         Matrix2 y2 = new Matrix2(extGpsBearings.length, 1);
         for (int i = 0; i < extGpsBearings.length; i++) {
-            y1.data[i][0] = Math.cos(Math.toRadians(extGpsBearings[i])); // TODO: may be bear [0..360]->[-180..180]?
-            y2.data[i][0] = Math.sin(Math.toRadians(extGpsBearings[i]));
+            y1.set(i, 0, Math.cos(Math.toRadians(extGpsBearings[i]))); // TODO: may be bear [0..360]->[-180..180]?
+            y2.set(i, 0, Math.sin(Math.toRadians(extGpsBearings[i])));
         }
 
         Matrix2 h1T = new Matrix2(2, hxArr.length);
@@ -0,0 +1,285 @@
+package com.app.carnavar.hal.location;
+
+import com.app.carnavar.hal.location.KalmanGpsImuFusionEngine.KalmanOptions;
+import com.app.carnavar.hal.location.ProcessNoiseModels.ProcessNoiseModel;
+import com.app.carnavar.utils.filters.KalmanFilter;
+import com.app.carnavar.utils.math.Matrix2;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Steps N independent {@link KalmanGpsImuFusionEngine} filters in lockstep for desktop fleet replay.
+ *
+ * State is stored as structure of arrays: element i of track t is at [i * tracks + t].
+ * Predict (the hot path) is an unrolled kernel over these arrays; update loads one track into a per-thread
+ * {@link KalmanFilter} and stores it back, so both give the same results as the single-track engine.
+ * Gps fixes must be passed in time order (state history of KalmanOptions isn't used).
+ * Ranges of tracks are processed in parallel on {@link ForkJoinPool} when pool is passed.
+ */
+public class BatchKalmanGpsImuFusionEngine {
+
+    private static final int STATE = 4;
+    private static final int PARALLEL_THRESHOLD = 256; // tracks per fork-join leaf
+
+    private final int tracks;
+    private final int measureDimension;
+    private final KalmanOptions kalmanOptions;
+
+    private final double[] xk; // Xk|k
+    private final double[] xp; // Xk|k-1
+    private final double[] pk; // Pk|k
+    private final double[] pp; // Pk|k-1
+    private final double[] timestampsMsPredict;
+    private final double[] timestampsMsUpdate;
+
+    private final ThreadLocal<KalmanFilter> workerFilter;
+    private final ThreadLocal<double[]> workerCovariance; // F*P of one track in predictRange
+
+    public BatchKalmanGpsImuFusionEngine(int tracks, KalmanOptions kalmanOptions) {
+        this.tracks = tracks;
+        this.kalmanOptions = kalmanOptions;
+        this.measureDimension = kalmanOptions.isUseGpsSpeed() ? 4 : 2;
+        xk = new double[STATE * tracks];
+        xp = new double[STATE * tracks];
+        pk = new double[STATE * STATE * tracks];
+        pp = new double[STATE * STATE * tracks];
+        timestampsMsPredict = new double[tracks];
+        timestampsMsUpdate = new double[tracks];
+        workerFilter = new ThreadLocal<KalmanFilter>() {
+            @Override
+            protected KalmanFilter initialValue() {
+                KalmanFilter kf = new KalmanFilter(STATE, measureDimension, 2, true);
+                kf.setJosephFormUpdate(kalmanOptions.isUseJosephCovarianceUpdate());
+                kf.setSequentialUpdate(kalmanOptions.isUseSequentialUpdate());
+                kf.H.setIdentityDiag();
+                kf.R.setZero();
+                return kf;
+            }
+        };
+        workerCovariance = new ThreadLocal<double[]>() {
+            @Override
+            protected double[] initialValue() {
+                return new double[STATE * STATE];
+            }
+        };
+    }
+
+    public int getTracks() {
+        return tracks;
+    }
+
+    // same as KalmanGpsImuFusionEngine.init for one track
+    public void init(int track, double x, double y, double xVelocity, double yVelocity, double positionVariance,
+                     double timestampMs) {
+        timestampsMsPredict[track] = timestampsMsUpdate[track] = timestampMs;
+        xk[track] = x;
+        xk[tracks + track] = y;
+        xk[2 * tracks + track] = xVelocity;
+        xk[3 * tracks + track] = yVelocity;
+        for (int i = 0; i < STATE; ++i) {
+            xp[i * tracks + track] = 0.0;
+        }
+        for (int i = 0; i < STATE * STATE; ++i) {
+            pk[i * tracks + track] = (i % (STATE + 1) == 0) ? positionVariance : 0.0;
+            pp[i * tracks + track] = 0.0;
+        }
+    }
+
+    // active == null -> all tracks; pool == null -> calling thread only
+    public void predict(double[] xAccelerations, double[] yAccelerations, double[] timestampsNowMs,
+                        boolean[] active, ForkJoinPool pool) {
+        if (pool == null || tracks <= PARALLEL_THRESHOLD) {
+            predictRange(0, tracks, xAccelerations, yAccelerations, timestampsNowMs, active);
+        } else {
+            pool.invoke(new RangeTask(0, tracks) {
+                @Override
+                void compute(int from, int to) {
+                    predictRange(from, to, xAccelerations, yAccelerations, timestampsNowMs, active);
+                }
+            });
+        }
+    }
+
+    // statuses (may be null) receives KalmanFilter.UPDATE_* for updated tracks
+    public void update(double[] xs, double[] ys, double[] xVels, double[] yVels,
+                       double[] positionVariances, double[] velocityVariances, double[] timestampsMs,
+                       boolean[] active, int[] statuses, ForkJoinPool pool) {
+        if (pool == null || tracks <= PARALLEL_THRESHOLD) {
+            updateRange(0, tracks, xs, ys, xVels, yVels, positionVariances, velocityVariances, timestampsMs,
+                    active, statuses);
+        } else {
+            pool.invoke(new RangeTask(0, tracks) {
+                @Override
+                void compute(int from, int to) {
+                    updateRange(from, to, xs, ys, xVels, yVels, positionVariances, velocityVariances,
+                            timestampsMs, active, statuses);
+                }
+            });
+        }
+    }
+
+    public double getCurrentX(int track) {
+        return xk[track];
+    }
+
+    public double getCurrentY(int track) {
+        return xk[tracks + track];
+    }
+
+    public double getCurrentXVel(int track) {
+        return xk[2 * tracks + track];
+    }
+
+    public double getCurrentYVel(int track) {
+        return xk[3 * tracks + track];
+    }
+
+    // unrolled F*X + B*U and F*P*F(t) + Q for F = [I, dt*I; 0, I], B = [dt^2/2*I; dt*I].
+    // Zero and unit terms are skipped, remaining terms are summed in the same order as Matrix2 kernels
+    private void predictRange(int from, int to, double[] ax, double[] ay, double[] timestampsNowMs,
+                              boolean[] active) {
+        final int n = tracks;
+        final ProcessNoiseModel model = kalmanOptions.getProcessNoiseModel();
+        final boolean cumulative = model.isCumulative();
+        final double accelerationDeviance = kalmanOptions.getAccelerationDeviance();
+        final Matrix2 q = workerFilter.get().Q;
+        final double[] a = workerCovariance.get();
+
+        for (int t = from; t < to; ++t) {
+            if (active != null && !active[t]) {
+                continue;
+            }
+            final double dt = (timestampsNowMs[t] - timestampsMsPredict[t]) / 1000.0;
+            final double dtUpdate = (timestampsNowMs[t] - timestampsMsUpdate[t]) / 1000.0;
+            final double dt2 = 0.5 * dt * dt;
+            model.rebuildQ(q, dt, dtUpdate, accelerationDeviance);
+
+            //Xk|k-1 = Fk*Xk-1|k-1 + Bk*Uk
+            final double x0 = xk[t], x1 = xk[n + t], x2 = xk[2 * n + t], x3 = xk[3 * n + t];
+            xp[t] = (x0 + dt * x2) + dt2 * ax[t];
+            xp[n + t] = (x1 + dt * x3) + dt2 * ay[t];
+            xp[2 * n + t] = x2 + dt * ax[t];
+            xp[3 * n + t] = x3 + dt * ay[t];
+
+            //A = Fk*Pk-1|k-1
+            for (int c = 0; c < STATE; ++c) {
+                final double p0 = pk[c * n + t], p1 = pk[(4 + c) * n + t];
+                final double p2 = pk[(8 + c) * n + t], p3 = pk[(12 + c) * n + t];
+                a[c] = p0 + dt * p2;
+                a[4 + c] = p1 + dt * p3;
+                a[8 + c] = p2;
+                a[12 + c] = p3;
+            }
+            //Pk|k-1 = A*Fk(t) + Qk
+            for (int r = 0; r < STATE; ++r) {
+                final int o = r * 4;
+                pp[o * n + t] = (a[o] + a[o + 2] * dt) + q.get(r, 0);
+                pp[(o + 1) * n + t] = (a[o + 1] + a[o + 3] * dt) + q.get(r, 1);
+                pp[(o + 2) * n + t] = a[o + 2] + q.get(r, 2);
+                pp[(o + 3) * n + t] = a[o + 3] + q.get(r, 3);
+            }
+
+            for (int i = 0; i < STATE; ++i) {
+                xk[i * n + t] = xp[i * n + t];
+            }
+            if (cumulative) {
+                for (int i = 0; i < STATE * STATE; ++i) {
+                    pk[i * n + t] = pp[i * n + t];
+                }
+            }
+            timestampsMsPredict[t] = timestampsNowMs[t];
+        }
+    }
+
+    private void updateRange(int from, int to, double[] xs, double[] ys, double[] xVels, double[] yVels,
+                             double[] positionVariances, double[] velocityVariances, double[] timestampsMs,
+                             boolean[] active, int[] statuses) {
+        final int n = tracks;
+        final boolean useGpsSpeed = kalmanOptions.isUseGpsSpeed();
+        final KalmanFilter kf = workerFilter.get();
+        int i, r, c;
+
+        for (int t = from; t < to; ++t) {
+            if (active != null && !active[t]) {
+                continue;
+            }
+            timestampsMsUpdate[t] = timestampsMs[t];
+
+            double positionVariance = positionVariances[t] * kalmanOptions.getPositionMulFactor();
+            double velocityVariance = velocityVariances[t] * kalmanOptions.getVelocityMulFactor();
+            kf.R.set(0, 0, positionVariance);
+            kf.R.set(1, 1, positionVariance);
+            kf.Zk.set(0, 0, xs[t]);
+            kf.Zk.set(1, 0, ys[t]);
+            if (useGpsSpeed) {
+                kf.R.set(2, 2, velocityVariance);
+                kf.R.set(3, 3, velocityVariance);
+                kf.Zk.set(2, 0, xVels[t]);
+                kf.Zk.set(3, 0, yVels[t]);
+            }
+
+            for (i = 0; i < STATE; ++i) {
+                kf.Xk_k.set(i, 0, xk[i * n + t]);
+                kf.Xk_km1.set(i, 0, xp[i * n + t]);
+            }
+            for (r = 0; r < STATE; ++r) {
+                for (c = 0; c < STATE; ++c) {
+                    kf.Pk_k.set(r, c, pk[(r * STATE + c) * n + t]);
+                    kf.Pk_km1.set(r, c, pp[(r * STATE + c) * n + t]);
+                }
+            }
+
+            // stored back even on failure, same as single-track engine leaves it
+            int status = kf.update();
+            if (statuses != null) {
+                statuses[t] = status;
+            }
+
+            for (i = 0; i < STATE; ++i) {
+                xk[i * n + t] = kf.Xk_k.get(i, 0);
+            }
+            for (r = 0; r < STATE; ++r) {
+                for (c = 0; c < STATE; ++c) {
+                    pk[(r * STATE + c) * n + t] = kf.Pk_k.get(r, c);
+                }
+            }
+        }
+    }
+
+    private abstract static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        RangeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract void compute(int from, int to);
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                compute(from, to);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            final RangeTask outer = this;
+            invokeAll(new RangeTask(from, mid) {
+                @Override
+                void compute(int from, int to) {
+                    outer.compute(from, to);
+                }
+            }, new RangeTask(mid, to) {
+                @Override
+                void compute(int from, int to) {
+                    outer.compute(from, to);
+                }
+            });
+        }
+    }
+}
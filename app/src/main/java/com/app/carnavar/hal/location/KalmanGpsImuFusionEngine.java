@@ -1,5 +1,6 @@
 package com.app.carnavar.hal.location;
 
+import com.app.carnavar.hal.location.ProcessNoiseModels.ProcessNoiseModel;
 import com.app.carnavar.utils.filters.KalmanFilter;
 import com.app.carnavar.utils.math.Matrix2;
 
@@ -15,7 +16,11 @@ public class KalmanGpsImuFusionEngine {
 
     private double timestampMsPredict;
     private double timestampMsUpdate;
-    private int predictCount;
+
+    private KalmanStateHistory stateHistory;
+    private long outOfSequenceUpdates = 0;
+    private long tooOldUpdates = 0;
+    private final double[] zeroVelocityAux = new double[4];
 
     public static class KalmanOptions {
 
@@ -23,6 +28,11 @@ public class KalmanGpsImuFusionEngine {
         private double accelerationDeviance = 0.1f;
         private double velocityMulFactor = 1.0f;
         private double positionMulFactor = 1.0f;
+        private boolean useFlatMatrixStorage = false;
+        private boolean useJosephCovarianceUpdate = false;
+        private boolean useSequentialUpdate = false;
+        private ProcessNoiseModel processNoiseModel = new ProcessNoiseModels.WhiteNoiseAcceleration();
+        private int stateHistorySize = 0;
 
         public KalmanOptions() {
         }
@@ -47,6 +57,26 @@ public class KalmanGpsImuFusionEngine {
             return positionMulFactor;
         }
 
+        public boolean isUseFlatMatrixStorage() {
+            return useFlatMatrixStorage;
+        }
+
+        public boolean isUseJosephCovarianceUpdate() {
+            return useJosephCovarianceUpdate;
+        }
+
+        public boolean isUseSequentialUpdate() {
+            return useSequentialUpdate;
+        }
+
+        public ProcessNoiseModel getProcessNoiseModel() {
+            return processNoiseModel;
+        }
+
+        public int getStateHistorySize() {
+            return stateHistorySize;
+        }
+
         public KalmanOptions useGpsSpeed(boolean useGpsSpeed) {
             this.useGpsSpeed = useGpsSpeed;
             return this;
@@ -66,6 +96,35 @@ public class KalmanGpsImuFusionEngine {
             this.positionMulFactor = positionMulFactor;
             return this;
         }
+
+        // row-major double[] matrices with unrolled 4x4/4x2/2x4/2x2 kernels instead of double[][]
+        public KalmanOptions useFlatMatrixStorage(boolean useFlatMatrixStorage) {
+            this.useFlatMatrixStorage = useFlatMatrixStorage;
+            return this;
+        }
+
+        // numerically stable covariance update, P stays symmetric positive-definite on long drives
+        public KalmanOptions useJosephCovarianceUpdate(boolean useJosephCovarianceUpdate) {
+            this.useJosephCovarianceUpdate = useJosephCovarianceUpdate;
+            return this;
+        }
+
+        // R is always diagonal here, so gps fix is applied as scalar updates without inversion
+        public KalmanOptions useSequentialUpdate(boolean useSequentialUpdate) {
+            this.useSequentialUpdate = useSequentialUpdate;
+            return this;
+        }
+
+        public KalmanOptions setProcessNoiseModel(ProcessNoiseModel processNoiseModel) {
+            this.processNoiseModel = processNoiseModel;
+            return this;
+        }
+
+        // number of past predict/update events kept for out-of-sequence gps fixes, 0 - disabled
+        public KalmanOptions setStateHistorySize(int stateHistorySize) {
+            this.stateHistorySize = stateHistorySize;
+            return this;
+        }
     }
 
     public KalmanOptions getKalmanOptions() {
@@ -77,120 +136,231 @@ public class KalmanGpsImuFusionEngine {
         measureDimension = this.kalmanOptions.useGpsSpeed ? 4 : 2;
         stateDimension = 4;
         controlDimension = 2;
-        kalmanFilter = new KalmanFilter(stateDimension, measureDimension, controlDimension);
+        kalmanFilter = new KalmanFilter(stateDimension, measureDimension, controlDimension,
+                this.kalmanOptions.useFlatMatrixStorage);
+        kalmanFilter.setJosephFormUpdate(this.kalmanOptions.useJosephCovarianceUpdate);
+        kalmanFilter.setSequentialUpdate(this.kalmanOptions.useSequentialUpdate);
+        if (this.kalmanOptions.stateHistorySize > 0) {
+            stateHistory = new KalmanStateHistory(this.kalmanOptions.stateHistorySize, stateDimension);
+        }
     }
 
     // x, y - meters; xVelocity, yVelocity - meters per sec; timestampMs = milliseconds
     public void init(double x, double y, double xVelocity, double yVelocity, double positionVariance,
                      double timestampMs) {
         timestampMsPredict = timestampMsUpdate = timestampMs;
-        predictCount = 0;
         kalmanFilter.Xk_k.setData(x, y, xVelocity, yVelocity);
         kalmanFilter.H.setIdentityDiag(); //state has 4d and measurement has 4d too. so here is identity
+        kalmanFilter.F.setIdentity();
+        kalmanFilter.B.setZero();
+        kalmanFilter.Q.setZero();
+        kalmanFilter.R.setZero();
         kalmanFilter.Pk_k.setIdentity();
         kalmanFilter.Pk_k.scale(positionVariance);
+        if (stateHistory != null) {
+            stateHistory.clear();
+        }
     }
 
     public void predict(double xAcceleration, double yAcceleration, double timestampNowMs) {
+        predictInternal(xAcceleration, yAcceleration, timestampNowMs);
+        if (stateHistory != null) {
+            int index = stateHistory.append(KalmanStateHistory.EVENT_PREDICT, timestampNowMs,
+                    xAcceleration, yAcceleration, 0, 0, 0, 0);
+            stateHistory.saveState(index, kalmanFilter, timestampMsPredict, timestampMsUpdate);
+        }
+    }
+
+    // zero-velocity update while vehicle is standing: state is propagated to timestampMs without acceleration
+    // (instead of integrating noisy accelerations) and velocity is corrected to zero with velocityVariance
+    public void zeroVelocityUpdate(double velocityVariance, double timestampMs) {
+        zeroVelocityUpdateInternal(velocityVariance, timestampMs);
+        if (stateHistory != null) {
+            int index = stateHistory.append(KalmanStateHistory.EVENT_ZERO_VELOCITY, timestampMs,
+                    velocityVariance, 0, 0, 0, 0, 0);
+            stateHistory.saveState(index, kalmanFilter, timestampMsPredict, timestampMsUpdate);
+        }
+    }
+
+    // returns KalmanFilter.UPDATE_OK or KalmanFilter.UPDATE_INNOVATION_NOT_SPD
+    // fix older than last applied predict is applied at its own timestamp and newer events are replayed
+    public int update(double x, double y, double xVel, double yVel,
+                      double positionVariance, double velocityVariance, double timestampMs) {
+        if (stateHistory == null) {
+            return updateInternal(x, y, xVel, yVel, positionVariance, velocityVariance, timestampMs);
+        }
+
+        int index = stateHistory.insertionIndex(timestampMs);
+        if (index == stateHistory.size()) { // in sequence
+            int status = updateInternal(x, y, xVel, yVel, positionVariance, velocityVariance, timestampMs);
+            index = stateHistory.append(KalmanStateHistory.EVENT_UPDATE, timestampMs,
+                    x, y, xVel, yVel, positionVariance, velocityVariance);
+            stateHistory.saveState(index, kalmanFilter, timestampMsPredict, timestampMsUpdate);
+            return status;
+        }
+
+        ++outOfSequenceUpdates;
+        if (index == 0 || (index == 1 && stateHistory.size() == stateHistory.capacity())) {
+            // older than whole history -> apply as current, history is no longer consistent
+            ++tooOldUpdates;
+            stateHistory.clear();
+            return updateInternal(x, y, xVel, yVel, positionVariance, velocityVariance, timestampMs);
+        }
+
+        // insert before restoring: dropping oldest event on full history shifts indexes
+        index = stateHistory.insert(index, KalmanStateHistory.EVENT_UPDATE, timestampMs,
+                x, y, xVel, yVel, positionVariance, velocityVariance);
+        stateHistory.restoreState(index - 1, kalmanFilter);
+        timestampMsPredict = stateHistory.getPredictTime(index - 1);
+        timestampMsUpdate = stateHistory.getUpdateTime(index - 1);
+        int status = KalmanFilter.UPDATE_OK;
+        for (int i = index; i < stateHistory.size(); ++i) {
+            if (stateHistory.getType(i) == KalmanStateHistory.EVENT_PREDICT) {
+                predictInternal(stateHistory.getInput(i, 0), stateHistory.getInput(i, 1),
+                        stateHistory.getEventTime(i));
+            } else if (stateHistory.getType(i) == KalmanStateHistory.EVENT_ZERO_VELOCITY) {
+                zeroVelocityUpdateInternal(stateHistory.getInput(i, 0), stateHistory.getEventTime(i));
+            } else {
+                int s = updateInternal(stateHistory.getInput(i, 0), stateHistory.getInput(i, 1),
+                        stateHistory.getInput(i, 2), stateHistory.getInput(i, 3),
+                        stateHistory.getInput(i, 4), stateHistory.getInput(i, 5),
+                        stateHistory.getEventTime(i));
+                if (i == index) {
+                    status = s;
+                }
+            }
+            stateHistory.saveState(i, kalmanFilter, timestampMsPredict, timestampMsUpdate);
+        }
+        return status;
+    }
+
+    public long getOutOfSequenceUpdates() {
+        return outOfSequenceUpdates;
+    }
+
+    public long getTooOldUpdates() {
+        return tooOldUpdates;
+    }
+
+    private void predictInternal(double xAcceleration, double yAcceleration, double timestampNowMs) {
         double dtPredict = (timestampNowMs - timestampMsPredict) / 1000.0; // convert to sec
         double dtUpdate = (timestampNowMs - timestampMsUpdate) / 1000.0;
         rebuildF(dtPredict);
         rebuildB(dtPredict);
         rebuildU(xAcceleration, yAcceleration);
 
-        ++predictCount;
-        rebuildQ(dtUpdate, kalmanOptions.accelerationDeviance);
+        kalmanOptions.processNoiseModel.rebuildQ(kalmanFilter.Q, dtPredict, dtUpdate,
+                kalmanOptions.accelerationDeviance);
 
         timestampMsPredict = timestampNowMs;
         kalmanFilter.predict();
         Matrix2.matrixCopy(kalmanFilter.Xk_km1, kalmanFilter.Xk_k);
+        if (kalmanOptions.processNoiseModel.isCumulative()) {
+            Matrix2.matrixCopy(kalmanFilter.Pk_km1, kalmanFilter.Pk_k);
+        }
     }
 
-    public void update(double x, double y, double xVel, double yVel,
-                       double positionVariance, double velocityVariance, double timestampMs) {
-        predictCount = 0;
+    private int updateInternal(double x, double y, double xVel, double yVel,
+                               double positionVariance, double velocityVariance, double timestampMs) {
         timestampMsUpdate = timestampMs;
         rebuildR(positionVariance, velocityVariance);
-        kalmanFilter.Zk.setData(x, y, xVel, yVel);
-        kalmanFilter.update();
+        rebuildZ(x, y, xVel, yVel);
+        return kalmanFilter.update();
+    }
+
+    // velocity pseudo-measurements (xVel = 0, yVel = 0) are applied one by one as scalar updates,
+    // so measurement matrices of gps update stay untouched
+    private void zeroVelocityUpdateInternal(double velocityVariance, double timestampMs) {
+        predictInternal(0, 0, timestampMs);
+        // like gps update: predicted covariance is the prior and corrected one is the base of next predicts
+        Matrix2.matrixCopy(kalmanFilter.Pk_km1, kalmanFilter.Pk_k);
+        timestampMsUpdate = timestampMs;
+        Matrix2 x = kalmanFilter.Xk_k;
+        Matrix2 p = kalmanFilter.Pk_k;
+        for (int v = 2; v < stateDimension; ++v) {
+            double s = p.get(v, v) + velocityVariance;
+            if (!(s > 0)) {
+                continue;
+            }
+            double innovation = -x.get(v, 0);
+            for (int i = 0; i < stateDimension; ++i) {
+                x.set(i, 0, x.get(i, 0) + p.get(i, v) / s * innovation);
+            }
+            // P = P - P(:,v) * P(v,:) / s, column v is copied before P is changed
+            for (int i = 0; i < stateDimension; ++i) {
+                zeroVelocityAux[i] = p.get(i, v);
+            }
+            for (int i = 0; i < stateDimension; ++i) {
+                double k = zeroVelocityAux[i] / s;
+                for (int j = 0; j < stateDimension; ++j) {
+                    p.set(i, j, p.get(i, j) - k * zeroVelocityAux[j]);
+                }
+            }
+        }
+        // update() starts from Xk|k-1 and Pk|k-1, fix right after this one must see corrected state
+        Matrix2.matrixCopy(x, kalmanFilter.Xk_km1);
+        Matrix2.matrixCopy(p, kalmanFilter.Pk_km1);
     }
 
     public double getCurrentX() {
-        return kalmanFilter.Xk_k.data[0][0];
+        return kalmanFilter.Xk_k.get(0, 0);
     }
 
     public double getCurrentY() {
-        return kalmanFilter.Xk_k.data[1][0];
+        return kalmanFilter.Xk_k.get(1, 0);
     }
 
     public double getCurrentXVel() {
-        return kalmanFilter.Xk_k.data[2][0];
+        return kalmanFilter.Xk_k.get(2, 0);
     }
 
     public double getCurrentYVel() {
-        return kalmanFilter.Xk_k.data[3][0];
+        return kalmanFilter.Xk_k.get(3, 0);
     }
 
+    // F, B, Q and R keep their zero/identity structure from init(),
+    // so predict/update only write the entries which depend on dt and variances (no allocations)
     private void rebuildF(double dtPredict) {
-        double[] f = {
-                1.0, 0.0, dtPredict, 0.0,
-                0.0, 1.0, 0.0, dtPredict,
-                0.0, 0.0, 1.0, 0.0,
-                0.0, 0.0, 0.0, 1.0
-        };
-        kalmanFilter.F.setData(f);
+        Matrix2 f = kalmanFilter.F;
+        f.set(0, 2, dtPredict);
+        f.set(1, 3, dtPredict);
     }
 
     private void rebuildU(double xAcceleration, double yAcceleration) {
-        kalmanFilter.Uk.setData(xAcceleration, yAcceleration);
+        Matrix2 u = kalmanFilter.Uk;
+        u.set(0, 0, xAcceleration);
+        u.set(1, 0, yAcceleration);
     }
 
     private void rebuildB(double dtPredict) {
         double dt2 = 0.5 * dtPredict * dtPredict; // t^2/2
-        double[] b = {
-                dt2, 0.0,
-                0.0, dt2,
-                dtPredict, 0.0,
-                0.0, dtPredict
-        };
-        kalmanFilter.B.setData(b);
+        Matrix2 b = kalmanFilter.B;
+        b.set(0, 0, dt2);
+        b.set(1, 1, dt2);
+        b.set(2, 0, dtPredict);
+        b.set(3, 1, dtPredict);
+    }
+
+    private void rebuildZ(double x, double y, double xVel, double yVel) {
+        Matrix2 z = kalmanFilter.Zk;
+        z.set(0, 0, x);
+        z.set(1, 0, y);
+        if (kalmanOptions.useGpsSpeed) {
+            z.set(2, 0, xVel);
+            z.set(3, 0, yVel);
+        }
     }
 
     private void rebuildR(double positionVariance, double velocityVariance) {
         positionVariance *= kalmanOptions.positionMulFactor;
         velocityVariance *= kalmanOptions.velocityMulFactor;
 
+        Matrix2 r = kalmanFilter.R;
+        r.set(0, 0, positionVariance);
+        r.set(1, 1, positionVariance);
         if (kalmanOptions.useGpsSpeed) {
-            double[] R = {
-                    positionVariance, 0.0, 0.0, 0.0,
-                    0.0, positionVariance, 0.0, 0.0,
-                    0.0, 0.0, velocityVariance, 0.0,
-                    0.0, 0.0, 0.0, velocityVariance
-            };
-            kalmanFilter.R.setData(R);
-        } else {
-            kalmanFilter.R.setIdentity();
-            kalmanFilter.R.scale(positionVariance);
-        }
-    }
-
-    private void rebuildQ(double accelerationDeviance, double dtUpdate) {
-//        now we use predictCount. but maybe there is way to use dtUpdate.
-//        m_kf.Q.setIdentity();
-//        m_kf.Q.scale(accSigma * dtUpdate);
-        double velDeviance = accelerationDeviance * predictCount;
-        double posDeviance = velDeviance * predictCount / 2;
-        double covariance = velDeviance * posDeviance;
-
-        double posVariance = posDeviance * posDeviance;
-        double velVariance = velDeviance * velDeviance;
-
-        double[] Q = {
-                posVariance, 0.0, covariance, 0.0,
-                0.0, posVariance, 0.0, covariance,
-                covariance, 0.0, velVariance, 0.0,
-                0.0, covariance, 0.0, velVariance
-        };
-        kalmanFilter.Q.setData(Q);
+            r.set(2, 2, velocityVariance);
+            r.set(3, 3, velocityVariance);
+        }
     }
 }
@@ -0,0 +1,182 @@
+package com.app.carnavar.hal.location;
+
+import com.app.carnavar.utils.filters.KalmanFilter;
+import com.app.carnavar.utils.math.Matrix2;
+
+// fixed-capacity ring buffer of kalman events (predict/update inputs) sorted by event time,
+// each with filter state snapshot (updated and predicted state/covariance) after the event. All storage is preallocated,
+// so recording and out-of-sequence replay don't allocate
+public class KalmanStateHistory {
+
+    public static final int EVENT_PREDICT = 0;
+    public static final int EVENT_UPDATE = 1;
+    public static final int EVENT_ZERO_VELOCITY = 2;
+
+    // predict: ax, ay; update: x, y, xVel, yVel, posVar, velVar; zero velocity: velVar
+    public static final int INPUT_SIZE = 6;
+
+    private final int capacity;
+    private final int stateDimension;
+    private final int[] types;
+    private final double[] eventTimes;
+    private final double[] predictTimes; // filter timestamps after event - restored with the snapshot
+    private final double[] updateTimes;
+    private final double[] inputs;
+    private final double[] states;
+    private final double[] covariances;
+    private int head = 0;
+    private int size = 0;
+
+    public KalmanStateHistory(int capacity, int stateDimension) {
+        this.capacity = capacity;
+        this.stateDimension = stateDimension;
+        types = new int[capacity];
+        eventTimes = new double[capacity];
+        predictTimes = new double[capacity];
+        updateTimes = new double[capacity];
+        inputs = new double[capacity * INPUT_SIZE];
+        states = new double[capacity * 2 * stateDimension];
+        covariances = new double[capacity * 2 * stateDimension * stateDimension];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private int slot(int index) {
+        return (head + index) % capacity;
+    }
+
+    public int getType(int index) {
+        return types[slot(index)];
+    }
+
+    public double getEventTime(int index) {
+        return eventTimes[slot(index)];
+    }
+
+    public double getPredictTime(int index) {
+        return predictTimes[slot(index)];
+    }
+
+    public double getUpdateTime(int index) {
+        return updateTimes[slot(index)];
+    }
+
+    public double getInput(int index, int i) {
+        return inputs[slot(index) * INPUT_SIZE + i];
+    }
+
+    public double getLastEventTime() {
+        return eventTimes[slot(size - 1)];
+    }
+
+    // first index with event time greater than time (size if there is no such event)
+    public int insertionIndex(double time) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (eventTimes[slot(mid)] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // inserts event at index shifting newer events, drops the oldest one if history is full.
+    // returns actual index of inserted event or -1 if event is older than whole history
+    public int insert(int index, int type, double eventTime,
+                      double i0, double i1, double i2, double i3, double i4, double i5) {
+        if (size == capacity) {
+            if (index == 0) {
+                return -1;
+            }
+            head = (head + 1) % capacity;
+            --size;
+            --index;
+        }
+        for (int i = size; i > index; --i) {
+            moveSlot(slot(i - 1), slot(i));
+        }
+        ++size;
+        int s = slot(index);
+        types[s] = type;
+        eventTimes[s] = eventTime;
+        int o = s * INPUT_SIZE;
+        inputs[o] = i0;
+        inputs[o + 1] = i1;
+        inputs[o + 2] = i2;
+        inputs[o + 3] = i3;
+        inputs[o + 4] = i4;
+        inputs[o + 5] = i5;
+        return index;
+    }
+
+    public int append(int type, double eventTime,
+                      double i0, double i1, double i2, double i3, double i4, double i5) {
+        return insert(size, type, eventTime, i0, i1, i2, i3, i4, i5);
+    }
+
+    private void moveSlot(int from, int to) {
+        types[to] = types[from];
+        eventTimes[to] = eventTimes[from];
+        predictTimes[to] = predictTimes[from];
+        updateTimes[to] = updateTimes[from];
+        System.arraycopy(inputs, from * INPUT_SIZE, inputs, to * INPUT_SIZE, INPUT_SIZE);
+        int xSize = 2 * stateDimension;
+        int pSize = 2 * stateDimension * stateDimension;
+        System.arraycopy(states, from * xSize, states, to * xSize, xSize);
+        System.arraycopy(covariances, from * pSize, covariances, to * pSize, pSize);
+    }
+
+    public void saveState(int index, KalmanFilter kf, double predictTime, double updateTime) {
+        int s = slot(index);
+        predictTimes[s] = predictTime;
+        updateTimes[s] = updateTime;
+        int xo = s * 2 * stateDimension;
+        int po = s * 2 * stateDimension * stateDimension;
+        saveMatrix(kf.Xk_k, states, xo);
+        saveMatrix(kf.Xk_km1, states, xo + stateDimension);
+        saveMatrix(kf.Pk_k, covariances, po);
+        saveMatrix(kf.Pk_km1, covariances, po + stateDimension * stateDimension);
+    }
+
+    public void restoreState(int index, KalmanFilter kf) {
+        int s = slot(index);
+        int xo = s * 2 * stateDimension;
+        int po = s * 2 * stateDimension * stateDimension;
+        restoreMatrix(kf.Xk_k, states, xo);
+        restoreMatrix(kf.Xk_km1, states, xo + stateDimension);
+        restoreMatrix(kf.Pk_k, covariances, po);
+        restoreMatrix(kf.Pk_km1, covariances, po + stateDimension * stateDimension);
+    }
+
+    private static void saveMatrix(Matrix2 m, double[] dst, int offset) {
+        int cols = m.getCols();
+        for (int r = 0; r < m.getRows(); ++r) {
+            for (int c = 0; c < cols; ++c) {
+                dst[offset + r * cols + c] = m.get(r, c);
+            }
+        }
+    }
+
+    private static void restoreMatrix(Matrix2 m, double[] src, int offset) {
+        int cols = m.getCols();
+        for (int r = 0; r < m.getRows(); ++r) {
+            for (int c = 0; c < cols; ++c) {
+                m.set(r, c, src[offset + r * cols + c]);
+            }
+        }
+    }
+}
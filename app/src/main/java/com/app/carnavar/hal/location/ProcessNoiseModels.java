@@ -0,0 +1,95 @@
+package com.app.carnavar.hal.location;
+
+import com.app.carnavar.utils.math.Matrix2;
+
+// process noise covariance models for state [x, y, xVel, yVel] with acceleration as control input.
+// Cumulative models use continuous white noise acceleration: noise of a step is integrated over its dt,
+// so per-step q scales with dt and covariance grown over a time span doesn't depend on imu sampling rate
+public class ProcessNoiseModels {
+
+    public interface ProcessNoiseModel {
+        // fills 4x4 q in place; dtPredict - sec since last predict, dtUpdate - sec since last gps update,
+        // accelerationDeviance - acceleration noise std in m/s^2
+        void rebuildQ(Matrix2 q, double dtPredict, double dtUpdate, double accelerationDeviance);
+
+        // true - q is noise of one predict step and covariance is propagated through every predict;
+        // false - q is total noise since last gps update and is added to covariance of that update
+        default boolean isCumulative() {
+            return true;
+        }
+    }
+
+    // per-axis block [pos, cov; cov, vel] for both x and y
+    private static void setAxesBlocks(Matrix2 q, double posVariance, double covariance, double velVariance) {
+        q.set(0, 0, posVariance);
+        q.set(1, 1, posVariance);
+        q.set(2, 2, velVariance);
+        q.set(3, 3, velVariance);
+        q.set(0, 2, covariance);
+        q.set(2, 0, covariance);
+        q.set(1, 3, covariance);
+        q.set(3, 1, covariance);
+    }
+
+    // q * [dt^3/3, dt^2/2; dt^2/2, dt] - white acceleration noise with spectral density q (m^2/s^3)
+    // integrated over dt. Sum of n steps of dt/n propagated by F equals one step of dt
+    private static void setContinuousWhiteNoise(Matrix2 q, double spectralDensity, double dt) {
+        double dt2 = dt * dt;
+        setAxesBlocks(q,
+                spectralDensity * dt2 * dt / 3.0,
+                spectralDensity * dt2 / 2.0,
+                spectralDensity * dt);
+    }
+
+    // continuous white noise acceleration, accelerationDeviance^2 is spectral density:
+    // velocity variance grows by accelerationDeviance^2 per second
+    public static class WhiteNoiseAcceleration implements ProcessNoiseModel {
+
+        @Override
+        public void rebuildQ(Matrix2 q, double dtPredict, double dtUpdate, double accelerationDeviance) {
+            setContinuousWhiteNoise(q, accelerationDeviance * accelerationDeviance, dtPredict);
+        }
+    }
+
+    // Singer model: acceleration error is exponentially correlated with maneuver time constant tau.
+    // Acceleration isn't part of the state, so it is applied as white noise of the same long-term
+    // velocity diffusion: spectral density 2 * sigma^2 * tau (integral of the autocorrelation sigma^2 * e^(-|t|/tau)).
+    // Longer maneuvers give more noise than WhiteNoiseAcceleration with the same deviance
+    public static class Singer implements ProcessNoiseModel {
+
+        private double maneuverTimeConstantSec;
+
+        public Singer(double maneuverTimeConstantSec) {
+            this.maneuverTimeConstantSec = maneuverTimeConstantSec;
+        }
+
+        public double getManeuverTimeConstantSec() {
+            return maneuverTimeConstantSec;
+        }
+
+        @Override
+        public void rebuildQ(Matrix2 q, double dtPredict, double dtUpdate, double accelerationDeviance) {
+            setContinuousWhiteNoise(q,
+                    2.0 * accelerationDeviance * accelerationDeviance * maneuverTimeConstantSec, dtPredict);
+        }
+    }
+
+    // legacy shape (deviance grows since last gps update), but scaled by dtUpdate instead of predict count
+    public static class TimeScaled implements ProcessNoiseModel {
+
+        @Override
+        public void rebuildQ(Matrix2 q, double dtPredict, double dtUpdate, double accelerationDeviance) {
+            double velDeviance = accelerationDeviance * dtUpdate;
+            double posDeviance = velDeviance * dtUpdate / 2;
+            setAxesBlocks(q,
+                    posDeviance * posDeviance,
+                    velDeviance * posDeviance,
+                    velDeviance * velDeviance);
+        }
+
+        @Override
+        public boolean isCumulative() {
+            return false;
+        }
+    }
+}
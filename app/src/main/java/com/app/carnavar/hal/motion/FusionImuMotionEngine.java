@@ -8,10 +8,13 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.WindowManager;
 
+import com.app.carnavar.hal.orientation.ErrorStateAttitudeFilter;
+import com.app.carnavar.hal.orientation.ErrorStateDeviceAttitudeEstimator;
 import com.app.carnavar.hal.sensors.Accelerometer;
 import com.app.carnavar.hal.sensors.Gyroscope;
 import com.app.carnavar.hal.sensors.Magnetometer;
 import com.app.carnavar.hal.sensors.RotationVector;
+import com.app.carnavar.hal.sensors.SensorEventReorderBuffer;
 import com.app.carnavar.hal.sensors.SensorTypes;
 import com.app.carnavar.hal.sensors.VirtualSensor;
 import com.app.carnavar.utils.android.TimeUtils;
@@ -43,6 +46,7 @@ public class FusionImuMotionEngine extends VirtualSensor {
     private float[] nonRemappedAbsAccelerations = new float[]{0, 0, 0, 0}; // indexes: north=1, east=0, up=2, 3-for matrix op
     private float[] absAccelerations = new float[]{0, 0, 0}; // indexes: north=0, east=1, up=2
     private MatrixF4x4 fusionDeviceOrientationRotationMatrixInv = new MatrixF4x4();
+    private boolean orientationRotationMatrixInvDirty = true; // orientation is changed since last inverse
 
     // for fusion device orientation estimation (gyroscope + rotation vector)
     private float[] tmpOrientationQuaternionValues = new float[4];
@@ -55,6 +59,11 @@ public class FusionImuMotionEngine extends VirtualSensor {
     private Quaternion fusedInterpolOrientationQuaternion = new Quaternion();
     private int gyroPanicCounter = 0;
 
+    // error-state kalman filter fusion of gyroscope and rotation vector, see ErrorStateDeviceAttitudeEstimator
+    private boolean useErrorStateOrientation = true;
+    private final ErrorStateAttitudeFilter errorStateAttitudeFilter = ErrorStateDeviceAttitudeEstimator.createFilter();
+    private final Quaternion errorStateOrientationQuaternion = new Quaternion();
+
     // for device orientation in non-remapped coordinate system (sensors system -> world system)
     private Quaternion fusionDeviceOrientationQuaternion = new Quaternion();
     private MatrixF4x4 fusionDeviceOrientationRotationMatrix = new MatrixF4x4();
@@ -66,6 +75,10 @@ public class FusionImuMotionEngine extends VirtualSensor {
     private float[] currentDeviceOrientationAngles = new float[]{0, 0, 0};
 
     private GeomagneticField geomagneticField;
+    // cached from geomagneticField, updated only when field is changed
+    private float declinationDeg = 0;
+    private double declinationSin = 0;
+    private double declinationCos = 1;
     private boolean useMagnetDeclinationForOrientation = true;
     private boolean useMagnetDeclinationForAbsAccelerat = true;
 
@@ -78,11 +91,38 @@ public class FusionImuMotionEngine extends VirtualSensor {
     private SmoothingFilters.LowPassFilter orientationFilter = new SmoothingFilters.LowPassFilter();
     private static final float ORIENTATION_FILTERING_FACTOR = 0.3f;
 
+    // sensors batching: bursts of events are re-sorted by hardware timestamp before fusion
+    private static final int REORDER_BUFFER_CAPACITY = 512;
+    private SensorEventReorderBuffer sensorsReorderBuffer = null;
+    private final int[] sensorStreams = new int[SensorTypes.ORIENTATION_ROTATION_MATRIX + 1]; // by sensor type
+
+    // accelerations are rotated by orientation interpolated to their hardware timestamp
+    private static final long DEFAULT_ALIGNMENT_LATENCY_BUDGET_NANOS = 20_000_000L;
+    private ImuTimeAligner imuTimeAligner = null;
+    private final float[] alignedRotationMatrix = new float[16];
+    private final float[] alignedOrientationAngles = new float[3];
+    private final ImuTimeAligner.AlignedSampleListener alignedSampleListener =
+            (accelerations, orientation, timeNanos, interpolated) -> {
+                SensorManager.getRotationMatrixFromVector(alignedRotationMatrix, orientation.array());
+                SensorManager.getOrientation(alignedRotationMatrix, alignedOrientationAngles);
+                transposeRotation(alignedRotationMatrix, fusionDeviceOrientationRotationMatrixInv.matrix);
+                orientationRotationMatrixInvDirty = true; // inverse isn't of current orientation now
+                processAbsAccelerations(accelerations, alignedOrientationAngles, timeNanos);
+            };
+
+    // vehicle stops are detected by raw accelerometer and gyroscope variance. Window is counted in samples,
+    // so its duration follows imu rate chosen by SensorRateGovernor: 1.6 s at cruise 10 Hz, 3.2 s parked (5 Hz),
+    // 0.32 s in maneuver (50 Hz). Stops are entered at cruise rate (governor parks after its dwell only),
+    // pull-away leaves the stop by speed gate and governor raises the rate at once
+    private static final int STATIONARY_WINDOW_SIZE = 16; // samples of every sensor
+    private final StationaryDetector stationaryDetector = new StationaryDetector(STATIONARY_WINDOW_SIZE);
+
     private float[] orientationRotMatFromVec = new float[16];
     private float[] orientationRotMat = new float[16];
 
     private SensorManager sensorManager;
     private WindowManager windowManager;
+    private boolean started = false;
 
     public FusionImuMotionEngine(Context context) {
         super();
@@ -90,17 +130,18 @@ public class FusionImuMotionEngine extends VirtualSensor {
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         accelerometer = new Accelerometer(context);
-        accelerometer.addSensorValuesCaptureListener(sensorsListener);
+        accelerometer.addSensorValuesCaptureListener(sensorsInputListener);
         gyroscope = new Gyroscope(context);
-        gyroscope.addSensorValuesCaptureListener(sensorsListener);
+        gyroscope.addSensorValuesCaptureListener(sensorsInputListener);
         androidOrientationRotationVector = new RotationVector(context);
-        androidOrientationRotationVector.addSensorValuesCaptureListener(sensorsListener);
+        androidOrientationRotationVector.addSensorValuesCaptureListener(sensorsInputListener);
 //        magnetometer = new Magnetometer(context, handler);
-//        magnetometer.addSensorValuesCaptureListener(sensorsListener);
+//        magnetometer.addSensorValuesCaptureListener(sensorsInputListener);
 
         acceleratFilter = new SmoothingFilters.LowPassFilter();
         gyroFilter = new SmoothingFilters.LowPassFilter();
         magnetFilter = new SmoothingFilters.LowPassFilter();
+        setTimeAlignment(DEFAULT_ALIGNMENT_LATENCY_BUDGET_NANOS);
     }
 
     public FusionImuMotionEngine(Context context, Handler handler) {
@@ -109,21 +150,23 @@ public class FusionImuMotionEngine extends VirtualSensor {
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         accelerometer = new Accelerometer(context, handler);
-        accelerometer.addSensorValuesCaptureListener(sensorsListener);
+        accelerometer.addSensorValuesCaptureListener(sensorsInputListener);
         gyroscope = new Gyroscope(context, handler);
-        gyroscope.addSensorValuesCaptureListener(sensorsListener);
+        gyroscope.addSensorValuesCaptureListener(sensorsInputListener);
         androidOrientationRotationVector = new RotationVector(context, handler);
-        androidOrientationRotationVector.addSensorValuesCaptureListener(sensorsListener);
+        androidOrientationRotationVector.addSensorValuesCaptureListener(sensorsInputListener);
 //        magnetometer = new Magnetometer(context, handler);
-//        magnetometer.addSensorValuesCaptureListener(sensorsListener);
+//        magnetometer.addSensorValuesCaptureListener(sensorsInputListener);
 
         acceleratFilter = new SmoothingFilters.LowPassFilter();
         gyroFilter = new SmoothingFilters.LowPassFilter();
         magnetFilter = new SmoothingFilters.LowPassFilter();
+        setTimeAlignment(DEFAULT_ALIGNMENT_LATENCY_BUDGET_NANOS);
     }
 
     public void setGeomagneticField(GeomagneticField geomagneticField) {
         this.geomagneticField = geomagneticField;
+        updateDeclination();
     }
 
     public GeomagneticField getGeomagneticField() {
@@ -132,8 +175,144 @@ public class FusionImuMotionEngine extends VirtualSensor {
 
     public void updateGeomagneticField(double lat, double lng, double alt, long timestampMillis) {
         geomagneticField = new GeomagneticField((float) lat, (float) lng, (float) alt, timestampMillis);
+        updateDeclination();
+    }
+
+    private void updateDeclination() {
+        if (geomagneticField != null) {
+            declinationDeg = geomagneticField.getDeclination();
+            double declinationInRad = Math.toRadians(declinationDeg);
+            declinationSin = Math.sin(declinationInRad);
+            declinationCos = Math.cos(declinationInRad);
+        }
+    }
+
+    // orientation matrix is pure rotation, so its inverse is transpose
+    private void updateOrientationRotationMatrixInv() {
+        transposeRotation(fusionDeviceOrientationRotationMatrix.matrix, fusionDeviceOrientationRotationMatrixInv.matrix);
+        orientationRotationMatrixInvDirty = false;
+    }
+
+    static void transposeRotation(float[] m, float[] inv) {
+        for (int i = 0; i < 4; ++i) {
+            for (int j = 0; j < 4; ++j) {
+                inv[i * 4 + j] = m[j * 4 + i];
+            }
+        }
+    }
+
+    // out = inv * v (column-major 4x4 as android.opengl.Matrix.multiplyMV), then east/north (0/1)
+    // are rotated by declination given by its sin and cos
+    static void rotateToWorld(float[] inv, float[] v, double declinationSin, double declinationCos, float[] out) {
+        for (int i = 0; i < 4; ++i) {
+            out[i] = inv[i] * v[0] + inv[4 + i] * v[1] + inv[8 + i] * v[2] + inv[12 + i] * v[3];
+        }
+        float e = out[0];
+        float n = out[1];
+        out[0] = (float) (e * declinationCos - n * declinationSin);
+        out[1] = (float) (n * declinationCos + e * declinationSin);
+    }
+
+    // latencyBudgetNanos > 0 enables alignment of accelerations with orientation by hardware timestamps,
+    // absolute accelerations are emitted with accelerometer timestamp and delay up to latency budget;
+    // 0 disables it: newest orientation is used with accelerometer timestamp
+    public void setTimeAlignment(long latencyBudgetNanos) {
+        imuTimeAligner = latencyBudgetNanos > 0
+                ? new ImuTimeAligner(32, 64, latencyBudgetNanos, alignedSampleListener)
+                : null;
+    }
+
+    public boolean isTimeAlignment() {
+        return imuTimeAligner != null;
+    }
+
+    // maxReportLatencyMicros > 0 enables hardware fifo batching of all sensors, 0 disables it.
+    // Should be called before start()
+    public void setSensorsBatching(int maxReportLatencyMicros) {
+        VirtualSensor[] sensors = {accelerometer, gyroscope, androidOrientationRotationVector, magnetometer};
+        int[] sensorTypes = {SensorTypes.FULL_ACCELERATION, SensorTypes.GYROSCOPE_ANGLE_VELOCITY,
+                SensorTypes.ORIENTATION_ROTATION_VECTOR, SensorTypes.MAGNETIC_FIELD};
+        int streams = 0;
+        for (int i = 0; i < sensors.length; ++i) {
+            if (sensors[i] != null) {
+                sensors[i].setMaxReportLatencyMicros(maxReportLatencyMicros);
+                sensorStreams[sensorTypes[i]] = streams++;
+            }
+        }
+        if (maxReportLatencyMicros > 0) {
+            // stream is waited for at most two batches
+            sensorsReorderBuffer = new SensorEventReorderBuffer(streams, REORDER_BUFFER_CAPACITY,
+                    2L * maxReportLatencyMicros * 1000, sensorsListener);
+        } else {
+            sensorsReorderBuffer = null;
+        }
+    }
+
+    public boolean isSensorsBatching() {
+        return sensorsReorderBuffer != null;
+    }
+
+    // re-registers started sensors with new sampling period, e.g. by SensorRateGovernor
+    public void setSensorsSampleRate(int sampleRatePeriodTimeMicros) {
+        if (sampleRatePeriodTimeMicros == this.sampleRatePeriodTimeMicros) {
+            return;
+        }
+        this.sampleRatePeriodTimeMicros = sampleRatePeriodTimeMicros;
+        VirtualSensor[] sensors = {accelerometer, gyroscope, androidOrientationRotationVector, magnetometer};
+        for (VirtualSensor sensor : sensors) {
+            if (sensor != null) {
+                sensor.setSampleRatePeriodTimeMicros(sampleRatePeriodTimeMicros);
+                if (started) {
+                    sensor.start(); // start() unregisters listener first
+                }
+            }
+        }
     }
 
+    public int getSensorsSampleRate() {
+        return sampleRatePeriodTimeMicros;
+    }
+
+    // true (default) - orientation is fused by error-state kalman filter: gyroscope bias is estimated and
+    // rotation vector outliers are rejected by innovation gate; false - by fixed-weight slerp with panic counter
+    public void setErrorStateOrientation(boolean useErrorStateOrientation) {
+        this.useErrorStateOrientation = useErrorStateOrientation;
+    }
+
+    public boolean isErrorStateOrientation() {
+        return useErrorStateOrientation;
+    }
+
+    // vehicle is standing, see StationaryDetector
+    public boolean isStationary() {
+        return stationaryDetector.isStationary();
+    }
+
+    public long getStationaryTimeNanos() {
+        return stationaryDetector.getStationaryTimeNanos();
+    }
+
+    // fused or gps speed of vehicle, m/s, NaN if unknown: stop isn't detected while vehicle moves
+    public void setVehicleSpeed(double speed) {
+        stationaryDetector.setSpeed(speed);
+    }
+
+    // angular velocity magnitude of last gyroscope sample, rad/s
+    public double getGyroRotationVelocity() {
+        return gyroRotationVelocity;
+    }
+
+    private SensorListener sensorsInputListener = new SensorListener() {
+        @Override
+        public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
+            if (sensorsReorderBuffer != null) {
+                sensorsReorderBuffer.offer(sensorStreams[sensorType], values, sensorType, timeNanos);
+            } else {
+                sensorsListener.onSensorValuesCaptured(values, sensorType, timeNanos);
+            }
+        }
+    };
+
     double time = 0;
     private SensorListener sensorsListener = new SensorListener() {
         @Override
@@ -142,40 +321,34 @@ public class FusionImuMotionEngine extends VirtualSensor {
             System.arraycopy(values, 0, rawValues, 0, values.length);
             switch (sensorType) {
                 case SensorTypes.FULL_ACCELERATION: { // accelerometer values (linear + gravity)
+                    stationaryDetector.addAccelerometer(rawValues, timeNanos);
                     if (orientationInitialized) {
-                        android.opengl.Matrix.invertM(fusionDeviceOrientationRotationMatrixInv.matrix,
-                                0, fusionDeviceOrientationRotationMatrix.matrix, 0);
-                        processAccelerometer(acceleratFilter.processArray(rawValues, ACCELERATIONS_FILTERING_FACTOR),
-                                timeNanos);
-                        android.opengl.Matrix.multiplyMV(nonRemappedAbsAccelerations, 0,
-                                fusionDeviceOrientationRotationMatrixInv.matrix, 0,
-                                nonRemappedLinearAccelerations, 0);
-
-                        int north = 1, east = 0, up = 2;
-                        if (geomagneticField != null && useMagnetDeclinationForAbsAccelerat) {
-                            double declinationInRad = Math.toRadians(geomagneticField.getDeclination());
-                            nonRemappedAbsAccelerations[east] = (float) (nonRemappedAbsAccelerations[east] * Math.cos(declinationInRad) -
-                                    nonRemappedAbsAccelerations[north] * Math.sin(declinationInRad));
-                            nonRemappedAbsAccelerations[north] = (float) (nonRemappedAbsAccelerations[north] * Math.cos(declinationInRad) +
-                                    nonRemappedAbsAccelerations[east] * Math.sin(declinationInRad));
+                        float[] accValues = acceleratFilter.processArray(rawValues, ACCELERATIONS_FILTERING_FACTOR);
+                        if (imuTimeAligner != null) {
+                            imuTimeAligner.addAcceleration(accValues, timeNanos);
+                        } else {
+                            if (orientationRotationMatrixInvDirty) {
+                                updateOrientationRotationMatrixInv();
+                            }
+                            processAbsAccelerations(accValues, fusionDeviceOrientationAngles, timeNanos);
                         }
-                        // TODO: check and fix its because sometimes gives NAN
-                        absAccelerations[0] = nonRemappedAbsAccelerations[north];
-                        absAccelerations[1] = nonRemappedAbsAccelerations[east];
-                        absAccelerations[2] = nonRemappedAbsAccelerations[up];
-                        notifyAllSensorValuesCaptureListeners(absAccelerations, SensorTypes.ABSOLUTE_LINEAR_ACCELERATION,
-                                TimeUtils.currentAndroidSystemTimeNanos());
                     }
                     break;
                 }
 
                 case SensorTypes.GYROSCOPE_ANGLE_VELOCITY: { // gyroscope values
                     if (timeNanos != 0) {
-                        processGyroscopeFusion(gyroFilter.processArray(rawValues, GYRO_FILTERING_FACTOR), timeNanos);
+                        stationaryDetector.addGyroscope(rawValues, timeNanos);
+                        if (useErrorStateOrientation) {
+                            if (!processGyroscopeErrorState(rawValues, timeNanos)) {
+                                break; // no orientation before first rotation vector
+                            }
+                        } else {
+                            processGyroscopeFusion(gyroFilter.processArray(rawValues, GYRO_FILTERING_FACTOR), timeNanos);
+                        }
                         if (!orientationInitialized) orientationInitialized = true;
                         notifyAllSensorValuesCaptureListeners(currentDeviceOrientationAngles,
-                                SensorTypes.ORIENTATION_ROTATION_ANGLES,
-                                TimeUtils.currentAndroidSystemTimeNanos());
+                                SensorTypes.ORIENTATION_ROTATION_ANGLES, timeNanos);
                         Log.d(TAG, " bearing=" + currentDeviceOrientationAngles[0]);
                     }
                     break;
@@ -188,6 +361,13 @@ public class FusionImuMotionEngine extends VirtualSensor {
                             tmpOrientationQuaternionValues[2],
                             tmpOrientationQuaternionValues[3],
                             -tmpOrientationQuaternionValues[0]);
+                    if (useErrorStateOrientation) {
+                        boolean initialized = errorStateAttitudeFilter.isInitialized();
+                        if (ErrorStateDeviceAttitudeEstimator.correct(errorStateAttitudeFilter,
+                                tmpOrientationQuaternionValues, gyroRotationVelocity) && initialized) {
+                            Log.d(TAG, "Rotation vector is rejected too long. Error-state filter is reset to it.");
+                        }
+                    }
                     // init gyroscope orientation if required
                     if (!gyroOrientationInitialised) {
                         gyroOrientationQuaternion.set(orientationRotationVectorQuaternion);
@@ -235,12 +415,27 @@ public class FusionImuMotionEngine extends VirtualSensor {
         }
     };
 
-    private void processAccelerometer(float[] accValues, long timestamp) {
+    // rotates linear accelerations into world system by fusionDeviceOrientationRotationMatrixInv
+    private void processAbsAccelerations(float[] accValues, float[] orientationAngles, long timeNanos) {
+        processAccelerometer(accValues, orientationAngles);
+        boolean declination = geomagneticField != null && useMagnetDeclinationForAbsAccelerat;
+        rotateToWorld(fusionDeviceOrientationRotationMatrixInv.matrix, nonRemappedLinearAccelerations,
+                declination ? declinationSin : 0, declination ? declinationCos : 1, nonRemappedAbsAccelerations);
+
+        int north = 1, east = 0, up = 2;
+        // TODO: check and fix its because sometimes gives NAN
+        absAccelerations[0] = nonRemappedAbsAccelerations[north];
+        absAccelerations[1] = nonRemappedAbsAccelerations[east];
+        absAccelerations[2] = nonRemappedAbsAccelerations[up];
+        notifyAllSensorValuesCaptureListeners(absAccelerations, SensorTypes.ABSOLUTE_LINEAR_ACCELERATION, timeNanos);
+    }
+
+    private void processAccelerometer(float[] accValues, float[] orientationAngles) {
         // approach based on orientation rotation vector
         // azimuth/yaw, pitch, roll
-        float azimuth = fusionDeviceOrientationAngles[0],
-                pitch = fusionDeviceOrientationAngles[1],
-                roll = fusionDeviceOrientationAngles[2];
+        float azimuth = orientationAngles[0],
+                pitch = orientationAngles[1],
+                roll = orientationAngles[2];
 
         // Find the gravity component of the X-axis
         // = g*-cos(pitch)*sin(roll);
@@ -348,7 +543,31 @@ public class FusionImuMotionEngine extends VirtualSensor {
             gyroPanicCounter = 0;
         }
 
+        if (imuTimeAligner != null) {
+            imuTimeAligner.addOrientation(fusionDeviceOrientationQuaternion, timestamp);
+        }
+        gyroLastTimestamp = timestamp;
+    }
+
+    // gyroscope predicts error-state attitude filter, returns false while filter waits for first rotation vector
+    private boolean processGyroscopeErrorState(float[] gyroValues, long timestamp) {
+        gyroRotationVelocity = Math.sqrt(gyroValues[0] * gyroValues[0] + gyroValues[1] * gyroValues[1]
+                + gyroValues[2] * gyroValues[2]);
+        boolean predicted = gyroLastTimestamp != 0 && errorStateAttitudeFilter.isInitialized();
+        if (predicted) {
+            errorStateAttitudeFilter.predict(gyroValues[0], gyroValues[1], gyroValues[2],
+                    TimeUtils.nanos2sec(timestamp - gyroLastTimestamp));
+            // inverted w as of gyroscope and rotation vector quaternions
+            errorStateOrientationQuaternion.setXYZW((float) errorStateAttitudeFilter.getX(),
+                    (float) errorStateAttitudeFilter.getY(), (float) errorStateAttitudeFilter.getZ(),
+                    (float) -errorStateAttitudeFilter.getW());
+            updateDeviceOrientation(errorStateOrientationQuaternion);
+            if (imuTimeAligner != null) {
+                imuTimeAligner.addOrientation(fusionDeviceOrientationQuaternion, timestamp);
+            }
+        }
         gyroLastTimestamp = timestamp;
+        return predicted;
     }
 
     private void processMagnetometer(float[] magnetValues, long timestamp) {
@@ -400,6 +619,7 @@ public class FusionImuMotionEngine extends VirtualSensor {
         // Set the rotation matrix as well to have both representations
         SensorManager.getRotationMatrixFromVector(fusionDeviceOrientationRotationMatrix.matrix,
                 fusionDeviceOrientationQuaternion.array());
+        orientationRotationMatrixInvDirty = true;
         float[] angles = new float[3];
         SensorManager.getOrientation(fusionDeviceOrientationRotationMatrix.matrix, angles);
         // angles in radians
@@ -440,7 +660,7 @@ public class FusionImuMotionEngine extends VirtualSensor {
         currentDeviceOrientationAngles[2] = (float) Math.toDegrees(currentDeviceOrientationAngles[2]);
         currentDeviceOrientationAngles[0] = (float) Math.toDegrees(currentDeviceOrientationAngles[0]); // scale to 0-360 deg
         if (geomagneticField != null && useMagnetDeclinationForOrientation) {
-            currentDeviceOrientationAngles[0] += geomagneticField.getDeclination();
+            currentDeviceOrientationAngles[0] += declinationDeg;
         }
         orientationFilter.processArray(currentDeviceOrientationAngles, ORIENTATION_FILTERING_FACTOR);
         currentDeviceOrientationAngles[0] = (currentDeviceOrientationAngles[0] + 360f) % 360f;
@@ -448,6 +668,7 @@ public class FusionImuMotionEngine extends VirtualSensor {
 
     @Override
     public void start() {
+        started = true;
         if (accelerometer != null) {
             accelerometer.start();
         }
@@ -467,6 +688,10 @@ public class FusionImuMotionEngine extends VirtualSensor {
 
     @Override
     public void stop() {
+        started = false;
+        if (sensorsReorderBuffer != null) {
+            sensorsReorderBuffer.flush();
+        }
         if (accelerometer != null) {
             accelerometer.stop();
         }
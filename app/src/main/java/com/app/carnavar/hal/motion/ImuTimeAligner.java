@@ -0,0 +1,161 @@
+package com.app.carnavar.hal.motion;
+
+import com.app.carnavar.utils.math.Quaternion;
+
+// aligns accelerometer samples with orientation by hardware timestamps:
+// orientation is slerp-interpolated to accelerometer timestamp from short orientation history.
+// Accelerometer sample waits for next orientation sample at most latencyBudgetNanos (by sensor time),
+// then it is emitted with newest orientation. Buffers are preallocated, not thread safe
+public class ImuTimeAligner {
+
+    public interface AlignedSampleListener {
+        // orientation is reused between calls, interpolated = false if newest/oldest orientation is used as is
+        void onAlignedSample(float[] accelerations, Quaternion orientation, long timeNanos, boolean interpolated);
+    }
+
+    private static final int VALUES = 3;
+
+    private final AlignedSampleListener listener;
+    private final long latencyBudgetNanos;
+
+    // orientation history ring
+    private final Quaternion[] orientations;
+    private final long[] orientationTimestamps;
+    private int orientationHead = 0; // oldest
+    private int orientationSize = 0;
+
+    // pending accelerations ring
+    private final float[] accelerations;
+    private final long[] accelerationTimestamps;
+    private int accelerationHead = 0;
+    private int accelerationSize = 0;
+
+    private long newestTimestamp = Long.MIN_VALUE;
+    private final float[] outputAccelerations = new float[VALUES];
+    private final Quaternion outputOrientation = new Quaternion();
+
+    private long interpolatedSamples = 0;
+    private long heldSamples = 0; // emitted with not interpolated orientation
+    private long droppedSamples = 0; // no orientation at all when budget is exceeded
+
+    public ImuTimeAligner(int orientationCapacity, int accelerationCapacity, long latencyBudgetNanos,
+                          AlignedSampleListener listener) {
+        this.listener = listener;
+        this.latencyBudgetNanos = latencyBudgetNanos;
+        orientations = new Quaternion[orientationCapacity];
+        for (int i = 0; i < orientationCapacity; ++i) {
+            orientations[i] = new Quaternion();
+        }
+        orientationTimestamps = new long[orientationCapacity];
+        accelerations = new float[accelerationCapacity * VALUES];
+        accelerationTimestamps = new long[accelerationCapacity];
+    }
+
+    // orientation timestamps are expected to be non-decreasing
+    public void addOrientation(Quaternion orientation, long timeNanos) {
+        int capacity = orientations.length;
+        if (orientationSize == capacity) {
+            orientationHead = (orientationHead + 1) % capacity;
+            --orientationSize;
+        }
+        int slot = (orientationHead + orientationSize) % capacity;
+        orientations[slot].set(orientation);
+        orientationTimestamps[slot] = timeNanos;
+        ++orientationSize;
+        updateNewest(timeNanos);
+        process();
+    }
+
+    public void addAcceleration(float[] values, long timeNanos) {
+        int capacity = accelerationTimestamps.length;
+        if (accelerationSize == capacity) { // emit oldest now, it can't wait any more
+            emitHead(true);
+        }
+        int slot = (accelerationHead + accelerationSize) % capacity;
+        System.arraycopy(values, 0, accelerations, slot * VALUES, VALUES);
+        accelerationTimestamps[slot] = timeNanos;
+        ++accelerationSize;
+        updateNewest(timeNanos);
+        process();
+    }
+
+    public void clear() {
+        orientationHead = orientationSize = 0;
+        accelerationHead = accelerationSize = 0;
+        newestTimestamp = Long.MIN_VALUE;
+    }
+
+    public long getInterpolatedSamples() {
+        return interpolatedSamples;
+    }
+
+    public long getHeldSamples() {
+        return heldSamples;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    private void updateNewest(long timeNanos) {
+        if (timeNanos > newestTimestamp) {
+            newestTimestamp = timeNanos;
+        }
+    }
+
+    private void process() {
+        while (accelerationSize > 0) {
+            long t = accelerationTimestamps[accelerationHead];
+            boolean covered = orientationSize > 0 && t <= newestOrientationTimestamp();
+            if (!covered && newestTimestamp - t <= latencyBudgetNanos) {
+                break; // wait for orientation
+            }
+            emitHead(!covered);
+        }
+    }
+
+    private long newestOrientationTimestamp() {
+        return orientationTimestamps[(orientationHead + orientationSize - 1) % orientations.length];
+    }
+
+    private void emitHead(boolean force) {
+        int slot = accelerationHead;
+        long t = accelerationTimestamps[slot];
+        accelerationHead = (accelerationHead + 1) % accelerationTimestamps.length;
+        --accelerationSize;
+        if (orientationSize == 0) {
+            ++droppedSamples;
+            return;
+        }
+
+        boolean interpolated = !force && interpolateOrientation(t);
+        if (!interpolated) {
+            Quaternion nearest = t < orientationTimestamps[orientationHead]
+                    ? orientations[orientationHead]
+                    : orientations[(orientationHead + orientationSize - 1) % orientations.length];
+            outputOrientation.set(nearest);
+            ++heldSamples;
+        } else {
+            ++interpolatedSamples;
+        }
+        System.arraycopy(accelerations, slot * VALUES, outputAccelerations, 0, VALUES);
+        listener.onAlignedSample(outputAccelerations, outputOrientation, t, interpolated);
+    }
+
+    // finds pair of orientations around t (from newest), returns false if t is outside history
+    private boolean interpolateOrientation(long t) {
+        int capacity = orientations.length;
+        for (int i = orientationSize - 1; i > 0; --i) {
+            int i1 = (orientationHead + i) % capacity;
+            int i0 = (orientationHead + i - 1) % capacity;
+            long t0 = orientationTimestamps[i0];
+            long t1 = orientationTimestamps[i1];
+            if (t0 <= t && t <= t1) {
+                float ratio = t1 > t0 ? (float) ((double) (t - t0) / (t1 - t0)) : 1f;
+                orientations[i0].slerp(orientations[i1], outputOrientation, ratio);
+                return true;
+            }
+        }
+        return false;
+    }
+}
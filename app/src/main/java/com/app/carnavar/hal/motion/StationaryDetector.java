@@ -0,0 +1,169 @@
+package com.app.carnavar.hal.motion;
+
+// detects that vehicle is standing (red light, traffic jam) by variance of accelerometer and gyroscope magnitudes
+// over sliding windows of last samples. Window statistics are kept incrementally: O(1) per sample.
+// Stationary state is entered when both variances stay low for minStationaryNanos and left at once when any
+// of them exceeds higher exit threshold (hysteresis). Smooth cruise has variances of a stop, so vehicle speed
+// (if known) gates it the same way. Not thread safe except setSpeed(), is used from imu thread only
+public class StationaryDetector {
+
+    // variance thresholds
+    private static final double ACC_ENTER_VARIANCE = 0.0025; // (m/s^2)^2, engine idle vibration passes
+    private static final double ACC_EXIT_VARIANCE = 0.01;
+    private static final double GYRO_ENTER_VARIANCE = 0.0001; // (rad/s)^2
+    private static final double GYRO_EXIT_VARIANCE = 0.0004;
+    private static final long DEFAULT_MIN_STATIONARY_NANOS = 1_000_000_000L;
+    // speed thresholds, m/s
+    private static final double MAX_ENTER_SPEED = 0.5; // gps speed noise of standing vehicle passes
+    private static final double EXIT_SPEED = 1.5;
+
+    // sliding window of values with running sum and sum of squares, values are shifted by first one
+    // to keep sums small (variance of values ~9.8 m/s^2 is much less than their squares)
+    public static class VarianceWindow {
+
+        private final double[] values;
+        private int head = 0;
+        private int size = 0;
+        private double shift = 0;
+        private double sum = 0;
+        private double sumSquares = 0;
+
+        public VarianceWindow(int capacity) {
+            values = new double[capacity];
+        }
+
+        public void add(double value) {
+            if (size == 0 && sum == 0) {
+                shift = value;
+            }
+            double v = value - shift;
+            if (size == values.length) {
+                double old = values[head];
+                sum -= old;
+                sumSquares -= old * old;
+                values[head] = v;
+                head = (head + 1) % values.length;
+                if (head == 0) { // rounding of running sums isn't accumulated longer than one window
+                    recompute();
+                    return;
+                }
+            } else {
+                values[(head + size) % values.length] = v;
+                ++size;
+            }
+            sum += v;
+            sumSquares += v * v;
+        }
+
+        private void recompute() {
+            sum = sumSquares = 0;
+            for (double v : values) {
+                sum += v;
+                sumSquares += v * v;
+            }
+        }
+
+        public boolean isFull() {
+            return size == values.length;
+        }
+
+        public double getMean() {
+            return size > 0 ? shift + sum / size : 0;
+        }
+
+        public double getVariance() {
+            if (size < 2) {
+                return 0;
+            }
+            double mean = sum / size;
+            return Math.max(0, sumSquares / size - mean * mean);
+        }
+
+        public void clear() {
+            head = size = 0;
+            sum = sumSquares = 0;
+        }
+    }
+
+    private final VarianceWindow accWindow;
+    private final VarianceWindow gyroWindow;
+    private final long minStationaryNanos;
+
+    private boolean stationary = false;
+    private long quietSinceNanos = Long.MIN_VALUE; // both variances are below enter thresholds since
+    private long stationaryTimeNanos = 0;
+    private long stationarySinceNanos = 0;
+    private volatile double speed = Double.NaN; // m/s, NaN if unknown
+
+    public StationaryDetector(int windowSize) {
+        this(windowSize, DEFAULT_MIN_STATIONARY_NANOS);
+    }
+
+    public StationaryDetector(int windowSize, long minStationaryNanos) {
+        accWindow = new VarianceWindow(windowSize);
+        gyroWindow = new VarianceWindow(windowSize);
+        this.minStationaryNanos = minStationaryNanos;
+    }
+
+    // accelerometer values (linear + gravity), m/s^2
+    public void addAccelerometer(float[] values, long timeNanos) {
+        accWindow.add(Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]));
+        evaluate(timeNanos);
+    }
+
+    // gyroscope values, rad/s
+    public void addGyroscope(float[] values, long timeNanos) {
+        gyroWindow.add(Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]));
+        evaluate(timeNanos);
+    }
+
+    // fused or gps speed, m/s, NaN if unknown (then stops are detected by variances only).
+    // Can be set from any thread
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    private void evaluate(long timeNanos) {
+        if (!accWindow.isFull() || !gyroWindow.isFull()) {
+            return;
+        }
+        double accVariance = accWindow.getVariance();
+        double gyroVariance = gyroWindow.getVariance();
+        double speed = this.speed;
+        if (stationary) {
+            if (accVariance > ACC_EXIT_VARIANCE || gyroVariance > GYRO_EXIT_VARIANCE || speed > EXIT_SPEED) {
+                stationary = false;
+                quietSinceNanos = Long.MIN_VALUE;
+                stationaryTimeNanos += timeNanos - stationarySinceNanos;
+            }
+            return;
+        }
+        if (accVariance <= ACC_ENTER_VARIANCE && gyroVariance <= GYRO_ENTER_VARIANCE
+                && !(speed > MAX_ENTER_SPEED)) {
+            if (quietSinceNanos == Long.MIN_VALUE) {
+                quietSinceNanos = timeNanos;
+            } else if (timeNanos - quietSinceNanos >= minStationaryNanos) {
+                stationary = true;
+                stationarySinceNanos = timeNanos;
+            }
+        } else {
+            quietSinceNanos = Long.MIN_VALUE;
+        }
+    }
+
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    // total time in stationary state, not counting current stop
+    public long getStationaryTimeNanos() {
+        return stationaryTimeNanos;
+    }
+
+    public void clear() {
+        accWindow.clear();
+        gyroWindow.clear();
+        stationary = false;
+        quietSinceNanos = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,132 @@
+package com.app.carnavar.hal.orientation;
+
+import com.app.carnavar.utils.math.Quaternion;
+
+/**
+ * Fixed-weight fusion of gyroscope and rotation vector used by {@link FusionDeviceAttitudeEstimator}.
+ *
+ * Gyroscope quaternion is integrated and slerped to rotation vector with constant weight. Rotation vector is ignored
+ * while it diverges from gyroscope (outlier), after too many diverged samples in a row orientation is reset to
+ * rotation vector if device rotates slowly enough.
+ * Quaternions are in inverted w convention: (x, y, z, -w) of device -> world rotation.
+ * Plain java, all state is preallocated.
+ */
+public class BlendAttitudeFilter {
+
+    public static final int FUSED = 0; // gyroscope slerped to rotation vector
+    public static final int GYRO_ONLY = 1; // rotation vector diverged
+    public static final int PANIC_RESET = 2; // orientation is reset to rotation vector
+    public static final int PANIC_RESET_DELAYED = 3; // reset is required, but device rotates too fast
+
+    private final double epsilon;
+    private final float interpolationWeight;
+    private final float outlierThreshold;
+    private final int panicThreshold;
+    private final double panicMaxRotationVelocity;
+
+    private final Quaternion quaternionGyroscope = new Quaternion();
+    private final Quaternion quaternionRotationVector = new Quaternion();
+    private final Quaternion deltaQuaternion = new Quaternion();
+    private final Quaternion interpolatedQuaternion = new Quaternion();
+    private final Quaternion orientation = new Quaternion();
+    private boolean initialised = false;
+    private int panicCounter = 0;
+    private double rotationVelocity = 0;
+
+    // epsilon - rad/s, slower rotation axis isn't normalized; interpolationWeight - slerp weight of rotation vector;
+    // outlierThreshold - min |dot product| of gyroscope and rotation vector quaternions to fuse them;
+    // panicThreshold - diverged samples in a row before reset
+    public BlendAttitudeFilter(double epsilon, float interpolationWeight, float outlierThreshold,
+                               int panicThreshold, double panicMaxRotationVelocity) {
+        this.epsilon = epsilon;
+        this.interpolationWeight = interpolationWeight;
+        this.outlierThreshold = outlierThreshold;
+        this.panicThreshold = panicThreshold;
+        this.panicMaxRotationVelocity = panicMaxRotationVelocity;
+    }
+
+    // w, x, y, z of device -> world rotation (as SensorManager.getQuaternionFromVector gives it),
+    // first one initializes gyroscope orientation
+    public void setRotationVector(float w, float x, float y, float z) {
+        quaternionRotationVector.setXYZW(x, y, z, -w);
+        if (!initialised) {
+            quaternionGyroscope.set(quaternionRotationVector);
+            initialised = true;
+        }
+    }
+
+    public boolean isInitialized() {
+        return initialised;
+    }
+
+    // gx, gy, gz - angular velocity in device system, rad/s; dT - sec.
+    // Returns FUSED, GYRO_ONLY, PANIC_RESET or PANIC_RESET_DELAYED, result is in getOrientation()
+    public int fuseGyroscope(float gx, float gy, float gz, float dT) {
+        // Axis of the rotation sample, not normalized yet.
+        float axisX = gx;
+        float axisY = gy;
+        float axisZ = gz;
+
+        // Calculate the angular speed of the sample
+        rotationVelocity = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+
+        // Normalize the rotation vector if it's big enough to get the axis
+        if (rotationVelocity > epsilon) {
+            axisX /= rotationVelocity;
+            axisY /= rotationVelocity;
+            axisZ /= rotationVelocity;
+        }
+
+        // Integrate around this axis with the angular speed by the timestep
+        double thetaOverTwo = rotationVelocity * dT / 2.0f;
+        double sinThetaOverTwo = Math.sin(thetaOverTwo);
+        double cosThetaOverTwo = Math.cos(thetaOverTwo);
+        deltaQuaternion.setX((float) (sinThetaOverTwo * axisX));
+        deltaQuaternion.setY((float) (sinThetaOverTwo * axisY));
+        deltaQuaternion.setZ((float) (sinThetaOverTwo * axisZ));
+        deltaQuaternion.setW(-(float) cosThetaOverTwo);
+
+        // Move current gyro orientation
+        deltaQuaternion.multiplyByQuat(quaternionGyroscope, quaternionGyroscope);
+
+        // dot product is close to 1 if both orientations are the same
+        float dotProd = quaternionGyroscope.dotProduct(quaternionRotationVector);
+
+        int result;
+        if (Math.abs(dotProd) < outlierThreshold) {
+            // rotation vector "jumps", rely on gyroscope only
+            panicCounter++;
+            orientation.set(quaternionGyroscope);
+            result = GYRO_ONLY;
+        } else {
+            // low weight: rotation vector corrects gyroscope slowly and output keeps responsive
+            quaternionGyroscope.slerp(quaternionRotationVector, interpolatedQuaternion, interpolationWeight);
+            orientation.set(interpolatedQuaternion);
+            quaternionGyroscope.copyVec4(interpolatedQuaternion);
+            panicCounter = 0;
+            result = FUSED;
+        }
+
+        if (panicCounter > panicThreshold) {
+            if (rotationVelocity < panicMaxRotationVelocity) {
+                orientation.set(quaternionRotationVector);
+                quaternionGyroscope.copyVec4(quaternionRotationVector);
+                panicCounter = 0;
+                result = PANIC_RESET;
+            } else {
+                result = PANIC_RESET_DELAYED;
+            }
+        }
+        return result;
+    }
+
+    // fused orientation in inverted w convention
+    public Quaternion getOrientation() {
+        return orientation;
+    }
+
+    // angular velocity magnitude of last gyroscope sample, rad/s
+    public double getRotationVelocity() {
+        return rotationVelocity;
+    }
+}
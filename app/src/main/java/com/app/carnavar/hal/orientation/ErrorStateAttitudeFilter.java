@@ -0,0 +1,244 @@
+package com.app.carnavar.hal.orientation;
+
+import com.app.carnavar.utils.filters.KalmanFilter;
+import com.app.carnavar.utils.math.Matrix2;
+
+/**
+ * Error-state (multiplicative) Kalman filter for device attitude with gyroscope bias estimation.
+ *
+ * Nominal state: unit quaternion q (device -> world, Hamilton, w first) and gyro bias b.
+ * Error state: [dTheta(3), dBias(3)], true q = q * dq(dTheta). Gyroscope drives prediction,
+ * absolute attitude measurement (rotation vector) corrects it; measurement with too large
+ * Mahalanobis distance is rejected instead of fixed-weight blending.
+ * Plain java, all state is preallocated.
+ */
+public class ErrorStateAttitudeFilter {
+
+    public static final int CORRECT_OK = 0;
+    public static final int CORRECT_REJECTED = 1; // outlier by innovation gate
+    public static final int CORRECT_NOT_SPD = 2;
+
+    private static final int STATE = 6;
+    private static final int MEASURE = 3;
+
+    // flat storage, covariance propagation works on Pk_k.getFlat() directly; F and Q aren't used
+    private final KalmanFilter kf = new KalmanFilter(STATE, MEASURE, 1, true);
+    private final double[] auxFP = new double[STATE * STATE];
+
+    // nominal state
+    private double qw = 1, qx = 0, qy = 0, qz = 0;
+    private double bx = 0, by = 0, bz = 0;
+    private boolean initialized = false;
+
+    private double gyroNoiseVariance; // (rad/s)^2 * s
+    private double gyroBiasVariance; // (rad/s^2)^2 * s
+    private double measurementVariance; // rad^2
+    private double innovationGate; // chi-square, 3 dof
+
+    private long rejectedMeasurements = 0;
+    private int consecutiveRejections = 0;
+
+    public ErrorStateAttitudeFilter(double gyroNoiseDeviance, double gyroBiasDeviance,
+                                    double measurementDeviance, double innovationGate) {
+        this.gyroNoiseVariance = gyroNoiseDeviance * gyroNoiseDeviance;
+        this.gyroBiasVariance = gyroBiasDeviance * gyroBiasDeviance;
+        this.measurementVariance = measurementDeviance * measurementDeviance;
+        this.innovationGate = innovationGate;
+        kf.setJosephFormUpdate(true);
+        kf.setSequentialUpdate(true);
+        kf.H.setZero();
+        for (int i = 0; i < MEASURE; ++i) {
+            kf.H.set(i, i, 1.0);
+        }
+        kf.R.setZero();
+    }
+
+    // w, x, y, z of device -> world rotation; initialAttitudeDeviance in rad, initialBiasDeviance in rad/s
+    public void init(double w, double x, double y, double z, double initialAttitudeDeviance,
+                     double initialBiasDeviance) {
+        double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+        qw = w / norm;
+        qx = x / norm;
+        qy = y / norm;
+        qz = z / norm;
+        bx = by = bz = 0;
+        kf.Xk_k.setZero();
+        kf.Pk_k.setZero();
+        for (int i = 0; i < 3; ++i) {
+            kf.Pk_k.set(i, i, initialAttitudeDeviance * initialAttitudeDeviance);
+            kf.Pk_k.set(i + 3, i + 3, initialBiasDeviance * initialBiasDeviance);
+        }
+        consecutiveRejections = 0;
+        initialized = true;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    // gx, gy, gz - angular velocity in device system, rad/s; dt - sec
+    public void predict(double gx, double gy, double gz, double dt) {
+        double wx = gx - bx, wy = gy - by, wz = gz - bz;
+
+        // q = q * exp(w*dt/2)
+        double ax = wx * dt, ay = wy * dt, az = wz * dt;
+        double angle = Math.sqrt(ax * ax + ay * ay + az * az);
+        double dw, s;
+        if (angle > 1e-9) {
+            dw = Math.cos(angle / 2);
+            s = Math.sin(angle / 2) / angle;
+        } else {
+            dw = 1;
+            s = 0.5;
+        }
+        multiplyNominal(dw, ax * s, ay * s, az * s);
+
+        // P = F*P*F(t) + Q with F = [A, -I*dt; 0, I], A = I - [w*dt]x.
+        // Block structure is unrolled: ~4 times less multiplications than dense 6x6 product
+        final double[] p = kf.Pk_k.getFlat();
+        final double[] g = auxFP;
+        int r, c;
+        // G = F*P: rows 0..2 = A*P(0..2) - dt*P(3..5), rows 3..5 = P(3..5)
+        for (c = 0; c < STATE; ++c) {
+            double p0 = p[c], p1 = p[STATE + c], p2 = p[2 * STATE + c];
+            g[c] = p0 + az * p1 - ay * p2 - dt * p[3 * STATE + c];
+            g[STATE + c] = -az * p0 + p1 + ax * p2 - dt * p[4 * STATE + c];
+            g[2 * STATE + c] = ay * p0 - ax * p1 + p2 - dt * p[5 * STATE + c];
+        }
+        System.arraycopy(p, 3 * STATE, g, 3 * STATE, 3 * STATE);
+        // P = G*F(t): columns 0..2 = G(0..2)*A(t) - dt*G(3..5), columns 3..5 = G(3..5)
+        for (r = 0; r < STATE; ++r) {
+            int o = r * STATE;
+            double g0 = g[o], g1 = g[o + 1], g2 = g[o + 2];
+            p[o] = g0 + az * g1 - ay * g2 - dt * g[o + 3];
+            p[o + 1] = -az * g0 + g1 + ax * g2 - dt * g[o + 4];
+            p[o + 2] = ay * g0 - ax * g1 + g2 - dt * g[o + 5];
+            p[o + 3] = g[o + 3];
+            p[o + 4] = g[o + 4];
+            p[o + 5] = g[o + 5];
+        }
+        for (int i = 0; i < 3; ++i) {
+            p[i * (STATE + 1)] += gyroNoiseVariance * dt;
+            p[(i + 3) * (STATE + 1)] += gyroBiasVariance * dt;
+        }
+    }
+
+    // absolute attitude measurement w, x, y, z (device -> world)
+    public int correct(double mw, double mx, double my, double mz) {
+        // residual rotation dq = q^-1 * qm, small angle = 2 * vec(dq)
+        double rw = qw * mw + qx * mx + qy * my + qz * mz;
+        double rx = qw * mx - qx * mw - qy * mz + qz * my;
+        double ry = qw * my + qx * mz - qy * mw - qz * mx;
+        double rz = qw * mz - qx * my + qy * mx - qz * mw;
+        double sign = rw < 0 ? -2.0 : 2.0; // q and -q are the same rotation
+        double zx = sign * rx, zy = sign * ry, zz = sign * rz;
+
+        if (!passesGate(zx, zy, zz)) {
+            ++rejectedMeasurements;
+            ++consecutiveRejections;
+            return CORRECT_REJECTED;
+        }
+        consecutiveRejections = 0;
+
+        for (int i = 0; i < MEASURE; ++i) {
+            kf.R.set(i, i, measurementVariance);
+        }
+        kf.Zk.set(0, 0, zx);
+        kf.Zk.set(1, 0, zy);
+        kf.Zk.set(2, 0, zz);
+        kf.Xk_km1.setZero();
+        Matrix2.matrixCopy(kf.Pk_k, kf.Pk_km1);
+        if (kf.update() != KalmanFilter.UPDATE_OK) {
+            Matrix2.matrixCopy(kf.Pk_km1, kf.Pk_k);
+            kf.Xk_k.setZero();
+            return CORRECT_NOT_SPD;
+        }
+
+        // inject error into nominal state and reset it
+        double tx = kf.Xk_k.get(0, 0), ty = kf.Xk_k.get(1, 0), tz = kf.Xk_k.get(2, 0);
+        multiplyNominal(1.0, tx / 2, ty / 2, tz / 2);
+        bx += kf.Xk_k.get(3, 0);
+        by += kf.Xk_k.get(4, 0);
+        bz += kf.Xk_k.get(5, 0);
+        kf.Xk_k.setZero();
+        return CORRECT_OK;
+    }
+
+    // innovation y' * S^-1 * y with S = P(att) + R, by 3x3 cholesky
+    private boolean passesGate(double y0, double y1, double y2) {
+        Matrix2 p = kf.Pk_k;
+        double s00 = p.get(0, 0) + measurementVariance;
+        double s10 = p.get(1, 0), s11 = p.get(1, 1) + measurementVariance;
+        double s20 = p.get(2, 0), s21 = p.get(2, 1), s22 = p.get(2, 2) + measurementVariance;
+        if (!(s00 > 0)) return false;
+        double l00 = Math.sqrt(s00);
+        double l10 = s10 / l00;
+        double d1 = s11 - l10 * l10;
+        if (!(d1 > 0)) return false;
+        double l11 = Math.sqrt(d1);
+        double l20 = s20 / l00;
+        double l21 = (s21 - l20 * l10) / l11;
+        double d2 = s22 - l20 * l20 - l21 * l21;
+        if (!(d2 > 0)) return false;
+        double l22 = Math.sqrt(d2);
+        // forward substitution L * v = y, distance = |v|^2
+        double v0 = y0 / l00;
+        double v1 = (y1 - l10 * v0) / l11;
+        double v2 = (y2 - l20 * v0 - l21 * v1) / l22;
+        return v0 * v0 + v1 * v1 + v2 * v2 <= innovationGate;
+    }
+
+    // q = q * (w, x, y, z), normalized
+    private void multiplyNominal(double w, double x, double y, double z) {
+        double nw = qw * w - qx * x - qy * y - qz * z;
+        double nx = qw * x + qx * w + qy * z - qz * y;
+        double ny = qw * y - qx * z + qy * w + qz * x;
+        double nz = qw * z + qx * y - qy * x + qz * w;
+        double norm = Math.sqrt(nw * nw + nx * nx + ny * ny + nz * nz);
+        qw = nw / norm;
+        qx = nx / norm;
+        qy = ny / norm;
+        qz = nz / norm;
+    }
+
+    public double getW() {
+        return qw;
+    }
+
+    public double getX() {
+        return qx;
+    }
+
+    public double getY() {
+        return qy;
+    }
+
+    public double getZ() {
+        return qz;
+    }
+
+    public double getBiasX() {
+        return bx;
+    }
+
+    public double getBiasY() {
+        return by;
+    }
+
+    public double getBiasZ() {
+        return bz;
+    }
+
+    // attitude error deviance, rad
+    public double getAttitudeDeviance() {
+        return Math.sqrt(kf.Pk_k.get(0, 0) + kf.Pk_k.get(1, 1) + kf.Pk_k.get(2, 2));
+    }
+
+    public long getRejectedMeasurements() {
+        return rejectedMeasurements;
+    }
+
+    public int getConsecutiveRejections() {
+        return consecutiveRejections;
+    }
+}
@@ -0,0 +1,211 @@
+package com.app.carnavar.hal.orientation;
+
+import android.content.Context;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+import android.view.WindowManager;
+
+import com.app.carnavar.hal.sensors.Gyroscope;
+import com.app.carnavar.hal.sensors.RotationVector;
+import com.app.carnavar.hal.sensors.SensorTypes;
+import com.app.carnavar.hal.sensors.VirtualSensor;
+import com.app.carnavar.utils.math.MatrixF4x4;
+import com.app.carnavar.utils.math.Quaternion;
+
+import java.util.Locale;
+
+// orientation estimator based on error-state kalman filter: gyroscope predicts attitude and estimates own bias,
+// rotation vector corrects it, its outliers are rejected by innovation gate (see ErrorStateAttitudeFilter).
+// Same outputs as FusionDeviceAttitudeEstimator
+public class ErrorStateDeviceAttitudeEstimator extends VirtualSensor implements VirtualSensor.SensorListener {
+
+    public static final String TAG = ErrorStateDeviceAttitudeEstimator.class.getSimpleName();
+
+    private static final float NS2S = 1.0f / 1000000000.0f;
+
+    // filter parameters
+    private static final double GYRO_NOISE_DEVIANCE = 0.01; // rad/s
+    private static final double GYRO_BIAS_DEVIANCE = 0.001; // rad/s^2
+    private static final double ROTATION_VECTOR_DEVIANCE = 0.05; // rad
+    private static final double INNOVATION_GATE = 16.27; // chi-square 3 dof, p = 0.999
+    private static final double INITIAL_ATTITUDE_DEVIANCE = 0.1; // rad
+    private static final double INITIAL_BIAS_DEVIANCE = 0.05; // rad/s
+    // filter is reset to rotation vector after so many rejected measurements in a row while device is slow
+    private static final int RESET_REJECTIONS = 50;
+    private static final double RESET_MAX_ROTATION_VELOCITY = 3; // rad/s
+
+    private RotationVector rotationVector;
+    private Gyroscope gyroscope;
+
+    private SensorManager sensorManager;
+    private WindowManager windowManager;
+
+    private final ErrorStateAttitudeFilter filter = createFilter();
+    private long timestamp = 0;
+    private double gyroscopeRotationVelocity = 0;
+
+    private final MatrixF4x4 currentOrientationRotationMatrix = new MatrixF4x4();
+    private final float[] adjustedRotationMatrix = new float[16];
+    private final float[] temporaryQuaternion = new float[4];
+    private final float[] rotationVectorValues = new float[4];
+    private final float[] angles = new float[3];
+    private float[] orientationAngles = new float[3];
+
+    public ErrorStateDeviceAttitudeEstimator(Context context) {
+        super();
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        rotationVector = new RotationVector(context);
+        rotationVector.addSensorValuesCaptureListener(this);
+        gyroscope = new Gyroscope(context);
+        gyroscope.addSensorValuesCaptureListener(this);
+    }
+
+    public ErrorStateDeviceAttitudeEstimator(Context context, Handler handler) {
+        super(handler);
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        rotationVector = new RotationVector(context, handler);
+        rotationVector.addSensorValuesCaptureListener(this);
+        gyroscope = new Gyroscope(context, handler);
+        gyroscope.addSensorValuesCaptureListener(this);
+    }
+
+    // filter with parameters of this estimator
+    public static ErrorStateAttitudeFilter createFilter() {
+        return new ErrorStateAttitudeFilter(GYRO_NOISE_DEVIANCE, GYRO_BIAS_DEVIANCE, ROTATION_VECTOR_DEVIANCE,
+                INNOVATION_GATE);
+    }
+
+    // rotation vector quaternion w, x, y, z initializes filter or corrects it. Filter is reset to it after
+    // RESET_REJECTIONS rejected measurements in a row while device rotates slowly; returns true on reset
+    public static boolean correct(ErrorStateAttitudeFilter filter, float[] quaternion, double gyroRotationVelocity) {
+        if (filter.isInitialized()) {
+            filter.correct(quaternion[0], quaternion[1], quaternion[2], quaternion[3]);
+            if (filter.getConsecutiveRejections() <= RESET_REJECTIONS
+                    || gyroRotationVelocity >= RESET_MAX_ROTATION_VELOCITY) {
+                return false;
+            }
+        }
+        filter.init(quaternion[0], quaternion[1], quaternion[2], quaternion[3], INITIAL_ATTITUDE_DEVIANCE,
+                INITIAL_BIAS_DEVIANCE);
+        return true;
+    }
+
+    public void getRotationMatrix(MatrixF4x4 matrix) {
+        matrix.set(currentOrientationRotationMatrix);
+    }
+
+    // in the same (inverted w) convention as FusionDeviceAttitudeEstimator.getQuaternion
+    public void getQuaternion(Quaternion quaternion) {
+        quaternion.setXYZW((float) filter.getX(), (float) filter.getY(), (float) filter.getZ(),
+                (float) -filter.getW());
+    }
+
+    public void getEulerAngles(float angles[]) {
+        SensorManager.getOrientation(currentOrientationRotationMatrix.matrix, angles);
+    }
+
+    // estimated gyroscope bias, rad/s
+    public void getGyroBias(float[] bias) {
+        bias[0] = (float) filter.getBiasX();
+        bias[1] = (float) filter.getBiasY();
+        bias[2] = (float) filter.getBiasZ();
+    }
+
+    public long getRejectedMeasurements() {
+        return filter.getRejectedMeasurements();
+    }
+
+    @Override
+    public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
+        if (sensorType == SensorTypes.ORIENTATION_ROTATION_VECTOR) {
+            // w, x, y, z
+            SensorManager.getQuaternionFromVector(temporaryQuaternion, values);
+            boolean initialized = filter.isInitialized();
+            if (correct(filter, temporaryQuaternion, gyroscopeRotationVelocity) && initialized) {
+                Log.d(TAG, "Rotation vector is rejected too long. Resetting filter to rotation-vector value.");
+            }
+
+        } else if (sensorType == SensorTypes.GYROSCOPE_ANGLE_VELOCITY) {
+            if (timestamp != 0 && filter.isInitialized()) {
+                final float dT = (timeNanos - timestamp) * NS2S;
+                gyroscopeRotationVelocity = Math.sqrt(values[0] * values[0] + values[1] * values[1]
+                        + values[2] * values[2]);
+                filter.predict(values[0], values[1], values[2], dT);
+                updateOrientation();
+                notifyAllSensorValuesCaptureListeners(orientationAngles, SensorTypes.ORIENTATION_ROTATION_ANGLES,
+                        timeNanos);
+            }
+            timestamp = timeNanos;
+        }
+    }
+
+    private void updateOrientation() {
+        rotationVectorValues[0] = (float) filter.getX();
+        rotationVectorValues[1] = (float) filter.getY();
+        rotationVectorValues[2] = (float) filter.getZ();
+        rotationVectorValues[3] = (float) filter.getW();
+        SensorManager.getRotationMatrixFromVector(currentOrientationRotationMatrix.matrix, rotationVectorValues);
+
+        int worldAxisForDeviceAxisX;
+        int worldAxisForDeviceAxisY;
+        // Remap the matrix based on current device/activity rotation
+        // for vertical portrait device (device ax Y = Earth ax Z) as default
+        switch (windowManager.getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                worldAxisForDeviceAxisX = SensorManager.AXIS_Z;
+                worldAxisForDeviceAxisY = SensorManager.AXIS_MINUS_X;
+                break;
+            case Surface.ROTATION_180:
+                worldAxisForDeviceAxisX = SensorManager.AXIS_MINUS_X;
+                worldAxisForDeviceAxisY = SensorManager.AXIS_MINUS_Z;
+                break;
+            case Surface.ROTATION_270:
+                worldAxisForDeviceAxisX = SensorManager.AXIS_MINUS_Z;
+                worldAxisForDeviceAxisY = SensorManager.AXIS_X;
+                break;
+            case Surface.ROTATION_0:
+            default:
+                worldAxisForDeviceAxisX = SensorManager.AXIS_X;
+                worldAxisForDeviceAxisY = SensorManager.AXIS_Z;
+                break;
+        }
+
+        SensorManager.remapCoordinateSystem(currentOrientationRotationMatrix.matrix, worldAxisForDeviceAxisX,
+                worldAxisForDeviceAxisY, adjustedRotationMatrix);
+        SensorManager.getOrientation(adjustedRotationMatrix, angles);
+
+        // convert to degrees
+        orientationAngles[1] = (float) Math.toDegrees(angles[1]);
+        orientationAngles[2] = (float) Math.toDegrees(angles[2]);
+        orientationAngles[0] = ((float) Math.toDegrees(angles[0]) + 360f) % 360f; // scale to 0-360 deg
+    }
+
+    public static String toString(float[] values) {
+        return String.format(Locale.ENGLISH, TAG + ": azimuth(ovZ)=%1$.1f pitch(ovX)=%2$.1f roll(ovY)=%3$.1f",
+                values[0], values[1], values[2]);
+    }
+
+    @Override
+    public void start() {
+        if (gyroscope != null) {
+            gyroscope.start();
+        }
+        if (rotationVector != null) {
+            rotationVector.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (gyroscope != null) {
+            gyroscope.stop();
+        }
+        if (rotationVector != null) {
+            rotationVector.stop();
+        }
+    }
+}
@@ -85,25 +85,6 @@ public class FusionDeviceAttitudeEstimator extends VirtualSensor implements Virt
      */
     private static final float NS2S = 1.0f / 1000000000.0f;
 
-    /**
-     * The quaternion that stores the difference that is obtained by the gyroscope.
-     * Basically it contains a rotational difference encoded into a quaternion.
-     * <p>
-     * To obtain the absolute orientation one must add this into an initial position by
-     * multiplying it with another quaternion
-     */
-    private final Quaternion deltaQuaternion = new Quaternion();
-
-    /**
-     * The Quaternions that contain the current rotation (Angle and axis in Quaternion format) of the Gyroscope
-     */
-    private Quaternion quaternionGyroscope = new Quaternion();
-
-    /**
-     * The quaternion that contains the absolute orientation as obtained by the rotationVector sensor.
-     */
-    private Quaternion quaternionRotationVector = new Quaternion();
-
     /**
      * The time-stamp being used to record the time when the last gyroscope event occurred.
      */
@@ -119,30 +100,6 @@ public class FusionDeviceAttitudeEstimator extends VirtualSensor implements Virt
      */
     private static final double EPSILON = 0.05f;
 
-    /**
-     * Value giving the total velocity of the gyroscope (will be high, when the device is moving fast and low when
-     * the device is standing still). This is usually a value between 0 and 10 for normal motion. Heavy shaking can
-     * increase it to about 25. Keep in mind, that these values are time-depended, so changing the sampling rate of
-     * the sensor will affect this value!
-     */
-    private double gyroscopeRotationVelocity = 0;
-
-    /**
-     * Flag indicating, whether the orientations were initialised from the rotation vector or not. If false, the
-     * gyroscope can not be used (since it's only meaningful to calculate differences from an initial state). If
-     * true,
-     * the gyroscope can be used normally.
-     */
-    private boolean positionInitialised = false;
-
-    /**
-     * Counter that sums the number of consecutive frames, where the rotationVector and the gyroscope were
-     * significantly different (and the dot-product was smaller than 0.7). This event can either happen when the
-     * angles of the rotation vector explode (e.g. during fast tilting) or when the device was shaken heavily and
-     * the gyroscope is now completely off.
-     */
-    private int panicCounter;
-
     /**
      * This weight determines directly how much the rotation sensor will be used to correct (in
      * Sensor-fusion-scenario 1 - SensorSelection.GyroscopeAndRotationVector). Must be a value between 0 and 1.
@@ -195,12 +152,26 @@ public class FusionDeviceAttitudeEstimator extends VirtualSensor implements Virt
      */
     private static final int PANIC_THRESHOLD = 5;
 
+    /**
+     * Panic reset is delayed while device rotates faster (user is still shaking the device), rad/s
+     */
+    private static final double PANIC_MAX_ROTATION_VELOCITY = 3;
+
+    /**
+     * Fixed-weight fusion with parameters of this estimator
+     */
+    public static BlendAttitudeFilter createFilter() {
+        return new BlendAttitudeFilter(EPSILON, DIRECT_INTERPOLATION_WEIGHT, OUTLIER_THRESHOLD, PANIC_THRESHOLD,
+                PANIC_MAX_ROTATION_VELOCITY);
+    }
+
+    private final BlendAttitudeFilter filter = createFilter();
+
     /**
      * Some temporary variables to save allocations
      */
     final private float[] temporaryQuaternion = new float[4];
     final private Quaternion correctedQuaternion = new Quaternion();
-    final private Quaternion interpolatedQuaternion = new Quaternion();
 
     @Override
     public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
@@ -208,101 +179,27 @@ public class FusionDeviceAttitudeEstimator extends VirtualSensor implements Virt
             // Process rotation vector (just safe it)
             // Calculate angle. Starting with API_18, Android will provide this value as event.values[3], but if not, we have to calculate it manually.
             SensorManager.getQuaternionFromVector(temporaryQuaternion, values);
-            // Store in quaternion
-            quaternionRotationVector.setXYZW(temporaryQuaternion[1], temporaryQuaternion[2], temporaryQuaternion[3], -temporaryQuaternion[0]);
-            if (!positionInitialised) {
-                // Override
-                quaternionGyroscope.set(quaternionRotationVector);
-                positionInitialised = true;
-            }
+            filter.setRotationVector(temporaryQuaternion[0], temporaryQuaternion[1], temporaryQuaternion[2],
+                    temporaryQuaternion[3]);
 
         } else if (sensorType == SensorTypes.GYROSCOPE_ANGLE_VELOCITY) {
             // Process Gyroscope and perform fusion
-
-            // This timestep's delta rotation to be multiplied by the current rotation
-            // after computing it from the gyro sample data.
             if (timeNanos != 0) {
                 // freq = (count++) / ((thisTimestamp - initTimestamp) * NS2S);
                 // dt = 1.0f / freq; // more stability
                 final float dT = (timeNanos - this.timestamp) * NS2S;
-                // Axis of the rotation sample, not normalized yet.
-                float axisX = values[0];
-                float axisY = values[1];
-                float axisZ = values[2];
-
-                // Calculate the angular speed of the sample
-                gyroscopeRotationVelocity = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
-
-                // Normalize the rotation vector if it's big enough to get the axis
-                if (gyroscopeRotationVelocity > EPSILON) {
-                    axisX /= gyroscopeRotationVelocity;
-                    axisY /= gyroscopeRotationVelocity;
-                    axisZ /= gyroscopeRotationVelocity;
-                }
-
-                // Integrate around this axis with the angular speed by the timestep
-                // in order to get a delta rotation from this sample over the timestep
-                // We will convert this axis-angle representation of the delta rotation
-                // into a quaternion before turning it into the rotation matrix.
-                double thetaOverTwo = gyroscopeRotationVelocity * dT / 2.0f;
-                double sinThetaOverTwo = Math.sin(thetaOverTwo);
-                double cosThetaOverTwo = Math.cos(thetaOverTwo);
-                deltaQuaternion.setX((float) (sinThetaOverTwo * axisX));
-                deltaQuaternion.setY((float) (sinThetaOverTwo * axisY));
-                deltaQuaternion.setZ((float) (sinThetaOverTwo * axisZ));
-                deltaQuaternion.setW(-(float) cosThetaOverTwo);
-
-                // Move current gyro orientation
-                deltaQuaternion.multiplyByQuat(quaternionGyroscope, quaternionGyroscope);
-
-                // Calculate dot-product to calculate whether the two orientation sensors have diverged
-                // (if the dot-product is closer to 0 than to 1), because it should be close to 1 if both are the same.
-                float dotProd = quaternionGyroscope.dotProduct(quaternionRotationVector);
-
-                // If they have diverged, rely on gyroscope only (this happens on some devices when the rotation vector "jumps").
-                if (Math.abs(dotProd) < OUTLIER_THRESHOLD) {
-                    // Increase panic counter
-//                    if (Math.abs(dotProd) < OUTLIER_PANIC_THRESHOLD) {
-//                       panicCounter++;
-//                    }
-
-                    panicCounter++;
-                    // Directly use Gyro
-                    setOrientationQuaternionAndMatrix(quaternionGyroscope);
-
-                } else {
-                    // Both are nearly saying the same. Perform normal fusion.
-
-                    // Interpolate with a fixed weight between the two absolute quaternions obtained from gyro and rotation vector sensors
-                    // The weight should be quite low, so the rotation vector corrects the gyro only slowly, and the output keeps responsive.
-                    quaternionGyroscope.slerp(quaternionRotationVector, interpolatedQuaternion, DIRECT_INTERPOLATION_WEIGHT);
-//                    quaternionGyroscope.slerp(quaternionRotationVector, interpolatedQuaternion, (float) (INDIRECT_INTERPOLATION_WEIGHT * gyroscopeRotationVelocity));
-
-                    // Use the interpolated value between gyro and rotationVector
-                    setOrientationQuaternionAndMatrix(interpolatedQuaternion);
-                    // Override current gyroscope-orientation
-                    quaternionGyroscope.copyVec4(interpolatedQuaternion);
-                    // Reset the panic counter because both sensors are saying the same again
-                    panicCounter = 0;
-                }
-
-                if (panicCounter > PANIC_THRESHOLD) {
-                    Log.d(TAG, "Panic counter is bigger than threshold; this indicates a Gyroscope failure. Panic reset is imminent.");
-
-                    if (gyroscopeRotationVelocity < 3) {
-                        Log.d(TAG, "Performing Panic-reset. Resetting orientation to rotation-vector value.");
-
-                        // Manually set position to whatever rotation vector says.
-                        setOrientationQuaternionAndMatrix(quaternionRotationVector);
-                        // Override current gyroscope-orientation with corrected value
-                        quaternionGyroscope.copyVec4(quaternionRotationVector);
-                        panicCounter = 0;
-                    } else {
+                switch (filter.fuseGyroscope(values[0], values[1], values[2], dT)) {
+                    case BlendAttitudeFilter.PANIC_RESET:
+                        Log.d(TAG, "Panic counter is bigger than threshold; this indicates a Gyroscope failure. "
+                                + "Orientation is reset to rotation-vector value.");
+                        break;
+                    case BlendAttitudeFilter.PANIC_RESET_DELAYED:
                         Log.d(TAG, String.format(
                                 "Panic reset delayed due to ongoing motion (user is still shaking the device). Gyroscope Velocity: %.2f > 3",
-                                gyroscopeRotationVelocity));
-                    }
+                                filter.getRotationVelocity()));
+                        break;
                 }
+                setOrientationQuaternionAndMatrix(filter.getOrientation());
             }
             this.timestamp = timeNanos;
 
@@ -59,9 +59,9 @@ public class RotationVector extends VirtualSensor implements SensorEventListener
     public void start() {
         stop();
         if (handler != null) {
-            sensorManager.registerListener(this, sensor, sampleRatePeriodTimeMicros, handler);
+            sensorManager.registerListener(this, sensor, sampleRatePeriodTimeMicros, maxReportLatencyMicros, handler);
         } else {
-            sensorManager.registerListener(this, sensor, sampleRatePeriodTimeMicros);
+            sensorManager.registerListener(this, sensor, sampleRatePeriodTimeMicros, maxReportLatencyMicros);
         }
     }
 
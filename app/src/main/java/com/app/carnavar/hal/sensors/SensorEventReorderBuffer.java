@@ -0,0 +1,196 @@
+package com.app.carnavar.hal.sensors;
+
+import com.app.carnavar.hal.sensors.VirtualSensor.SensorListener;
+
+// merges batched sensor streams back into hardware timestamp order.
+// Every stream is ordered by itself, so event is released when all streams have passed its timestamp.
+// Stream that hasn't started yet or stops reporting can't hold events longer than maxHoldNanos after newest timestamp.
+// Storage is preallocated, not thread safe: all offers must come from one (sensors handler) thread
+public class SensorEventReorderBuffer {
+
+    public static final int MAX_VALUES = 4;
+
+    private final SensorListener output;
+    private final long maxHoldNanos;
+    private final int capacity;
+
+    // slots
+    private final float[] values;
+    private final int[] valuesLengths;
+    private final int[] sensorTypes;
+    private final long[] timestamps;
+    private final long[] arrivals; // keeps arrival order for equal timestamps
+    private final int[] freeSlots;
+    private int freeCount;
+
+    // min-heap of slots by (timestamp, arrival)
+    private final int[] heap;
+    private int heapSize = 0;
+
+    private final long[] streamLastTimestamps;
+    private final boolean[] streamStarted;
+    private long newestTimestamp = Long.MIN_VALUE;
+    private long arrivalCounter = 0;
+
+    private final float[][] outputValues = new float[MAX_VALUES + 1][]; // by length
+
+    private long reorderedEvents = 0; // released in other order than arrived
+    private long overflowEvents = 0; // released early because buffer was full
+    private long lastReleasedArrival = -1;
+
+    public SensorEventReorderBuffer(int streams, int capacity, long maxHoldNanos, SensorListener output) {
+        this.output = output;
+        this.capacity = capacity;
+        this.maxHoldNanos = maxHoldNanos;
+        values = new float[capacity * MAX_VALUES];
+        valuesLengths = new int[capacity];
+        sensorTypes = new int[capacity];
+        timestamps = new long[capacity];
+        arrivals = new long[capacity];
+        freeSlots = new int[capacity];
+        heap = new int[capacity];
+        streamLastTimestamps = new long[streams];
+        streamStarted = new boolean[streams];
+        for (int i = 0; i < capacity; ++i) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+        for (int i = 1; i <= MAX_VALUES; ++i) {
+            outputValues[i] = new float[i];
+        }
+    }
+
+    // stream - index of source sensor in [0, streams), every stream is expected to report
+    public void offer(int stream, float[] eventValues, int sensorType, long timeNanos) {
+        if (freeCount == 0) {
+            ++overflowEvents;
+            releaseTop();
+        }
+        int slot = freeSlots[--freeCount];
+        int n = Math.min(eventValues.length, MAX_VALUES);
+        System.arraycopy(eventValues, 0, values, slot * MAX_VALUES, n);
+        valuesLengths[slot] = n;
+        sensorTypes[slot] = sensorType;
+        timestamps[slot] = timeNanos;
+        arrivals[slot] = arrivalCounter++;
+        heapPush(slot);
+
+        if (!streamStarted[stream] || timeNanos > streamLastTimestamps[stream]) {
+            streamLastTimestamps[stream] = timeNanos;
+        }
+        streamStarted[stream] = true;
+        if (timeNanos > newestTimestamp) {
+            newestTimestamp = timeNanos;
+        }
+        release(watermark());
+    }
+
+    // releases all buffered events, e.g. before sensors are stopped
+    public void flush() {
+        while (heapSize > 0) {
+            releaseTop();
+        }
+    }
+
+    public void clear() {
+        heapSize = 0;
+        freeCount = capacity;
+        for (int i = 0; i < capacity; ++i) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        for (int i = 0; i < streamStarted.length; ++i) {
+            streamStarted[i] = false;
+        }
+        newestTimestamp = Long.MIN_VALUE;
+        lastReleasedArrival = -1;
+    }
+
+    public int size() {
+        return heapSize;
+    }
+
+    public long getReorderedEvents() {
+        return reorderedEvents;
+    }
+
+    public long getOverflowEvents() {
+        return overflowEvents;
+    }
+
+    // events up to this timestamp can't be preceded by later arrivals
+    private long watermark() {
+        long watermark = Long.MAX_VALUE;
+        for (int i = 0; i < streamStarted.length; ++i) {
+            if (!streamStarted[i]) {
+                watermark = Long.MIN_VALUE;
+                break;
+            }
+            if (streamLastTimestamps[i] < watermark) {
+                watermark = streamLastTimestamps[i];
+            }
+        }
+        return Math.max(watermark, newestTimestamp - maxHoldNanos);
+    }
+
+    private void release(long watermark) {
+        while (heapSize > 0 && timestamps[heap[0]] <= watermark) {
+            releaseTop();
+        }
+    }
+
+    private void releaseTop() {
+        int slot = heapPop();
+        int n = valuesLengths[slot];
+        float[] out = outputValues[n];
+        System.arraycopy(values, slot * MAX_VALUES, out, 0, n);
+        if (arrivals[slot] < lastReleasedArrival) {
+            ++reorderedEvents;
+        } else {
+            lastReleasedArrival = arrivals[slot];
+        }
+        freeSlots[freeCount++] = slot;
+        output.onSensorValuesCaptured(out, sensorTypes[slot], timestamps[slot]);
+    }
+
+    private boolean less(int slotA, int slotB) {
+        return timestamps[slotA] < timestamps[slotB]
+                || (timestamps[slotA] == timestamps[slotB] && arrivals[slotA] < arrivals[slotB]);
+    }
+
+    private void heapPush(int slot) {
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!less(slot, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = slot;
+    }
+
+    private int heapPop() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && less(heap[child + 1], heap[child])) {
+                ++child;
+            }
+            if (!less(heap[child], last)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (heapSize > 0) {
+            heap[i] = last;
+        }
+        return top;
+    }
+}
@@ -2,40 +2,107 @@ package com.app.carnavar.hal.sensors;
 
 import android.os.Handler;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class VirtualSensor {
 
     public static final String TAG = VirtualSensor.class.getSimpleName();
 
-    private List<SensorListener> sensorListeners = new ArrayList<>();
+    private static final SensorListener[] NO_LISTENERS = new SensorListener[0];
+    private static final int SAMPLE_POOL_SIZE = 16; // power of 2
+
+    // copy-on-write: notify reads snapshot without locking, add/remove replace the array
+    private volatile SensorListener[] sensorListeners = NO_LISTENERS;
+
+    // samples passed to listeners, slot = sequence % SAMPLE_POOL_SIZE.
+    // Pool only keeps re-entrant notifications (listener that notifies this sensor again) from overwriting
+    // sample of outer call, it doesn't extend lifetime of samples, see SensorListener
+    private final SensorSample[] samplePool = new SensorSample[SAMPLE_POOL_SIZE];
+    private final AtomicLong sampleSequence = new AtomicLong();
 
     protected float[] rawValues = null;
     protected int sampleRatePeriodTimeMicros = 100_000; // SensorManager.SENSOR_DELAY_GAME=20000 SENSOR_DELAY_FASTEST=0:
+    // > 0 enables hardware fifo batching: events are delivered in bursts, hardware timestamps stay correct
+    protected int maxReportLatencyMicros = 0;
 
     protected Handler handler = null;
 
+    // Listeners are called on the notifying (sensor handler) thread. values array and SensorSample are owned by
+    // the sensor and are valid only until listener returns: they are reused for later samples without any
+    // synchronization. Listener which keeps values or passes them to another thread must copy them first,
+    // as GpsImuService copies into ImuSampleRing and SensorEventReorderBuffer copies into its slots
     public interface SensorListener {
         void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos); // timeNanos ref -> SystemClock.elapsedRealtimeNanos()
+
+        // override to get sequence number of sample
+        default void onSensorSampleCaptured(SensorSample sample) {
+            onSensorValuesCaptured(sample.values, sample.sensorType, sample.timeNanos);
+        }
+    }
+
+    public static class SensorSample {
+        public float[] values;
+        public int sensorType;
+        public long timeNanos;
+        public long sequence; // increases by 1 on every notification of this sensor
+
+        SensorSample(int valuesLength) {
+            values = new float[valuesLength];
+        }
     }
 
     public synchronized void addSensorValuesCaptureListener(SensorListener sensorListener) {
-        if (sensorListener != null && !sensorListeners.contains(sensorListener)) {
-            sensorListeners.add(sensorListener);
+        if (sensorListener == null) {
+            return;
+        }
+        SensorListener[] listeners = sensorListeners;
+        for (SensorListener listener : listeners) {
+            if (listener == sensorListener) {
+                return;
+            }
         }
+        SensorListener[] newListeners = new SensorListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = sensorListener;
+        sensorListeners = newListeners;
     }
 
     public synchronized void removeSensorValuesCaptureListener(SensorListener sensorListener) {
-        if (sensorListener != null && sensorListeners.size() > 0) {
-            sensorListeners.remove(sensorListener);
+        SensorListener[] listeners = sensorListeners;
+        for (int i = 0; i < listeners.length; ++i) {
+            if (listeners[i] == sensorListener) {
+                SensorListener[] newListeners = listeners.length == 1 ? NO_LISTENERS
+                        : new SensorListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                sensorListeners = newListeners;
+                return;
+            }
         }
     }
 
-    public synchronized void notifyAllSensorValuesCaptureListeners(float[] values, int sensorType, long timeNanos) {
-        for (SensorListener sensorListener : sensorListeners) {
-            sensorListener.onSensorValuesCaptured(values, sensorType, timeNanos);
+    // lock-free, allocates only when pool slot is used first time or values length is changed
+    public void notifyAllSensorValuesCaptureListeners(float[] values, int sensorType, long timeNanos) {
+        long sequence = sampleSequence.getAndIncrement();
+        int slot = (int) (sequence & (SAMPLE_POOL_SIZE - 1));
+        SensorSample sample = samplePool[slot];
+        if (sample == null || sample.values.length != values.length) {
+            sample = new SensorSample(values.length);
+            samplePool[slot] = sample;
         }
+        System.arraycopy(values, 0, sample.values, 0, values.length);
+        sample.sensorType = sensorType;
+        sample.timeNanos = timeNanos;
+        sample.sequence = sequence;
+
+        SensorListener[] listeners = sensorListeners;
+        for (SensorListener sensorListener : listeners) {
+            sensorListener.onSensorSampleCaptured(sample);
+        }
+    }
+
+    public long getSamplesCount() {
+        return sampleSequence.get();
     }
 
     public VirtualSensor() {
@@ -50,6 +117,28 @@ public abstract class VirtualSensor {
         this.sampleRatePeriodTimeMicros = sampleRatePeriodTimeMicros;
     }
 
+    // takes effect on next start()
+    public void setSampleRatePeriodTimeMicros(int sampleRatePeriodTimeMicros) {
+        this.sampleRatePeriodTimeMicros = Math.max(0, sampleRatePeriodTimeMicros);
+    }
+
+    public int getSampleRatePeriodTimeMicros() {
+        return sampleRatePeriodTimeMicros;
+    }
+
+    // takes effect on next start()
+    public void setMaxReportLatencyMicros(int maxReportLatencyMicros) {
+        this.maxReportLatencyMicros = Math.max(0, maxReportLatencyMicros);
+    }
+
+    public int getMaxReportLatencyMicros() {
+        return maxReportLatencyMicros;
+    }
+
+    public boolean isBatching() {
+        return maxReportLatencyMicros > 0;
+    }
+
     public float[] getRawValues() {
         return rawValues;
     }
@@ -0,0 +1,95 @@
+package com.app.carnavar.services.gpsimu;
+
+import android.hardware.GeomagneticField;
+
+// caches GeomagneticField (declination) for coarse lat/lng/alt grid cell and day,
+// field is rebuilt only when location leaves the cell or day is changed.
+// Cell is left only when location is farther than edge margin from it, so location jittering
+// on cell border doesn't rebuild field on every fix.
+// update() only checks the cell, field model is evaluated by rebuild() which should be posted as
+// separate task, so sensor callback isn't delayed by it.
+// Not thread safe, is used from imu thread only
+public class GeomagneticFieldCache {
+
+    public static final double DEFAULT_CELL_SIZE_DEG = 0.1; // ~11 km by latitude
+    public static final double DEFAULT_CELL_ALTITUDE_M = 1000;
+    public static final double DEFAULT_EDGE_MARGIN = 0.1; // of cell size
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final double cellSizeDeg;
+    private final double cellAltitudeM;
+    private final double edgeMargin;
+
+    private GeomagneticField geomagneticField = null;
+    private boolean hasCell = false;
+    private long latCell, lngCell, altCell, dayBucket;
+    // location of last miss, field is built for it
+    private double lat, lng, alt;
+    private long timestampMillis;
+
+    private volatile long hits = 0;
+    private volatile long misses = 0;
+
+    public GeomagneticFieldCache() {
+        this(DEFAULT_CELL_SIZE_DEG, DEFAULT_CELL_ALTITUDE_M, DEFAULT_EDGE_MARGIN);
+    }
+
+    public GeomagneticFieldCache(double cellSizeDeg, double cellAltitudeM, double edgeMargin) {
+        this.cellSizeDeg = cellSizeDeg;
+        this.cellAltitudeM = cellAltitudeM;
+        this.edgeMargin = edgeMargin;
+    }
+
+    // true if value is inside cell extended by edge margin
+    private boolean isInCell(double value, long cell, double cellSize) {
+        double margin = cellSize * edgeMargin;
+        return value >= cell * cellSize - margin && value < (cell + 1) * cellSize + margin;
+    }
+
+    // returns true if location left the cell or day is changed (cache miss), then rebuild() should be called
+    public boolean update(double lat, double lng, double alt, long timestampMillis) {
+        long day = Math.floorDiv(timestampMillis, DAY_MILLIS);
+        if (hasCell && day == dayBucket && isInCell(lat, latCell, cellSizeDeg)
+                && isInCell(lng, lngCell, cellSizeDeg) && isInCell(alt, altCell, cellAltitudeM)) {
+            //noinspection NonAtomicOperationOnVolatileField
+            ++hits;
+            return false;
+        }
+
+        //noinspection NonAtomicOperationOnVolatileField
+        ++misses;
+        hasCell = true;
+        latCell = (long) Math.floor(lat / cellSizeDeg);
+        lngCell = (long) Math.floor(lng / cellSizeDeg);
+        altCell = (long) Math.floor(alt / cellAltitudeM);
+        dayBucket = day;
+        this.lat = lat;
+        this.lng = lng;
+        this.alt = alt;
+        this.timestampMillis = timestampMillis;
+        return true;
+    }
+
+    // builds field for location of last cache miss, then getGeomagneticField() returns new instance
+    public GeomagneticField rebuild() {
+        geomagneticField = new GeomagneticField((float) lat, (float) lng, (float) alt, timestampMillis);
+        return geomagneticField;
+    }
+
+    public GeomagneticField getGeomagneticField() {
+        return geomagneticField;
+    }
+
+    public void clear() {
+        geomagneticField = null;
+        hasCell = false;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+}
@@ -8,16 +8,23 @@ import android.os.Process;
 import android.util.Log;
 
 import com.app.carnavar.hal.location.KalmanGpsImuFusionEngine;
+import com.app.carnavar.hal.location.ProcessNoiseModels;
 import com.app.carnavar.services.gpsimu.GpsImuServiceInterfaces.GpsLocationListener;
+import com.app.carnavar.utils.filters.KalmanFilter;
 import com.app.carnavar.utils.android.TimeUtils;
 import com.app.carnavar.utils.maps.MapsUtils;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class GpsImuFusionLocationThread extends HandlerThread {
 
     public static final String TAG = GpsImuFusionLocationThread.class.getSimpleName();
 
     private static boolean useGpsSpeed = false;
 
+    private static final int PREDICT_QUEUE_CAPACITY = 256;
+    private static final int DEFAULT_PREDICT_WINDOW = 5; // imu samples per one predict
+
     private Context context;
     private Handler handler;
 
@@ -26,8 +33,24 @@ public class GpsImuFusionLocationThread extends HandlerThread {
 
     private volatile Location lastLocation = null;
 
+    // while vehicle is standing imu predicts aren't posted, zero-velocity updates keep filter still
+    // and only first fused location of the stop is published
+    private static final double ZERO_VELOCITY_VARIANCE = 0.01; // (m/s)^2
+    private volatile boolean stationary = false;
+    private boolean stationaryLocationPublished = false;
+    private volatile long suppressedLocations = 0;
+
     private GpsLocationListener gpsLocationListener;
 
+    private final ImuPredictQueue predictQueue = new ImuPredictQueue(PREDICT_QUEUE_CAPACITY, DEFAULT_PREDICT_WINDOW);
+    private final AtomicBoolean predictDrainPosted = new AtomicBoolean(false);
+    private final ImuPredictQueue.PredictConsumer predictConsumer = (xAcceleration, yAcceleration, timeMillis) ->
+            kalmanGpsImuFusionEngine.predict(xAcceleration, yAcceleration, timeMillis);
+    private final Runnable predictDrainTask = () -> {
+        predictDrainPosted.set(false);
+        predictQueue.drainTo(predictConsumer);
+    };
+
     public void setGpsLocationListener(GpsLocationListener gpsLocationListener) {
         this.gpsLocationListener = gpsLocationListener;
     }
@@ -66,20 +89,61 @@ public class GpsImuFusionLocationThread extends HandlerThread {
             double yVel = speed * Math.sin(bearing);
             double posVar = location.getAccuracy();
             long timeMillis = TimeUtils.nanos2millis(location.getElapsedRealtimeNanos());
+            predictQueue.clear();
             kalmanGpsImuFusionEngine.init(x, y, xVel, yVel, posVar, timeMillis);
             isInitialized = true;
         });
     }
 
+    // samples are coalesced: one predict per window of samples (and before each gps update),
+    // handler gets one preallocated task per window instead of lambda per sample
     public void postPredictTask(double xAcceleration, double yAcceleration, long timeMillis) { // xAcc-east, yAcc-north
+        if (predictQueue.offer(xAcceleration, yAcceleration, timeMillis)
+                && predictDrainPosted.compareAndSet(false, true)) {
+            handler.post(predictDrainTask);
+        }
+    }
+
+    public void setPredictWindowSize(int samples) {
+        predictQueue.setWindowSize(samples);
+    }
+
+    public long getDroppedPredictSamples() {
+        return predictQueue.getDroppedSamples();
+    }
+
+    public long getMergedPredictSamples() {
+        return predictQueue.getMergedSamples();
+    }
+
+    public long getProcessedPredictSamples() {
+        return predictQueue.getProcessedSamples();
+    }
+
+    // called by imu thread on stop/start transitions, before samples of new state are posted
+    public void setStationary(boolean stationary) {
+        this.stationary = stationary;
+        predictQueue.restartInterval(); // predicts are suspended while stationary
+    }
+
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    public long getSuppressedLocations() {
+        return suppressedLocations;
+    }
+
+    public void postZeroVelocityTask(long timeMillis) {
         handler.post(() -> {
-//            Log.d(TAG, "predict " + xAcceleration + " " + yAcceleration + " " + timeMillis);
-            kalmanGpsImuFusionEngine.predict(xAcceleration, yAcceleration, timeMillis);
+            predictQueue.drainTo(predictConsumer); // samples posted before the stop
+            kalmanGpsImuFusionEngine.zeroVelocityUpdate(ZERO_VELOCITY_VARIANCE, timeMillis);
         });
     }
 
     public void postUpdateTask(Location location) {
         handler.post(() -> {
+            predictQueue.drainTo(predictConsumer); // apply pending imu samples before the fix
             double x = MapsUtils.longitudeToMeters(location.getLongitude());
             double y = MapsUtils.latitudeToMeters(location.getLatitude());
             double speed = location.getSpeed();
@@ -95,7 +159,12 @@ public class GpsImuFusionLocationThread extends HandlerThread {
             }
             long timeMillis = TimeUtils.nanos2millis(location.getElapsedRealtimeNanos());
             //Log.d(TAG, "update " + x + " " + y + " " + speed + " " + " " + bearing + " " + xVel + " " + yVel + " " + velVar + " " + timeMillis);
-            kalmanGpsImuFusionEngine.update(x, y, xVel, yVel, posVar, velVar, timeMillis);
+            if (kalmanGpsImuFusionEngine.update(x, y, xVel, yVel, posVar, velVar, timeMillis)
+                    != KalmanFilter.UPDATE_OK) {
+                Log.e(TAG, "Kalman innovation covariance is not positive-definite. Reset it!");
+                postResetTask();
+                return;
+            }
             Location newLocation = createLocationAfterUpdate(location);
 
             // sometimes filter gives is NAN - WTF?
@@ -104,6 +173,12 @@ public class GpsImuFusionLocationThread extends HandlerThread {
                     !Double.isNaN(newLocation.getSpeed())) {
                 if (newLocation.getLatitude() != 0 && newLocation.getLongitude() != 0) {
                     lastLocation = newLocation;
+                    if (stationary && stationaryLocationPublished) {
+                        //noinspection NonAtomicOperationOnVolatileField
+                        ++suppressedLocations; // clients keep location of the stop
+                        return;
+                    }
+                    stationaryLocationPublished = stationary;
                     if (gpsLocationListener != null) {
                         gpsLocationListener.onGpsLocationReturned(newLocation);
                     }
@@ -171,8 +246,13 @@ public class GpsImuFusionLocationThread extends HandlerThread {
             gpsImuFusionLocationThread.kalmanGpsImuFusionEngine = new KalmanGpsImuFusionEngine(KalmanGpsImuFusionEngine.KalmanOptions.Options()
                     .useGpsSpeed(useGpsSpeed) // TODO: with useGpsSpeed=true sometimes gives location incorrectly -> fix it
                     .setAccelerationDeviance(0.1f)
+                    .setProcessNoiseModel(new ProcessNoiseModels.WhiteNoiseAcceleration())
                     .setPositionVarianceMulFactor(1.0f)
                     .setVelocityVarianceMulFactor(1.0f)
+                    .useFlatMatrixStorage(true)
+                    .useJosephCovarianceUpdate(true)
+                    .useSequentialUpdate(true)
+                    .setStateHistorySize(256) // ~6 sec of coalesced predicts for late gps fixes
             );
         });
     }
@@ -195,4 +275,10 @@ public class GpsImuFusionLocationThread extends HandlerThread {
     public Location getLastLocation() {
         return lastLocation;
     }
+
+    // speed of last fused location, m/s; NaN before first fix
+    public double getFusedSpeed() {
+        Location location = lastLocation;
+        return location != null ? location.getSpeed() : Double.NaN;
+    }
 }
@@ -2,7 +2,6 @@ package com.app.carnavar.services.gpsimu;
 
 import android.app.Service;
 import android.content.Intent;
-import android.hardware.GeomagneticField;
 import android.location.Location;
 import android.os.Binder;
 import android.os.Handler;
@@ -19,6 +18,7 @@ import com.app.carnavar.utils.maps.MapsUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GpsImuService extends Service {
 
@@ -32,21 +32,98 @@ public class GpsImuService extends Service {
 
     private Handler clientHandler;
 
+    private static final int IMU_RING_CAPACITY = 512;
+    private static final long ZERO_VELOCITY_PERIOD_NANOS = 200_000_000L; // zero-velocity updates rate while standing
+
     private List<ImuListener> imuListenerList = new ArrayList<>();
+    private volatile int imuListenersCount = 0;
     private List<GpsLocationListener> gpsLocationListenerList = new ArrayList<>();
 
+    // imu thread is producer; registered listeners (drained on client thread) and every polling client
+    // have own ring, so ring is never read by two consumers
+    private final ImuSampleFanout imuSampleFanout = new ImuSampleFanout();
+    private ImuSampleRing listenersImuSampleRing = null; // client thread only
+    // used from imu thread only
+    private final GeomagneticFieldCache geomagneticFieldCache = new GeomagneticFieldCache();
+    private final SensorRateGovernor sensorRateGovernor = new SensorRateGovernor();
+    private long lastZeroVelocityNanos = Long.MIN_VALUE;
+    private volatile boolean stationary = false;
+    private final AtomicBoolean clientImuDrainPosted = new AtomicBoolean(false);
+    private final ImuListener clientImuNotifier = this::notifyAllImuListeners;
+    private final Runnable clientImuDrainTask = () -> {
+        clientImuDrainPosted.set(false);
+        if (listenersImuSampleRing != null) {
+            listenersImuSampleRing.drainTo(clientImuNotifier);
+        }
+    };
+
+    // register/unregister from client (main) thread
     public void registerImuListener(ImuListener imuListener) {
         if (!imuListenerList.contains(imuListener)) {
             imuListenerList.add(imuListener);
+            if (listenersImuSampleRing == null) {
+                listenersImuSampleRing = imuSampleFanout.open(IMU_RING_CAPACITY);
+            }
+            imuListenersCount = imuListenerList.size();
         }
     }
 
     public void unregisterImuListener(ImuListener imuListener) {
-        if (imuListenerList.size() > 0) {
-            imuListenerList.remove(imuListener);
+        if (imuListenerList.remove(imuListener)) {
+            imuListenersCount = imuListenerList.size();
+            if (imuListenerList.isEmpty() && listenersImuSampleRing != null) {
+                imuSampleFanout.close(listenersImuSampleRing);
+                listenersImuSampleRing = null;
+            }
         }
     }
 
+    // for clients without registered imu listener: opened ring receives every imu sample,
+    // client drains it with ImuSampleRing.drainTo from one thread on own frame cadence and closes it when done
+    public ImuSampleRing openImuSampleRing(int capacity) {
+        return imuSampleFanout.open(capacity);
+    }
+
+    public void closeImuSampleRing(ImuSampleRing imuSampleRing) {
+        imuSampleFanout.close(imuSampleRing);
+    }
+
+    // samples dropped for registered listeners, polling clients read overruns of their own ring
+    public long getImuSampleOverruns() {
+        ImuSampleRing ring = listenersImuSampleRing;
+        return ring != null ? ring.getOverruns() : 0;
+    }
+
+    public long getGeomagneticFieldCacheHits() {
+        return geomagneticFieldCache.getHits();
+    }
+
+    public long getGeomagneticFieldCacheMisses() {
+        return geomagneticFieldCache.getMisses();
+    }
+
+    // vehicle is standing: fusion thread gets zero-velocity updates instead of imu predicts
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    // current tier of sensors sampling rate, see SensorRateGovernor.TIER_*
+    public int getSensorRateTier() {
+        return sensorRateGovernor.getTier();
+    }
+
+    public int getSensorSamplePeriodMicros() {
+        return sensorRateGovernor.getSamplePeriodMicros();
+    }
+
+    public long getSensorRateTierTimeMillis(int tier) {
+        return sensorRateGovernor.getTierTimeMillis(tier);
+    }
+
+    public long getSensorRateTierSwitches() {
+        return sensorRateGovernor.getTierSwitches();
+    }
+
     public void notifyAllImuListeners(float[] values, int sensorType, long timeNanos) {
         for (ImuListener imuListener : imuListenerList) {
             imuListener.onImuReturned(values, sensorType, timeNanos);
@@ -96,22 +173,31 @@ public class GpsImuService extends Service {
 
         imuProviderThread = ImuProviderThread.createAndStart(this.getApplicationContext());
         imuProviderThread.setImuListener((values, sensorType, timeNanos) -> {
-            publishToClients(() -> notifyAllImuListeners(values, sensorType, timeNanos));
+            // values are copied into rings, registered listeners get them with one drain task per batch
+            imuSampleFanout.offer(values, sensorType, timeNanos);
+            if (imuListenersCount > 0 && clientImuDrainPosted.compareAndSet(false, true)) {
+                publishToClients(clientImuDrainTask);
+            }
 
             if (gpsImuFusionLocationThread != null) {
                 Location lastLocation = gpsImuFusionLocationThread.getLastLocation();
-                if (lastLocation != null) {
-                    imuProviderThread.postTask(() -> {
-                        imuProviderThread.retrieveImuProvider().setGeomagneticField(new GeomagneticField(
-                                (float) lastLocation.getLatitude(),
-                                (float) lastLocation.getLongitude(),
-                                (float) lastLocation.getAltitude(),
-                                lastLocation.getTime()));
-                    });
+                if (lastLocation != null && geomagneticFieldCache.update(lastLocation.getLatitude(),
+                        lastLocation.getLongitude(), lastLocation.getAltitude(), lastLocation.getTime())) {
+                    // field model is evaluated in next imu thread task, not in this sensor callback
+                    imuProviderThread.postTask(() -> imuProviderThread.retrieveImuProvider()
+                            .setGeomagneticField(geomagneticFieldCache.rebuild()));
                 }
 
                 switch (sensorType) {
                     case SensorTypes.ORIENTATION_ROTATION_ANGLES: // orientation
+                        // is emitted on every gyroscope sample
+                        if (sensorRateGovernor.update(gpsImuFusionLocationThread.getFusedSpeed(),
+                                imuProviderThread.retrieveImuProvider().getGyroRotationVelocity(), timeNanos)) {
+                            int samplePeriodMicros = sensorRateGovernor.getSamplePeriodMicros();
+                            // sensors are re-registered outside of sensor callback
+                            imuProviderThread.postTask(() ->
+                                    imuProviderThread.retrieveImuProvider().setSensorsSampleRate(samplePeriodMicros));
+                        }
                         break;
                     case SensorTypes.ABSOLUTE_LINEAR_ACCELERATION: // abs accelerations
                         // TODO: fix NAN
@@ -120,9 +206,23 @@ public class GpsImuService extends Service {
                             return;
                         }
                         int north = 0, east = 1, up = 2;
+                        imuProviderThread.retrieveImuProvider()
+                                .setVehicleSpeed(gpsImuFusionLocationThread.getFusedSpeed());
+                        boolean isStationary = imuProviderThread.retrieveImuProvider().isStationary();
+                        if (isStationary != stationary) {
+                            stationary = isStationary;
+                            gpsImuFusionLocationThread.setStationary(isStationary);
+                            lastZeroVelocityNanos = Long.MIN_VALUE;
+                        }
                         if (gpsImuFusionLocationThread.isInitialized()) {
-                            gpsImuFusionLocationThread.postPredictTask(values[east], values[north],
-                                    TimeUtils.nanos2millis(timeNanos));
+                            if (!isStationary) {
+                                gpsImuFusionLocationThread.postPredictTask(values[east], values[north],
+                                        TimeUtils.nanos2millis(timeNanos));
+                            } else if (lastZeroVelocityNanos == Long.MIN_VALUE
+                                    || timeNanos - lastZeroVelocityNanos >= ZERO_VELOCITY_PERIOD_NANOS) {
+                                lastZeroVelocityNanos = timeNanos;
+                                gpsImuFusionLocationThread.postZeroVelocityTask(TimeUtils.nanos2millis(timeNanos));
+                            }
                         }
                         break;
                 }
@@ -0,0 +1,125 @@
+package com.app.carnavar.services.gpsimu;
+
+// coalesces imu acceleration samples for kalman predict:
+// producer (imu thread) puts samples into preallocated primitive ring buffer,
+// consumer (fusion thread) drains it and makes one predict with time-weighted mean acceleration
+public class ImuPredictQueue {
+
+    public interface PredictConsumer {
+        void predict(double xAcceleration, double yAcceleration, long timeMillis);
+    }
+
+    private final double[] xAccelerations;
+    private final double[] yAccelerations;
+    private final long[] timestamps;
+    private final long[] weights; // interval since previous offered sample, ms
+    private final int capacity;
+    private int head = 0; // oldest sample
+    private int size = 0;
+    private int windowSize;
+    private long lastTimeMillis = -1; // timestamp of last offered sample, -1 starts new interval
+
+    private long droppedSamples = 0; // overwritten by overflow
+    private long mergedSamples = 0; // folded into predict of other sample
+    private long processedSamples = 0; // drained into predicts
+    private long predicts = 0;
+
+    public ImuPredictQueue(int capacity, int windowSize) {
+        this.capacity = capacity;
+        this.windowSize = Math.max(1, Math.min(windowSize, capacity));
+        xAccelerations = new double[capacity];
+        yAccelerations = new double[capacity];
+        timestamps = new long[capacity];
+        weights = new long[capacity];
+    }
+
+    public synchronized void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(1, Math.min(windowSize, capacity));
+    }
+
+    public synchronized int getWindowSize() {
+        return windowSize;
+    }
+
+    // returns true when window is filled and queue should be drained
+    public synchronized boolean offer(double xAcceleration, double yAcceleration, long timeMillis) {
+        if (size == capacity) { // consumer is late, drop oldest
+            head = (head + 1) % capacity;
+            --size;
+            ++droppedSamples;
+        }
+        int tail = (head + size) % capacity;
+        xAccelerations[tail] = xAcceleration;
+        yAccelerations[tail] = yAcceleration;
+        timestamps[tail] = timeMillis;
+        // each sample acts over the interval since previous one
+        weights[tail] = lastTimeMillis >= 0 && timeMillis > lastTimeMillis ? timeMillis - lastTimeMillis : 0;
+        lastTimeMillis = timeMillis;
+        ++size;
+        return size >= windowSize;
+    }
+
+    // drains all queued samples into one predict, returns false if queue is empty
+    public boolean drainTo(PredictConsumer consumer) {
+        double sumX = 0, sumY = 0, sumW = 0;
+        double sumXw = 0, sumYw = 0;
+        long timeMillis = 0;
+        int n;
+        synchronized (this) {
+            n = size;
+            if (n == 0) {
+                return false;
+            }
+            for (int i = 0, idx = head; i < n; ++i, idx = (idx + 1) % capacity) {
+                double x = xAccelerations[idx];
+                double y = yAccelerations[idx];
+                double w = weights[idx];
+                sumX += x;
+                sumY += y;
+                sumXw += x * w;
+                sumYw += y * w;
+                sumW += w;
+                timeMillis = timestamps[idx];
+            }
+            head = (head + n) % capacity;
+            size = 0;
+            processedSamples += n;
+            mergedSamples += n - 1;
+            ++predicts;
+        }
+        if (sumW > 0) {
+            consumer.predict(sumXw / sumW, sumYw / sumW, timeMillis);
+        } else {
+            consumer.predict(sumX / n, sumY / n, timeMillis);
+        }
+        return true;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+        lastTimeMillis = -1;
+    }
+
+    // next offered sample starts new interval: after predicts were suspended (stop) it would
+    // otherwise weigh the whole suspension against nominal sample period of the others
+    public synchronized void restartInterval() {
+        lastTimeMillis = -1;
+    }
+
+    public synchronized long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public synchronized long getMergedSamples() {
+        return mergedSamples;
+    }
+
+    public synchronized long getProcessedSamples() {
+        return processedSamples;
+    }
+
+    public synchronized long getPredicts() {
+        return predicts;
+    }
+}
@@ -0,0 +1,48 @@
+package com.app.carnavar.services.gpsimu;
+
+// imu samples of one producer (imu thread) are copied into own ImuSampleRing of every consumer,
+// so each consumer drains on its own thread and cadence and only ever reads its own ring.
+// open/close may be called from any thread, offer - from producer thread only
+public class ImuSampleFanout {
+
+    private static final ImuSampleRing[] NO_RINGS = new ImuSampleRing[0];
+
+    // copy-on-write: offer reads snapshot without locking, open/close replace the array
+    private volatile ImuSampleRing[] rings = NO_RINGS;
+
+    // new ring gets samples offered after this call
+    public synchronized ImuSampleRing open(int capacity) {
+        ImuSampleRing ring = new ImuSampleRing(capacity);
+        ImuSampleRing[] current = rings;
+        ImuSampleRing[] newRings = new ImuSampleRing[current.length + 1];
+        System.arraycopy(current, 0, newRings, 0, current.length);
+        newRings[current.length] = ring;
+        rings = newRings;
+        return ring;
+    }
+
+    public synchronized void close(ImuSampleRing ring) {
+        ImuSampleRing[] current = rings;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i] == ring) {
+                ImuSampleRing[] newRings = current.length == 1 ? NO_RINGS
+                        : new ImuSampleRing[current.length - 1];
+                System.arraycopy(current, 0, newRings, 0, i);
+                System.arraycopy(current, i + 1, newRings, i, current.length - i - 1);
+                rings = newRings;
+                return;
+            }
+        }
+    }
+
+    // full ring drops the sample and counts overrun only for its own consumer
+    public void offer(float[] values, int sensorType, long timeNanos) {
+        for (ImuSampleRing ring : rings) {
+            ring.offer(values, sensorType, timeNanos);
+        }
+    }
+
+    public int getConsumersCount() {
+        return rings.length;
+    }
+}
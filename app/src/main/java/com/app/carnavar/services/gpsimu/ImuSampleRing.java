@@ -0,0 +1,99 @@
+package com.app.carnavar.services.gpsimu;
+
+import com.app.carnavar.services.gpsimu.GpsImuServiceInterfaces.ImuListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// lock-free single-producer/single-consumer ring of imu samples (float triplet, sensor type, timestamp).
+// Producer (imu thread) never blocks: when ring is full new sample is dropped and counted as overrun.
+// Consumer (client thread) drains samples in order on its own cadence. There must be exactly one consumer:
+// several readers would race on head, use ImuSampleFanout to give every consumer its own ring
+public class ImuSampleRing {
+
+    public static final int VALUES_PER_SAMPLE = 3;
+
+    private final int capacity;
+    private final int mask;
+    private final float[] values;
+    private final int[] sensorTypes;
+    private final long[] timestamps;
+
+    private final AtomicLong head = new AtomicLong(); // next sample to read, written by consumer only
+    private final AtomicLong tail = new AtomicLong(); // next sample to write, written by producer only
+    private long cachedHead = 0; // producer's copy of head, refreshed only when ring looks full
+    private volatile long overruns = 0; // written by producer only
+
+    private final float[] consumerValues = new float[VALUES_PER_SAMPLE];
+
+    // capacity is rounded up to power of 2
+    public ImuSampleRing(int capacity) {
+        int c = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = c;
+        this.mask = c - 1;
+        values = new float[c * VALUES_PER_SAMPLE];
+        sensorTypes = new int[c];
+        timestamps = new long[c];
+    }
+
+    // producer side; returns false if ring is full and sample is dropped
+    public boolean offer(float[] sampleValues, int sensorType, long timeNanos) {
+        final long t = tail.get();
+        if (t - cachedHead == capacity) {
+            cachedHead = head.get();
+            if (t - cachedHead == capacity) {
+                //noinspection NonAtomicOperationOnVolatileField
+                overruns++;
+                return false;
+            }
+        }
+        final int slot = (int) (t & mask);
+        final int n = Math.min(sampleValues.length, VALUES_PER_SAMPLE);
+        System.arraycopy(sampleValues, 0, values, slot * VALUES_PER_SAMPLE, n);
+        for (int i = n; i < VALUES_PER_SAMPLE; ++i) {
+            values[slot * VALUES_PER_SAMPLE + i] = 0f;
+        }
+        sensorTypes[slot] = sensorType;
+        timestamps[slot] = timeNanos;
+        tail.lazySet(t + 1); // publish after sample is written
+        return true;
+    }
+
+    // consumer side; passes at most maxSamples oldest samples to listener and returns their count.
+    // values array is reused, it is valid only inside listener call
+    public int drainTo(ImuListener listener, int maxSamples) {
+        final long h = head.get();
+        final long available = tail.get() - h;
+        final int n = (int) Math.min(available, maxSamples);
+        for (int i = 0; i < n; ++i) {
+            final int slot = (int) ((h + i) & mask);
+            System.arraycopy(values, slot * VALUES_PER_SAMPLE, consumerValues, 0, VALUES_PER_SAMPLE);
+            listener.onImuReturned(consumerValues, sensorTypes[slot], timestamps[slot]);
+        }
+        head.lazySet(h + n); // release slots after they are read
+        return n;
+    }
+
+    public int drainTo(ImuListener listener) {
+        return drainTo(listener, capacity);
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public long getWrittenSamples() {
+        return tail.get();
+    }
+
+    public long getReadSamples() {
+        return head.get();
+    }
+}
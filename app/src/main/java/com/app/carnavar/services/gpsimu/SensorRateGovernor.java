@@ -0,0 +1,116 @@
+package com.app.carnavar.services.gpsimu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// chooses imu sampling period by vehicle dynamics: fused speed and gyroscope angular velocity.
+// Rate is raised at once when maneuver starts and lowered only after dynamics stay low for minDwellNanos,
+// enter/exit thresholds are separated (hysteresis). Time spent in every tier is accumulated by sensor time.
+// Sample-counted windows downstream (StationaryDetector) stretch or shrink with the tier period.
+// update() is called from imu thread only, getters can be called from any thread
+public class SensorRateGovernor {
+
+    public static final int TIER_PARKED = 0;
+    public static final int TIER_CRUISE = 1;
+    public static final int TIER_MANEUVER = 2;
+    public static final int TIERS = 3;
+
+    // sampling periods by tier, micros
+    public static final int[] DEFAULT_TIER_PERIODS_MICROS = {200_000, 100_000, 20_000};
+
+    // hysteresis thresholds
+    private static final double PARKED_ENTER_SPEED = 0.5; // m/s
+    private static final double PARKED_EXIT_SPEED = 1.0;
+    private static final double PARKED_ENTER_ROTATION = 0.05; // rad/s
+    private static final double PARKED_EXIT_ROTATION = 0.2;
+    private static final double MANEUVER_ENTER_ROTATION = 0.35; // ~20 deg/s: turn, lane change
+    private static final double MANEUVER_EXIT_ROTATION = 0.15;
+    private static final long DEFAULT_MIN_DWELL_NANOS = 3_000_000_000L;
+    // angular velocity is smoothed, single gyro spikes don't switch tier
+    private static final double ROTATION_SMOOTHING_NANOS = 200_000_000.0;
+
+    private final int[] tierPeriodsMicros;
+    private final long minDwellNanos;
+
+    private volatile int tier = TIER_CRUISE;
+    private long lowerTierSinceNanos = Long.MIN_VALUE; // target tier is lower than current since
+    private double rotation = 0;
+    private long lastTimeNanos = Long.MIN_VALUE;
+
+    private final AtomicLongArray tierTimeNanos = new AtomicLongArray(TIERS);
+    private volatile long tierSwitches = 0;
+
+    public SensorRateGovernor() {
+        this(DEFAULT_TIER_PERIODS_MICROS, DEFAULT_MIN_DWELL_NANOS);
+    }
+
+    public SensorRateGovernor(int[] tierPeriodsMicros, long minDwellNanos) {
+        this.tierPeriodsMicros = tierPeriodsMicros.clone();
+        this.minDwellNanos = minDwellNanos;
+    }
+
+    // speed - fused speed, m/s (NaN if unknown); rotationVelocity - rad/s; timeNanos - sensor time.
+    // Returns true if tier is changed, then getSamplePeriodMicros() returns new period
+    public boolean update(double speed, double rotationVelocity, long timeNanos) {
+        if (lastTimeNanos != Long.MIN_VALUE) {
+            if (timeNanos <= lastTimeNanos) {
+                return false; // late sample
+            }
+            long dt = timeNanos - lastTimeNanos;
+            rotation += (rotationVelocity - rotation) * (dt / (ROTATION_SMOOTHING_NANOS + dt));
+            tierTimeNanos.lazySet(tier, tierTimeNanos.get(tier) + dt);
+        }
+        lastTimeNanos = timeNanos;
+
+        int target = targetTier(speed);
+        if (target > tier) { // maneuver is started, don't wait
+            switchTier(target);
+            return true;
+        }
+        if (target == tier) {
+            lowerTierSinceNanos = Long.MIN_VALUE;
+            return false;
+        }
+        if (lowerTierSinceNanos == Long.MIN_VALUE) {
+            lowerTierSinceNanos = timeNanos;
+        }
+        if (timeNanos - lowerTierSinceNanos >= minDwellNanos) {
+            switchTier(target);
+            return true;
+        }
+        return false;
+    }
+
+    private int targetTier(double speed) {
+        int current = tier;
+        if (rotation > (current == TIER_MANEUVER ? MANEUVER_EXIT_ROTATION : MANEUVER_ENTER_ROTATION)) {
+            return TIER_MANEUVER;
+        }
+        boolean parked = current == TIER_PARKED
+                ? speed <= PARKED_EXIT_SPEED && rotation <= PARKED_EXIT_ROTATION
+                : speed <= PARKED_ENTER_SPEED && rotation <= PARKED_ENTER_ROTATION; // false for NaN speed
+        return parked ? TIER_PARKED : TIER_CRUISE;
+    }
+
+    private void switchTier(int newTier) {
+        tier = newTier;
+        lowerTierSinceNanos = Long.MIN_VALUE;
+        //noinspection NonAtomicOperationOnVolatileField
+        ++tierSwitches;
+    }
+
+    public int getTier() {
+        return tier;
+    }
+
+    public int getSamplePeriodMicros() {
+        return tierPeriodsMicros[tier];
+    }
+
+    public long getTierTimeMillis(int tier) {
+        return tierTimeNanos.get(tier) / 1_000_000;
+    }
+
+    public long getTierSwitches() {
+        return tierSwitches;
+    }
+}
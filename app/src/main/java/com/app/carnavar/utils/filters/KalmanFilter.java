@@ -7,6 +7,9 @@ import com.app.carnavar.utils.math.Matrix2;
  */
 
 public class KalmanFilter {
+
+    public static final int UPDATE_OK = 0;
+    public static final int UPDATE_INNOVATION_NOT_SPD = 1; // Sk isn't positive-definite, state isn't updated
     /*these matrices should be provided by user*/
     public Matrix2 F; // state transition atriodel
     public Matrix2 H; // observation model
@@ -22,7 +25,6 @@ public class KalmanFilter {
     public Matrix2 Yk; //measurement innovation
 
     public Matrix2 Sk; //innovation covariance
-    public Matrix2 SkInv; //innovation covariance inverse
 
     public Matrix2 K; //Kalman gain (optimal)
     public Matrix2 Xk_k; //updated (current) state
@@ -33,36 +35,72 @@ public class KalmanFilter {
     public Matrix2 auxBxU;
     public Matrix2 auxSDxSD;
     public Matrix2 auxSDxMD;
+    public Matrix2 auxSDxSD2;
+    public Matrix2 auxSD;
+    public Matrix2 auxSD2;
+
+    private boolean useJosephForm = false;
+    private boolean useSequentialUpdate = false;
 
     public KalmanFilter(int stateDimension,
                         int measureDimension,
                         int controlDimension) {
-        this.F = new Matrix2(stateDimension, stateDimension);
-        this.H = new Matrix2(measureDimension, stateDimension);
-        this.Q = new Matrix2(stateDimension, stateDimension);
-        this.R = new Matrix2(measureDimension, measureDimension);
+        this(stateDimension, measureDimension, controlDimension, false);
+    }
 
-        this.B = new Matrix2(stateDimension, controlDimension);
-        this.Uk = new Matrix2(controlDimension, 1);
+    // flatStorage - all matrices use row-major double[] storage with unrolled small-size kernels
+    public KalmanFilter(int stateDimension,
+                        int measureDimension,
+                        int controlDimension,
+                        boolean flatStorage) {
+        this.F = new Matrix2(stateDimension, stateDimension, flatStorage);
+        this.H = new Matrix2(measureDimension, stateDimension, flatStorage);
+        this.Q = new Matrix2(stateDimension, stateDimension, flatStorage);
+        this.R = new Matrix2(measureDimension, measureDimension, flatStorage);
 
-        this.Zk = new Matrix2(measureDimension, 1);
+        this.B = new Matrix2(stateDimension, controlDimension, flatStorage);
+        this.Uk = new Matrix2(controlDimension, 1, flatStorage);
 
-        this.Xk_km1 = new Matrix2(stateDimension, 1);
-        this.Pk_km1 = new Matrix2(stateDimension, stateDimension);
+        this.Zk = new Matrix2(measureDimension, 1, flatStorage);
 
-        this.Yk = new Matrix2(measureDimension, 1);
-        this.Sk = new Matrix2(measureDimension, measureDimension);
-        this.SkInv = new Matrix2(measureDimension, measureDimension);
+        this.Xk_km1 = new Matrix2(stateDimension, 1, flatStorage);
+        this.Pk_km1 = new Matrix2(stateDimension, stateDimension, flatStorage);
 
-        this.K = new Matrix2(stateDimension, measureDimension);
+        this.Yk = new Matrix2(measureDimension, 1, flatStorage);
+        this.Sk = new Matrix2(measureDimension, measureDimension, flatStorage);
 
-        this.Xk_k = new Matrix2(stateDimension, 1);
-        this.Pk_k = new Matrix2(stateDimension, stateDimension);
-        this.Yk_k = new Matrix2(measureDimension, 1);
+        this.K = new Matrix2(stateDimension, measureDimension, flatStorage);
 
-        this.auxBxU = new Matrix2(stateDimension, 1);
-        this.auxSDxSD = new Matrix2(stateDimension, stateDimension);
-        this.auxSDxMD = new Matrix2(stateDimension, measureDimension);
+        this.Xk_k = new Matrix2(stateDimension, 1, flatStorage);
+        this.Pk_k = new Matrix2(stateDimension, stateDimension, flatStorage);
+        this.Yk_k = new Matrix2(measureDimension, 1, flatStorage);
+
+        this.auxBxU = new Matrix2(stateDimension, 1, flatStorage);
+        this.auxSDxSD = new Matrix2(stateDimension, stateDimension, flatStorage);
+        this.auxSDxMD = new Matrix2(stateDimension, measureDimension, flatStorage);
+        this.auxSDxSD2 = new Matrix2(stateDimension, stateDimension, flatStorage);
+        this.auxSD = new Matrix2(stateDimension, 1, flatStorage);
+        this.auxSD2 = new Matrix2(stateDimension, 1, flatStorage);
+    }
+
+    // Joseph form keeps Pk|k symmetric positive-definite for any gain and round-off,
+    // costs two more SDxSD multiplications per update
+    public void setJosephFormUpdate(boolean useJosephForm) {
+        this.useJosephForm = useJosephForm;
+    }
+
+    public boolean isJosephFormUpdate() {
+        return useJosephForm;
+    }
+
+    // with diagonal R measurement components are applied one by one as scalar updates:
+    // no matrix inversion and O(m*n^2) instead of O(m^3) per update. Non-diagonal R uses full update
+    public void setSequentialUpdate(boolean useSequentialUpdate) {
+        this.useSequentialUpdate = useSequentialUpdate;
+    }
+
+    public boolean isSequentialUpdate() {
+        return useSequentialUpdate;
     }
 
     public void predict() {
@@ -81,7 +119,12 @@ public class KalmanFilter {
         Matrix2.matrixAdd(Pk_km1, Q, Pk_km1);
     }
 
-    public void update() {
+    // returns UPDATE_OK or UPDATE_INNOVATION_NOT_SPD
+    public int update() {
+        if (useSequentialUpdate && R.isDiagonal()) {
+            return sequentialUpdate();
+        }
+
         //Yk = Zk - Hk*Xk|k-1
         Matrix2.matrixMultiply(H, Xk_km1, Yk);
         Matrix2.matrixSubtract(Zk, Yk, Yk);
@@ -91,23 +134,94 @@ public class KalmanFilter {
         Matrix2.matrixMultiply(H, auxSDxMD, Sk);
         Matrix2.matrixAdd(R, Sk, Sk);
 
-        //Kk = Pk|k-1*Hk(t)*Sk(inv)
-        if (!(Matrix2.matrixDestructiveInvert(Sk, SkInv)))
-            return; //Matrix2 hasn't inversion
-        Matrix2.matrixMultiply(auxSDxMD, SkInv, K);
+        //Kk = Pk|k-1*Hk(t)*Sk(inv) - solved as Kk*Sk = Pk|k-1*Hk(t) without explicit inversion
+        if (Matrix2.matrixDestructiveSpdSolve(Sk, auxSDxMD, K) != Matrix2.SOLVE_OK)
+            return UPDATE_INNOVATION_NOT_SPD;
 
         //xk|k = xk|k-1 + Kk*Yk
         Matrix2.matrixMultiply(K, Yk, Xk_k);
         Matrix2.matrixAdd(Xk_km1, Xk_k, Xk_k);
 
-        //Pk|k = (I - Kk*Hk) * Pk|k-1 - SEE WIKI!!!
-        Matrix2.matrixMultiply(K, H, auxSDxSD);
-        Matrix2.matrixSubtractFromIdentity(auxSDxSD);
-        Matrix2.matrixMultiply(auxSDxSD, Pk_km1, Pk_k);
+        if (useJosephForm) {
+            //Pk|k = (I - Kk*Hk) * Pk|k-1 * (I - Kk*Hk)(t) + Kk*Rk*Kk(t)
+            Matrix2.matrixMultiply(K, H, auxSDxSD);
+            Matrix2.matrixSubtractFromIdentity(auxSDxSD);
+            Matrix2.matrixMultiply(auxSDxSD, Pk_km1, auxSDxSD2);
+            Matrix2.matrixMultiplyByTranspose(auxSDxSD2, auxSDxSD, Pk_k);
+            Matrix2.matrixMultiply(K, R, auxSDxMD);
+            Matrix2.matrixMultiplyByTranspose(auxSDxMD, K, auxSDxSD);
+            Matrix2.matrixAdd(Pk_k, auxSDxSD, Pk_k);
+            Matrix2.matrixSymmetrize(Pk_k);
+        } else {
+            //Pk|k = (I - Kk*Hk) * Pk|k-1 - SEE WIKI!!!
+            Matrix2.matrixMultiply(K, H, auxSDxSD);
+            Matrix2.matrixSubtractFromIdentity(auxSDxSD);
+            Matrix2.matrixMultiply(auxSDxSD, Pk_km1, Pk_k);
+        }
 
         //we don't use this :
         //Yk|k = Zk - Hk*Xk|k
         //Matrix2.matrixMultiply(H, Xk_k, Yk_k);
         //Matrix2.matrixSubtract(Zk, Yk_k, Yk_k);
+        return UPDATE_OK;
+    }
+
+    // x and P are updated in auxSD2/auxSDxSD2 and copied to Xk|k, Pk|k only when all components are applied,
+    // so failed update leaves state untouched as full update does
+    private int sequentialUpdate() {
+        final int n = Xk_km1.getRows();
+        final int m = Zk.getRows();
+        final Matrix2 x = auxSD2, pk = auxSDxSD2;
+        int i, r, c;
+        double y, s;
+
+        Matrix2.matrixCopy(Xk_km1, x);
+        Matrix2.matrixCopy(Pk_km1, pk);
+        for (i = 0; i < m; ++i) {
+            //y = z(i) - h(i)*x
+            y = Zk.get(i, 0);
+            for (c = 0; c < n; ++c)
+                y -= H.get(i, c) * x.get(c, 0);
+            Yk.set(i, 0, y);
+
+            //PHt = P*h(i)(t), s = h(i)*PHt + R(i,i)
+            s = R.get(i, i);
+            for (r = 0; r < n; ++r) {
+                double pht = 0.0;
+                for (c = 0; c < n; ++c)
+                    pht += pk.get(r, c) * H.get(i, c);
+                auxSD.set(r, 0, pht);
+                s += H.get(i, r) * pht;
+            }
+            if (!(s > 0.0))
+                return UPDATE_INNOVATION_NOT_SPD;
+
+            //k(i) = PHt / s, x = x + k(i)*y
+            for (r = 0; r < n; ++r) {
+                double k = auxSD.get(r, 0) / s;
+                K.set(r, i, k);
+                x.set(r, 0, x.get(r, 0) + k * y);
+            }
+
+            //P = P - k*PHt(t) (simple form)
+            //P = P - k*PHt(t) - PHt*k(t) + s*k*k(t) (Joseph form for scalar measurement)
+            for (r = 0; r < n; ++r) {
+                final double kr = K.get(r, i), phtr = auxSD.get(r, 0);
+                for (c = 0; c < n; ++c) {
+                    final double kc = K.get(c, i), phtc = auxSD.get(c, 0);
+                    double p = pk.get(r, c) - kr * phtc;
+                    if (useJosephForm)
+                        p += s * kr * kc - phtr * kc;
+                    auxSDxSD.set(r, c, p);
+                }
+            }
+            Matrix2.matrixCopy(auxSDxSD, pk);
+        }
+
+        Matrix2.matrixCopy(x, Xk_k);
+        Matrix2.matrixCopy(pk, Pk_k);
+        if (useJosephForm)
+            Matrix2.matrixSymmetrize(Pk_k);
+        return UPDATE_OK;
     }
 }
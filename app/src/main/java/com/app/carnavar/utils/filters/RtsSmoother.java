@@ -0,0 +1,295 @@
+package com.app.carnavar.utils.filters;
+
+import com.app.carnavar.utils.math.Matrix2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rauch-Tung-Striebel smoother for offline post-processing of recorded trips.
+ *
+ * Forward pass is the usual {@link KalmanFilter} run, after every step call {@link #recordStep(double, boolean)}.
+ * Per-step records (F, predicted and filtered state/covariance) are collected into fixed-size chunks which are
+ * flushed into {@link ChunkStore}, so only one chunk is kept in memory. {@link #smooth(SmoothedStateListener)}
+ * reads chunks in reverse order and returns smoothed states from the last step to the first one.
+ * It doesn't consume recorded steps: repeated calls give the same states and recording can be continued after it.
+ * Plain java, has no android dependencies.
+ */
+public class RtsSmoother {
+
+    public interface ChunkStore {
+        void write(int chunkIndex, double[] data, int length) throws IOException;
+
+        void read(int chunkIndex, double[] data, int length) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    // smoothed states come in reverse order: step = stepsCount-1 .. 0
+    public interface SmoothedStateListener {
+        void onSmoothedState(int step, double timestamp, Matrix2 x, Matrix2 p);
+    }
+
+    public static class MemoryChunkStore implements ChunkStore {
+
+        private final List<double[]> chunks = new ArrayList<>();
+
+        @Override
+        public void write(int chunkIndex, double[] data, int length) {
+            double[] chunk = new double[length];
+            System.arraycopy(data, 0, chunk, 0, length);
+            while (chunks.size() <= chunkIndex) {
+                chunks.add(null);
+            }
+            chunks.set(chunkIndex, chunk);
+        }
+
+        @Override
+        public void read(int chunkIndex, double[] data, int length) {
+            System.arraycopy(chunks.get(chunkIndex), 0, data, 0, length);
+        }
+
+        @Override
+        public void close() {
+            chunks.clear();
+        }
+    }
+
+    // chunks are stored in temp file with fixed slot per chunk
+    public static class FileChunkStore implements ChunkStore {
+
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private final ByteBuffer byteBuffer;
+        private final DoubleBuffer doubleBuffer;
+        private final int chunkBytes;
+
+        public FileChunkStore(File file, int chunkDoubles) throws IOException {
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+            this.chunkBytes = chunkDoubles * 8;
+            this.byteBuffer = ByteBuffer.allocateDirect(chunkBytes);
+            this.doubleBuffer = byteBuffer.asDoubleBuffer();
+        }
+
+        @Override
+        public void write(int chunkIndex, double[] data, int length) throws IOException {
+            doubleBuffer.clear();
+            doubleBuffer.put(data, 0, length);
+            byteBuffer.clear();
+            byteBuffer.limit(length * 8);
+            long position = (long) chunkIndex * chunkBytes;
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+        }
+
+        @Override
+        public void read(int chunkIndex, double[] data, int length) throws IOException {
+            byteBuffer.clear();
+            byteBuffer.limit(length * 8);
+            long position = (long) chunkIndex * chunkBytes;
+            while (byteBuffer.hasRemaining()) {
+                int n = channel.read(byteBuffer, position);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of chunk file " + file);
+                }
+                position += n;
+            }
+            doubleBuffer.clear();
+            doubleBuffer.get(data, 0, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            randomAccessFile.close();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private final KalmanFilter kalmanFilter;
+    private final ChunkStore chunkStore;
+    private final int n;
+    private final int recordSize; // timestamp, F, xPredicted, PPredicted, xFiltered, PFiltered
+    private final int chunkSteps;
+    private final double[] chunk;
+    private int chunkFill = 0;
+    private int chunksCount = 0;
+    private int stepsCount = 0;
+
+    // backward pass state
+    private final Matrix2 xs, ps; // smoothed at step k
+    private final Matrix2 xsNext, psNext; // smoothed at step k+1
+    private final Matrix2 fNext, xpNext, ppNext; // F, predicted state and covariance at step k+1
+    private final Matrix2 xf, pf, fCur, xpCur, ppCur; // record of step k
+    private final Matrix2 c, pfFt, ppInv, dx, dp, aux;
+
+    public RtsSmoother(KalmanFilter kalmanFilter, int chunkSteps, ChunkStore chunkStore) {
+        this.kalmanFilter = kalmanFilter;
+        this.chunkStore = chunkStore;
+        this.chunkSteps = chunkSteps;
+        this.n = kalmanFilter.F.getRows();
+        this.recordSize = recordSize(n);
+        this.chunk = new double[chunkSteps * recordSize];
+
+        boolean flat = kalmanFilter.F.isFlat();
+        xs = new Matrix2(n, 1, flat);
+        ps = new Matrix2(n, n, flat);
+        xsNext = new Matrix2(n, 1, flat);
+        psNext = new Matrix2(n, n, flat);
+        fNext = new Matrix2(n, n, flat);
+        xpNext = new Matrix2(n, 1, flat);
+        ppNext = new Matrix2(n, n, flat);
+        xf = new Matrix2(n, 1, flat);
+        pf = new Matrix2(n, n, flat);
+        fCur = new Matrix2(n, n, flat);
+        xpCur = new Matrix2(n, 1, flat);
+        ppCur = new Matrix2(n, n, flat);
+        c = new Matrix2(n, n, flat);
+        pfFt = new Matrix2(n, n, flat);
+        ppInv = new Matrix2(n, n, flat);
+        dx = new Matrix2(n, 1, flat);
+        dp = new Matrix2(n, n, flat);
+        aux = new Matrix2(n, n, flat);
+    }
+
+    public static int recordSize(int stateDimension) {
+        return 1 + 3 * stateDimension * stateDimension + 2 * stateDimension;
+    }
+
+    public int getStepsCount() {
+        return stepsCount;
+    }
+
+    // call after kalmanFilter.predict() and optional kalmanFilter.update();
+    // updated = false means there was no measurement and filtered state equals predicted one
+    public void recordStep(double timestamp, boolean updated) throws IOException {
+        int o = chunkFill * recordSize;
+        chunk[o++] = timestamp;
+        o = put(kalmanFilter.F, o);
+        o = put(kalmanFilter.Xk_km1, o);
+        o = put(kalmanFilter.Pk_km1, o);
+        if (updated) {
+            o = put(kalmanFilter.Xk_k, o);
+            put(kalmanFilter.Pk_k, o);
+        } else {
+            o = put(kalmanFilter.Xk_km1, o);
+            put(kalmanFilter.Pk_km1, o);
+        }
+        ++stepsCount;
+        if (++chunkFill == chunkSteps) {
+            chunkStore.write(chunksCount++, chunk, chunk.length);
+            chunkFill = 0;
+        }
+    }
+
+    public void smooth(SmoothedStateListener listener) throws IOException {
+        if (stepsCount == 0) {
+            return;
+        }
+        // last (partial) chunk is still in memory, chunk buffer is reused for reading older chunks,
+        // so partial chunk is stored into its slot and read back after backward pass
+        int chunkIndex = chunksCount;
+        int fill = chunkFill;
+        if (fill == 0) {
+            --chunkIndex;
+            fill = chunkSteps;
+            chunkStore.read(chunkIndex, chunk, chunk.length);
+        } else {
+            chunkStore.write(chunkIndex, chunk, fill * recordSize);
+        }
+
+        int step = stepsCount - 1;
+        boolean last = true;
+        while (true) {
+            for (int i = fill - 1; i >= 0; --i, --step) {
+                int o = i * recordSize;
+                double timestamp = chunk[o++];
+                o = get(fCur, o);
+                o = get(xpCur, o);
+                o = get(ppCur, o);
+                o = get(xf, o);
+                get(pf, o);
+
+                if (last) {
+                    Matrix2.matrixCopy(xf, xs);
+                    Matrix2.matrixCopy(pf, ps);
+                    last = false;
+                } else {
+                    smoothStep();
+                }
+                listener.onSmoothedState(step, timestamp, xs, ps);
+
+                Matrix2.matrixCopy(xs, xsNext);
+                Matrix2.matrixCopy(ps, psNext);
+                Matrix2.matrixCopy(fCur, fNext);
+                Matrix2.matrixCopy(xpCur, xpNext);
+                Matrix2.matrixCopy(ppCur, ppNext);
+            }
+            if (--chunkIndex < 0) {
+                break;
+            }
+            fill = chunkSteps;
+            chunkStore.read(chunkIndex, chunk, chunk.length);
+        }
+        if (chunkFill > 0) {
+            chunkStore.read(chunksCount, chunk, chunkFill * recordSize);
+        }
+    }
+
+    public void close() throws IOException {
+        chunkStore.close();
+    }
+
+    private void smoothStep() {
+        //Ck = Pk|k * F(k+1)(t) * P(k+1|k)(inv)
+        Matrix2.matrixMultiplyByTranspose(pf, fNext, pfFt);
+        Matrix2.matrixCopy(ppNext, ppInv);
+        if (Matrix2.matrixDestructiveSpdSolve(ppInv, pfFt, c) != Matrix2.SOLVE_OK) {
+            // predicted covariance is degenerate -> keep filtered estimate for this step
+            Matrix2.matrixCopy(xf, xs);
+            Matrix2.matrixCopy(pf, ps);
+            return;
+        }
+
+        //xk|N = xk|k + Ck * (x(k+1)|N - x(k+1)|k)
+        Matrix2.matrixSubtract(xsNext, xpNext, dx);
+        Matrix2.matrixMultiply(c, dx, xs);
+        Matrix2.matrixAdd(xf, xs, xs);
+
+        //Pk|N = Pk|k + Ck * (P(k+1)|N - P(k+1)|k) * Ck(t)
+        Matrix2.matrixSubtract(psNext, ppNext, dp);
+        Matrix2.matrixMultiply(c, dp, aux);
+        Matrix2.matrixMultiplyByTranspose(aux, c, ps);
+        Matrix2.matrixAdd(pf, ps, ps);
+        Matrix2.matrixSymmetrize(ps);
+    }
+
+    private int put(Matrix2 m, int offset) {
+        for (int r = 0; r < m.getRows(); ++r) {
+            for (int col = 0; col < m.getCols(); ++col) {
+                chunk[offset++] = m.get(r, col);
+            }
+        }
+        return offset;
+    }
+
+    private int get(Matrix2 m, int offset) {
+        for (int r = 0; r < m.getRows(); ++r) {
+            for (int col = 0; col < m.getCols(); ++col) {
+                m.set(r, col, chunk[offset++]);
+            }
+        }
+        return offset;
+    }
+}
@@ -1,22 +1,85 @@
 package com.app.carnavar.utils.math;
 
+import java.util.Arrays;
+
 /**
  * Created by lezh1k on 2/13/18.
+ *
+ * Matrix2 has two storage modes:
+ * - default: double[rows][cols]
+ * - flat: row-major double[rows * cols], used by the kalman filter hot path.
+ *   Small fixed shapes (4x4, 4x2, 2x4, 2x2) are multiplied by hand-unrolled kernels in this mode.
+ * Only one storage is allocated, so elements are accessed by {@link #get(int, int)}/{@link #set(int, int, double)};
+ * {@link #getFlat()} exposes the backing array of a flat matrix for custom kernels.
+ * Operands of one operation must use the same storage mode, otherwise IllegalArgumentException is thrown.
  */
-
 public class Matrix2 {
     private int rows;
     private int cols;
-    public double data[][];
+    private double data[][];
+    private double flat[];
 
     public Matrix2(int rows, int cols) {
+        this(rows, cols, false);
+    }
+
+    public Matrix2(int rows, int cols, boolean flatStorage) {
         this.rows = rows;
         this.cols = cols;
-        data = new double[rows][cols];
+        if (flatStorage) {
+            flat = new double[rows * cols];
+        } else {
+            data = new double[rows][cols];
+        }
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public boolean isFlat() {
+        return flat != null;
+    }
+
+    // row-major backing array of flat matrix, element (r, c) is at r * cols + c
+    public double[] getFlat() {
+        if (flat == null)
+            throw new IllegalStateException("matrix doesn't use flat storage");
+        return flat;
+    }
+
+    private static void checkStorage(Matrix2 ma, Matrix2 mb) {
+        if ((ma.flat == null) != (mb.flat == null))
+            throw new IllegalArgumentException("matrix operands use different storage modes");
+    }
+
+    private static void checkStorage(Matrix2 ma, Matrix2 mb, Matrix2 mc) {
+        checkStorage(ma, mc);
+        checkStorage(mb, mc);
+    }
+
+    public double get(int r, int c) {
+        return flat != null ? flat[r * cols + c] : data[r][c];
+    }
+
+    public void set(int r, int c, double value) {
+        if (flat != null) {
+            flat[r * cols + c] = value;
+        } else {
+            data[r][c] = value;
+        }
     }
 
     public void setData(double... args) {
         assert(args.length == rows * cols);
+        if (flat != null) {
+            System.arraycopy(args, 0, flat, 0, flat.length);
+            return;
+        }
         for (int r = 0; r < rows; ++r) {
             for (int c = 0; c < cols; ++c) {
                 data[r][c] = args[r*cols + c];
@@ -26,6 +89,12 @@ public class Matrix2 {
 
     public void setData(float... args) {
         assert(args.length == rows * cols);
+        if (flat != null) {
+            for (int i = 0; i < flat.length; ++i) {
+                flat[i] = (double)args[i];
+            }
+            return;
+        }
         for (int r = 0; r < rows; ++r) {
             for (int c = 0; c < cols; ++c) {
                 data[r][c] = (double)args[r*cols + c];
@@ -33,7 +102,25 @@ public class Matrix2 {
         }
     }
 
+    public void setZero() {
+        if (flat != null) {
+            Arrays.fill(flat, 0.0);
+            return;
+        }
+        for (int r = 0; r < rows; ++r) {
+            Arrays.fill(data[r], 0.0);
+        }
+    }
+
     public void setIdentityDiag() {
+        if (flat != null) {
+            Arrays.fill(flat, 0.0);
+            int n = Math.min(rows, cols);
+            for (int r = 0; r < n; ++r) {
+                flat[r * cols + r] = 1.0;
+            }
+            return;
+        }
         for (int r = 0; r < rows; ++r) {
             for (int c = 0; c < cols; ++c) {
                 data[r][c] = 0.0;
@@ -55,6 +142,15 @@ public class Matrix2 {
         assert(mc != null);
         assert(ma.cols == mb.cols && mb.cols == mc.cols);
         assert(ma.rows == mb.rows && mb.rows == mc.rows);
+        checkStorage(ma, mb, mc);
+
+        if (mc.flat != null) {
+            final double[] a = ma.flat, b = mb.flat, c = mc.flat;
+            for (int i = 0; i < c.length; ++i) {
+                c[i] = a[i] + b[i];
+            }
+            return;
+        }
 
         for (int r = 0; r < ma.rows; ++r) {
             for (int c = 0; c < ma.cols; ++c) {
@@ -71,6 +167,15 @@ public class Matrix2 {
         assert(mc != null);
         assert(ma.cols == mb.cols && mb.cols == mc.cols);
         assert(ma.rows == mb.rows && mb.rows == mc.rows);
+        checkStorage(ma, mb, mc);
+
+        if (mc.flat != null) {
+            final double[] a = ma.flat, b = mb.flat, c = mc.flat;
+            for (int i = 0; i < c.length; ++i) {
+                c[i] = a[i] - b[i];
+            }
+            return;
+        }
 
         for (int r = 0; r < ma.rows; ++r) {
             for (int c = 0; c < ma.cols; ++c) {
@@ -80,14 +185,7 @@ public class Matrix2 {
     }
 
     public void subtractFromIdentity() {
-        int r, c;
-        for (r = 0; r < rows; ++r) {
-            for (c = 0; c < r; ++c)
-                data[r][c] = -data[r][c];
-            data[r][r] = 1.0 - data[r][r];
-            for (c = r+1; c < cols; ++c)
-                data[r][c] = -data[r][c];
-        }
+        matrixSubtractFromIdentity(this);
     }
 
     public static void matrixMultiply(Matrix2 ma,
@@ -99,6 +197,13 @@ public class Matrix2 {
         assert(ma.cols == mb.rows);
         assert(ma.rows == mc.rows);
         assert(mb.cols == mc.cols);
+        checkStorage(ma, mb, mc);
+
+        if (mc.flat != null) {
+            flatMultiply(ma, mb, mc);
+            return;
+        }
+
         int r, c, rc;
         final int mcrows = mc.rows;
         final int mccols = mc.cols;
@@ -123,6 +228,13 @@ public class Matrix2 {
         assert(ma.cols == mb.cols);
         assert(ma.rows == mc.rows);
         assert(mb.rows == mc.cols);
+        checkStorage(ma, mb, mc);
+
+        if (mc.flat != null) {
+            flatMultiplyByTranspose(ma, mb, mc);
+            return;
+        }
+
         int r, c, rc;
         for (r = 0; r < mc.rows; ++r) {
             for (c = 0; c < mc.cols; ++c) {
@@ -140,7 +252,16 @@ public class Matrix2 {
         assert(mtxout != null);
         assert(mtxin.rows == mtxout.cols);
         assert(mtxin.cols == mtxout.rows);
+        checkStorage(mtxin, mtxout);
         int r, c;
+        if (mtxout.flat != null) {
+            for (r = 0; r < mtxin.rows; ++r) {
+                for (c = 0; c < mtxin.cols; ++c) {
+                    mtxout.flat[c * mtxout.cols + r] = mtxin.flat[r * mtxin.cols + c];
+                }
+            }
+            return;
+        }
         for (r = 0; r < mtxin.rows; ++r) {
             for (c = 0; c < mtxin.cols; ++c) {
                 mtxout.data[c][r] = mtxin.data[r][c];
@@ -158,7 +279,7 @@ public class Matrix2 {
             return false;
         for (r = 0; r < ma.rows; ++r) {
             for (c = 0; c < ma.cols; ++c) {
-                if (Math.abs(ma.data[r][c] - mb.data[r][c]) <= eps)
+                if (Math.abs(ma.get(r, c) - mb.get(r, c)) <= eps)
                     continue;
                 return false;
             }
@@ -171,6 +292,11 @@ public class Matrix2 {
         assert(mSrc != null);
         assert(mDst != null);
         assert(mSrc.rows == mDst.rows && mSrc.cols == mDst.cols);
+        checkStorage(mSrc, mDst);
+        if (mDst.flat != null) {
+            System.arraycopy(mSrc.flat, 0, mDst.flat, 0, mDst.flat.length);
+            return;
+        }
         for (int r = 0; r < mSrc.rows; ++r) {
             for (int c = 0; c < mSrc.cols; ++c) {
                 mDst.data[r][c] = mSrc.data[r][c];
@@ -179,6 +305,12 @@ public class Matrix2 {
     }
 
     public void scale(double scalar) {
+        if (flat != null) {
+            for (int i = 0; i < flat.length; ++i) {
+                flat[i] *= scalar;
+            }
+            return;
+        }
         int r, c;
         for (r = 0; r < rows; ++r) {
             for (c = 0; c < cols; ++c) {
@@ -189,6 +321,15 @@ public class Matrix2 {
 
     private void swapRows(int r1, int r2) {
         assert(r1 != r2);
+        if (flat != null) {
+            int o1 = r1 * cols, o2 = r2 * cols;
+            for (int c = 0; c < cols; ++c) {
+                double tmp = flat[o1 + c];
+                flat[o1 + c] = flat[o2 + c];
+                flat[o2 + c] = tmp;
+            }
+            return;
+        }
         double tmp[] = data[r1];
         data[r1] = data[r2];
         data[r2] = tmp;
@@ -197,6 +338,13 @@ public class Matrix2 {
     private void scaleRow(int r, double scalar) {
         assert(r < rows);
         int c;
+        if (flat != null) {
+            int o = r * cols;
+            for (c = 0; c < cols; ++c) {
+                flat[o + c] *= scalar;
+            }
+            return;
+        }
         for (c = 0; c < cols; ++c) {
             data[r][c] *= scalar;
         }
@@ -208,6 +356,12 @@ public class Matrix2 {
         assert(r1 != r2);
         assert(r1 < rows && r2 < rows);
         int c;
+        if (flat != null) {
+            int o1 = r1 * cols, o2 = r2 * cols;
+            for (c = 0; c < cols; ++c)
+                flat[o1 + c] += flat[o2 + c] * scalar;
+            return;
+        }
         for (c = 0; c < cols; ++c)
             data[r1][c] += data[r2][c] * scalar;
     }
@@ -224,9 +378,9 @@ public class Matrix2 {
         mtxout.setIdentity();
 
         for (r = 0; r < mtxin.rows; ++r) {
-            if (mtxin.data[r][r] == 0.0) { //we have to swap rows here to make nonzero diagonal
+            if (mtxin.get(r, r) == 0.0) { //we have to swap rows here to make nonzero diagonal
                 for (ri = r; ri < mtxin.rows; ++ri) {
-                    if (mtxin.data[ri][ri] != 0.0)
+                    if (mtxin.get(ri, ri) != 0.0)
                         break;
                 }
 
@@ -237,18 +391,18 @@ public class Matrix2 {
                 mtxout.swapRows(r, ri);
             } //if mtxin.data[r][r] == 0.0
 
-            scalar = 1.0 / mtxin.data[r][r];
+            scalar = 1.0 / mtxin.get(r, r);
             mtxin.scaleRow(r, scalar);
             mtxout.scaleRow(r, scalar);
 
             for (ri = 0; ri < r; ++ri) {
-                scalar = -mtxin.data[ri][r];
+                scalar = -mtxin.get(ri, r);
                 mtxin.shearRow(ri, r, scalar);
                 mtxout.shearRow(ri, r, scalar);
             }
 
             for (ri = r + 1; ri < mtxin.rows; ++ri) {
-                scalar = -mtxin.data[ri][r];
+                scalar = -mtxin.get(ri, r);
                 mtxin.shearRow(ri, r, scalar);
                 mtxout.shearRow(ri, r, scalar);
             }
@@ -256,8 +410,109 @@ public class Matrix2 {
         return true;
     }
 
+    public boolean isDiagonal() {
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                if (r != c && get(r, c) != 0.0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    public static final int SOLVE_OK = 0;
+    public static final int SOLVE_NOT_SPD = 1;
+
+    // mx = mb * ms(inv), where ms is symmetric positive-definite.
+    // Uses analytic inverse for 2x2 and Cholesky decomposition (ms = L*L(t), L is stored into ms) otherwise,
+    // so ms is destroyed as in matrixDestructiveInvert. mb and mx may be the same matrix.
+    public static int matrixDestructiveSpdSolve(Matrix2 ms,
+                                                Matrix2 mb,
+                                                Matrix2 mx) {
+        assert(ms != null);
+        assert(mb != null);
+        assert(mx != null);
+        assert(ms.rows == ms.cols);
+        assert(mb.cols == ms.rows);
+        assert(mb.rows == mx.rows && mb.cols == mx.cols);
+        final int m = ms.rows;
+        int r, i, k;
+        double sum;
+
+        if (m == 2) {
+            final double a = ms.get(0, 0), b = ms.get(0, 1), d = ms.get(1, 1);
+            final double det = a * d - b * b;
+            if (!(a > 0.0) || !(det > 0.0))
+                return SOLVE_NOT_SPD;
+            final double invDet = 1.0 / det;
+            final double i00 = d * invDet, i01 = -b * invDet, i11 = a * invDet;
+            for (r = 0; r < mb.rows; ++r) {
+                final double b0 = mb.get(r, 0), b1 = mb.get(r, 1);
+                mx.set(r, 0, b0 * i00 + b1 * i01);
+                mx.set(r, 1, b0 * i01 + b1 * i11);
+            }
+            return SOLVE_OK;
+        }
+
+        //ms = L*L(t), lower triangle of ms is replaced by L
+        for (k = 0; k < m; ++k) {
+            sum = ms.get(k, k);
+            for (i = 0; i < k; ++i)
+                sum -= ms.get(k, i) * ms.get(k, i);
+            if (!(sum > 0.0))
+                return SOLVE_NOT_SPD;
+            final double lkk = Math.sqrt(sum);
+            ms.set(k, k, lkk);
+            for (r = k + 1; r < m; ++r) {
+                sum = ms.get(r, k);
+                for (i = 0; i < k; ++i)
+                    sum -= ms.get(r, i) * ms.get(k, i);
+                ms.set(r, k, sum / lkk);
+            }
+        }
+
+        //ms is symmetric, so each row of mx solves L*L(t) * x = b
+        for (r = 0; r < mb.rows; ++r) {
+            for (k = 0; k < m; ++k) { //L*y = b
+                sum = mb.get(r, k);
+                for (i = 0; i < k; ++i)
+                    sum -= ms.get(k, i) * mx.get(r, i);
+                mx.set(r, k, sum / ms.get(k, k));
+            }
+            for (k = m - 1; k >= 0; --k) { //L(t)*x = y
+                sum = mx.get(r, k);
+                for (i = k + 1; i < m; ++i)
+                    sum -= ms.get(i, k) * mx.get(r, i);
+                mx.set(r, k, sum / ms.get(k, k));
+            }
+        }
+        return SOLVE_OK;
+    }
+
+    // m = (m + m(t)) / 2 - removes round-off asymmetry of covariance matrices
+    public static void matrixSymmetrize(Matrix2 m) {
+        assert(m.rows == m.cols);
+        int r, c;
+        double avg;
+        for (r = 0; r < m.rows; ++r) {
+            for (c = r + 1; c < m.cols; ++c) {
+                avg = 0.5 * (m.get(r, c) + m.get(c, r));
+                m.set(r, c, avg);
+                m.set(c, r, avg);
+            }
+        }
+    }
+
     public static void matrixSubtractFromIdentity(Matrix2 m) {
         int r, c;
+        if (m.flat != null) {
+            final double[] f = m.flat;
+            for (int i = 0; i < f.length; ++i)
+                f[i] = -f[i];
+            for (r = 0; r < m.rows; ++r)
+                f[r * m.cols + r] += 1.0;
+            return;
+        }
         for (r = 0; r < m.rows; ++r) {
             for (c = 0; c < r; ++c)
                 m.data[r][c] = -m.data[r][c];
@@ -266,4 +521,129 @@ public class Matrix2 {
                 m.data[r][c] = -m.data[r][c];
         }
     }
+
+    /*flat storage kernels*/
+
+    private static void flatMultiply(Matrix2 ma,
+                                     Matrix2 mb,
+                                     Matrix2 mc) {
+        final double[] a = ma.flat, b = mb.flat, c = mc.flat;
+        final int n = mc.cols;
+        if (ma.rows == 4 && ma.cols == 4 && n == 4) {
+            multiply4x4x4(a, b, c);
+            return;
+        }
+
+        int r, col, rc, ao, co;
+        switch (ma.cols) {
+            case 4: // 4x4*4xN, 2x4*4xN
+                for (r = 0; r < mc.rows; ++r) {
+                    ao = r * 4;
+                    co = r * n;
+                    final double a0 = a[ao], a1 = a[ao + 1], a2 = a[ao + 2], a3 = a[ao + 3];
+                    for (col = 0; col < n; ++col) {
+                        c[co + col] = a0 * b[col] + a1 * b[n + col] +
+                                a2 * b[2 * n + col] + a3 * b[3 * n + col];
+                    }
+                }
+                return;
+            case 2: // 4x2*2xN, 2x2*2xN
+                for (r = 0; r < mc.rows; ++r) {
+                    ao = r * 2;
+                    co = r * n;
+                    final double a0 = a[ao], a1 = a[ao + 1];
+                    for (col = 0; col < n; ++col) {
+                        c[co + col] = a0 * b[col] + a1 * b[n + col];
+                    }
+                }
+                return;
+            default:
+                final int k = ma.cols;
+                for (r = 0; r < mc.rows; ++r) {
+                    for (col = 0; col < n; ++col) {
+                        double sum = 0.0;
+                        for (rc = 0; rc < k; ++rc) {
+                            sum += a[r * k + rc] * b[rc * n + col];
+                        }
+                        c[r * n + col] = sum;
+                    }
+                }
+        }
+    }
+
+    private static void flatMultiplyByTranspose(Matrix2 ma,
+                                                Matrix2 mb,
+                                                Matrix2 mc) {
+        final double[] a = ma.flat, b = mb.flat, c = mc.flat;
+        final int n = mc.cols;
+        if (ma.rows == 4 && ma.cols == 4 && n == 4) {
+            multiply4x4x4ByTranspose(a, b, c);
+            return;
+        }
+
+        int r, col, rc, ao, bo;
+        switch (ma.cols) {
+            case 4: // 4x4*(Nx4)t, 2x4*(Nx4)t
+                for (r = 0; r < mc.rows; ++r) {
+                    ao = r * 4;
+                    final double a0 = a[ao], a1 = a[ao + 1], a2 = a[ao + 2], a3 = a[ao + 3];
+                    for (col = 0; col < n; ++col) {
+                        bo = col * 4;
+                        c[r * n + col] = a0 * b[bo] + a1 * b[bo + 1] + a2 * b[bo + 2] + a3 * b[bo + 3];
+                    }
+                }
+                return;
+            case 2: // 4x2*(Nx2)t, 2x2*(Nx2)t
+                for (r = 0; r < mc.rows; ++r) {
+                    ao = r * 2;
+                    final double a0 = a[ao], a1 = a[ao + 1];
+                    for (col = 0; col < n; ++col) {
+                        bo = col * 2;
+                        c[r * n + col] = a0 * b[bo] + a1 * b[bo + 1];
+                    }
+                }
+                return;
+            default:
+                final int k = ma.cols;
+                for (r = 0; r < mc.rows; ++r) {
+                    for (col = 0; col < n; ++col) {
+                        double sum = 0.0;
+                        for (rc = 0; rc < k; ++rc) {
+                            sum += a[r * k + rc] * b[col * k + rc];
+                        }
+                        c[r * n + col] = sum;
+                    }
+                }
+        }
+    }
+
+    // c = a * b, all 4x4 row-major
+    private static void multiply4x4x4(double[] a, double[] b, double[] c) {
+        final double b00 = b[0], b01 = b[1], b02 = b[2], b03 = b[3];
+        final double b10 = b[4], b11 = b[5], b12 = b[6], b13 = b[7];
+        final double b20 = b[8], b21 = b[9], b22 = b[10], b23 = b[11];
+        final double b30 = b[12], b31 = b[13], b32 = b[14], b33 = b[15];
+        for (int o = 0; o < 16; o += 4) {
+            final double a0 = a[o], a1 = a[o + 1], a2 = a[o + 2], a3 = a[o + 3];
+            c[o] = a0 * b00 + a1 * b10 + a2 * b20 + a3 * b30;
+            c[o + 1] = a0 * b01 + a1 * b11 + a2 * b21 + a3 * b31;
+            c[o + 2] = a0 * b02 + a1 * b12 + a2 * b22 + a3 * b32;
+            c[o + 3] = a0 * b03 + a1 * b13 + a2 * b23 + a3 * b33;
+        }
+    }
+
+    // c = a * b(t), all 4x4 row-major
+    private static void multiply4x4x4ByTranspose(double[] a, double[] b, double[] c) {
+        final double b00 = b[0], b01 = b[1], b02 = b[2], b03 = b[3];
+        final double b10 = b[4], b11 = b[5], b12 = b[6], b13 = b[7];
+        final double b20 = b[8], b21 = b[9], b22 = b[10], b23 = b[11];
+        final double b30 = b[12], b31 = b[13], b32 = b[14], b33 = b[15];
+        for (int o = 0; o < 16; o += 4) {
+            final double a0 = a[o], a1 = a[o + 1], a2 = a[o + 2], a3 = a[o + 3];
+            c[o] = a0 * b00 + a1 * b01 + a2 * b02 + a3 * b03;
+            c[o + 1] = a0 * b10 + a1 * b11 + a2 * b12 + a3 * b13;
+            c[o + 2] = a0 * b20 + a1 * b21 + a2 * b22 + a3 * b23;
+            c[o + 3] = a0 * b30 + a1 * b31 + a2 * b32 + a3 * b33;
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package com.app.carnavar.utils.math;
 
+import java.util.Arrays;
+
 /**
  * The Class MatrixF4x4.
  *
@@ -198,6 +200,19 @@ public class MatrixF4x4 {
         matrixf.setMatrix(bufferMatrix);
     }
 
+    /**
+     * Multiply this matrix by matrixf and store the result in output without allocation. Output must be of size 16 and
+     * can't be this matrix or matrixf.
+     *
+     * @param matrixf the matrixf
+     * @param output the output
+     */
+    public void multiplyMatrix4x4ByMatrix(MatrixF4x4 matrixf, MatrixF4x4 output) {
+        // multiplyMatrix accumulates into output
+        Arrays.fill(output.matrix, 0);
+        multiplyMatrix(matrixf.getMatrix(), 0, output.matrix, 0);
+    }
+
     public void multiplyMatrix(float[] input, int inputOffset, float[] output, int outputOffset) {
         float[] bufferMatrix = output;
         float[] matrix = input;
@@ -215,35 +230,40 @@ public class MatrixF4x4 {
     }
 
     /**
-     * This will rearrange the internal structure of the matrix. Be careful though as this is an expensive operation.
+     * This will rearrange the internal structure of the matrix. Values are swapped in place, no allocation.
+     *
+     * Note the internal array is kept, so arrays obtained by {@link #getMatrix()} or shared by
+     * {@link #setMatrix(float[])} see the transposed values (the array was replaced before). Use
+     * {@link #transpose(MatrixF4x4)} to keep the source values.
      */
     public void transpose() {
-        if (this.matrix.length == 16) {
-            float[] newMatrix = new float[16];
-            for (int i = 0; i < 4; i++) {
-
-                int k = i * 4;
-
-                newMatrix[k] = matrix[i];
-                newMatrix[k + 1] = matrix[4 + i];
-                newMatrix[k + 2] = matrix[8 + i];
-                newMatrix[k + 3] = matrix[12 + i];
+        int n = this.matrix.length == 16 ? 4 : 3;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                float value = matrix[i * n + j];
+                matrix[i * n + j] = matrix[j * n + i];
+                matrix[j * n + i] = value;
             }
-            matrix = newMatrix;
+        }
+    }
 
-        } else {
-            float[] newMatrix = new float[9];
-            for (int i = 0; i < 3; i++) {
+    /**
+     * Store the transposed matrix in output, this matrix isn't changed. Output must be of the same size and can't be this
+     * matrix.
+     *
+     * @param output the output
+     */
+    public void transpose(MatrixF4x4 output) {
+        int n = this.matrix.length == 16 ? 4 : 3;
+        float[] newMatrix = output.matrix;
+        for (int i = 0; i < n; i++) {
 
-                int k = i * 3;
+            int k = i * n;
 
-                newMatrix[k] = matrix[i];
-                newMatrix[k + 1] = matrix[3 + i];
-                newMatrix[k + 2] = matrix[6 + i];
+            for (int j = 0; j < n; j++) {
+                newMatrix[k + j] = matrix[j * n + i];
             }
-            matrix = newMatrix;
         }
-
     }
 
     public void setX0(float value) {
@@ -36,7 +36,6 @@ public class Quaternion extends Vector4f {
     private boolean dirty = false;
 
     private Vector4f tmpVector = new Vector4f();
-    private Quaternion tmpQuaternion;
 
     /**
      * Creates a new Quaternion object and initialises it with the identity Quaternion
@@ -116,10 +115,13 @@ public class Quaternion extends Vector4f {
      */
     public void multiplyByQuat(Quaternion input) {
         this.dirty = true;
-        if(tmpQuaternion == null) tmpQuaternion = new Quaternion();
-        tmpQuaternion.copyVec4(this);
-        multiplyByQuat(input, tmpQuaternion);
-        this.copyVec4(tmpQuaternion);
+        // input may be this quaternion itself, so all values are read before writing
+        float x1 = points[0], y1 = points[1], z1 = points[2], w1 = points[3];
+        float x2 = input.points[0], y2 = input.points[1], z2 = input.points[2], w2 = input.points[3];
+        points[3] = w1 * w2 - x1 * x2 - y1 * y2 - z1 * z2;
+        points[0] = w1 * x2 + x1 * w2 + y1 * z2 - z1 * y2;
+        points[1] = w1 * y2 + y1 * w2 + z1 * x2 - x1 * z2;
+        points[2] = w1 * z2 + z1 * w2 + x1 * y2 - y1 * x2;
     }
 
     /**
@@ -129,7 +131,7 @@ public class Quaternion extends Vector4f {
      */
     public void multiplyByScalar(float scalar) {
         this.dirty = true;
-        multiplyByScalar(scalar);
+        super.multiplyByScalar(scalar);
     }
 
     /**
@@ -183,6 +185,11 @@ public class Quaternion extends Vector4f {
      * {@link Quaternion#getMatrix4x4 getMatrix4x4}
      */
     private void convertQuatToMatrix() {
+        writeRotationMatrix(matrix);
+    }
+
+    // writes rotation by setters, so output layout (column/row major, 9 or 16 values) is respected
+    private void writeRotationMatrix(MatrixF4x4 matrix) {
         float x = points[0];
         float y = points[1];
         float z = points[2];
@@ -244,8 +251,16 @@ public class Quaternion extends Vector4f {
      * @return An array of size 3 containing the euler angles for this quaternion
      */
     public double[] toEulerAngles() {
-        double[] ret = new double[3];
+        return toEulerAngles(new double[3]);
+    }
 
+    /**
+     * Writes the heading, attitude and bank of this quaternion as euler angles into the given array without allocation
+     *
+     * @param ret An array of size 3 for the euler angles
+     * @return The given array
+     */
+    public double[] toEulerAngles(double[] ret) {
         ret[0] = Math.atan2(2 * points[1] * getW() - 2 * points[0] * points[2], 1 - 2 * (points[1] * points[1]) - 2
                 * (points[2] * points[2])); // atan2(2*qy*qw-2*qx*qz , 1 - 2*qy2 - 2*qz2)
         ret[1] = Math.asin(2 * points[0] * points[1] + 2 * points[2] * getW()); // asin(2*qx*qy + 2*qz*qw)
@@ -440,6 +455,44 @@ public class Quaternion extends Vector4f {
         return this.matrix;
     }
 
+    /**
+     * Writes this Quaternion in the Rotation Matrix representation into the given matrix, internal matrix isn't touched
+     *
+     * @param output The matrix to store the result in, of size 16 (see {@link MatrixF4x4#size()})
+     */
+    public void getMatrix4x4(MatrixF4x4 output) {
+        writeRotationMatrix(output);
+    }
+
+    /**
+     * Writes this Quaternion as column major 4x4 rotation matrix (same layout as {@link Quaternion#getMatrix4x4()})
+     *
+     * @param output An array of size 16
+     */
+    public void toMatrix(float[] output) {
+        float x = points[0];
+        float y = points[1];
+        float z = points[2];
+        float w = points[3];
+
+        output[0] = 1 - 2 * (y * y) - 2 * (z * z);
+        output[1] = 2 * (x * y) + 2 * (w * z);
+        output[2] = 2 * (x * z) - 2 * (w * y);
+        output[3] = 0;
+        output[4] = 2 * (x * y) - 2 * (w * z);
+        output[5] = 1 - 2 * (x * x) - 2 * (z * z);
+        output[6] = 2 * (y * z) + 2 * (w * x);
+        output[7] = 0;
+        output[8] = 2 * (x * z) + 2 * (w * y);
+        output[9] = 2 * (y * z) - 2 * (w * x);
+        output[10] = 1 - 2 * (x * x) - 2 * (y * y);
+        output[11] = 0;
+        output[12] = 0;
+        output[13] = 0;
+        output[14] = 0;
+        output[15] = 1;
+    }
+
     public void copyFromVec3(Vector3f vec, float w) {
         copyFromV3f(vec, w);
     }
@@ -456,19 +509,13 @@ public class Quaternion extends Vector4f {
     public void slerp(Quaternion input, Quaternion output, float t) {
         // Calculate angle between them.
         //double cosHalftheta = this.dotProduct(input);
-        Quaternion bufferQuat;
+        // input is negated by sign instead of buffer quaternion (q and -q are the same rotation)
+        float sign = 1;
         float cosHalftheta = this.dotProduct(input);
 
         if (cosHalftheta < 0) {
-            if(tmpQuaternion == null) tmpQuaternion = new Quaternion();
-            bufferQuat = tmpQuaternion;
             cosHalftheta = -cosHalftheta;
-            bufferQuat.points[0] = (-input.points[0]);
-            bufferQuat.points[1] = (-input.points[1]);
-            bufferQuat.points[2] = (-input.points[2]);
-            bufferQuat.points[3] = (-input.points[3]);
-        } else {
-            bufferQuat = input;
+            sign = -1;
         }
         /**
          * if(dot < 0.95f){
@@ -511,10 +558,11 @@ public class Quaternion extends Vector4f {
             double ratioB = Math.sin(t * halfTheta) / sinHalfTheta;
 
             //Calculate Quaternion
-            output.points[3] = ((float) (points[3] * ratioA + bufferQuat.points[3] * ratioB));
-            output.points[0] = ((float) (this.points[0] * ratioA + bufferQuat.points[0] * ratioB));
-            output.points[1] = ((float) (this.points[1] * ratioA + bufferQuat.points[1] * ratioB));
-            output.points[2] = ((float) (this.points[2] * ratioA + bufferQuat.points[2] * ratioB));
+            ratioB *= sign;
+            output.points[3] = ((float) (points[3] * ratioA + input.points[3] * ratioB));
+            output.points[0] = ((float) (this.points[0] * ratioA + input.points[0] * ratioB));
+            output.points[1] = ((float) (this.points[1] * ratioA + input.points[1] * ratioB));
+            output.points[2] = ((float) (this.points[2] * ratioA + input.points[2] * ratioB));
 
             //}
         }
@@ -0,0 +1,47 @@
+package com.app.carnavar;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assume.assumeTrue;
+
+// bytes allocated by current thread, tests are skipped on jvm without allocation accounting
+public final class AllocationCounter {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private AllocationCounter() {
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+                return sunBean;
+            }
+        }
+        return null;
+    }
+
+    public static void assumeSupported() {
+        assumeTrue("thread allocation accounting isn't supported", THREADS != null);
+    }
+
+    public static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // bytes allocated by body over iterations runs, measured after warmup runs
+    public static long measure(int warmup, int iterations, Runnable body) {
+        assumeSupported();
+        for (int i = 0; i < warmup; ++i) {
+            body.run();
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < iterations; ++i) {
+            body.run();
+        }
+        return allocatedBytes() - before;
+    }
+}
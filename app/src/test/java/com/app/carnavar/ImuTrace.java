@@ -0,0 +1,195 @@
+package com.app.carnavar;
+
+import com.app.carnavar.hal.sensors.SensorTypes;
+import com.app.carnavar.hal.sensors.VirtualSensor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+// imu sample stream for replay tests and benchmarks, samples are sorted by timestamp.
+// Recorded trace is csv of lines "timestampNanos,sensorType,v0,v1,v2,v3[,trueAzimuthRad,trueSpeed]"
+// (SensorTypes, '#' lines are comments) and is loaded by load(), or by recordedOrSynthetic() from
+// -Dimu.trace=<file>. Without recording a drive is synthesized: device lies flat in the car (y forward,
+// x right, z up), stop-and-go speed profile with turns, 200 Hz accelerometer and gyroscope (with bias),
+// 50 Hz rotation vector (with noise and 1% outliers)
+public final class ImuTrace {
+
+    public static final int VALUES_PER_SAMPLE = 4;
+    public static final String TRACE_PROPERTY = "imu.trace";
+
+    public static final double GRAVITY = 9.80665;
+    public static final double GYRO_BIAS_Z = 0.01; // rad/s
+    public static final double ACC_NOISE = 0.02; // m/s^2, even road
+    public static final double GYRO_NOISE = 0.005; // rad/s
+    public static final double STOP_AND_GO_PERIOD_SEC = 46;
+
+    private int size;
+    private long[] timestamps;
+    private int[] sensorTypes;
+    private float[] values;
+    private double[] trueAzimuths; // rad clockwise from north, NaN if unknown
+    private double[] trueSpeeds; // m/s, NaN if unknown
+
+    private ImuTrace(int capacity) {
+        timestamps = new long[capacity];
+        sensorTypes = new int[capacity];
+        values = new float[capacity * VALUES_PER_SAMPLE];
+        trueAzimuths = new double[capacity];
+        trueSpeeds = new double[capacity];
+    }
+
+    public static ImuTrace recordedOrSynthetic(double syntheticDurationSec) throws IOException {
+        String path = System.getProperty(TRACE_PROPERTY);
+        return path != null ? load(new File(path)) : synthesizeDrive(1, syntheticDurationSec);
+    }
+
+    public static ImuTrace load(File file) throws IOException {
+        ImuTrace trace = new ImuTrace(1024);
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            float[] v = new float[VALUES_PER_SAMPLE];
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                for (int i = 0; i < VALUES_PER_SAMPLE; ++i) {
+                    v[i] = Float.parseFloat(fields[2 + i]);
+                }
+                trace.add(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), v,
+                        fields.length > 6 ? Double.parseDouble(fields[6]) : Double.NaN,
+                        fields.length > 7 ? Double.parseDouble(fields[7]) : Double.NaN);
+            }
+        }
+        return trace;
+    }
+
+    // speed profile of one stop-and-go period: 8 s at +2 m/s^2, 20 s cruise, 8 s at -2 m/s^2, 10 s standing
+    public static double syntheticSpeed(double t) {
+        double p = t % STOP_AND_GO_PERIOD_SEC;
+        if (p < 8) return 2 * p;
+        if (p < 28) return 16;
+        if (p < 36) return 16 - 2 * (p - 28);
+        return 0;
+    }
+
+    public static double syntheticLongitudinalAcceleration(double t) {
+        double p = t % STOP_AND_GO_PERIOD_SEC;
+        if (p < 8) return 2;
+        if (p < 28) return 0;
+        if (p < 36) return -2;
+        return 0;
+    }
+
+    // turns in the middle of cruise, alternating right and left
+    private static double syntheticAzimuthRate(double t) {
+        double p = t % STOP_AND_GO_PERIOD_SEC;
+        if (p < 14 || p >= 22) return 0;
+        return ((long) (t / STOP_AND_GO_PERIOD_SEC)) % 2 == 0 ? 0.2 : -0.2;
+    }
+
+    public static ImuTrace synthesizeDrive(long seed, double durationSec) {
+        Random random = new Random(seed);
+        int ticks = (int) (durationSec * 1000); // 1 ms
+        ImuTrace trace = new ImuTrace(ticks / 5 * 2 + ticks / 20 + 2);
+        float[] v = new float[VALUES_PER_SAMPLE];
+        double azimuth = 0.3;
+        for (int tick = 0; tick < ticks; ++tick) {
+            double t = tick / 1000.0;
+            double azimuthRate = syntheticAzimuthRate(t);
+            double speed = syntheticSpeed(t);
+            long timeNanos = tick * 1_000_000L;
+            if (tick % 5 == 0) {
+                // specific force in device system: forward, centripetal to the right, gravity up
+                v[0] = (float) (speed * azimuthRate + random.nextGaussian() * ACC_NOISE);
+                v[1] = (float) (syntheticLongitudinalAcceleration(t) + random.nextGaussian() * ACC_NOISE);
+                v[2] = (float) (GRAVITY + random.nextGaussian() * ACC_NOISE);
+                v[3] = 0;
+                trace.add(timeNanos, SensorTypes.FULL_ACCELERATION, v, azimuth, speed);
+            } else if (tick % 5 == 1) {
+                // clockwise azimuth is negative rotation around device z
+                v[0] = (float) (random.nextGaussian() * GYRO_NOISE);
+                v[1] = (float) (random.nextGaussian() * GYRO_NOISE);
+                v[2] = (float) (-azimuthRate + GYRO_BIAS_Z + random.nextGaussian() * GYRO_NOISE);
+                v[3] = 0;
+                trace.add(timeNanos, SensorTypes.GYROSCOPE_ANGLE_VELOCITY, v, azimuth, speed);
+            } else if (tick % 20 == 3) {
+                double measured = azimuth + random.nextGaussian() * 0.02;
+                if (random.nextInt(100) == 0) {
+                    measured += random.nextBoolean() ? 0.5 : -0.5;
+                }
+                // android rotation vector x, y, z, w of rotation by -azimuth around up
+                v[0] = 0;
+                v[1] = 0;
+                v[2] = (float) Math.sin(-measured / 2);
+                v[3] = (float) Math.cos(-measured / 2);
+                trace.add(timeNanos, SensorTypes.ORIENTATION_ROTATION_VECTOR, v, azimuth, speed);
+            }
+            azimuth += azimuthRate * 0.001;
+        }
+        return trace;
+    }
+
+    private void add(long timeNanos, int sensorType, float[] v, double trueAzimuth, double trueSpeed) {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            sensorTypes = Arrays.copyOf(sensorTypes, capacity);
+            values = Arrays.copyOf(values, capacity * VALUES_PER_SAMPLE);
+            trueAzimuths = Arrays.copyOf(trueAzimuths, capacity);
+            trueSpeeds = Arrays.copyOf(trueSpeeds, capacity);
+        }
+        timestamps[size] = timeNanos;
+        sensorTypes[size] = sensorType;
+        System.arraycopy(v, 0, values, size * VALUES_PER_SAMPLE, VALUES_PER_SAMPLE);
+        trueAzimuths[size] = trueAzimuth;
+        trueSpeeds[size] = trueSpeed;
+        ++size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public int getSensorType(int i) {
+        return sensorTypes[i];
+    }
+
+    public float getValue(int i, int component) {
+        return values[i * VALUES_PER_SAMPLE + component];
+    }
+
+    public void getValues(int i, float[] out) {
+        System.arraycopy(values, i * VALUES_PER_SAMPLE, out, 0, Math.min(out.length, VALUES_PER_SAMPLE));
+    }
+
+    public double getTrueAzimuth(int i) {
+        return trueAzimuths[i];
+    }
+
+    public double getTrueSpeed(int i) {
+        return trueSpeeds[i];
+    }
+
+    public double getDurationSec() {
+        return size == 0 ? 0 : (timestamps[size - 1] - timestamps[0]) / 1e9;
+    }
+
+    // passes samples in order through one reused values array, as sensors do
+    public void replay(VirtualSensor.SensorListener listener) {
+        float[] v = new float[VALUES_PER_SAMPLE];
+        for (int i = 0; i < size; ++i) {
+            getValues(i, v);
+            listener.onSensorValuesCaptured(v, sensorTypes[i], timestamps[i]);
+        }
+    }
+}
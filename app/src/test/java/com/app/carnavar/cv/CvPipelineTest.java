@@ -0,0 +1,218 @@
+package com.app.carnavar.cv;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CvPipelineTest {
+
+    private static final int DEPTH = 2;
+    private static final int SKIPPED_EVERY = 3; // converter marks every 3rd frame as not needing inference
+
+    // camera side: frame id is written into y plane and is known by frame time, every frame is accepted
+    private static final class Camera {
+        final FrameScheduler scheduler = new FrameScheduler(0, 10_000);
+        final Map<Long, Integer> ids = new ConcurrentHashMap<>();
+        final ByteBuffer y = ByteBuffer.allocate(16);
+        final ByteBuffer uv = ByteBuffer.allocate(8);
+        int nextId = 0;
+
+        int offer(CvPipeline pipeline) {
+            int id = nextId++;
+            long timeNanos = System.nanoTime();
+            ids.put(timeNanos, id);
+            y.putInt(0, id);
+            scheduler.offer(4, 4, y, uv, uv, 4, 4, 2, timeNanos);
+            pipeline.frameAvailable();
+            return id;
+        }
+    }
+
+    // fake stages: input and output carry frame id, inference is slow
+    private static final class Stages {
+        final Camera camera;
+        final AtomicInteger createdBuffers = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger(); // converted, not postprocessed yet
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final List<int[]> results = new ArrayList<>(); // frame id, sequence, inferred, output id (-1 if none)
+        volatile int failOnFrame = -1;
+        volatile int lastPostprocessed = -1;
+
+        Stages(Camera camera) {
+            this.camera = camera;
+        }
+
+        final CvPipeline.BufferFactory bufferFactory = () -> {
+            createdBuffers.incrementAndGet();
+            return ByteBuffer.allocateDirect(4);
+        };
+
+        final CvPipeline.Converter converter = (frame, input) -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            int id = frame.yPlane.getInt(0);
+            input.putInt(0, id);
+            return id % SKIPPED_EVERY != 0;
+        };
+
+        final CvPipeline.Interpreter interpreter = (input, output) -> {
+            int id = input.getInt(0);
+            if (id == failOnFrame) {
+                throw new IllegalStateException("interpreter failed on frame " + id);
+            }
+            sleep(5);
+            output.putInt(id); // relative put like tflite, position is left at capacity
+        };
+
+        final CvPipeline.Postprocessor postprocessor = this::postprocess;
+
+        private void postprocess(ByteBuffer output, CvPipeline.FrameInfo frame) {
+            int id = camera.ids.get(frame.timeNanos);
+            synchronized (results) {
+                results.add(new int[]{id, (int) frame.sequence, frame.inferred ? 1 : 0,
+                        output != null ? output.asIntBuffer().get(0) : -1}); // view starts at position
+            }
+            inFlight.decrementAndGet();
+            lastPostprocessed = id;
+        }
+
+        CvPipeline create() {
+            return new CvPipeline(camera.scheduler, bufferFactory, bufferFactory, converter, interpreter,
+                    postprocessor, DEPTH);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitPostprocessed(CvPipeline pipeline, long frames) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pipeline.getPostprocessedFrames() < frames && System.nanoTime() < deadline) {
+            sleep(1);
+        }
+        assertTrue("postprocessed " + pipeline.getPostprocessedFrames() + " of " + frames,
+                pipeline.getPostprocessedFrames() >= frames);
+    }
+
+    @Test(timeout = 20_000)
+    public void frames_oneByOne_arePostprocessedInOrderWithSkippedInferences() {
+        Camera camera = new Camera();
+        Stages stages = new Stages(camera);
+        CvPipeline pipeline = stages.create();
+        pipeline.start();
+        try {
+            for (int i = 0; i < 12; ++i) {
+                camera.offer(pipeline);
+                awaitPostprocessed(pipeline, i + 1); // no frame is dropped
+            }
+        } finally {
+            pipeline.stop();
+        }
+
+        assertEquals(12, stages.results.size());
+        for (int i = 0; i < 12; ++i) {
+            int[] r = stages.results.get(i);
+            assertEquals("frame", i, r[0]);
+            assertEquals("sequence", i, r[1]);
+            boolean inferred = i % SKIPPED_EVERY != 0;
+            assertEquals("inferred " + i, inferred ? 1 : 0, r[2]);
+            assertEquals("output of frame " + i, inferred ? i : -1, r[3]);
+        }
+        assertEquals(8, pipeline.getInferredFrames());
+        assertEquals(4, pipeline.getSkippedInferences());
+        assertEquals(12, camera.scheduler.getProcessedFrames());
+        assertNull(pipeline.getFailure());
+    }
+
+    @Test(timeout = 20_000)
+    public void fastCamera_slowInference_dropsOldFramesAndKeepsOrder() {
+        Camera camera = new Camera();
+        Stages stages = new Stages(camera);
+        CvPipeline pipeline = stages.create();
+        pipeline.start();
+        int lastId;
+        try {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            do {
+                lastId = camera.offer(pipeline); // every 1 ms, inference takes 5 ms
+                sleep(1);
+            } while (System.nanoTime() < end);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (stages.lastPostprocessed != lastId && System.nanoTime() < deadline) {
+                sleep(1);
+            }
+        } finally {
+            pipeline.stop();
+        }
+
+        // newest frame is always processed, older ones are replaced in scheduler mailbox
+        assertEquals(lastId, stages.lastPostprocessed);
+        assertTrue(camera.scheduler.getDroppedFrames() > 0);
+        assertEquals(camera.scheduler.getAcceptedFrames(),
+                camera.scheduler.getDroppedFrames() + pipeline.getConvertedFrames());
+        assertEquals(pipeline.getConvertedFrames(), pipeline.getPostprocessedFrames());
+
+        // bounded by buffer pools: converter waits for free input instead of taking frames
+        assertEquals(2 * DEPTH, stages.createdBuffers.get());
+        assertTrue("in flight " + stages.maxInFlight.get(), stages.maxInFlight.get() <= 2 * DEPTH);
+
+        int previousId = -1;
+        for (int i = 0; i < stages.results.size(); ++i) {
+            int[] r = stages.results.get(i);
+            assertTrue("frame " + r[0] + " after " + previousId, r[0] > previousId);
+            assertEquals("sequence", i, r[1]);
+            assertEquals("inferred " + r[0], r[0] % SKIPPED_EVERY != 0 ? 1 : 0, r[2]);
+            assertEquals("output of frame " + r[0], r[2] == 1 ? r[0] : -1, r[3]);
+            previousId = r[0];
+        }
+    }
+
+    @Test(timeout = 20_000)
+    public void stageFailure_stopsPipelineAndNotifiesListenerOnce() throws InterruptedException {
+        Camera camera = new Camera();
+        Stages stages = new Stages(camera);
+        stages.failOnFrame = 2;
+        CvPipeline pipeline = stages.create();
+        CountDownLatch failed = new CountDownLatch(1);
+        AtomicInteger notifications = new AtomicInteger();
+        AtomicReference<Throwable> notified = new AtomicReference<>();
+        pipeline.setFailureListener(e -> {
+            notifications.incrementAndGet();
+            notified.set(e);
+            failed.countDown();
+        });
+        pipeline.start();
+        try {
+            for (int i = 0; i < 2; ++i) {
+                camera.offer(pipeline);
+                awaitPostprocessed(pipeline, i + 1);
+            }
+            camera.offer(pipeline);
+            assertTrue(failed.await(10, TimeUnit.SECONDS));
+            assertFalse(pipeline.isRunning());
+            camera.offer(pipeline); // isn't taken by stopped pipeline
+        } finally {
+            pipeline.stop();
+        }
+
+        assertEquals(1, notifications.get());
+        assertSame(pipeline.getFailure(), notified.get());
+        assertTrue(notified.get() instanceof IllegalStateException);
+        assertEquals(2, pipeline.getPostprocessedFrames());
+        assertEquals(3, pipeline.getConvertedFrames());
+    }
+}
@@ -0,0 +1,174 @@
+package com.app.carnavar.cv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyframeMaskWarperTest {
+
+    private static final int IMAGE_WIDTH = 640, IMAGE_HEIGHT = 480;
+    private static final float FX = 500, FY = 500, CX = 319.5f, CY = 239.5f;
+    private static final int SCALE = 4; // camera image pixels per mask pixel
+    private static final int FILL = -1;
+
+    // keyframe pose is arbitrary, warp depends on relative rotation only
+    private static final float[] KEYFRAME_ROTATION = normalized(new float[]{0.3f, -0.5f, 0.2f, 0.8f});
+    private static final float[] ORIGIN = {0, 0, 0};
+
+    private static float[] normalized(float[] q) {
+        double n = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        return new float[]{(float) (q[0] / n), (float) (q[1] / n), (float) (q[2] / n), (float) (q[3] / n)};
+    }
+
+    // rotation around camera axis (unit x, y, z), quaternion [x, y, z, w]
+    private static float[] axisAngle(double ax, double ay, double az, double angle) {
+        double s = Math.sin(angle / 2);
+        return new float[]{(float) (ax * s), (float) (ay * s), (float) (az * s), (float) Math.cos(angle / 2)};
+    }
+
+    // a * b, [x, y, z, w]
+    private static float[] multiply(float[] a, float[] b) {
+        return new float[]{
+                a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1],
+                a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0],
+                a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3],
+                a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2]};
+    }
+
+    private static KeyframeMaskWarper warper(int rotationDegrees) {
+        boolean swap = rotationDegrees % 180 != 0;
+        int maskWidth = (swap ? IMAGE_HEIGHT : IMAGE_WIDTH) / SCALE;
+        int maskHeight = (swap ? IMAGE_WIDTH : IMAGE_HEIGHT) / SCALE;
+        KeyframeMaskWarper warper = new KeyframeMaskWarper(maskWidth, maskHeight, rotationDegrees);
+        warper.setIntrinsics(FX, FY, CX, CY, IMAGE_WIDTH, IMAGE_HEIGHT);
+        return warper;
+    }
+
+    // every pixel holds its own index
+    private static int[] indexMask(int size) {
+        int[] mask = new int[size];
+        for (int i = 0; i < size; ++i) {
+            mask[i] = i;
+        }
+        return mask;
+    }
+
+    @Test
+    public void warp_identicalPose_copiesMask() {
+        for (int rotationDegrees = 0; rotationDegrees < 360; rotationDegrees += 90) {
+            KeyframeMaskWarper warper = warper(rotationDegrees);
+            int[] mask = indexMask(IMAGE_WIDTH * IMAGE_HEIGHT / (SCALE * SCALE));
+            int[] out = new int[mask.length];
+            warper.setKeyframeMask(mask, KEYFRAME_ROTATION);
+
+            assertTrue(warper.warp(KEYFRAME_ROTATION, out, FILL));
+            assertArrayEquals("rotation " + rotationDegrees, mask, out);
+        }
+    }
+
+    // camera turns left by yaw around its +Y (up) axis: scene moves right in camera image by fx * tan(yaw)
+    private static void assertYawShift(int rotationDegrees, int expectedMaskDx, int expectedMaskDy) {
+        double yaw = Math.toRadians(5);
+        double shift = FX * Math.tan(yaw) / SCALE; // mask pixels
+        KeyframeMaskWarper warper = warper(rotationDegrees);
+        boolean swap = rotationDegrees % 180 != 0;
+        int w = (swap ? IMAGE_HEIGHT : IMAGE_WIDTH) / SCALE;
+        int h = (swap ? IMAGE_WIDTH : IMAGE_HEIGHT) / SCALE;
+        int[] mask = indexMask(w * h);
+        int[] out = new int[mask.length];
+        warper.setKeyframeMask(mask, KEYFRAME_ROTATION);
+
+        float[] current = multiply(KEYFRAME_ROTATION, axisAngle(0, 1, 0, yaw));
+        assertTrue(warper.warp(current, out, FILL));
+
+        // mask center shows keyframe pixel it was moved from
+        int x = w / 2, y = h / 2;
+        int source = out[y * w + x];
+        assertNotEquals(FILL, source);
+        String message = "rotation " + rotationDegrees;
+        assertEquals(message, expectedMaskDx * shift, x - source % w, 1.0);
+        assertEquals(message, expectedMaskDy * shift, y - source / w, 1.0);
+
+        // pixels moved in from outside of keyframe are filled
+        int edgeX = expectedMaskDx > 0 ? 0 : expectedMaskDx < 0 ? w - 1 : x;
+        int edgeY = expectedMaskDy > 0 ? 0 : expectedMaskDy < 0 ? h - 1 : y;
+        assertEquals(message, FILL, out[edgeY * w + edgeX]);
+    }
+
+    @Test
+    public void warp_yawLeftNoRotation_shiftsMaskRight() {
+        assertYawShift(0, 1, 0);
+    }
+
+    @Test
+    public void warp_yawLeftRotated90_shiftsMaskDown() {
+        assertYawShift(90, 0, 1); // image x goes along rotated y
+    }
+
+    @Test
+    public void warp_yawLeftRotated180_shiftsMaskLeft() {
+        assertYawShift(180, -1, 0);
+    }
+
+    @Test
+    public void warp_yawLeftRotated270_shiftsMaskUp() {
+        assertYawShift(270, 0, -1);
+    }
+
+    @Test
+    public void warp_unknownPose_copiesMask() {
+        KeyframeMaskWarper warper = warper(90);
+        int[] mask = indexMask(IMAGE_WIDTH * IMAGE_HEIGHT / (SCALE * SCALE));
+        int[] out = new int[mask.length];
+        assertFalse(warper.warp(null, out, FILL));
+
+        warper.setKeyframeMask(mask, KEYFRAME_ROTATION);
+        assertTrue(warper.warp(null, out, FILL));
+        assertArrayEquals(mask, out);
+        assertEquals(1, warper.getKeyframes());
+        assertEquals(1, warper.getWarpedFrames());
+    }
+
+    @Test
+    public void isKeyframe_byInterval() {
+        KeyframeMaskWarper warper = warper(0);
+        warper.setKeyframeInterval(3);
+        boolean[] expected = {true, false, false, true, false, false, true};
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals("frame " + i, expected[i], warper.isKeyframe(null, null));
+        }
+        // same with unchanged pose
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals("frame " + i, i % 3 == 0, warper.isKeyframe(KEYFRAME_ROTATION, ORIGIN));
+        }
+    }
+
+    @Test
+    public void isKeyframe_byRotation() {
+        KeyframeMaskWarper warper = warper(0);
+        warper.setKeyframeInterval(100);
+        warper.setMaxRotationDegrees(3);
+        assertTrue(warper.isKeyframe(KEYFRAME_ROTATION, ORIGIN));
+
+        assertFalse(warper.isKeyframe(multiply(KEYFRAME_ROTATION,
+                axisAngle(0, 1, 0, Math.toRadians(2))), ORIGIN));
+        float[] turned = multiply(KEYFRAME_ROTATION, axisAngle(1, 0, 0, Math.toRadians(4)));
+        assertTrue(warper.isKeyframe(turned, ORIGIN));
+        // measured from new keyframe now
+        assertFalse(warper.isKeyframe(turned, ORIGIN));
+        assertFalse(warper.isKeyframe(multiply(turned, axisAngle(0, 0, 1, Math.toRadians(-2))), ORIGIN));
+    }
+
+    @Test
+    public void isKeyframe_byTranslation() {
+        KeyframeMaskWarper warper = warper(0);
+        warper.setKeyframeInterval(100);
+        warper.setMaxTranslationMeters(5);
+        assertTrue(warper.isKeyframe(KEYFRAME_ROTATION, ORIGIN));
+
+        assertFalse(warper.isKeyframe(KEYFRAME_ROTATION, new float[]{0, 0, -4}));
+        assertTrue(warper.isKeyframe(KEYFRAME_ROTATION, new float[]{3, 0, -4.5f}));
+        assertFalse(warper.isKeyframe(KEYFRAME_ROTATION, new float[]{3, 0, -8}));
+        assertTrue(warper.isKeyframe(KEYFRAME_ROTATION, new float[]{3, 0, -10}));
+    }
+}
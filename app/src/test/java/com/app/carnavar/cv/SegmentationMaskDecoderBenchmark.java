@@ -0,0 +1,149 @@
+package com.app.carnavar.cv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mask decoding of canned deeplab output (257x257x21 floats in direct native order buffer, as tflite fills it):
+ * getFloat per pixel per class as TFLiteImageSemanticSegmenter did vs SegmentationMaskDecoder, on calling thread
+ * and in row bands on ForkJoinPool. Run with main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentationMaskDecoderBenchmark {
+
+    static final int SIZE = 257; // MobileNetDeepLabV3Float input
+    static final int NUM_CLASSES = 21;
+
+    // street-like scene: sky, buildings, road with cars, scores are noisy logits with true class on top
+    static ByteBuffer cannedOutput(int width, int height, int numClasses, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer output = ByteBuffer.allocateDirect(width * height * numClasses * 4)
+                .order(ByteOrder.nativeOrder());
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int cl;
+                if (y < height / 3) {
+                    cl = 0;
+                } else if (y < height / 2) {
+                    cl = 1 + x * 4 / width;
+                } else if ((x / 40) % 3 == 1 && y < height * 3 / 4) {
+                    cl = 7; // car
+                } else {
+                    cl = 15;
+                }
+                for (int c = 0; c < numClasses; ++c) {
+                    float v = (float) (random.nextGaussian() * 2);
+                    output.putFloat(c == cl ? v + 5 : v);
+                }
+            }
+        }
+        output.rewind();
+        return output;
+    }
+
+    // decoding loop of TFLiteImageSemanticSegmenter before SegmentationMaskDecoder, returns hit classes count
+    static int decodeByGetFloat(ByteBuffer output, int width, int height, int numClasses, int[] palette,
+                                int[] pixels, boolean[] hits, int[] hitOrder) {
+        int hitCount = 0;
+        for (int c = 0; c < numClasses; c++) {
+            hits[c] = false;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float maxPredictionVal = -0xFF;
+                int cl = -1;
+                for (int c = 0; c < numClasses; c++) {
+                    float predictionVal = output.getFloat((y * width * numClasses + x * numClasses + c) * 4);
+                    if (c == 0 || predictionVal > maxPredictionVal) {
+                        maxPredictionVal = predictionVal;
+                        cl = c;
+                    }
+                }
+                if (!hits[cl]) {
+                    hits[cl] = true;
+                    hitOrder[hitCount++] = cl;
+                }
+                pixels[y * width + x] = palette[cl];
+            }
+        }
+        return hitCount;
+    }
+
+    static int[] palette(int numClasses) {
+        int[] palette = new int[numClasses];
+        for (int c = 0; c < numClasses; ++c) {
+            palette[c] = 0xFF000000 | (c * 0x0B3A57);
+        }
+        return palette;
+    }
+
+    private ByteBuffer output;
+    private FloatBuffer floatOutput;
+    private final int[] palette = palette(NUM_CLASSES);
+    private final int[] pixels = new int[SIZE * SIZE];
+    private final boolean[] hits = new boolean[NUM_CLASSES];
+    private final int[] hitOrder = new int[NUM_CLASSES];
+    private SegmentationMaskDecoder decoder;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        output = cannedOutput(SIZE, SIZE, NUM_CLASSES, 1);
+        floatOutput = output.asFloatBuffer();
+        decoder = new SegmentationMaskDecoder(SIZE, SIZE, NUM_CLASSES);
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int[] getFloatLoop() {
+        decodeByGetFloat(output, SIZE, SIZE, NUM_CLASSES, palette, pixels, hits, hitOrder);
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] decoder() {
+        decoder.decode(floatOutput, palette, pixels, null);
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] decoderBands() {
+        decoder.decode(floatOutput, palette, pixels, pool);
+        return pixels;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SegmentationMaskDecoderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
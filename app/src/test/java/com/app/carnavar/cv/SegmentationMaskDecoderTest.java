@@ -0,0 +1,77 @@
+package com.app.carnavar.cv;
+
+import com.app.carnavar.AllocationCounter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.app.carnavar.cv.SegmentationMaskDecoderBenchmark.NUM_CLASSES;
+import static com.app.carnavar.cv.SegmentationMaskDecoderBenchmark.SIZE;
+import static org.junit.Assert.*;
+
+public class SegmentationMaskDecoderTest {
+
+    private static final ByteBuffer OUTPUT = SegmentationMaskDecoderBenchmark.cannedOutput(SIZE, SIZE, NUM_CLASSES, 2);
+    private static final int[] PALETTE = SegmentationMaskDecoderBenchmark.palette(NUM_CLASSES);
+
+    private static void assertEqualsGetFloatLoop(SegmentationMaskDecoder decoder, ForkJoinPool pool) {
+        int[] expected = new int[SIZE * SIZE];
+        boolean[] hits = new boolean[NUM_CLASSES];
+        int[] hitOrder = new int[NUM_CLASSES];
+        int hitCount = SegmentationMaskDecoderBenchmark.decodeByGetFloat(OUTPUT, SIZE, SIZE, NUM_CLASSES, PALETTE,
+                expected, hits, hitOrder);
+
+        int[] pixels = new int[SIZE * SIZE];
+        FloatBuffer floatOutput = OUTPUT.asFloatBuffer();
+        floatOutput.position(100); // position is ignored
+        decoder.decode(floatOutput, PALETTE, pixels, pool);
+
+        assertArrayEquals(expected, pixels);
+        assertArrayEquals(hits, decoder.getHitClasses());
+        assertEquals(hitCount, decoder.getHitClassesCount());
+        for (int i = 0; i < hitCount; ++i) {
+            assertEquals(hitOrder[i], decoder.getHitClass(i));
+        }
+    }
+
+    @Test
+    public void decode_cannedOutput_equalsGetFloatLoop() {
+        assertEqualsGetFloatLoop(new SegmentationMaskDecoder(SIZE, SIZE, NUM_CLASSES, 1), null);
+    }
+
+    @Test
+    public void decode_bandsOnPool_equalsGetFloatLoop() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            SegmentationMaskDecoder decoder = new SegmentationMaskDecoder(SIZE, SIZE, NUM_CLASSES, 4);
+            assertEqualsGetFloatLoop(decoder, pool);
+            assertEqualsGetFloatLoop(decoder, pool); // tasks are reused
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void decode_tiesAndFewRows_firstMaxWins() {
+        float[] scores = {1, 3, 3, 0, 2, 2, 2, 2}; // 2 pixels of 4 classes
+        SegmentationMaskDecoder decoder = new SegmentationMaskDecoder(2, 1, 4, 8); // one band for one row
+        int[] pixels = new int[2];
+        decoder.decode(FloatBuffer.wrap(scores), new int[]{10, 11, 12, 13}, pixels, null);
+        assertArrayEquals(new int[]{11, 10}, pixels);
+        assertEquals(2, decoder.getHitClassesCount());
+        assertEquals(1, decoder.getHitClass(0));
+        assertEquals(0, decoder.getHitClass(1));
+    }
+
+    @Test
+    public void decode_sequential_doesNotAllocate() {
+        final SegmentationMaskDecoder decoder = new SegmentationMaskDecoder(SIZE, SIZE, NUM_CLASSES, 1);
+        final FloatBuffer floatOutput = OUTPUT.asFloatBuffer();
+        final int[] pixels = new int[SIZE * SIZE];
+        long bytes = AllocationCounter.measure(20, 100, () -> decoder.decode(floatOutput, PALETTE, pixels, null));
+        assertTrue("decode allocated " + bytes + " bytes", bytes < 1024);
+    }
+}
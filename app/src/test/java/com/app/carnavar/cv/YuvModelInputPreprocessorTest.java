@@ -0,0 +1,79 @@
+package com.app.carnavar.cv;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class YuvModelInputPreprocessorTest {
+
+    private static final int SRC_WIDTH = 64;
+    private static final int SRC_HEIGHT = 48;
+    private static final int DST_SIZE = 33;
+    private static final float MEAN = 128f;
+    private static final float STD = 128f;
+
+    private static ByteBuffer direct(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static ByteBuffer output() {
+        return ByteBuffer.allocateDirect(DST_SIZE * DST_SIZE * 3 * 4).order(ByteOrder.nativeOrder());
+    }
+
+    // padded strides and interleaved chroma (uvPixelStride 2), as camera planes are
+    private void assertProcessEqualsReference(int rotationDegrees, int uvPixelStride) {
+        int yRowStride = SRC_WIDTH + 16;
+        int uvRowStride = SRC_WIDTH / 2 * uvPixelStride + 8;
+        byte[] y = new byte[yRowStride * SRC_HEIGHT];
+        byte[] u = new byte[uvRowStride * SRC_HEIGHT / 2];
+        byte[] v = new byte[uvRowStride * SRC_HEIGHT / 2];
+        Random random = new Random(rotationDegrees * 31 + uvPixelStride);
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+
+        YuvModelInputPreprocessor preprocessor = new YuvModelInputPreprocessor(SRC_WIDTH, SRC_HEIGHT,
+                rotationDegrees, DST_SIZE, DST_SIZE, MEAN, STD);
+        ByteBuffer fused = output();
+        ByteBuffer reference = output();
+        ByteBuffer yPlane = direct(y);
+        preprocessor.process(yPlane, direct(u), direct(v), yRowStride, uvRowStride, uvPixelStride, fused);
+        preprocessor.processReference(y, u, v, yRowStride, uvRowStride, uvPixelStride, reference);
+
+        assertEquals(reference.position(), fused.position());
+        assertEquals(0, yPlane.position()); // planes are read by absolute indexes
+        fused.rewind();
+        reference.rewind();
+        for (int i = 0; i < DST_SIZE * DST_SIZE * 3; ++i) {
+            assertEquals("value " + i, reference.getFloat(), fused.getFloat(), 0f);
+        }
+    }
+
+    @Test
+    public void process_equalsReference_allRotations() {
+        for (int rotation : new int[]{0, 90, 180, 270}) {
+            assertProcessEqualsReference(rotation, 2);
+            assertProcessEqualsReference(rotation, 1);
+        }
+    }
+
+    @Test
+    public void rotatedSize_swapsForQuarterTurns() {
+        YuvModelInputPreprocessor preprocessor = new YuvModelInputPreprocessor(SRC_WIDTH, SRC_HEIGHT, 90,
+                DST_SIZE, DST_SIZE, MEAN, STD);
+        assertEquals(SRC_HEIGHT, preprocessor.getRotatedWidth());
+        assertEquals(SRC_WIDTH, preprocessor.getRotatedHeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rotation_notQuarterTurn_throws() {
+        new YuvModelInputPreprocessor(SRC_WIDTH, SRC_HEIGHT, 45, DST_SIZE, DST_SIZE, MEAN, STD);
+    }
+}
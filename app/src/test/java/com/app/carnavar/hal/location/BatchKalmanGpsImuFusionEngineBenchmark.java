@@ -0,0 +1,137 @@
+package com.app.carnavar.hal.location;
+
+import com.app.carnavar.hal.location.KalmanGpsImuFusionEngine.KalmanOptions;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fleet replay throughput in tracks/sec (the "tracks" counter): one 100 Hz predict step of every track
+ * with a gps fix every 100th step, single-track engines vs batch engine on calling thread and on fork-join pool.
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchKalmanGpsImuFusionEngineBenchmark {
+
+    @Param({"1000", "100000"})
+    public int tracks;
+
+    private KalmanGpsImuFusionEngine[] engines;
+    private BatchKalmanGpsImuFusionEngine batch;
+    private ForkJoinPool pool;
+    private double[] ax, ay, times, xs, ys, vels, posVariances, velVariances;
+    private int step;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class TrackCounter {
+        public long tracks;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        KalmanOptions options = KalmanOptions.Options().useFlatMatrixStorage(true)
+                .useJosephCovarianceUpdate(true).useSequentialUpdate(true);
+        engines = new KalmanGpsImuFusionEngine[tracks];
+        batch = new BatchKalmanGpsImuFusionEngine(tracks, options);
+        pool = new ForkJoinPool();
+        ax = new double[tracks];
+        ay = new double[tracks];
+        times = new double[tracks];
+        xs = new double[tracks];
+        ys = new double[tracks];
+        vels = new double[tracks];
+        posVariances = new double[tracks];
+        velVariances = new double[tracks];
+        for (int t = 0; t < tracks; ++t) {
+            engines[t] = new KalmanGpsImuFusionEngine(options);
+            engines[t].init(t, -t, 0, 0, 4.0, 0);
+            batch.init(t, t, -t, 0, 0, 4.0, 0);
+            ax[t] = (t % 7) * 0.1;
+            ay[t] = (t % 5) * -0.1;
+            posVariances[t] = 4.0;
+            velVariances[t] = 0.25;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    // advances replay clock by 10 ms, returns true when gps fix is due
+    private boolean nextStep() {
+        ++step;
+        double time = step * 10.0;
+        for (int t = 0; t < tracks; ++t) {
+            times[t] = time;
+            xs[t] = t + step * 0.01;
+            ys[t] = -t - step * 0.01;
+        }
+        return step % 100 == 0;
+    }
+
+    @Benchmark
+    public double singleTrackEngines(TrackCounter counter) {
+        boolean fix = nextStep();
+        double sum = 0;
+        for (int t = 0; t < tracks; ++t) {
+            KalmanGpsImuFusionEngine engine = engines[t];
+            engine.predict(ax[t], ay[t], times[t]);
+            if (fix) {
+                engine.update(xs[t], ys[t], 0, 0, posVariances[t], velVariances[t], times[t]);
+            }
+            sum += engine.getCurrentX();
+        }
+        counter.tracks += tracks;
+        return sum;
+    }
+
+    private double batchStep(ForkJoinPool pool, TrackCounter counter) {
+        boolean fix = nextStep();
+        batch.predict(ax, ay, times, null, pool);
+        if (fix) {
+            batch.update(xs, ys, vels, vels, posVariances, velVariances, times, null, null, pool);
+        }
+        counter.tracks += tracks;
+        return batch.getCurrentX(tracks - 1);
+    }
+
+    @Benchmark
+    public double batchEngine(TrackCounter counter) {
+        return batchStep(null, counter);
+    }
+
+    @Benchmark
+    public double batchEngineForkJoin(TrackCounter counter) {
+        return batchStep(pool, counter);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BatchKalmanGpsImuFusionEngineBenchmark.class.getSimpleName()).build()).run();
+    }
+}
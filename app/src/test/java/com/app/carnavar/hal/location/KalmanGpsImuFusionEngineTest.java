@@ -0,0 +1,231 @@
+package com.app.carnavar.hal.location;
+
+import com.app.carnavar.AllocationCounter;
+import com.app.carnavar.ImuTrace;
+import com.app.carnavar.hal.location.KalmanGpsImuFusionEngine.KalmanOptions;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KalmanGpsImuFusionEngineTest {
+
+    // measuring itself can allocate a few bytes, a boxed double or matrix per step would be megabytes
+    private static final long ALLOCATION_SLACK_BYTES = 1024;
+
+    // 100 Hz imu predicts with 1 Hz gps fixes, constant acceleration on x
+    private static final class Drive implements Runnable {
+        final KalmanGpsImuFusionEngine engine;
+        double timeMs = 0;
+        int step = 0;
+
+        Drive(KalmanGpsImuFusionEngine engine) {
+            this.engine = engine;
+            engine.init(0, 0, 0, 0, 1.0, 0);
+        }
+
+        @Override
+        public void run() {
+            timeMs += 10;
+            engine.predict(0.5, 0.0, timeMs);
+            if (++step % 100 == 0) {
+                double t = timeMs / 1000.0;
+                engine.update(0.25 * t * t, 0, 0.5 * t, 0, 4.0, 0.25, timeMs);
+            }
+        }
+    }
+
+    private static void assertNoAllocations(KalmanOptions options) {
+        Drive drive = new Drive(new KalmanGpsImuFusionEngine(options));
+        long bytes = AllocationCounter.measure(20000, 20000, drive);
+        assertTrue("steady-state predict/update allocated " + bytes + " bytes",
+                bytes < ALLOCATION_SLACK_BYTES);
+    }
+
+    @Test
+    public void predictUpdate_defaultStorage_doesNotAllocate() {
+        assertNoAllocations(KalmanOptions.Options());
+    }
+
+    @Test
+    public void predictUpdate_flatStorageWithGpsSpeed_doesNotAllocate() {
+        assertNoAllocations(KalmanOptions.Options().useFlatMatrixStorage(true).useGpsSpeed(true));
+    }
+
+    @Test
+    public void predictUpdate_josephSequential_doesNotAllocate() {
+        assertNoAllocations(KalmanOptions.Options().useFlatMatrixStorage(true)
+                .useJosephCovarianceUpdate(true).useSequentialUpdate(true));
+    }
+
+    // stop-and-go drive along x (ImuTrace speed profile): 100 Hz predicts with biased noisy acceleration,
+    // 1 Hz noisy gps fixes. While standing (1 s after stop, as StationaryDetector reports it) predicts are
+    // replaced by 5 Hz zero-velocity updates as GpsImuService does, fixes are applied still
+    private static final class StopAndGo {
+        static final double ACC_BIAS = 0.1; // m/s^2
+        static final double STOP_START_SEC = 36, DETECTION_SEC = 1; // in stop-and-go period
+        static final double SETTLING_SEC = 1; // zero-velocity updates remove velocity left from braking
+        static final double ZERO_VELOCITY_VARIANCE = 0.01; // as GpsImuFusionLocationThread
+
+        double maxStopSpeed = 0; // m/s, of estimate while standing after settling
+        double maxStopPositionError = 0; // m
+
+        StopAndGo(KalmanOptions options, boolean zeroVelocityUpdates, int periods) {
+            KalmanGpsImuFusionEngine engine = new KalmanGpsImuFusionEngine(options);
+            Random random = new Random(3);
+            engine.init(0, 0, 0, 0, 4.0, 0);
+            double position = 0;
+            for (int step = 1; step <= periods * ImuTrace.STOP_AND_GO_PERIOD_SEC * 100; ++step) {
+                double timeMs = step * 10;
+                double t = timeMs / 1000.0;
+                position += ImuTrace.syntheticSpeed(t) * 0.01;
+                double p = t % ImuTrace.STOP_AND_GO_PERIOD_SEC;
+                boolean stationary = zeroVelocityUpdates && p >= STOP_START_SEC + DETECTION_SEC;
+                if (!stationary) {
+                    engine.predict(ImuTrace.syntheticLongitudinalAcceleration(t) + ACC_BIAS
+                            + random.nextGaussian() * 0.05, 0, timeMs);
+                } else if (step % 20 == 0) {
+                    engine.zeroVelocityUpdate(ZERO_VELOCITY_VARIANCE, timeMs);
+                }
+                if (step % 100 == 0) {
+                    engine.update(position + random.nextGaussian() * 2, random.nextGaussian() * 2,
+                            ImuTrace.syntheticSpeed(t) + random.nextGaussian() * 0.3, random.nextGaussian() * 0.3,
+                            4.0, 0.09, timeMs);
+                }
+                if (p >= STOP_START_SEC + DETECTION_SEC + SETTLING_SEC) {
+                    maxStopSpeed = Math.max(maxStopSpeed, Math.hypot(engine.getCurrentXVel(),
+                            engine.getCurrentYVel()));
+                    maxStopPositionError = Math.max(maxStopPositionError,
+                            Math.abs(engine.getCurrentX() - position));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stopAndGo_zeroVelocityUpdates_keepStandingVehicleStill() {
+        KalmanOptions options = KalmanOptions.Options();
+        StopAndGo predicts = new StopAndGo(options, false, 3);
+        StopAndGo zeroVelocity = new StopAndGo(options, true, 3);
+        assertTrue("max speed while standing " + zeroVelocity.maxStopSpeed, zeroVelocity.maxStopSpeed < 0.05);
+        assertTrue("max speed while standing " + zeroVelocity.maxStopSpeed + " vs " + predicts.maxStopSpeed
+                + " with predicts", zeroVelocity.maxStopSpeed < predicts.maxStopSpeed / 4);
+        assertTrue("max position error while standing " + zeroVelocity.maxStopPositionError,
+                zeroVelocity.maxStopPositionError < 5);
+    }
+
+    @Test
+    public void stopAndGo_zeroVelocityUpdatesWithHistory_keepStandingVehicleStill() {
+        StopAndGo zeroVelocity = new StopAndGo(KalmanOptions.Options().setStateHistorySize(64), true, 3);
+        assertTrue("max speed while standing " + zeroVelocity.maxStopSpeed, zeroVelocity.maxStopSpeed < 0.05);
+    }
+
+    @Test
+    public void zeroVelocityUpdate_thenFix_startsFromCorrectedState() {
+        KalmanGpsImuFusionEngine engine = new KalmanGpsImuFusionEngine(KalmanOptions.Options());
+        engine.init(0, 0, 5, 0, 1.0, 0);
+        engine.predict(0, 0, 100);
+        engine.zeroVelocityUpdate(1e-4, 200);
+        double x = engine.getCurrentX();
+        assertEquals(0, engine.getCurrentXVel(), 0.01);
+
+        // no predict between: fix is applied to state of zero-velocity update, not to predict before it
+        engine.update(x, 0, 0, 0, 4.0, 0.25, 200);
+        assertEquals(0, engine.getCurrentXVel(), 0.01);
+        assertEquals(x, engine.getCurrentX(), 0.01);
+    }
+
+    // 100 Hz predicts with random acceleration, zero-velocity update every 0.5 s and 1 Hz fix,
+    // fix is delivered fixDelay predicts after its timestamp (0 - in sequence)
+    private static final class DelayedFixes {
+        static final int STEPS = 3000;
+
+        final KalmanGpsImuFusionEngine engine;
+        final double[][] states = new double[STEPS + 1][];
+
+        DelayedFixes(KalmanOptions options, int fixDelay) {
+            engine = new KalmanGpsImuFusionEngine(options);
+            engine.init(0, 0, 1, 0, 4.0, 0);
+            Random random = new Random(7);
+            double[] pendingFix = null;
+            for (int step = 1; step <= STEPS; ++step) {
+                double timeMs = step * 10;
+                if (step % 50 == 25) {
+                    engine.zeroVelocityUpdate(0.5, timeMs);
+                } else {
+                    engine.predict(random.nextGaussian(), random.nextGaussian(), timeMs);
+                }
+                if (step % 100 == 0) {
+                    // between this predict and the next one
+                    pendingFix = new double[]{random.nextGaussian() * 10, random.nextGaussian() * 10,
+                            random.nextGaussian(), random.nextGaussian(), 4.0, 0.25, timeMs + 5};
+                }
+                if (pendingFix != null && step == (long) pendingFix[6] / 10 + fixDelay) {
+                    engine.update(pendingFix[0], pendingFix[1], pendingFix[2], pendingFix[3],
+                            pendingFix[4], pendingFix[5], pendingFix[6]);
+                    pendingFix = null;
+                }
+                states[step] = new double[]{engine.getCurrentX(), engine.getCurrentY(),
+                        engine.getCurrentXVel(), engine.getCurrentYVel()};
+            }
+        }
+    }
+
+    private static void assertLateFixesReplayExactly(int historySize) {
+        KalmanOptions inOrderOptions = KalmanOptions.Options().useGpsSpeed(true);
+        DelayedFixes inOrder = new DelayedFixes(inOrderOptions, 0);
+        DelayedFixes late = new DelayedFixes(KalmanOptions.Options().useGpsSpeed(true)
+                .setStateHistorySize(historySize), 7);
+
+        assertEquals(DelayedFixes.STEPS / 100 - 1, late.engine.getOutOfSequenceUpdates()); // last isn't delivered
+        assertEquals(0, late.engine.getTooOldUpdates());
+        // once fix is delivered state is the same as if it came in time
+        for (int step = 100; step <= DelayedFixes.STEPS; step += 100) {
+            for (int i = step + 7; i < Math.min(step + 100, DelayedFixes.STEPS + 1); ++i) {
+                assertArrayEquals("step " + i, inOrder.states[i], late.states[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void update_fixSevenPredictsLate_matchesInOrderProcessing() {
+        assertLateFixesReplayExactly(256);
+    }
+
+    @Test
+    public void update_fixLateInWrappedSmallHistory_matchesInOrderProcessing() {
+        assertLateFixesReplayExactly(16); // ring wraps many times, full history drops oldest on insert
+    }
+
+    @Test
+    public void update_fixOlderThanHistory_isAppliedAsCurrentAndClearsHistory() {
+        KalmanGpsImuFusionEngine engine = new KalmanGpsImuFusionEngine(KalmanOptions.Options()
+                .setStateHistorySize(16));
+        KalmanGpsImuFusionEngine current = new KalmanGpsImuFusionEngine(KalmanOptions.Options());
+        engine.init(0, 0, 1, 0, 4.0, 0);
+        current.init(0, 0, 1, 0, 4.0, 0);
+        for (int step = 1; step <= 40; ++step) {
+            engine.predict(0.5, -0.5, step * 10);
+            current.predict(0.5, -0.5, step * 10);
+        }
+
+        engine.update(3, -3, 0, 0, 4.0, 0.25, 105); // 16 events kept back to 250 ms
+        current.update(3, -3, 0, 0, 4.0, 0.25, 105);
+
+        assertEquals(1, engine.getOutOfSequenceUpdates());
+        assertEquals(1, engine.getTooOldUpdates());
+        assertEquals(current.getCurrentX(), engine.getCurrentX(), 0.0);
+        assertEquals(current.getCurrentY(), engine.getCurrentY(), 0.0);
+        assertEquals(current.getCurrentXVel(), engine.getCurrentXVel(), 0.0);
+        assertEquals(current.getCurrentYVel(), engine.getCurrentYVel(), 0.0);
+
+        // history is empty after it: fix older than both new predicts has nothing to be replayed from
+        engine.predict(0.5, -0.5, 410);
+        engine.predict(0.5, -0.5, 420);
+        engine.update(3, -3, 0, 0, 4.0, 0.25, 405);
+        assertEquals(2, engine.getOutOfSequenceUpdates());
+        assertEquals(2, engine.getTooOldUpdates());
+    }
+}
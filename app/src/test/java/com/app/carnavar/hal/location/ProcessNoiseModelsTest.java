@@ -0,0 +1,56 @@
+package com.app.carnavar.hal.location;
+
+import com.app.carnavar.hal.location.ProcessNoiseModels.ProcessNoiseModel;
+import com.app.carnavar.utils.math.Matrix2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProcessNoiseModelsTest {
+
+    // P = F*P*F(t) + Q over one second split into steps, starting from P = 0
+    private static Matrix2 propagate(ProcessNoiseModel model, double deviance, int steps) {
+        double dt = 1.0 / steps;
+        Matrix2 f = new Matrix2(4, 4), q = new Matrix2(4, 4), p = new Matrix2(4, 4);
+        Matrix2 fp = new Matrix2(4, 4), fpft = new Matrix2(4, 4);
+        f.setIdentity();
+        f.set(0, 2, dt);
+        f.set(1, 3, dt);
+        for (int i = 0; i < steps; ++i) {
+            model.rebuildQ(q, dt, (i + 1) * dt, deviance);
+            Matrix2.matrixMultiply(f, p, fp);
+            Matrix2.matrixMultiplyByTranspose(fp, f, fpft);
+            Matrix2.matrixAdd(fpft, q, p);
+        }
+        return p;
+    }
+
+    private static void assertRateIndependent(ProcessNoiseModel model) {
+        Matrix2 reference = propagate(model, 0.5, 1);
+        for (int steps : new int[]{10, 100, 1000}) {
+            Matrix2 p = propagate(model, 0.5, steps);
+            for (int r = 0; r < 4; ++r) {
+                for (int c = 0; c < 4; ++c) {
+                    assertEquals("steps " + steps, reference.get(r, c), p.get(r, c),
+                            1e-9 * Math.max(1.0, Math.abs(reference.get(r, c))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void whiteNoiseAcceleration_doesNotDependOnStepRate() {
+        assertRateIndependent(new ProcessNoiseModels.WhiteNoiseAcceleration());
+        // velocity variance grows by deviance^2 per second
+        assertEquals(0.25, propagate(new ProcessNoiseModels.WhiteNoiseAcceleration(), 0.5, 100).get(2, 2), 1e-12);
+    }
+
+    @Test
+    public void singer_doesNotDependOnStepRateOrVanish() {
+        ProcessNoiseModels.Singer singer = new ProcessNoiseModels.Singer(3.0);
+        assertRateIndependent(singer);
+        // spectral density 2 * sigma^2 * tau
+        assertEquals(2.0 * 0.25 * 3.0, propagate(singer, 0.5, 1000).get(2, 2), 1e-9);
+    }
+}
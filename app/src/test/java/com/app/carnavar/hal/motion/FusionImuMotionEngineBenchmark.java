@@ -0,0 +1,183 @@
+package com.app.carnavar.hal.motion;
+
+import com.app.carnavar.ImuTrace;
+import com.app.carnavar.hal.sensors.SensorTypes;
+import com.app.carnavar.utils.math.Quaternion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accelerometer to world rotation of FusionImuMotionEngine replayed over accelerometer and rotation vector
+ * samples of an imu trace (see ImuTrace, -Dimu.trace=<csv> replays a recording), ns per sample:
+ * general 4x4 inverse and declination trig per accelerometer sample (as before caching) vs transpose
+ * on orientation change and cached declination sin/cos.
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FusionImuMotionEngineBenchmark {
+
+    private static final float DECLINATION_DEG = 11.5f;
+
+    private int[] sensorTypes;
+    private float[][] samples;
+    private int cursor;
+
+    private final Quaternion orientation = new Quaternion();
+    private final float[] rotation = new float[16];
+    private final float[] inverse = new float[16];
+    private final float[] accelerations = new float[]{0, 0, 0, 0};
+    private final float[] world = new float[4];
+    private boolean inverseDirty = true;
+    private double declinationSin, declinationCos;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ImuTrace trace = ImuTrace.recordedOrSynthetic(600);
+        int n = 0;
+        for (int i = 0; i < trace.size(); ++i) {
+            if (isReplayed(trace.getSensorType(i))) ++n;
+        }
+        sensorTypes = new int[n];
+        samples = new float[n][ImuTrace.VALUES_PER_SAMPLE];
+        n = 0;
+        for (int i = 0; i < trace.size(); ++i) {
+            if (isReplayed(trace.getSensorType(i))) {
+                sensorTypes[n] = trace.getSensorType(i);
+                trace.getValues(i, samples[n++]);
+            }
+        }
+        double declinationRad = Math.toRadians(DECLINATION_DEG);
+        declinationSin = Math.sin(declinationRad);
+        declinationCos = Math.cos(declinationRad);
+    }
+
+    private static boolean isReplayed(int sensorType) {
+        return sensorType == SensorTypes.FULL_ACCELERATION || sensorType == SensorTypes.ORIENTATION_ROTATION_VECTOR;
+    }
+
+    // returns accelerometer sample to process or null after orientation update
+    private float[] next() {
+        int i = cursor;
+        cursor = i + 1 == sensorTypes.length ? 0 : i + 1;
+        float[] v = samples[i];
+        if (sensorTypes[i] == SensorTypes.ORIENTATION_ROTATION_VECTOR) {
+            orientation.setXYZW(v[0], v[1], v[2], v[3]);
+            orientation.toMatrix(rotation);
+            inverseDirty = true;
+            return null;
+        }
+        System.arraycopy(v, 0, accelerations, 0, 3);
+        return accelerations;
+    }
+
+    @Benchmark
+    public float inverseAndTrigPerSample() {
+        float[] v = next();
+        if (v == null) {
+            return 0;
+        }
+        invertGeneral(rotation, inverse);
+        double declinationRad = Math.toRadians(DECLINATION_DEG);
+        FusionImuMotionEngine.rotateToWorld(inverse, v, Math.sin(declinationRad), Math.cos(declinationRad), world);
+        return world[1];
+    }
+
+    @Benchmark
+    public float cachedTransposeAndTrig() {
+        float[] v = next();
+        if (v == null) {
+            return 0;
+        }
+        if (inverseDirty) {
+            FusionImuMotionEngine.transposeRotation(rotation, inverse);
+            inverseDirty = false;
+        }
+        FusionImuMotionEngine.rotateToWorld(inverse, v, declinationSin, declinationCos, world);
+        return world[1];
+    }
+
+    // cofactor inverse of column-major 4x4, same algorithm as android.opengl.Matrix.invertM
+    static boolean invertGeneral(float[] m, float[] inv) {
+        final float src0 = m[0], src4 = m[1], src8 = m[2], src12 = m[3];
+        final float src1 = m[4], src5 = m[5], src9 = m[6], src13 = m[7];
+        final float src2 = m[8], src6 = m[9], src10 = m[10], src14 = m[11];
+        final float src3 = m[12], src7 = m[13], src11 = m[14], src15 = m[15];
+
+        final float atmp0 = src10 * src15, atmp1 = src11 * src14, atmp2 = src9 * src15;
+        final float atmp3 = src11 * src13, atmp4 = src9 * src14, atmp5 = src10 * src13;
+        final float atmp6 = src8 * src15, atmp7 = src11 * src12, atmp8 = src8 * src14;
+        final float atmp9 = src10 * src12, atmp10 = src8 * src13, atmp11 = src9 * src12;
+
+        final float dst0 = (atmp0 * src5 + atmp3 * src6 + atmp4 * src7) - (atmp1 * src5 + atmp2 * src6 + atmp5 * src7);
+        final float dst1 = (atmp1 * src4 + atmp6 * src6 + atmp9 * src7) - (atmp0 * src4 + atmp7 * src6 + atmp8 * src7);
+        final float dst2 = (atmp2 * src4 + atmp7 * src5 + atmp10 * src7) - (atmp3 * src4 + atmp6 * src5 + atmp11 * src7);
+        final float dst3 = (atmp5 * src4 + atmp8 * src5 + atmp11 * src6) - (atmp4 * src4 + atmp9 * src5 + atmp10 * src6);
+        final float dst4 = (atmp1 * src1 + atmp2 * src2 + atmp5 * src3) - (atmp0 * src1 + atmp3 * src2 + atmp4 * src3);
+        final float dst5 = (atmp0 * src0 + atmp7 * src2 + atmp8 * src3) - (atmp1 * src0 + atmp6 * src2 + atmp9 * src3);
+        final float dst6 = (atmp3 * src0 + atmp6 * src1 + atmp11 * src3) - (atmp2 * src0 + atmp7 * src1 + atmp10 * src3);
+        final float dst7 = (atmp4 * src0 + atmp9 * src1 + atmp10 * src2) - (atmp5 * src0 + atmp8 * src1 + atmp11 * src2);
+
+        final float btmp0 = src2 * src7, btmp1 = src3 * src6, btmp2 = src1 * src7;
+        final float btmp3 = src3 * src5, btmp4 = src1 * src6, btmp5 = src2 * src5;
+        final float btmp6 = src0 * src7, btmp7 = src3 * src4, btmp8 = src0 * src6;
+        final float btmp9 = src2 * src4, btmp10 = src0 * src5, btmp11 = src1 * src4;
+
+        final float dst8 = (btmp0 * src13 + btmp3 * src14 + btmp4 * src15) - (btmp1 * src13 + btmp2 * src14 + btmp5 * src15);
+        final float dst9 = (btmp1 * src12 + btmp6 * src14 + btmp9 * src15) - (btmp0 * src12 + btmp7 * src14 + btmp8 * src15);
+        final float dst10 = (btmp2 * src12 + btmp7 * src13 + btmp10 * src15) - (btmp3 * src12 + btmp6 * src13 + btmp11 * src15);
+        final float dst11 = (btmp5 * src12 + btmp8 * src13 + btmp11 * src14) - (btmp4 * src12 + btmp9 * src13 + btmp10 * src14);
+        final float dst12 = (btmp2 * src10 + btmp5 * src11 + btmp1 * src9) - (btmp4 * src11 + btmp0 * src9 + btmp3 * src10);
+        final float dst13 = (btmp8 * src11 + btmp0 * src8 + btmp7 * src10) - (btmp6 * src10 + btmp9 * src11 + btmp1 * src8);
+        final float dst14 = (btmp6 * src9 + btmp11 * src11 + btmp3 * src8) - (btmp10 * src11 + btmp2 * src8 + btmp7 * src9);
+        final float dst15 = (btmp10 * src10 + btmp4 * src8 + btmp9 * src9) - (btmp8 * src9 + btmp11 * src10 + btmp5 * src8);
+
+        final float det = src0 * dst0 + src1 * dst1 + src2 * dst2 + src3 * dst3;
+        if (det == 0.0f) {
+            return false;
+        }
+        final float invdet = 1.0f / det;
+        inv[0] = dst0 * invdet;
+        inv[1] = dst1 * invdet;
+        inv[2] = dst2 * invdet;
+        inv[3] = dst3 * invdet;
+        inv[4] = dst4 * invdet;
+        inv[5] = dst5 * invdet;
+        inv[6] = dst6 * invdet;
+        inv[7] = dst7 * invdet;
+        inv[8] = dst8 * invdet;
+        inv[9] = dst9 * invdet;
+        inv[10] = dst10 * invdet;
+        inv[11] = dst11 * invdet;
+        inv[12] = dst12 * invdet;
+        inv[13] = dst13 * invdet;
+        inv[14] = dst14 * invdet;
+        inv[15] = dst15 * invdet;
+        return true;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FusionImuMotionEngineBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,65 @@
+package com.app.carnavar.hal.motion;
+
+import com.app.carnavar.ImuTrace;
+import com.app.carnavar.hal.sensors.SensorTypes;
+import com.app.carnavar.utils.math.Quaternion;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FusionImuMotionEngineTest {
+
+    // row-major rotation matrix as SensorManager.getRotationMatrixFromVector gives it
+    private static void rotationMatrix(Quaternion q, float[] rowMajor) {
+        float[] columnMajor = new float[16];
+        q.toMatrix(columnMajor);
+        FusionImuMotionEngine.transposeRotation(columnMajor, rowMajor);
+    }
+
+    @Test
+    public void transposeRotation_equalsGeneralInverse() {
+        ImuTrace trace = ImuTrace.synthesizeDrive(3, 60);
+        Quaternion q = new Quaternion();
+        float[] m = new float[16];
+        float[] transposed = new float[16];
+        float[] inverted = new float[16];
+        float[] v = new float[4];
+        int checked = 0;
+        for (int i = 0; i < trace.size(); ++i) {
+            if (trace.getSensorType(i) != SensorTypes.ORIENTATION_ROTATION_VECTOR) {
+                continue;
+            }
+            trace.getValues(i, v);
+            q.setXYZW(v[0], v[1], v[2], v[3]);
+            rotationMatrix(q, m);
+            FusionImuMotionEngine.transposeRotation(m, transposed);
+            assertTrue(FusionImuMotionEngineBenchmark.invertGeneral(m, inverted));
+            assertArrayEquals(inverted, transposed, 1e-5f);
+            ++checked;
+        }
+        assertTrue(checked > 1000);
+    }
+
+    @Test
+    public void rotateToWorld_forwardAcceleration_pointsAlongAzimuthPlusDeclination() {
+        double azimuth = Math.toRadians(30);
+        double declination = Math.toRadians(10);
+        Quaternion q = new Quaternion();
+        q.setXYZW(0, 0, (float) Math.sin(-azimuth / 2), (float) Math.cos(-azimuth / 2));
+        float[] m = new float[16];
+        float[] inv = new float[16];
+        rotationMatrix(q, m);
+        FusionImuMotionEngine.transposeRotation(m, inv);
+
+        float[] world = new float[4];
+        FusionImuMotionEngine.rotateToWorld(inv, new float[]{0, 2, 0, 0},
+                Math.sin(declination), Math.cos(declination), world);
+
+        // declination turns magnetic east/north frame counterclockwise
+        double angle = azimuth - declination;
+        assertEquals(2 * Math.sin(angle), world[0], 1e-5); // east
+        assertEquals(2 * Math.cos(angle), world[1], 1e-5); // north
+        assertEquals(0, world[2], 1e-5);
+    }
+}
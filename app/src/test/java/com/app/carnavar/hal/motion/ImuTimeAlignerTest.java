@@ -0,0 +1,144 @@
+package com.app.carnavar.hal.motion;
+
+import com.app.carnavar.utils.math.Quaternion;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ImuTimeAlignerTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long BUDGET_NANOS = 20 * MS;
+
+    // copies emitted samples, aligner reuses its output buffers
+    private static final class Collector implements ImuTimeAligner.AlignedSampleListener {
+        final List<float[]> accelerations = new ArrayList<>();
+        final List<Quaternion> orientations = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Boolean> interpolated = new ArrayList<>();
+
+        @Override
+        public void onAlignedSample(float[] accelerations, Quaternion orientation, long timeNanos,
+                                    boolean interpolated) {
+            this.accelerations.add(accelerations.clone());
+            Quaternion copy = new Quaternion();
+            copy.set(orientation);
+            orientations.add(copy);
+            timestamps.add(timeNanos);
+            this.interpolated.add(interpolated);
+        }
+
+        int size() {
+            return timestamps.size();
+        }
+    }
+
+    private static Quaternion yaw(double angle) {
+        Quaternion q = new Quaternion();
+        q.setXYZW(0, 0, (float) Math.sin(angle / 2), (float) Math.cos(angle / 2));
+        return q;
+    }
+
+    private static double yawOf(Quaternion q) {
+        return 2 * Math.atan2(q.getZ(), q.getW());
+    }
+
+    @Test
+    public void addAcceleration_betweenOrientations_slerpsToAccelerometerTimestamp() {
+        Collector collector = new Collector();
+        ImuTimeAligner aligner = new ImuTimeAligner(8, 8, BUDGET_NANOS, collector);
+        long t0 = 1000 * MS;
+        aligner.addOrientation(yaw(0), t0);
+        aligner.addAcceleration(new float[]{1, 2, 3}, t0 + 5 * MS);
+        assertEquals("waits for next orientation", 0, collector.size());
+
+        aligner.addOrientation(yaw(Math.toRadians(80)), t0 + 20 * MS);
+
+        assertEquals(1, collector.size());
+        assertTrue(collector.interpolated.get(0));
+        assertEquals(t0 + 5 * MS, (long) collector.timestamps.get(0));
+        assertArrayEquals(new float[]{1, 2, 3}, collector.accelerations.get(0), 0f);
+        assertEquals(Math.toRadians(20), yawOf(collector.orientations.get(0)), 1e-5);
+        assertEquals(1, aligner.getInterpolatedSamples());
+        assertEquals(0, aligner.getHeldSamples());
+    }
+
+    @Test
+    public void addAcceleration_orientationLate_waitsLatencyBudgetThenHoldsNewest() {
+        Collector collector = new Collector();
+        ImuTimeAligner aligner = new ImuTimeAligner(8, 8, BUDGET_NANOS, collector);
+        long t0 = 1000 * MS;
+        Quaternion newest = yaw(Math.toRadians(30));
+        aligner.addOrientation(yaw(0), t0 - 10 * MS);
+        aligner.addOrientation(newest, t0);
+        aligner.addAcceleration(new float[]{1, 0, 0}, t0 + MS);
+        aligner.addAcceleration(new float[]{2, 0, 0}, t0 + MS + BUDGET_NANOS);
+        assertEquals("budget isn't exceeded yet", 0, collector.size());
+
+        aligner.addAcceleration(new float[]{3, 0, 0}, t0 + 2 * MS + BUDGET_NANOS);
+
+        assertEquals(1, collector.size());
+        assertFalse(collector.interpolated.get(0));
+        assertEquals(t0 + MS, (long) collector.timestamps.get(0));
+        assertEquals(1, collector.accelerations.get(0)[0], 0f);
+        assertEquals(yawOf(newest), yawOf(collector.orientations.get(0)), 1e-6);
+        assertEquals(1, aligner.getHeldSamples());
+        assertEquals(0, aligner.getInterpolatedSamples());
+    }
+
+    @Test
+    public void addAcceleration_budgetExceededWithoutOrientation_isDropped() {
+        Collector collector = new Collector();
+        ImuTimeAligner aligner = new ImuTimeAligner(8, 8, BUDGET_NANOS, collector);
+        long t0 = 1000 * MS;
+        aligner.addAcceleration(new float[]{1, 0, 0}, t0);
+        aligner.addAcceleration(new float[]{2, 0, 0}, t0 + BUDGET_NANOS + MS);
+
+        assertEquals(0, collector.size());
+        assertEquals(1, aligner.getDroppedSamples());
+
+        // pending one is interpolated when orientation covers it
+        aligner.addOrientation(yaw(0), t0 + BUDGET_NANOS);
+        aligner.addOrientation(yaw(0), t0 + BUDGET_NANOS + 2 * MS);
+        assertEquals(1, collector.size());
+        assertTrue(collector.interpolated.get(0));
+        assertEquals(t0 + BUDGET_NANOS + MS, (long) collector.timestamps.get(0));
+    }
+
+    @Test
+    public void addAcceleration_olderThanOrientationHistory_holdsOldest() {
+        Collector collector = new Collector();
+        ImuTimeAligner aligner = new ImuTimeAligner(8, 8, BUDGET_NANOS, collector);
+        long t0 = 1000 * MS;
+        Quaternion oldest = yaw(Math.toRadians(-15));
+        aligner.addOrientation(oldest, t0);
+        aligner.addOrientation(yaw(Math.toRadians(15)), t0 + 10 * MS);
+
+        aligner.addAcceleration(new float[]{1, 0, 0}, t0 - 5 * MS); // delivered late, covered by history
+
+        assertEquals(1, collector.size());
+        assertFalse(collector.interpolated.get(0));
+        assertEquals(yawOf(oldest), yawOf(collector.orientations.get(0)), 1e-6);
+    }
+
+    @Test
+    public void addAcceleration_pendingCapacityExceeded_emitsOldestInOrder() {
+        Collector collector = new Collector();
+        ImuTimeAligner aligner = new ImuTimeAligner(8, 4, Long.MAX_VALUE / 2, collector);
+        long t0 = 1000 * MS;
+        aligner.addOrientation(yaw(0), t0);
+        for (int i = 1; i <= 6; ++i) {
+            aligner.addAcceleration(new float[]{i, 0, 0}, t0 + i * MS);
+        }
+
+        assertEquals(2, collector.size());
+        assertEquals(1, collector.accelerations.get(0)[0], 0f);
+        assertEquals(2, collector.accelerations.get(1)[0], 0f);
+        assertEquals(t0 + 2 * MS, (long) collector.timestamps.get(1));
+        assertEquals(2, aligner.getHeldSamples());
+    }
+}
@@ -0,0 +1,102 @@
+package com.app.carnavar.hal.motion;
+
+import com.app.carnavar.ImuTrace;
+import com.app.carnavar.hal.sensors.SensorTypes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StationaryDetectorTest {
+
+    private static final int WINDOW_SIZE = 16; // as in FusionImuMotionEngine
+    private static final ImuTrace DRIVE = ImuTrace.synthesizeDrive(11, 3 * ImuTrace.STOP_AND_GO_PERIOD_SEC);
+    private static final double STOP_START_SEC = 36; // in stop-and-go period
+    private static final double LATEST_DETECTION_SEC = 2; // after stop start
+
+    // speed of 1 Hz gps fixes, held between them
+    private static double gpsSpeed(double t) {
+        return ImuTrace.syntheticSpeed(Math.floor(t));
+    }
+
+    private static final class Replay {
+        int movingStationarySamples = 0; // stationary while vehicle moves faster than 2 m/s
+        int cruiseStationarySamples = 0;
+        int stopSamples = 0; // after LATEST_DETECTION_SEC of stop
+        int stopDetectedSamples = 0;
+
+        Replay(StationaryDetector detector, boolean withSpeed) {
+            float[] v = new float[ImuTrace.VALUES_PER_SAMPLE];
+            for (int i = 0; i < DRIVE.size(); ++i) {
+                double t = DRIVE.getTimestamp(i) / 1e9;
+                if (withSpeed) {
+                    detector.setSpeed(gpsSpeed(t));
+                }
+                DRIVE.getValues(i, v);
+                if (DRIVE.getSensorType(i) == SensorTypes.FULL_ACCELERATION) {
+                    detector.addAccelerometer(v, DRIVE.getTimestamp(i));
+                } else if (DRIVE.getSensorType(i) == SensorTypes.GYROSCOPE_ANGLE_VELOCITY) {
+                    detector.addGyroscope(v, DRIVE.getTimestamp(i));
+                } else {
+                    continue;
+                }
+                double speed = DRIVE.getTrueSpeed(i);
+                double p = t % ImuTrace.STOP_AND_GO_PERIOD_SEC;
+                if (detector.isStationary() && speed > 2) ++movingStationarySamples;
+                if (detector.isStationary() && speed == 16) ++cruiseStationarySamples;
+                if (p >= STOP_START_SEC + LATEST_DETECTION_SEC) {
+                    ++stopSamples;
+                    if (detector.isStationary()) ++stopDetectedSamples;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stopAndGo_withGpsSpeed_detectsEveryStopOnly() {
+        StationaryDetector detector = new StationaryDetector(WINDOW_SIZE);
+        Replay replay = new Replay(detector, true);
+        assertEquals(0, replay.movingStationarySamples);
+        assertTrue(replay.stopSamples > 0);
+        assertEquals(replay.stopSamples, replay.stopDetectedSamples);
+        // two finished stops of about 9 s
+        assertEquals(2 * 9e9, detector.getStationaryTimeNanos(), 1.5e9);
+    }
+
+    @Test
+    public void stopAndGo_withoutSpeed_takesSmoothCruiseForStop() {
+        // why speed gate is needed: constant speed on even road has variances of a stop
+        Replay replay = new Replay(new StationaryDetector(WINDOW_SIZE), false);
+        assertTrue(replay.cruiseStationarySamples > 0);
+    }
+
+    @Test
+    public void setSpeed_quietSensors_gatesEntryAndExit() {
+        StationaryDetector detector = new StationaryDetector(WINDOW_SIZE, 100_000_000L);
+        float[] acc = {0, 0, (float) ImuTrace.GRAVITY};
+        float[] gyro = {0, 0, 0};
+        long t = 0;
+        detector.setSpeed(10);
+        for (int i = 0; i < 200; ++i, t += 5_000_000L) {
+            detector.addAccelerometer(acc, t);
+            detector.addGyroscope(gyro, t);
+        }
+        assertFalse(detector.isStationary());
+
+        detector.setSpeed(0.2);
+        long slowSince = t;
+        while (!detector.isStationary()) {
+            detector.addAccelerometer(acc, t);
+            detector.addGyroscope(gyro, t);
+            t += 5_000_000L;
+        }
+        assertTrue(t - slowSince >= 100_000_000L);
+
+        detector.setSpeed(1); // between enter and exit speeds
+        detector.addAccelerometer(acc, t);
+        assertTrue(detector.isStationary());
+        detector.setSpeed(3);
+        detector.addGyroscope(gyro, t);
+        assertFalse(detector.isStationary());
+    }
+}
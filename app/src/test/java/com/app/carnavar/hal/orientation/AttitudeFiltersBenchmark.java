@@ -0,0 +1,191 @@
+package com.app.carnavar.hal.orientation;
+
+import com.app.carnavar.ImuTrace;
+import com.app.carnavar.hal.sensors.SensorTypes;
+import com.app.carnavar.hal.sensors.VirtualSensor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gyroscope and rotation vector fusion replayed over an imu trace (see ImuTrace, -Dimu.trace=<csv> replays
+ * a recording), ns per sample: fixed-weight blend of FusionDeviceAttitudeEstimator vs error-state kalman filter
+ * of ErrorStateDeviceAttitudeEstimator. Heading RMSE of both against trace truth is printed before the run.
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttitudeFiltersBenchmark {
+
+    static final double SETTLING_SEC = 10; // heading error isn't counted until filters settle
+
+    // drives filter as its estimator does, gives azimuth of its orientation
+    interface Driver extends VirtualSensor.SensorListener {
+        double azimuth();
+    }
+
+    // azimuth (rad, clockwise from north) of device -> world quaternion as SensorManager.getOrientation gives it
+    static double azimuth(double w, double x, double y, double z) {
+        return Math.atan2(2 * (x * y - w * z), 1 - 2 * (x * x + z * z));
+    }
+
+    static final class BlendDriver implements Driver {
+        final BlendAttitudeFilter filter = FusionDeviceAttitudeEstimator.createFilter();
+        private long timestamp;
+
+        @Override
+        public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
+            if (sensorType == SensorTypes.ORIENTATION_ROTATION_VECTOR) {
+                filter.setRotationVector(values[3], values[0], values[1], values[2]);
+            } else if (sensorType == SensorTypes.GYROSCOPE_ANGLE_VELOCITY) {
+                if (timestamp != 0) {
+                    filter.fuseGyroscope(values[0], values[1], values[2], (timeNanos - timestamp) * 1e-9f);
+                }
+                timestamp = timeNanos;
+            }
+        }
+
+        @Override
+        public double azimuth() {
+            // inverted w
+            return AttitudeFiltersBenchmark.azimuth(-filter.getOrientation().getW(), filter.getOrientation().getX(),
+                    filter.getOrientation().getY(), filter.getOrientation().getZ());
+        }
+    }
+
+    static final class ErrorStateDriver implements Driver {
+        final ErrorStateAttitudeFilter filter = ErrorStateDeviceAttitudeEstimator.createFilter();
+        private final float[] quaternion = new float[4];
+        private long timestamp;
+        private double rotationVelocity;
+
+        @Override
+        public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
+            if (sensorType == SensorTypes.ORIENTATION_ROTATION_VECTOR) {
+                quaternion[0] = values[3];
+                quaternion[1] = values[0];
+                quaternion[2] = values[1];
+                quaternion[3] = values[2];
+                ErrorStateDeviceAttitudeEstimator.correct(filter, quaternion, rotationVelocity);
+            } else if (sensorType == SensorTypes.GYROSCOPE_ANGLE_VELOCITY) {
+                if (timestamp != 0 && filter.isInitialized()) {
+                    rotationVelocity = Math.sqrt(values[0] * values[0] + values[1] * values[1]
+                            + values[2] * values[2]);
+                    filter.predict(values[0], values[1], values[2], (timeNanos - timestamp) * 1e-9f);
+                }
+                timestamp = timeNanos;
+            }
+        }
+
+        @Override
+        public double azimuth() {
+            return AttitudeFiltersBenchmark.azimuth(filter.getW(), filter.getX(), filter.getY(), filter.getZ());
+        }
+    }
+
+    // heading RMSE in rad over gyroscope samples after settling
+    static double headingRmse(ImuTrace trace, Driver driver) {
+        float[] v = new float[ImuTrace.VALUES_PER_SAMPLE];
+        long start = trace.getTimestamp(0) + (long) (SETTLING_SEC * 1e9);
+        double sum = 0;
+        int n = 0;
+        for (int i = 0; i < trace.size(); ++i) {
+            trace.getValues(i, v);
+            driver.onSensorValuesCaptured(v, trace.getSensorType(i), trace.getTimestamp(i));
+            if (trace.getSensorType(i) == SensorTypes.GYROSCOPE_ANGLE_VELOCITY && trace.getTimestamp(i) >= start
+                    && !Double.isNaN(trace.getTrueAzimuth(i))) {
+                double e = Math.IEEEremainder(driver.azimuth() - trace.getTrueAzimuth(i), 2 * Math.PI);
+                sum += e * e;
+                ++n;
+            }
+        }
+        return n == 0 ? Double.NaN : Math.sqrt(sum / n);
+    }
+
+    private long[] timestamps;
+    private int[] sensorTypes;
+    private float[][] samples;
+    private int cursor;
+    private long timeOffset, tracePeriod;
+    private BlendDriver blend;
+    private ErrorStateDriver errorState;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ImuTrace trace = ImuTrace.recordedOrSynthetic(600);
+        System.out.println(String.format(Locale.ENGLISH, "heading RMSE over %.0f s: blend %.3f deg, error-state %.3f deg",
+                trace.getDurationSec(), Math.toDegrees(headingRmse(trace, new BlendDriver())),
+                Math.toDegrees(headingRmse(trace, new ErrorStateDriver()))));
+
+        int n = 0;
+        for (int i = 0; i < trace.size(); ++i) {
+            if (isReplayed(trace.getSensorType(i))) ++n;
+        }
+        timestamps = new long[n];
+        sensorTypes = new int[n];
+        samples = new float[n][ImuTrace.VALUES_PER_SAMPLE];
+        n = 0;
+        for (int i = 0; i < trace.size(); ++i) {
+            if (isReplayed(trace.getSensorType(i))) {
+                timestamps[n] = trace.getTimestamp(i);
+                sensorTypes[n] = trace.getSensorType(i);
+                trace.getValues(i, samples[n++]);
+            }
+        }
+        tracePeriod = timestamps[n - 1] - timestamps[0] + 5_000_000L;
+        blend = new BlendDriver();
+        errorState = new ErrorStateDriver();
+    }
+
+    private static boolean isReplayed(int sensorType) {
+        return sensorType == SensorTypes.GYROSCOPE_ANGLE_VELOCITY
+                || sensorType == SensorTypes.ORIENTATION_ROTATION_VECTOR;
+    }
+
+    // trace is replayed in loop with growing timestamps
+    private void replayNext(Driver driver) {
+        int i = cursor;
+        if (++cursor == sensorTypes.length) {
+            cursor = 0;
+            timeOffset += tracePeriod;
+        }
+        driver.onSensorValuesCaptured(samples[i], sensorTypes[i], timestamps[i] + timeOffset);
+    }
+
+    @Benchmark
+    public double blend() {
+        replayNext(blend);
+        return blend.filter.getOrientation().getW();
+    }
+
+    @Benchmark
+    public double errorState() {
+        replayNext(errorState);
+        return errorState.filter.getW();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AttitudeFiltersBenchmark.class.getSimpleName()).build()).run();
+    }
+}
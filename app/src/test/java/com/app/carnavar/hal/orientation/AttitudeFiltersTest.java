@@ -0,0 +1,60 @@
+package com.app.carnavar.hal.orientation;
+
+import com.app.carnavar.ImuTrace;
+import com.app.carnavar.hal.orientation.AttitudeFiltersBenchmark.BlendDriver;
+import com.app.carnavar.hal.orientation.AttitudeFiltersBenchmark.ErrorStateDriver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AttitudeFiltersTest {
+
+    private static final ImuTrace DRIVE = ImuTrace.synthesizeDrive(7, 300);
+
+    @Test
+    public void errorState_syntheticDrive_headingErrorBelowBlend() {
+        double blend = AttitudeFiltersBenchmark.headingRmse(DRIVE, new BlendDriver());
+        double errorState = AttitudeFiltersBenchmark.headingRmse(DRIVE, new ErrorStateDriver());
+        assertTrue("error-state " + Math.toDegrees(errorState) + " deg", errorState < Math.toRadians(1));
+        assertTrue("blend " + Math.toDegrees(blend) + " deg, error-state " + Math.toDegrees(errorState) + " deg",
+                errorState < blend);
+    }
+
+    @Test
+    public void errorState_syntheticDrive_estimatesGyroBiasAndRejectsOutliers() {
+        ErrorStateDriver driver = new ErrorStateDriver();
+        DRIVE.replay(driver);
+        assertEquals(ImuTrace.GYRO_BIAS_Z, driver.filter.getBiasZ(), 0.002);
+        assertEquals(0, driver.filter.getBiasX(), 0.002);
+        assertEquals(0, driver.filter.getBiasY(), 0.002);
+        // 1% of rotation vector samples are 0.5 rad outliers
+        assertTrue(driver.filter.getRejectedMeasurements() > 0);
+    }
+
+    @Test
+    public void blend_divergedRotationVector_usesGyroscopeThenResets() {
+        BlendAttitudeFilter filter = new BlendAttitudeFilter(0.05, 0.1f, 0.75f, 2, 3);
+        filter.setRotationVector(1, 0, 0, 0);
+        assertEquals(BlendAttitudeFilter.FUSED, filter.fuseGyroscope(0, 0, 0, 0.01f));
+
+        // rotation by 120 deg around z, |dot| = cos(60 deg) < 0.75
+        float s = (float) Math.sin(Math.toRadians(60)), c = (float) Math.cos(Math.toRadians(60));
+        filter.setRotationVector(c, 0, 0, s);
+        assertEquals(BlendAttitudeFilter.GYRO_ONLY, filter.fuseGyroscope(0, 0, 0, 0.01f));
+        assertEquals(1, Math.abs(filter.getOrientation().getW()), 1e-6); // still identity
+        assertEquals(BlendAttitudeFilter.GYRO_ONLY, filter.fuseGyroscope(0, 0, 0, 0.01f));
+        assertEquals(BlendAttitudeFilter.PANIC_RESET, filter.fuseGyroscope(0, 0, 0, 0.01f));
+        assertEquals(s, filter.getOrientation().getZ(), 1e-6);
+        assertEquals(-c, filter.getOrientation().getW(), 1e-6);
+    }
+
+    @Test
+    public void blend_fastRotation_delaysReset() {
+        BlendAttitudeFilter filter = new BlendAttitudeFilter(0.05, 0.1f, 0.75f, 0, 3);
+        filter.setRotationVector(1, 0, 0, 0);
+        filter.setRotationVector(0, 0, 0, 1); // 180 deg
+        assertEquals(BlendAttitudeFilter.PANIC_RESET_DELAYED, filter.fuseGyroscope(0, 0, 5, 0.001f));
+        assertEquals(BlendAttitudeFilter.PANIC_RESET, filter.fuseGyroscope(0, 0, 0, 0.001f));
+    }
+}
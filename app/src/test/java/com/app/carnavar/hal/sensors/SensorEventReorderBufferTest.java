@@ -0,0 +1,156 @@
+package com.app.carnavar.hal.sensors;
+
+import com.app.carnavar.ImuTrace;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorEventReorderBufferTest {
+
+    private static final int ACCELEROMETER = 0, GYROSCOPE = 1, ROTATION_VECTOR = 2; // streams
+
+    // fake hardware fifo batching: every sensor flushes its fifo with own period and phase,
+    // events of one batch come in order, batches of different sensors are interleaved
+    private static class BatchingSensorSource {
+
+        private final ImuTrace trace;
+        private final Integer[] deliveryOrder;
+        private final long[] deliveryTimes;
+
+        BatchingSensorSource(ImuTrace trace, long[] batchPeriodsNanos, long[] batchPhasesNanos) {
+            this.trace = trace;
+            deliveryOrder = new Integer[trace.size()];
+            deliveryTimes = new long[trace.size()];
+            for (int i = 0; i < trace.size(); ++i) {
+                int stream = stream(trace.getSensorType(i));
+                long period = batchPeriodsNanos[stream], phase = batchPhasesNanos[stream];
+                long t = trace.getTimestamp(i) - phase;
+                deliveryTimes[i] = phase + (t + period - 1) / period * period; // next fifo flush
+                deliveryOrder[i] = i;
+            }
+            Arrays.sort(deliveryOrder, (a, b) -> deliveryTimes[a] != deliveryTimes[b]
+                    ? Long.compare(deliveryTimes[a], deliveryTimes[b])
+                    : stream(trace.getSensorType(a)) != stream(trace.getSensorType(b))
+                    ? Integer.compare(stream(trace.getSensorType(a)), stream(trace.getSensorType(b)))
+                    : Long.compare(trace.getTimestamp(a), trace.getTimestamp(b)));
+        }
+
+        static int stream(int sensorType) {
+            switch (sensorType) {
+                case SensorTypes.FULL_ACCELERATION:
+                    return ACCELEROMETER;
+                case SensorTypes.GYROSCOPE_ANGLE_VELOCITY:
+                    return GYROSCOPE;
+                default:
+                    return ROTATION_VECTOR;
+            }
+        }
+
+        // one reused values array as sensor events have
+        void deliverTo(SensorEventReorderBuffer buffer) {
+            float[] v = new float[ImuTrace.VALUES_PER_SAMPLE];
+            for (int i : deliveryOrder) {
+                trace.getValues(i, v);
+                buffer.offer(stream(trace.getSensorType(i)), v, trace.getSensorType(i), trace.getTimestamp(i));
+            }
+        }
+    }
+
+    private static class Recorder implements VirtualSensor.SensorListener {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> sensorTypes = new ArrayList<>();
+        final List<Float> firstValues = new ArrayList<>();
+
+        @Override
+        public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
+            timestamps.add(timeNanos);
+            sensorTypes.add(sensorType);
+            firstValues.add(values[0]);
+        }
+    }
+
+    private static float[] values(float v) {
+        return new float[]{v, 0, 0};
+    }
+
+    @Test
+    public void offer_batchedStreams_releasesInTimestampOrderAcrossTypes() {
+        ImuTrace trace = ImuTrace.synthesizeDrive(5, 30);
+        BatchingSensorSource source = new BatchingSensorSource(trace,
+                new long[]{100_000_000L, 60_000_000L, 200_000_000L},
+                new long[]{0, 17_000_000L, 41_000_000L});
+        Recorder recorder = new Recorder();
+        SensorEventReorderBuffer buffer = new SensorEventReorderBuffer(3, 512, 400_000_000L, recorder);
+
+        source.deliverTo(buffer);
+        buffer.flush();
+
+        assertEquals(trace.size(), recorder.timestamps.size());
+        for (int i = 0; i < trace.size(); ++i) {
+            assertEquals("timestamp " + i, trace.getTimestamp(i), (long) recorder.timestamps.get(i));
+            assertEquals("type " + i, trace.getSensorType(i), (int) recorder.sensorTypes.get(i));
+            assertEquals("value " + i, trace.getValue(i, 0), recorder.firstValues.get(i), 0f);
+        }
+        assertTrue(buffer.getReorderedEvents() > 0);
+        assertEquals(0, buffer.getOverflowEvents());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void offer_eventIsHeldUntilAllStreamsPassIt() {
+        Recorder recorder = new Recorder();
+        SensorEventReorderBuffer buffer = new SensorEventReorderBuffer(2, 16, 1_000_000_000L, recorder);
+
+        buffer.offer(0, values(1), SensorTypes.FULL_ACCELERATION, 10);
+        buffer.offer(0, values(2), SensorTypes.FULL_ACCELERATION, 20);
+        assertTrue(recorder.timestamps.isEmpty()); // gyroscope stream hasn't reported yet
+        buffer.offer(1, values(3), SensorTypes.GYROSCOPE_ANGLE_VELOCITY, 15);
+        assertEquals(Arrays.asList(10L, 15L), recorder.timestamps);
+        buffer.offer(1, values(4), SensorTypes.GYROSCOPE_ANGLE_VELOCITY, 25);
+        assertEquals(Arrays.asList(10L, 15L, 20L), recorder.timestamps);
+        assertEquals(Arrays.asList(1f, 3f, 2f), recorder.firstValues);
+    }
+
+    @Test
+    public void offer_silentStream_holdsEventsAtMostMaxHold() {
+        Recorder recorder = new Recorder();
+        SensorEventReorderBuffer buffer = new SensorEventReorderBuffer(2, 16, 100, recorder);
+
+        buffer.offer(0, values(1), SensorTypes.FULL_ACCELERATION, 1000);
+        buffer.offer(0, values(2), SensorTypes.FULL_ACCELERATION, 1050);
+        assertTrue(recorder.timestamps.isEmpty());
+        buffer.offer(0, values(3), SensorTypes.FULL_ACCELERATION, 1120);
+        assertEquals(Arrays.asList(1000L), recorder.timestamps);
+    }
+
+    @Test
+    public void offer_equalTimestamps_keepArrivalOrder() {
+        Recorder recorder = new Recorder();
+        SensorEventReorderBuffer buffer = new SensorEventReorderBuffer(2, 16, 1000, recorder);
+
+        buffer.offer(1, values(1), SensorTypes.GYROSCOPE_ANGLE_VELOCITY, 10);
+        buffer.offer(0, values(2), SensorTypes.FULL_ACCELERATION, 10);
+        buffer.flush();
+        assertEquals(Arrays.asList(1f, 2f), recorder.firstValues);
+        assertEquals(0, buffer.getReorderedEvents());
+    }
+
+    @Test
+    public void offer_fullBuffer_releasesEarliestEarly() {
+        Recorder recorder = new Recorder();
+        SensorEventReorderBuffer buffer = new SensorEventReorderBuffer(2, 4, Long.MAX_VALUE / 2, recorder);
+
+        for (int i = 0; i < 6; ++i) {
+            buffer.offer(0, values(i), SensorTypes.FULL_ACCELERATION, 100 - i * 10);
+        }
+        assertEquals(2, buffer.getOverflowEvents());
+        assertEquals(Arrays.asList(70L, 60L), recorder.timestamps);
+        buffer.flush();
+        assertEquals(Arrays.asList(70L, 60L, 50L, 80L, 90L, 100L), recorder.timestamps);
+    }
+}
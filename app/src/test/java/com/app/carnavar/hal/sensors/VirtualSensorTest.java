@@ -0,0 +1,158 @@
+package com.app.carnavar.hal.sensors;
+
+import com.app.carnavar.AllocationCounter;
+import com.app.carnavar.hal.sensors.VirtualSensor.SensorListener;
+import com.app.carnavar.hal.sensors.VirtualSensor.SensorSample;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class VirtualSensorTest {
+
+    private static final class TestSensor extends VirtualSensor {
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    // counts samples and checks that sequence and values come in order
+    private static final class OrderCheckingListener implements SensorListener {
+        long expectedSequence = -1;
+        long received = 0;
+        volatile String error = null;
+
+        @Override
+        public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
+        }
+
+        @Override
+        public void onSensorSampleCaptured(SensorSample sample) {
+            if (expectedSequence >= 0 && sample.sequence != expectedSequence && error == null) {
+                error = "sequence " + sample.sequence + " instead of " + expectedSequence;
+            }
+            if (sample.values[0] != (float) sample.timeNanos && error == null) {
+                error = "values of sample " + sample.sequence + " don't match its timestamp";
+            }
+            expectedSequence = sample.sequence + 1;
+            ++received;
+        }
+    }
+
+    @Test
+    public void notify_doesNotAllocateAfterPoolIsFilled() {
+        TestSensor sensor = new TestSensor();
+        OrderCheckingListener first = new OrderCheckingListener(), second = new OrderCheckingListener();
+        sensor.addSensorValuesCaptureListener(first);
+        sensor.addSensorValuesCaptureListener(second);
+        sensor.addSensorValuesCaptureListener((values, sensorType, timeNanos) -> {
+        });
+        final float[] values = new float[3];
+        final long[] time = {0};
+        long bytes = AllocationCounter.measure(10000, 100000, () -> {
+            values[0] = ++time[0];
+            sensor.notifyAllSensorValuesCaptureListeners(values, 1, time[0]);
+        });
+        assertTrue("notify allocated " + bytes + " bytes", bytes < 1024);
+        assertNull(first.error);
+        assertEquals(110000, first.received);
+        assertEquals(110000, second.received);
+    }
+
+    // sample must be copied before it leaves listener: pooled sample is overwritten by later notifications
+    @Test
+    public void sample_isReusedByLaterNotifications() {
+        TestSensor sensor = new TestSensor();
+        AtomicReference<SensorSample> kept = new AtomicReference<>();
+        sensor.addSensorValuesCaptureListener(new SensorListener() {
+            @Override
+            public void onSensorValuesCaptured(float[] values, int sensorType, long timeNanos) {
+            }
+
+            @Override
+            public void onSensorSampleCaptured(SensorSample sample) {
+                if (kept.get() == null) {
+                    kept.set(sample);
+                }
+            }
+        });
+        float[] values = new float[3];
+        for (int i = 0; i <= 16; ++i) {
+            values[0] = i;
+            sensor.notifyAllSensorValuesCaptureListeners(values, 1, i);
+        }
+        assertEquals(16, kept.get().sequence);
+        assertEquals(16f, kept.get().values[0], 0f);
+    }
+
+    // listener churn on another thread doesn't break delivery to registered listener,
+    // copies made in listener reach consumer thread intact
+    @Test
+    public void listenerChurnAndThreadHop_deliverSamplesInOrder() throws InterruptedException {
+        final int samples = 200000;
+        TestSensor sensor = new TestSensor();
+        OrderCheckingListener ordered = new OrderCheckingListener();
+        ArrayBlockingQueue<float[]> hop = new ArrayBlockingQueue<>(1024);
+        sensor.addSensorValuesCaptureListener(ordered);
+        sensor.addSensorValuesCaptureListener((values, sensorType, timeNanos) -> {
+            try {
+                hop.put(values.clone()); // copy at thread hop
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<String> consumerError = new AtomicReference<>();
+        CountDownLatch consumed = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 1; i <= samples; ++i) {
+                    float[] v = hop.poll(10, TimeUnit.SECONDS);
+                    if (v == null || v[0] != i || v[1] != -i || v[2] != 2 * i) {
+                        consumerError.compareAndSet(null, "sample " + i + " is lost or torn");
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                consumerError.compareAndSet(null, "interrupted");
+            }
+            consumed.countDown();
+        });
+        Thread churn = new Thread(() -> {
+            while (!done.get()) {
+                SensorListener transientListener = (values, sensorType, timeNanos) -> {
+                };
+                sensor.addSensorValuesCaptureListener(transientListener);
+                sensor.removeSensorValuesCaptureListener(transientListener);
+            }
+        });
+        consumer.start();
+        churn.start();
+
+        float[] values = new float[3];
+        for (int i = 1; i <= samples; ++i) {
+            values[0] = i;
+            values[1] = -i;
+            values[2] = 2 * i;
+            sensor.notifyAllSensorValuesCaptureListeners(values, 1, i);
+        }
+        done.set(true);
+        churn.join();
+        assertTrue(consumed.await(30, TimeUnit.SECONDS));
+        assertNull(consumerError.get());
+        assertNull(ordered.error);
+        assertEquals(samples, ordered.received);
+        assertEquals(samples, sensor.getSamplesCount());
+    }
+}
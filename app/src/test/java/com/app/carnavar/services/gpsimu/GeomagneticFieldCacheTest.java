@@ -0,0 +1,73 @@
+package com.app.carnavar.services.gpsimu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// update() doesn't build field, so cell decisions are checked without android GeomagneticField
+public class GeomagneticFieldCacheTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final long NOON = 18000 * DAY + DAY / 2;
+
+    private final GeomagneticFieldCache cache = new GeomagneticFieldCache(0.1, 1000, 0.1);
+
+    @Test
+    public void update_firstLocation_misses() {
+        assertTrue(cache.update(55.75, 37.62, 150, NOON));
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void update_sameCell_hits() {
+        cache.update(55.75, 37.62, 150, NOON);
+        assertFalse(cache.update(55.79, 37.61, 300, NOON + 60_000));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void update_jitterAcrossCellBorder_keepsCell() {
+        // cell [55.7, 55.8) by latitude, margin is 0.01 deg
+        assertTrue(cache.update(55.7995, 37.65, 150, NOON));
+        for (int i = 0; i < 100; ++i) {
+            double lat = 55.8 + (i % 2 == 0 ? 0.0005 : -0.0005);
+            assertFalse("fix " + i, cache.update(lat, 37.65, 150, NOON + i * 1000));
+        }
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void update_beyondEdgeMargin_misses() {
+        cache.update(55.75, 37.65, 150, NOON);
+        assertFalse(cache.update(55.809, 37.65, 150, NOON)); // inside margin
+        assertTrue(cache.update(55.811, 37.65, 150, NOON));
+        // new cell is [55.8, 55.9), so stepping back inside its margin is a hit
+        assertFalse(cache.update(55.795, 37.65, 150, NOON));
+        assertTrue(cache.update(55.75, 37.65, 150, NOON));
+    }
+
+    @Test
+    public void update_altitudeAndLongitudeBeyondMargin_miss() {
+        cache.update(55.75, 37.65, 150, NOON);
+        assertTrue(cache.update(55.75, 37.65, 1150, NOON));
+        assertTrue(cache.update(55.75, 37.75, 1150, NOON));
+        assertTrue(cache.update(55.75, 37.75, -150, NOON));
+    }
+
+    @Test
+    public void update_nextDay_misses() {
+        cache.update(55.75, 37.65, 150, NOON);
+        assertFalse(cache.update(55.75, 37.65, 150, NOON + DAY / 4));
+        assertTrue(cache.update(55.75, 37.65, 150, NOON + DAY));
+    }
+
+    @Test
+    public void clear_forgetsCell() {
+        cache.update(55.75, 37.65, 150, NOON);
+        cache.clear();
+        assertNull(cache.getGeomagneticField());
+        assertTrue(cache.update(55.75, 37.65, 150, NOON));
+    }
+}
@@ -0,0 +1,194 @@
+package com.app.carnavar.services.gpsimu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImuPredictQueueTest {
+
+    private static final long PERIOD_MILLIS = 10;
+
+    // keeps last predict
+    private static final class LastPredict implements ImuPredictQueue.PredictConsumer {
+        double x = Double.NaN, y = Double.NaN;
+        long timeMillis = -1;
+        int predicts = 0;
+
+        @Override
+        public void predict(double xAcceleration, double yAcceleration, long timeMillis) {
+            x = xAcceleration;
+            y = yAcceleration;
+            this.timeMillis = timeMillis;
+            ++predicts;
+        }
+    }
+
+    @Test
+    public void drainTo_afterStopWithRestartedInterval_predictsWindowMean() {
+        ImuPredictQueue queue = new ImuPredictQueue(64, 4);
+        LastPredict consumer = new LastPredict();
+        long t = 1000;
+        for (int i = 0; i < 4; ++i, t += PERIOD_MILLIS) {
+            queue.offer(0.1, 0.1, t);
+        }
+        queue.drainTo(consumer);
+
+        // stopped for 30 s, predicts are suspended, then pulls away
+        queue.restartInterval();
+        t += 30_000;
+        queue.offer(5, -5, t); // first sample after stop
+        for (int i = 0; i < 3; ++i) {
+            t += PERIOD_MILLIS;
+            queue.offer(1, -1, t);
+        }
+        queue.drainTo(consumer);
+
+        // first sample doesn't carry the stop: mean of the rest (weight 0 for first)
+        assertEquals(1, consumer.x, 1e-12);
+        assertEquals(-1, consumer.y, 1e-12);
+        assertEquals(t, consumer.timeMillis);
+    }
+
+    @Test
+    public void drainTo_stopSamplesNotDrainedBeforeRestart_firstSampleAfterStopHasNoWeight() {
+        ImuPredictQueue queue = new ImuPredictQueue(64, 8);
+        LastPredict consumer = new LastPredict();
+        long t = 1000;
+        for (int i = 0; i < 4; ++i, t += PERIOD_MILLIS) {
+            queue.offer(0.1, 0, t); // weights 0, 10, 10, 10
+        }
+        queue.restartInterval(); // zero velocity task hasn't drained them yet
+        t += 30_000;
+        queue.offer(5, 0, t);
+        for (int i = 0; i < 3; ++i) {
+            t += PERIOD_MILLIS;
+            queue.offer(1, 0, t);
+        }
+        queue.drainTo(consumer);
+
+        assertEquals((0.1 * 30 + 1 * 30) / 60, consumer.x, 1e-12);
+        assertEquals(1, consumer.predicts);
+    }
+
+    @Test
+    public void drainTo_afterStopWithoutRestart_firstSampleWeighsWholeStop() {
+        ImuPredictQueue queue = new ImuPredictQueue(64, 4);
+        LastPredict consumer = new LastPredict();
+        queue.offer(0, 0, 1000);
+        queue.drainTo(consumer);
+        queue.offer(5, 0, 31_000);
+        queue.offer(1, 0, 31_010);
+        queue.drainTo(consumer);
+        assertTrue("predicted " + consumer.x, consumer.x > 4.99);
+    }
+
+    @Test
+    public void offer_windowFilled_requestsDrain() {
+        ImuPredictQueue queue = new ImuPredictQueue(16, 3);
+        assertFalse(queue.offer(1, 0, 10));
+        assertFalse(queue.offer(1, 0, 20));
+        assertTrue(queue.offer(1, 0, 30));
+        assertTrue(queue.offer(1, 0, 40)); // until drained
+
+        queue.setWindowSize(100); // clamped to capacity
+        assertEquals(16, queue.getWindowSize());
+        queue.setWindowSize(0);
+        assertEquals(1, queue.getWindowSize());
+    }
+
+    @Test
+    public void drainTo_timeWeightedMean_predictsAtLastSample() {
+        ImuPredictQueue queue = new ImuPredictQueue(16, 4);
+        LastPredict consumer = new LastPredict();
+        assertFalse(queue.drainTo(consumer));
+        assertEquals(0, consumer.predicts);
+
+        queue.offer(100, 100, 1000); // first sample ever has no interval
+        queue.offer(1, 2, 1010);
+        queue.offer(4, 8, 1040); // acts 3 times longer
+        assertTrue(queue.drainTo(consumer));
+        assertEquals((1 * 10 + 4 * 30) / 40.0, consumer.x, 1e-12);
+        assertEquals((2 * 10 + 8 * 30) / 40.0, consumer.y, 1e-12);
+        assertEquals(1040, consumer.timeMillis);
+
+        // interval of next window starts at last drained sample
+        queue.offer(2, 0, 1060);
+        queue.offer(6, 0, 1070);
+        assertTrue(queue.drainTo(consumer));
+        assertEquals((2 * 20 + 6 * 10) / 30.0, consumer.x, 1e-12);
+        assertEquals(1070, consumer.timeMillis);
+        assertFalse(queue.drainTo(consumer));
+        assertEquals(2, consumer.predicts);
+    }
+
+    @Test
+    public void drainTo_equalTimestamps_predictsPlainMean() {
+        ImuPredictQueue queue = new ImuPredictQueue(16, 4);
+        LastPredict consumer = new LastPredict();
+        queue.offer(1, -1, 500);
+        queue.offer(3, -3, 500); // batched samples with one timestamp have no interval
+        queue.drainTo(consumer);
+        assertEquals(2, consumer.x, 1e-12);
+        assertEquals(-2, consumer.y, 1e-12);
+        assertEquals(500, consumer.timeMillis);
+    }
+
+    @Test
+    public void offer_overflow_dropsOldestAndCountsSamples() {
+        ImuPredictQueue queue = new ImuPredictQueue(4, 4);
+        LastPredict consumer = new LastPredict();
+        for (int i = 1; i <= 10; ++i) {
+            queue.offer(i, 0, i * 10); // consumer is late
+        }
+        queue.drainTo(consumer);
+
+        // samples 7..10 are left, 10 ms each
+        assertEquals((7 + 8 + 9 + 10) / 4.0, consumer.x, 1e-12);
+        assertEquals(100, consumer.timeMillis);
+        assertEquals(6, queue.getDroppedSamples());
+        assertEquals(4, queue.getProcessedSamples());
+        assertEquals(3, queue.getMergedSamples());
+        assertEquals(1, queue.getPredicts());
+
+        queue.offer(1, 0, 110);
+        queue.drainTo(consumer);
+        assertEquals(5, queue.getProcessedSamples());
+        assertEquals(3, queue.getMergedSamples()); // single sample isn't merged
+        assertEquals(2, queue.getPredicts());
+        assertEquals(6, queue.getDroppedSamples());
+    }
+
+    @Test
+    public void offer_wrapsRingWithoutLosingOrder() {
+        ImuPredictQueue queue = new ImuPredictQueue(4, 3);
+        LastPredict consumer = new LastPredict();
+        long t = 0;
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 3; ++i) {
+                t += 10;
+                queue.offer(round, -round, t);
+            }
+            queue.drainTo(consumer);
+            assertEquals(round, consumer.x, 1e-12);
+            assertEquals(t, consumer.timeMillis);
+        }
+        assertEquals(0, queue.getDroppedSamples());
+        assertEquals(30, queue.getProcessedSamples());
+        assertEquals(20, queue.getMergedSamples());
+    }
+
+    @Test
+    public void clear_dropsQueuedSamplesAndRestartsInterval() {
+        ImuPredictQueue queue = new ImuPredictQueue(16, 4);
+        LastPredict consumer = new LastPredict();
+        queue.offer(9, 9, 100);
+        queue.offer(9, 9, 110);
+        queue.clear();
+        assertFalse(queue.drainTo(consumer));
+
+        queue.offer(5, 0, 5000);
+        queue.offer(1, 0, 5010);
+        queue.drainTo(consumer);
+        assertEquals(1, consumer.x, 1e-12);
+    }
+}
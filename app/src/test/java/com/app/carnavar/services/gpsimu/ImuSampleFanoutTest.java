@@ -0,0 +1,127 @@
+package com.app.carnavar.services.gpsimu;
+
+import com.app.carnavar.services.gpsimu.GpsImuServiceInterfaces.ImuListener;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ImuSampleFanoutTest {
+
+    private static final int SAMPLES = 500000;
+
+    // sample i has timestamp i and values [i, -i, 0.5 * i] (exact in float for i < 2^23)
+    private static void offer(ImuSampleFanout fanout, float[] values, int i) {
+        values[0] = i;
+        values[1] = -i;
+        values[2] = 0.5f * i;
+        fanout.offer(values, i & 7, i);
+    }
+
+    // checks order and integrity of drained samples, dropped samples show up as gaps
+    private static final class CheckingConsumer implements ImuListener {
+        long lastTimestamp = -1;
+        long received = 0;
+        String error = null;
+
+        @Override
+        public void onImuReturned(float[] values, int sensorType, long timeNanos) {
+            if (error == null) {
+                if (timeNanos <= lastTimestamp) {
+                    error = "sample " + timeNanos + " after " + lastTimestamp;
+                } else if (values[0] != timeNanos || values[1] != -timeNanos || values[2] != 0.5f * timeNanos
+                        || sensorType != (int) (timeNanos & 7)) {
+                    error = "sample " + timeNanos + " is torn";
+                }
+            }
+            lastTimestamp = timeNanos;
+            ++received;
+        }
+    }
+
+    @Test
+    public void consumers_haveIndependentPositionsAndOverruns() {
+        ImuSampleFanout fanout = new ImuSampleFanout();
+        ImuSampleRing drained = fanout.open(8);
+        ImuSampleRing stalled = fanout.open(8);
+        CheckingConsumer consumer = new CheckingConsumer();
+        float[] values = new float[3];
+        for (int i = 0; i < 1000; ++i) {
+            offer(fanout, values, i);
+            drained.drainTo(consumer);
+        }
+        assertNull(consumer.error);
+        assertEquals(1000, consumer.received);
+        assertEquals(0, drained.getOverruns());
+
+        CheckingConsumer late = new CheckingConsumer();
+        assertEquals(8, stalled.drainTo(late));
+        assertEquals(7, late.lastTimestamp); // oldest samples are kept, newer are dropped
+        assertEquals(1000 - 8, stalled.getOverruns());
+
+        fanout.close(stalled);
+        assertEquals(1, fanout.getConsumersCount());
+        offer(fanout, values, 1000);
+        assertEquals(0, stalled.size());
+        assertEquals(1, drained.size());
+    }
+
+    // producer and two consumers on own threads: every consumer sees increasing, intact samples
+    // and read + overruns adds up to everything offered while its ring was open
+    @Test
+    public void concurrentConsumers_keepOrderAndAccountForOverruns() throws InterruptedException {
+        ImuSampleFanout fanout = new ImuSampleFanout();
+        ImuSampleRing fastRing = fanout.open(512);
+        ImuSampleRing slowRing = fanout.open(64);
+        CheckingConsumer fast = new CheckingConsumer(), slow = new CheckingConsumer();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            float[] values = new float[3];
+            for (int i = 0; i < SAMPLES; ++i) {
+                offer(fanout, values, i);
+                if ((i & 1023) == 0) {
+                    Thread.yield();
+                }
+            }
+        });
+        Thread fastThread = consumerThread(fastRing, fast, producer, 0, failure);
+        Thread slowThread = consumerThread(slowRing, slow, producer, 1, failure);
+        fastThread.start();
+        slowThread.start();
+        producer.start();
+        producer.join();
+        fastThread.join();
+        slowThread.join();
+
+        assertNull(failure.get());
+        for (CheckingConsumer consumer : new CheckingConsumer[]{fast, slow}) {
+            assertNull(consumer.error);
+        }
+        assertEquals(SAMPLES, fast.received + fastRing.getOverruns());
+        assertEquals(SAMPLES, slow.received + slowRing.getOverruns());
+        assertEquals(fastRing.getWrittenSamples(), fastRing.getReadSamples());
+        assertEquals(slowRing.getWrittenSamples(), slowRing.getReadSamples());
+        assertTrue("slow consumer is expected to overrun", slowRing.getOverruns() > 0);
+    }
+
+    private static Thread consumerThread(ImuSampleRing ring, CheckingConsumer consumer, Thread producer,
+                                         long sleepMs, AtomicReference<Throwable> failure) {
+        return new Thread(() -> {
+            try {
+                while (producer.isAlive() || ring.size() > 0 || producer.getState() == Thread.State.NEW) {
+                    ring.drainTo(consumer, 32);
+                    if (sleepMs > 0) {
+                        Thread.sleep(sleepMs);
+                    } else {
+                        Thread.yield();
+                    }
+                }
+                ring.drainTo(consumer);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        });
+    }
+}
@@ -0,0 +1,143 @@
+package com.app.carnavar.services.gpsimu;
+
+import org.junit.Test;
+
+import static com.app.carnavar.services.gpsimu.SensorRateGovernor.*;
+import static org.junit.Assert.*;
+
+public class SensorRateGovernorTest {
+
+    private static final long STEP_NANOS = 10_000_000L; // 100 Hz gyroscope
+    private static final long DWELL_NANOS = 3_000_000_000L;
+
+    // feeds constant speed and angular velocity by segments, records last tier switch
+    private static final class Profile {
+        final SensorRateGovernor governor = new SensorRateGovernor(DEFAULT_TIER_PERIODS_MICROS, DWELL_NANOS);
+        long timeNanos = 1_000_000_000L;
+        long startNanos = timeNanos;
+        long lastSwitchNanos = Long.MIN_VALUE;
+
+        // returns time since start of this segment of last switch in it, -1 if tier isn't switched
+        long run(double seconds, double speed, double rotationVelocity) {
+            long segmentStart = timeNanos;
+            long switchedAfter = -1;
+            for (long end = timeNanos + (long) (seconds * 1e9); timeNanos < end; ) {
+                timeNanos += STEP_NANOS;
+                if (governor.update(speed, rotationVelocity, timeNanos)) {
+                    lastSwitchNanos = timeNanos;
+                    switchedAfter = timeNanos - segmentStart;
+                }
+            }
+            return switchedAfter;
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    @Test
+    public void update_turn_upshiftsAtOnceAndDownshiftsAfterDwell() {
+        Profile profile = new Profile();
+        assertEquals(-1, profile.run(5, 15, 0.02));
+        assertEquals(TIER_CRUISE, profile.governor.getTier());
+
+        long upshift = profile.run(2, 15, 0.6); // turn
+        assertTrue("upshift after " + seconds(upshift) + " s", upshift > 0 && upshift < 300_000_000L);
+        assertEquals(TIER_MANEUVER, profile.governor.getTier());
+        assertEquals(DEFAULT_TIER_PERIODS_MICROS[TIER_MANEUVER], profile.governor.getSamplePeriodMicros());
+
+        long downshift = profile.run(5, 15, 0.02); // straight again
+        assertTrue("downshift after " + seconds(downshift) + " s",
+                downshift >= DWELL_NANOS && downshift < DWELL_NANOS + 500_000_000L);
+        assertEquals(TIER_CRUISE, profile.governor.getTier());
+        assertEquals(2, profile.governor.getTierSwitches());
+    }
+
+    @Test
+    public void update_rotationBetweenThresholds_keepsTier() {
+        Profile profile = new Profile();
+        assertEquals(-1, profile.run(5, 15, 0.25)); // sweeping curve doesn't enter maneuver
+        profile.run(1, 15, 0.6);
+        assertEquals(TIER_MANEUVER, profile.governor.getTier());
+        assertEquals(-1, profile.run(10, 15, 0.25)); // and doesn't leave it
+        assertEquals(TIER_MANEUVER, profile.governor.getTier());
+    }
+
+    @Test
+    public void update_gyroSpike_isSmoothed() {
+        Profile profile = new Profile();
+        profile.run(1, 15, 0);
+        profile.run(0.01, 15, 3); // one sample
+        assertEquals(-1, profile.run(1, 15, 0));
+        assertEquals(TIER_CRUISE, profile.governor.getTier());
+    }
+
+    @Test
+    public void update_stop_parksAfterDwellAndLeavesAtPullAway() {
+        Profile profile = new Profile();
+        profile.run(5, 10, 0);
+        long parked = profile.run(5, 0, 0);
+        assertTrue("parked after " + seconds(parked) + " s",
+                parked >= DWELL_NANOS && parked < DWELL_NANOS + 100_000_000L);
+        assertEquals(TIER_PARKED, profile.governor.getTier());
+        assertEquals(DEFAULT_TIER_PERIODS_MICROS[TIER_PARKED], profile.governor.getSamplePeriodMicros());
+
+        // gps speed noise of standing vehicle and a short crawl stay parked
+        assertEquals(-1, profile.run(5, 0.8, 0.1));
+        assertEquals(TIER_PARKED, profile.governor.getTier());
+
+        assertEquals(STEP_NANOS, profile.run(1, 1.2, 0)); // pulls away
+        assertEquals(TIER_CRUISE, profile.governor.getTier());
+    }
+
+    @Test
+    public void update_unknownSpeed_neverParks() {
+        Profile profile = new Profile();
+        assertEquals(-1, profile.run(20, Double.NaN, 0));
+        assertEquals(TIER_CRUISE, profile.governor.getTier());
+
+        profile.run(1, Double.NaN, 0.6);
+        assertEquals(TIER_MANEUVER, profile.governor.getTier());
+        profile.run(5, Double.NaN, 0);
+        assertEquals(TIER_CRUISE, profile.governor.getTier()); // down to cruise, not parked
+    }
+
+    @Test
+    public void update_dwellIsRestartedWhenDynamicsReturn() {
+        Profile profile = new Profile();
+        profile.run(1, 10, 0);
+        assertEquals(-1, profile.run(2, 0, 0));
+        assertEquals(-1, profile.run(0.5, 3, 0)); // creeps forward in a jam
+        assertEquals(-1, profile.run(2.5, 0, 0)); // 4.5 s of stop in total, but not in a row
+        assertEquals(TIER_CRUISE, profile.governor.getTier());
+        assertTrue(profile.run(1, 0, 0) > 0);
+        assertEquals(TIER_PARKED, profile.governor.getTier());
+    }
+
+    @Test
+    public void getTierTimeMillis_accountsSensorTimeByTier() {
+        Profile profile = new Profile();
+        profile.run(10, 15, 0); // cruise
+        profile.run(4, 15, 0.6); // maneuver from first samples
+        profile.run(8, 0, 0); // maneuver until dwell passes (rotation decays first), then parked directly
+        assertFalse(profile.governor.update(0, 0, profile.timeNanos)); // late sample isn't accounted
+        assertFalse(profile.governor.update(0, 0, profile.timeNanos - STEP_NANOS));
+
+        SensorRateGovernor governor = profile.governor;
+        long total = 0;
+        for (int tier = 0; tier < TIERS; ++tier) {
+            total += governor.getTierTimeMillis(tier);
+        }
+        // first sample only starts accounting
+        long elapsedMillis = (profile.timeNanos - profile.startNanos - STEP_NANOS) / 1_000_000;
+        assertEquals(elapsedMillis, total, TIERS);
+        assertEquals(2, governor.getTierSwitches());
+        assertEquals(profile.timeNanos - profile.lastSwitchNanos,
+                governor.getTierTimeMillis(TIER_PARKED) * 1_000_000, 1_000_000);
+        assertTrue("maneuver " + governor.getTierTimeMillis(TIER_MANEUVER),
+                Math.abs(governor.getTierTimeMillis(TIER_MANEUVER) - 7_100) < 300);
+        assertTrue("cruise " + governor.getTierTimeMillis(TIER_CRUISE),
+                Math.abs(governor.getTierTimeMillis(TIER_CRUISE) - 10_200) < 300);
+    }
+}
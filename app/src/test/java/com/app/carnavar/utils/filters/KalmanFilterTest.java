@@ -0,0 +1,215 @@
+package com.app.carnavar.utils.filters;
+
+import com.app.carnavar.utils.math.Matrix2;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KalmanFilterTest {
+
+    private static final int STATE = 4;
+
+    // constant velocity model [x, y, xVel, yVel] with position (and optionally velocity) measurements,
+    // set up as KalmanGpsImuFusionEngine does
+    private static KalmanFilter constantVelocityFilter(int measureDimension, boolean flat) {
+        KalmanFilter kf = new KalmanFilter(STATE, measureDimension, 2, flat);
+        kf.H.setIdentityDiag();
+        kf.F.setIdentity();
+        kf.B.setZero();
+        kf.Q.setZero();
+        kf.R.setZero();
+        kf.Pk_k.setIdentity();
+        kf.Pk_k.scale(25.0);
+        return kf;
+    }
+
+    private static void predict(KalmanFilter kf, double dt, double ax, double ay, double accVariance) {
+        kf.F.set(0, 2, dt);
+        kf.F.set(1, 3, dt);
+        kf.B.set(0, 0, 0.5 * dt * dt);
+        kf.B.set(1, 1, 0.5 * dt * dt);
+        kf.B.set(2, 0, dt);
+        kf.B.set(3, 1, dt);
+        kf.Uk.set(0, 0, ax);
+        kf.Uk.set(1, 0, ay);
+        double pos = accVariance * dt * dt * dt * dt / 4.0, cov = accVariance * dt * dt * dt / 2.0;
+        double vel = accVariance * dt * dt;
+        for (int a = 0; a < 2; ++a) {
+            kf.Q.set(a, a, pos);
+            kf.Q.set(a + 2, a + 2, vel);
+            kf.Q.set(a, a + 2, cov);
+            kf.Q.set(a + 2, a, cov);
+        }
+        kf.predict();
+        Matrix2.matrixCopy(kf.Xk_km1, kf.Xk_k);
+        Matrix2.matrixCopy(kf.Pk_km1, kf.Pk_k);
+    }
+
+    // eigenvalues of symmetric matrix by cyclic jacobi rotations
+    private static double[] symmetricEigenvalues(Matrix2 m) {
+        final int n = m.getRows();
+        double[][] a = new double[n][n];
+        for (int r = 0; r < n; ++r) {
+            for (int c = 0; c < n; ++c) {
+                a[r][c] = 0.5 * (m.get(r, c) + m.get(c, r));
+            }
+        }
+        for (int sweep = 0; sweep < 100; ++sweep) {
+            double off = 0.0;
+            for (int p = 0; p < n; ++p)
+                for (int q = p + 1; q < n; ++q)
+                    off += a[p][q] * a[p][q];
+            if (off < 1e-30)
+                break;
+            for (int p = 0; p < n; ++p) {
+                for (int q = p + 1; q < n; ++q) {
+                    if (a[p][q] == 0.0)
+                        continue;
+                    double theta = (a[q][q] - a[p][p]) / (2.0 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1.0));
+                    if (theta == 0.0)
+                        t = 1.0;
+                    double c = 1.0 / Math.sqrt(t * t + 1.0), s = t * c;
+                    for (int k = 0; k < n; ++k) {
+                        double akp = a[k][p], akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < n; ++k) {
+                        double apk = a[p][k], aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                }
+            }
+        }
+        double[] eig = new double[n];
+        for (int i = 0; i < n; ++i)
+            eig[i] = a[i][i];
+        return eig;
+    }
+
+    private static double conditionNumber(Matrix2 p) {
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double e : symmetricEigenvalues(p)) {
+            min = Math.min(min, e);
+            max = Math.max(max, e);
+        }
+        assertTrue("P lost positive-definiteness, min eigenvalue " + min, min > 0.0);
+        return max / min;
+    }
+
+    // one hour at 100 Hz imu with 1 Hz gps (one 2 min outage), accurate gps makes P badly scaled
+    private static void assertBoundedCondition(boolean sequential) {
+        KalmanFilter kf = constantVelocityFilter(2, true);
+        kf.setJosephFormUpdate(true);
+        kf.setSequentialUpdate(sequential);
+        Random random = new Random(3);
+        final double dt = 0.01, accVariance = 0.01, gpsVariance = 0.04;
+        kf.R.set(0, 0, gpsVariance);
+        kf.R.set(1, 1, gpsVariance);
+        double x = 0, y = 0, vx = 10, vy = 0, worst = 0;
+        for (int step = 1; step <= 360000; ++step) {
+            double ax = Math.sin(step * dt * 0.1), ay = Math.cos(step * dt * 0.07);
+            x += vx * dt + 0.5 * ax * dt * dt;
+            y += vy * dt + 0.5 * ay * dt * dt;
+            vx += ax * dt;
+            vy += ay * dt;
+            predict(kf, dt, ax + random.nextGaussian() * 0.1, ay + random.nextGaussian() * 0.1, accVariance);
+            boolean outage = step > 180000 && step < 192000;
+            if (step % 100 == 0 && !outage) {
+                kf.Zk.set(0, 0, x + random.nextGaussian() * 0.2);
+                kf.Zk.set(1, 0, y + random.nextGaussian() * 0.2);
+                assertEquals(KalmanFilter.UPDATE_OK, kf.update());
+                for (int r = 0; r < STATE; ++r)
+                    for (int c = 0; c < STATE; ++c)
+                        assertEquals(kf.Pk_k.get(r, c), kf.Pk_k.get(c, r), 0.0);
+                worst = Math.max(worst, conditionNumber(kf.Pk_k));
+            }
+        }
+        assertTrue("condition number of P grew to " + worst, worst < 1e4);
+        assertEquals(x, kf.Xk_k.get(0, 0), 1.0);
+        assertEquals(y, kf.Xk_k.get(1, 0), 1.0);
+    }
+
+    @Test
+    public void josephUpdate_longReplay_keepsConditionNumberBounded() {
+        assertBoundedCondition(false);
+    }
+
+    @Test
+    public void josephSequentialUpdate_longReplay_keepsConditionNumberBounded() {
+        assertBoundedCondition(true);
+    }
+
+    private static void randomPrior(KalmanFilter kf, long seed) {
+        Random random = new Random(seed);
+        // P = A*A(t) + I is symmetric positive-definite
+        Matrix2 a = new Matrix2(STATE, STATE, kf.Pk_km1.isFlat());
+        for (int r = 0; r < STATE; ++r) {
+            kf.Xk_km1.set(r, 0, random.nextGaussian() * 10.0);
+            kf.Xk_k.set(r, 0, kf.Xk_km1.get(r, 0));
+            for (int c = 0; c < STATE; ++c)
+                a.set(r, c, random.nextGaussian());
+        }
+        Matrix2.matrixMultiplyByTranspose(a, a, kf.Pk_km1);
+        for (int r = 0; r < STATE; ++r)
+            kf.Pk_km1.set(r, r, kf.Pk_km1.get(r, r) + 1.0);
+        Matrix2.matrixCopy(kf.Pk_km1, kf.Pk_k);
+        for (int r = 0; r < kf.Zk.getRows(); ++r) {
+            kf.Zk.set(r, 0, random.nextGaussian() * 10.0);
+            kf.R.set(r, r, 0.1 + random.nextDouble());
+        }
+    }
+
+    private static void assertSameState(KalmanFilter expected, KalmanFilter actual, double eps) {
+        assertTrue(Matrix2.matrixEq(expected.Xk_k, actual.Xk_k, eps));
+        assertTrue(Matrix2.matrixEq(expected.Pk_k, actual.Pk_k, eps));
+    }
+
+    @Test
+    public void sequentialUpdate_matchesBatchUpdate() {
+        for (int measureDimension : new int[]{2, 4}) {
+            for (boolean joseph : new boolean[]{false, true}) {
+                for (long seed = 0; seed < 50; ++seed) {
+                    KalmanFilter batch = constantVelocityFilter(measureDimension, true);
+                    KalmanFilter sequential = constantVelocityFilter(measureDimension, true);
+                    batch.setJosephFormUpdate(joseph);
+                    sequential.setJosephFormUpdate(joseph);
+                    sequential.setSequentialUpdate(true);
+                    randomPrior(batch, seed);
+                    randomPrior(sequential, seed);
+
+                    assertEquals(KalmanFilter.UPDATE_OK, batch.update());
+                    assertEquals(KalmanFilter.UPDATE_OK, sequential.update());
+                    assertSameState(batch, sequential, 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sequentialUpdate_notSpdComponent_leavesStateUntouched() {
+        KalmanFilter kf = constantVelocityFilter(4, false);
+        kf.setSequentialUpdate(true);
+        randomPrior(kf, 7);
+        // first components are applied, the last one has innovation variance below zero
+        kf.R.set(3, 3, -1e6);
+        Matrix2 x = new Matrix2(STATE, 1), p = new Matrix2(STATE, STATE);
+        Matrix2.matrixCopy(kf.Xk_k, x);
+        Matrix2.matrixCopy(kf.Pk_k, p);
+
+        assertEquals(KalmanFilter.UPDATE_INNOVATION_NOT_SPD, kf.update());
+        assertTrue(Matrix2.matrixEq(x, kf.Xk_k, 0.0));
+        assertTrue(Matrix2.matrixEq(p, kf.Pk_k, 0.0));
+
+        // batch update keeps the same contract
+        kf.setSequentialUpdate(false);
+        assertEquals(KalmanFilter.UPDATE_INNOVATION_NOT_SPD, kf.update());
+        assertTrue(Matrix2.matrixEq(x, kf.Xk_k, 0.0));
+        assertTrue(Matrix2.matrixEq(p, kf.Pk_k, 0.0));
+    }
+}
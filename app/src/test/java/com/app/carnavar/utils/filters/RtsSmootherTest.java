@@ -0,0 +1,115 @@
+package com.app.carnavar.utils.filters;
+
+import com.app.carnavar.utils.math.Matrix2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RtsSmootherTest {
+
+    private static final int STATE = 4;
+    private static final int CHUNK_STEPS = 7;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    // forward constant velocity run with position fix every 5th step
+    private static final class Trip {
+        final KalmanFilter kf = new KalmanFilter(STATE, 2, 1, true);
+        final Random random = new Random(11);
+        int step = 0;
+
+        Trip() {
+            kf.H.setIdentityDiag();
+            kf.F.setIdentity();
+            kf.F.set(0, 2, 0.1);
+            kf.F.set(1, 3, 0.1);
+            kf.Q.setIdentity();
+            kf.Q.scale(1e-3);
+            kf.R.setIdentity();
+            kf.R.scale(4.0);
+            kf.Pk_k.setIdentity();
+            kf.Pk_k.scale(10.0);
+        }
+
+        void record(RtsSmoother smoother, int steps) throws IOException {
+            for (int i = 0; i < steps; ++i, ++step) {
+                kf.predict();
+                boolean updated = step % 5 == 0;
+                if (updated) {
+                    kf.Zk.set(0, 0, step * 0.1 + random.nextGaussian() * 2.0);
+                    kf.Zk.set(1, 0, step * 0.05 + random.nextGaussian() * 2.0);
+                    assertEquals(KalmanFilter.UPDATE_OK, kf.update());
+                } else {
+                    Matrix2.matrixCopy(kf.Xk_km1, kf.Xk_k);
+                    Matrix2.matrixCopy(kf.Pk_km1, kf.Pk_k);
+                }
+                smoother.recordStep(step * 0.1, updated);
+            }
+        }
+    }
+
+    // smoothed states indexed by step: x (4) then P (16)
+    private static double[][] smooth(RtsSmoother smoother) throws IOException {
+        final double[][] states = new double[smoother.getStepsCount()][];
+        smoother.smooth((step, timestamp, x, p) -> {
+            assertNull("step " + step + " returned twice", states[step]);
+            double[] s = new double[STATE + STATE * STATE];
+            for (int r = 0; r < STATE; ++r) {
+                s[r] = x.get(r, 0);
+                for (int c = 0; c < STATE; ++c)
+                    s[STATE + r * STATE + c] = p.get(r, c);
+            }
+            states[step] = s;
+        });
+        return states;
+    }
+
+    private static void assertSameStates(double[][] expected, double[][] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i)
+            assertArrayEquals("step " + i, expected[i], actual[i], 0.0);
+    }
+
+    @Test
+    public void smooth_isRepeatable_withPartialLastChunk() throws IOException {
+        Trip trip = new Trip();
+        RtsSmoother smoother = new RtsSmoother(trip.kf, CHUNK_STEPS, new RtsSmoother.MemoryChunkStore());
+        trip.record(smoother, 53);
+        double[][] first = smooth(smoother);
+        assertSameStates(first, smooth(smoother));
+        smoother.close();
+    }
+
+    @Test
+    public void smooth_chunkedFile_matchesSingleChunk() throws IOException {
+        Trip chunkedTrip = new Trip(), singleTrip = new Trip();
+        RtsSmoother chunked = new RtsSmoother(chunkedTrip.kf, CHUNK_STEPS, new RtsSmoother.FileChunkStore(
+                temporaryFolder.newFile(), CHUNK_STEPS * RtsSmoother.recordSize(STATE)));
+        RtsSmoother single = new RtsSmoother(singleTrip.kf, 1000, new RtsSmoother.MemoryChunkStore());
+        chunkedTrip.record(chunked, 53);
+        singleTrip.record(single, 53);
+        assertSameStates(smooth(single), smooth(chunked));
+        assertSameStates(smooth(single), smooth(chunked));
+        chunked.close();
+        single.close();
+    }
+
+    @Test
+    public void recordStep_afterSmooth_continuesTrip() throws IOException {
+        Trip splitTrip = new Trip(), wholeTrip = new Trip();
+        RtsSmoother split = new RtsSmoother(splitTrip.kf, CHUNK_STEPS, new RtsSmoother.MemoryChunkStore());
+        RtsSmoother whole = new RtsSmoother(wholeTrip.kf, CHUNK_STEPS, new RtsSmoother.MemoryChunkStore());
+        splitTrip.record(split, 24);
+        smooth(split);
+        splitTrip.record(split, 29);
+        wholeTrip.record(whole, 53);
+        assertSameStates(smooth(whole), smooth(split));
+    }
+}
@@ -0,0 +1,76 @@
+package com.app.carnavar.utils.math;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default vs flat storage on the kalman filter shapes (4 states, 2 measurements):
+ * covariance predict F*P*F(t) + Q and gain numerator P*H(t).
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Matrix2Benchmark {
+
+    @Param({"false", "true"})
+    public boolean flat;
+
+    private Matrix2 f, p, q, h, fp, fpft, pht;
+
+    @Setup
+    public void setup() {
+        f = new Matrix2(4, 4, flat);
+        p = new Matrix2(4, 4, flat);
+        q = new Matrix2(4, 4, flat);
+        h = new Matrix2(2, 4, flat);
+        fp = new Matrix2(4, 4, flat);
+        fpft = new Matrix2(4, 4, flat);
+        pht = new Matrix2(4, 2, flat);
+        double dt = 0.01;
+        f.setData(1, 0, dt, 0,
+                0, 1, 0, dt,
+                0, 0, 1, 0,
+                0, 0, 0, 1);
+        p.setIdentity();
+        q.setIdentity();
+        q.scale(1e-4);
+        h.setData(1, 0, 0, 0,
+                0, 1, 0, 0);
+    }
+
+    @Benchmark
+    public Matrix2 predictCovariance() {
+        Matrix2.matrixMultiply(f, p, fp);
+        Matrix2.matrixMultiplyByTranspose(fp, f, fpft);
+        Matrix2.matrixAdd(fpft, q, p);
+        return p;
+    }
+
+    @Benchmark
+    public Matrix2 gainNumerator() {
+        Matrix2.matrixMultiplyByTranspose(p, h, pht);
+        return pht;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(Matrix2Benchmark.class.getSimpleName()).build()).run();
+    }
+}
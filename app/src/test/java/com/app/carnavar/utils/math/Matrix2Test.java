@@ -0,0 +1,96 @@
+package com.app.carnavar.utils.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Matrix2Test {
+
+    private static final double EPS = 1e-12;
+
+    private static Matrix2 random(int rows, int cols, boolean flat, long seed) {
+        Random random = new Random(seed);
+        Matrix2 m = new Matrix2(rows, cols, flat);
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                m.set(r, c, random.nextDouble() * 2.0 - 1.0);
+            }
+        }
+        return m;
+    }
+
+    // shapes of the kalman filter (4x4, 4x2, 2x4, 2x2) go through unrolled kernels, 3x5 through the generic one
+    @Test
+    public void flatKernels_matchDefaultStorage() {
+        int[][] shapes = {{4, 4, 4}, {4, 4, 2}, {2, 4, 4}, {4, 2, 4}, {2, 2, 2}, {3, 5, 2}};
+        for (int[] s : shapes) {
+            Matrix2 a = random(s[0], s[1], false, 1), b = random(s[1], s[2], false, 2);
+            Matrix2 bt = random(s[2], s[1], false, 3);
+            Matrix2 fa = random(s[0], s[1], true, 1), fb = random(s[1], s[2], true, 2);
+            Matrix2 fbt = random(s[2], s[1], true, 3);
+
+            Matrix2 c = new Matrix2(s[0], s[2]), fc = new Matrix2(s[0], s[2], true);
+            Matrix2.matrixMultiply(a, b, c);
+            Matrix2.matrixMultiply(fa, fb, fc);
+            assertTrue(Matrix2.matrixEq(c, fc, EPS));
+
+            Matrix2.matrixMultiplyByTranspose(a, bt, c);
+            Matrix2.matrixMultiplyByTranspose(fa, fbt, fc);
+            assertTrue(Matrix2.matrixEq(c, fc, EPS));
+
+            Matrix2 t = new Matrix2(s[1], s[0]), ft = new Matrix2(s[1], s[0], true);
+            Matrix2.matrixTranspose(a, t);
+            Matrix2.matrixTranspose(fa, ft);
+            assertTrue(Matrix2.matrixEq(t, ft, EPS));
+        }
+    }
+
+    @Test
+    public void flatAddSubtractCopy_matchDefaultStorage() {
+        Matrix2 a = random(4, 4, false, 4), b = random(4, 4, false, 5), c = new Matrix2(4, 4);
+        Matrix2 fa = random(4, 4, true, 4), fb = random(4, 4, true, 5), fc = new Matrix2(4, 4, true);
+
+        Matrix2.matrixAdd(a, b, c);
+        Matrix2.matrixAdd(fa, fb, fc);
+        assertTrue(Matrix2.matrixEq(c, fc, EPS));
+
+        Matrix2.matrixSubtract(a, b, c);
+        Matrix2.matrixSubtract(fa, fb, fc);
+        assertTrue(Matrix2.matrixEq(c, fc, EPS));
+
+        c.subtractFromIdentity();
+        fc.subtractFromIdentity();
+        assertTrue(Matrix2.matrixEq(c, fc, EPS));
+
+        Matrix2.matrixCopy(a, c);
+        Matrix2.matrixCopy(fa, fc);
+        assertTrue(Matrix2.matrixEq(c, fc, EPS));
+    }
+
+    @Test
+    public void getFlat_isRowMajorView() {
+        Matrix2 m = new Matrix2(2, 3, true);
+        m.setData(1, 2, 3, 4, 5, 6);
+        double[] flat = m.getFlat();
+        assertEquals(6.0, flat[1 * 3 + 2], 0.0);
+        flat[1 * 3 + 0] = 7.0;
+        assertEquals(7.0, m.get(1, 0), 0.0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getFlat_defaultStorage_throws() {
+        new Matrix2(2, 2).getFlat();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multiply_mixedStorage_throws() {
+        Matrix2.matrixMultiply(new Matrix2(4, 4, true), new Matrix2(4, 4), new Matrix2(4, 4, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void copy_mixedStorage_throws() {
+        Matrix2.matrixCopy(new Matrix2(4, 1), new Matrix2(4, 1, true));
+    }
+}
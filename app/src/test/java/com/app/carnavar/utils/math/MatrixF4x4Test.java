@@ -0,0 +1,101 @@
+package com.app.carnavar.utils.math;
+
+import com.app.carnavar.AllocationCounter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MatrixF4x4Test {
+
+    private static float[] random(int size, long seed) {
+        Random random = new Random(seed);
+        float[] values = new float[size];
+        for (int i = 0; i < size; ++i) {
+            values[i] = random.nextFloat() * 2 - 1;
+        }
+        return values;
+    }
+
+    private static MatrixF4x4 matrix(float[] values) {
+        MatrixF4x4 m = new MatrixF4x4();
+        m.setMatrix(values);
+        return m;
+    }
+
+    private static void assertTransposed(float[] source, float[] transposed, int n) {
+        for (int r = 0; r < n; ++r) {
+            for (int c = 0; c < n; ++c) {
+                assertEquals(source[r * n + c], transposed[c * n + r], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void transpose_inPlace_mutatesSharedArray() {
+        float[] values = random(16, 1);
+        float[] source = values.clone();
+        MatrixF4x4 m = matrix(values);
+        float[] before = m.getMatrix();
+
+        m.transpose();
+
+        // array is kept, holders of it see transposed values
+        assertSame(before, m.getMatrix());
+        assertSame(values, m.getMatrix());
+        assertTransposed(source, values, 4);
+        m.transpose();
+        assertArrayEquals(source, values, 0f);
+    }
+
+    @Test
+    public void transpose_inPlace3x3_swapsAroundDiagonal() {
+        float[] values = random(9, 2);
+        float[] source = values.clone();
+        matrix(values).transpose();
+        assertTransposed(source, values, 3);
+    }
+
+    @Test
+    public void transpose_output_keepsSource() {
+        float[] values = random(16, 3);
+        float[] source = values.clone();
+        MatrixF4x4 m = matrix(values);
+        MatrixF4x4 out = new MatrixF4x4();
+
+        m.transpose(out);
+
+        assertArrayEquals(source, m.getMatrix(), 0f);
+        assertTransposed(source, out.getMatrix(), 4);
+    }
+
+    @Test
+    public void multiplyMatrix4x4ByMatrix_output_matchesAllocatingVariant() {
+        MatrixF4x4 a = matrix(random(16, 4));
+        MatrixF4x4 b = matrix(random(16, 5));
+        MatrixF4x4 out = matrix(random(16, 6)); // stale values are overwritten
+        float[] bValues = b.getMatrix().clone();
+
+        a.multiplyMatrix4x4ByMatrix(b, out);
+        assertArrayEquals(bValues, b.getMatrix(), 0f);
+        a.multiplyMatrix4x4ByMatrix(b);
+
+        assertArrayEquals(b.getMatrix(), out.getMatrix(), 0f);
+    }
+
+    @Test
+    public void hotCalls_allocateNothing() {
+        final MatrixF4x4 a = matrix(random(16, 7));
+        final MatrixF4x4 b = matrix(random(16, 8));
+        final MatrixF4x4 out = new MatrixF4x4();
+        long bytes = AllocationCounter.measure(10_000, 100_000, () -> {
+            a.transpose();
+            a.transpose(out);
+            a.multiplyMatrix4x4ByMatrix(b, out);
+        });
+        // jit may allocate a little, allocating variants take megabytes
+        assertTrue("matrix calls allocated " + bytes + " bytes", bytes < 1024);
+    }
+}
@@ -0,0 +1,122 @@
+package com.app.carnavar.utils.math;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Quaternion and MatrixF4x4 calls of the orientation hot path: multiply, slerp, euler angles and matrix conversion,
+ * allocation-free variants next to the allocating ones. Run with -prof gc to see bytes per call.
+ * Run with main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuaternionBenchmark {
+
+    private Quaternion a, b, out;
+    private MatrixF4x4 m, n, matrixOut;
+    private final double[] angles = new double[3];
+    private final float[] array = new float[16];
+
+    @Setup
+    public void setup() {
+        a = new Quaternion();
+        a.setXYZW(0.1f, 0.2f, 0.3f, 0.9f);
+        a.normalise();
+        b = new Quaternion();
+        b.setXYZW(-0.3f, 0.1f, -0.2f, -0.9f); // negative dot product, slerp negates input
+        b.normalise();
+        out = new Quaternion();
+        m = a.getMatrix4x4();
+        n = new MatrixF4x4();
+        b.getMatrix4x4(n);
+        matrixOut = new MatrixF4x4();
+    }
+
+    @Benchmark
+    public Quaternion multiply() {
+        a.multiplyByQuat(b, out);
+        return out;
+    }
+
+    @Benchmark
+    public Quaternion multiplyInPlace() {
+        out.set(a);
+        out.multiplyByQuat(b);
+        return out;
+    }
+
+    @Benchmark
+    public Quaternion slerp() {
+        a.slerp(b, out, 0.1f);
+        return out;
+    }
+
+    @Benchmark
+    public double[] toEulerAngles() {
+        return a.toEulerAngles();
+    }
+
+    @Benchmark
+    public double[] toEulerAnglesArray() {
+        return a.toEulerAngles(angles);
+    }
+
+    @Benchmark
+    public float[] toMatrix() {
+        a.toMatrix(array);
+        return array;
+    }
+
+    @Benchmark
+    public MatrixF4x4 getMatrix4x4Output() {
+        a.getMatrix4x4(matrixOut);
+        return matrixOut;
+    }
+
+    @Benchmark
+    public MatrixF4x4 transposeInPlace() {
+        m.transpose();
+        return m;
+    }
+
+    @Benchmark
+    public MatrixF4x4 transposeOutput() {
+        m.transpose(matrixOut);
+        return matrixOut;
+    }
+
+    @Benchmark
+    public MatrixF4x4 multiplyMatrix() {
+        // result replaces the array of argument
+        matrixOut.set(n);
+        m.multiplyMatrix4x4ByMatrix(matrixOut);
+        return matrixOut;
+    }
+
+    @Benchmark
+    public MatrixF4x4 multiplyMatrixOutput() {
+        m.multiplyMatrix4x4ByMatrix(n, matrixOut);
+        return matrixOut;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(QuaternionBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,120 @@
+package com.app.carnavar.utils.math;
+
+import com.app.carnavar.AllocationCounter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuaternionTest {
+
+    private static Quaternion random(Random random) {
+        Quaternion q = new Quaternion();
+        q.setXYZW(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1,
+                random.nextFloat() * 2 - 1);
+        q.normalise();
+        return q;
+    }
+
+    private static void assertQuatEquals(Quaternion expected, Quaternion actual, float delta) {
+        assertEquals(expected.getX(), actual.getX(), delta);
+        assertEquals(expected.getY(), actual.getY(), delta);
+        assertEquals(expected.getZ(), actual.getZ(), delta);
+        assertEquals(expected.getW(), actual.getW(), delta);
+    }
+
+    @Test
+    public void multiplyByQuat_inPlace_matchesOutputVariant() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; ++i) {
+            Quaternion a = random(random), b = random(random), expected = new Quaternion();
+            a.multiplyByQuat(b, expected);
+            a.multiplyByQuat(b);
+            assertQuatEquals(expected, a, 0f);
+        }
+    }
+
+    @Test
+    public void multiplyByQuat_inPlaceBySelf_squares() {
+        Random random = new Random(2);
+        Quaternion a = random(random), copy = new Quaternion(), expected = new Quaternion();
+        copy.set(a);
+        copy.multiplyByQuat(a, expected);
+        a.multiplyByQuat(a);
+        assertQuatEquals(expected, a, 0f);
+    }
+
+    @Test
+    public void multiplyByScalar_scalesComponents() {
+        Quaternion q = new Quaternion();
+        q.setXYZW(1, 2, 3, 4);
+        q.multiplyByScalar(-2);
+        assertEquals(-2, q.getX(), 0f);
+        assertEquals(-4, q.getY(), 0f);
+        assertEquals(-6, q.getZ(), 0f);
+        assertEquals(-8, q.getW(), 0f);
+    }
+
+    @Test
+    public void slerp_negativeDot_interpolatesToNegatedInput() {
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; ++i) {
+            Quaternion a = random(random), b = random(random);
+            if (a.dotProduct(b) >= 0) {
+                b.multiplyByScalar(-1);
+            }
+            Quaternion negated = new Quaternion();
+            negated.setXYZW(-b.getX(), -b.getY(), -b.getZ(), -b.getW());
+            Quaternion expected = new Quaternion(), actual = new Quaternion();
+            a.slerp(negated, expected, 0.3f);
+            a.slerp(b, actual, 0.3f);
+            assertQuatEquals(expected, actual, 1e-6f);
+        }
+    }
+
+    @Test
+    public void toMatrix_matchesGetMatrix4x4() {
+        Random random = new Random(4);
+        float[] array = new float[16];
+        MatrixF4x4 out = new MatrixF4x4();
+        for (int i = 0; i < 100; ++i) {
+            Quaternion q = random(random);
+            q.normalise(); // marks lazy matrix dirty
+            q.toMatrix(array);
+            q.getMatrix4x4(out);
+            assertArrayEquals(q.getMatrix4x4().getMatrix(), array, 0f);
+            assertArrayEquals(q.getMatrix4x4().getMatrix(), out.getMatrix(), 0f);
+        }
+    }
+
+    @Test
+    public void toEulerAngles_array_matchesAllocatingVariant() {
+        Quaternion q = random(new Random(5));
+        double[] angles = new double[3];
+        assertSame(angles, q.toEulerAngles(angles));
+        assertArrayEquals(q.toEulerAngles(), angles, 0);
+    }
+
+    @Test
+    public void hotCalls_allocateNothing() {
+        Random random = new Random(6);
+        final Quaternion a = random(random), b = random(random), out = new Quaternion();
+        b.multiplyByScalar(-1); // slerp negates input
+        final double[] angles = new double[3];
+        final float[] array = new float[16];
+        final MatrixF4x4 matrix = new MatrixF4x4();
+        long bytes = AllocationCounter.measure(10_000, 100_000, () -> {
+            a.slerp(b, out, 0.1f);
+            out.multiplyByQuat(a);
+            out.multiplyByQuat(b, a);
+            a.normalise();
+            a.toEulerAngles(angles);
+            a.toMatrix(array);
+            a.getMatrix4x4(matrix);
+        });
+        // jit may allocate a little, allocating variants take megabytes
+        assertTrue("quaternion calls allocated " + bytes + " bytes", bytes < 1024);
+    }
+}